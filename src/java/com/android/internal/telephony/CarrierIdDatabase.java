@@ -0,0 +1,340 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.internal.telephony;
+
+import android.telephony.Rlog;
+
+import com.android.internal.telephony.CarrierResolver.CarrierMatchingRule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Read-only, memory-mapped carrier id database.
+ *
+ * The file holds the same carrier matching rules as the carrier_id provider, grouped into one
+ * bucket per MCCMNC. Rules are only decoded when the bucket of the SIM's MCCMNC is requested,
+ * and strings are stored once in a shared pool and referenced by offset and length. Layout, all
+ * integers big endian:
+ *
+ * <pre>
+ * header:   magic, format version, carrier list version, bucket count, name count,
+ *           string pool offset
+ * buckets:  (mccmnc offset, mccmnc length, first rule, rule count), sorted by mccmnc
+ * names:    (carrier id, name offset, name length), sorted by carrier id
+ * rules:    (mccmnc, imsi prefix, iccid prefix, gid1, gid2, plmn, spn, apn,
+ *            privilege access rule, name) as (offset, length) pairs, carrier id, parent id
+ * strings:  UTF-8 bytes
+ * </pre>
+ *
+ * A null string has length -1.
+ */
+class CarrierIdDatabase {
+    private static final String LOG_TAG = "CarrierIdDatabase";
+
+    private static final int MAGIC = 0x43494442; // "CIDB"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int HEADER_SIZE = 6 * 4;
+    private static final int BUCKET_SIZE = 4 * 4;
+    private static final int NAME_SIZE = 3 * 4;
+    private static final int RULE_STRINGS = 10;
+    private static final int RULE_SIZE = RULE_STRINGS * 2 * 4 + 2 * 4;
+
+    private final ByteBuffer mBuffer;
+    private final int mVersion;
+    private final int mBucketCount;
+    private final int mNameCount;
+    private final int mNamesOffset;
+    private final int mRulesOffset;
+    private final int mStringPoolOffset;
+
+    private CarrierIdDatabase(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not a carrier id database");
+        }
+        if (buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("unsupported format version " + buffer.getInt(4));
+        }
+        mVersion = buffer.getInt(8);
+        mBucketCount = buffer.getInt(12);
+        mNameCount = buffer.getInt(16);
+        mStringPoolOffset = buffer.getInt(20);
+        mNamesOffset = HEADER_SIZE + mBucketCount * BUCKET_SIZE;
+        mRulesOffset = mNamesOffset + mNameCount * NAME_SIZE;
+        if (mBucketCount < 0 || mNameCount < 0 || mRulesOffset > mStringPoolOffset
+                || mStringPoolOffset > buffer.capacity()) {
+            throw new IOException("corrupt carrier id database");
+        }
+    }
+
+    /**
+     * Map the database file.
+     *
+     * @return The database, or null if the file does not exist or is not a valid database.
+     */
+    static CarrierIdDatabase open(File file) {
+        if (!file.exists()) return null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            // The mapping stays valid after the channel is closed.
+            return new CarrierIdDatabase(
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException | RuntimeException e) {
+            Rlog.e(LOG_TAG, "Failed to open " + file + ": " + e);
+            return null;
+        }
+    }
+
+    /** Returns the version of the carrier list the database was generated from. */
+    int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Returns newly decoded matching rules for the given MCCMNC, in the order they were written.
+     *
+     * @return The rules, or null if the database is corrupt.
+     */
+    List<CarrierMatchingRule> getRulesForMccMnc(String mccmnc) {
+        List<CarrierMatchingRule> rules = new ArrayList<>();
+        if (mccmnc == null) return rules;
+        try {
+            int bucket = findBucket(mccmnc.getBytes(StandardCharsets.UTF_8));
+            if (bucket < 0) return rules;
+
+            int pos = HEADER_SIZE + bucket * BUCKET_SIZE;
+            int first = mBuffer.getInt(pos + 8);
+            int count = mBuffer.getInt(pos + 12);
+            if (first < 0 || count < 0
+                    || first + count > (mStringPoolOffset - mRulesOffset) / RULE_SIZE) {
+                throw new IndexOutOfBoundsException("rules " + first + "+" + count);
+            }
+            for (int i = 0; i < count; i++) {
+                rules.add(readRule(mRulesOffset + (first + i) * RULE_SIZE));
+            }
+        } catch (IndexOutOfBoundsException e) {
+            Rlog.e(LOG_TAG, "Corrupt rules for " + mccmnc + ": " + e);
+            return null;
+        }
+        return rules;
+    }
+
+    /** Returns the name of the given carrier id, or null if it is unknown or corrupt. */
+    String getCarrierName(int cid) {
+        try {
+            return findCarrierName(cid);
+        } catch (IndexOutOfBoundsException e) {
+            Rlog.e(LOG_TAG, "Corrupt name of " + cid + ": " + e);
+            return null;
+        }
+    }
+
+    private String findCarrierName(int cid) {
+        int low = 0;
+        int high = mNameCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int pos = mNamesOffset + mid * NAME_SIZE;
+            int midCid = mBuffer.getInt(pos);
+            if (midCid < cid) {
+                low = mid + 1;
+            } else if (midCid > cid) {
+                high = mid - 1;
+            } else {
+                return readString(pos + 4);
+            }
+        }
+        return null;
+    }
+
+    private int findBucket(byte[] key) {
+        int low = 0;
+        int high = mBucketCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int pos = HEADER_SIZE + mid * BUCKET_SIZE;
+            int cmp = compare(mBuffer.getInt(pos), mBuffer.getInt(pos + 4), key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    // Compare pooled bytes with the key in place, without decoding the pooled string.
+    private int compare(int offset, int length, byte[] key) {
+        checkString(offset, length);
+        int start = mStringPoolOffset + offset;
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (mBuffer.get(start + i) & 0xff) - (key[i] & 0xff);
+            if (cmp != 0) return cmp;
+        }
+        return length - key.length;
+    }
+
+    private CarrierMatchingRule readRule(int pos) {
+        String[] s = new String[RULE_STRINGS];
+        for (int i = 0; i < RULE_STRINGS; i++) {
+            s[i] = readString(pos + i * 8);
+        }
+        int intsPos = pos + RULE_STRINGS * 8;
+        return new CarrierMatchingRule(s[0], s[1], s[2], s[3], s[4], s[5], s[6], s[7],
+                (s[8] == null || s[8].isEmpty()) ? null : new ArrayList<>(Arrays.asList(s[8])),
+                mBuffer.getInt(intsPos), s[9], mBuffer.getInt(intsPos + 4));
+    }
+
+    private String readString(int refPos) {
+        int offset = mBuffer.getInt(refPos);
+        int length = mBuffer.getInt(refPos + 4);
+        if (length < 0) return null;
+        checkString(offset, length);
+        byte[] bytes = new byte[length];
+        // Absolute reads keep the shared buffer position untouched, so lookups need no locking.
+        for (int i = 0; i < length; i++) {
+            bytes[i] = mBuffer.get(mStringPoolOffset + offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Offsets come from the file, check them before allocating or reading the bytes.
+    private void checkString(int offset, int length) {
+        if (offset < 0 || length < 0
+                || offset > mBuffer.capacity() - mStringPoolOffset - length) {
+            throw new IndexOutOfBoundsException("string " + offset + "+" + length);
+        }
+    }
+
+    /**
+     * Write a database holding the given rules, e.g. the rows of the carrier_id provider
+     * generated from the carrier list. Rules without an MCCMNC are skipped, since they are never
+     * looked up. Each rule may carry at most one privilege access rule certificate.
+     */
+    static void write(OutputStream out, int version, List<CarrierMatchingRule> rules)
+            throws IOException {
+        Map<String, List<CarrierMatchingRule>> buckets = new TreeMap<>((a, b) -> {
+            byte[] x = a.getBytes(StandardCharsets.UTF_8);
+            byte[] y = b.getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < Math.min(x.length, y.length); i++) {
+                int cmp = (x[i] & 0xff) - (y[i] & 0xff);
+                if (cmp != 0) return cmp;
+            }
+            return x.length - y.length;
+        });
+        TreeMap<Integer, String> names = new TreeMap<>();
+        for (CarrierMatchingRule rule : rules) {
+            if (rule.privilegeAccessRule != null && rule.privilegeAccessRule.size() > 1) {
+                throw new IllegalArgumentException("more than one certificate in " + rule);
+            }
+            if (!names.containsKey(rule.getCid())) {
+                names.put(rule.getCid(), rule.getName());
+            }
+            if (rule.mccMnc == null) continue;
+            List<CarrierMatchingRule> bucket = buckets.get(rule.mccMnc);
+            if (bucket == null) {
+                bucket = new ArrayList<>();
+                buckets.put(rule.mccMnc, bucket);
+            }
+            bucket.add(rule);
+        }
+
+        StringPool pool = new StringPool();
+        ByteArrayOutputStream tables = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(tables);
+        int ruleIndex = 0;
+        for (Map.Entry<String, List<CarrierMatchingRule>> entry : buckets.entrySet()) {
+            pool.writeRef(data, entry.getKey());
+            data.writeInt(ruleIndex);
+            data.writeInt(entry.getValue().size());
+            ruleIndex += entry.getValue().size();
+        }
+        for (Map.Entry<Integer, String> entry : names.entrySet()) {
+            data.writeInt(entry.getKey());
+            pool.writeRef(data, entry.getValue());
+        }
+        for (List<CarrierMatchingRule> bucket : buckets.values()) {
+            for (CarrierMatchingRule rule : bucket) {
+                pool.writeRef(data, rule.mccMnc);
+                pool.writeRef(data, rule.imsiPrefixPattern);
+                pool.writeRef(data, rule.iccidPrefix);
+                pool.writeRef(data, rule.gid1);
+                pool.writeRef(data, rule.gid2);
+                pool.writeRef(data, rule.plmn);
+                pool.writeRef(data, rule.spn);
+                pool.writeRef(data, rule.apn);
+                pool.writeRef(data, (rule.privilegeAccessRule == null
+                        || rule.privilegeAccessRule.isEmpty())
+                        ? null : rule.privilegeAccessRule.get(0));
+                pool.writeRef(data, rule.getName());
+                data.writeInt(rule.getCid());
+                data.writeInt(rule.getParentCid());
+            }
+        }
+        data.flush();
+
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeInt(FORMAT_VERSION);
+        header.writeInt(version);
+        header.writeInt(buckets.size());
+        header.writeInt(names.size());
+        header.writeInt(HEADER_SIZE + tables.size());
+        tables.writeTo(out);
+        pool.mBytes.writeTo(out);
+        out.flush();
+    }
+
+    private static class StringPool {
+        final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        final HashMap<String, Integer> mOffsets = new HashMap<>();
+
+        void writeRef(DataOutputStream data, String s) throws IOException {
+            if (s == null) {
+                data.writeInt(0);
+                data.writeInt(-1);
+                return;
+            }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            Integer offset = mOffsets.get(s);
+            if (offset == null) {
+                offset = mBytes.size();
+                mBytes.write(bytes);
+                mOffsets.put(s, offset);
+            }
+            data.writeInt(offset);
+            data.writeInt(bytes.length);
+        }
+    }
+}
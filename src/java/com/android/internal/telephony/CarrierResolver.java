@@ -24,8 +24,11 @@ import android.content.Intent;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.provider.Telephony;
 import android.service.carrier.CarrierIdentifier;
 import android.telephony.PhoneStateListener;
@@ -42,7 +45,11 @@ import com.android.internal.telephony.uicc.IccRecords;
 import com.android.internal.telephony.uicc.UiccController;
 import com.android.internal.util.IndentingPrintWriter;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -64,10 +71,17 @@ public class CarrierResolver extends Handler {
     private static final int ICC_CHANGED_EVENT          = 2;
     private static final int PREFER_APN_UPDATE_EVENT    = 3;
     private static final int CARRIER_ID_DB_UPDATE_EVENT = 4;
+    private static final int CARRIER_ID_DB_READY_EVENT  = 5;
 
     private static final Uri CONTENT_URL_PREFER_APN = Uri.withAppendedPath(
             Telephony.Carriers.CONTENT_URI, "preferapn");
 
+    // memory-mapped carrier id database, used instead of the provider when present
+    private static final String PROP_CARRIER_ID_DB = "ro.telephony.carrier_id_db";
+    private static final String DEFAULT_CARRIER_ID_DB = "/data/misc/carrierid/carrier_list.cidb";
+    // the database file is shared by the resolvers of all phones
+    private static final Object sCarrierIdDatabaseLock = new Object();
+
     // cached matching rules based mccmnc to speed up resolution
     private List<CarrierMatchingRule> mCarrierMatchingRulesOnMccMnc = new ArrayList<>();
     // cached carrier Id
@@ -95,6 +109,12 @@ public class CarrierResolver extends Handler {
     private Phone mPhone;
     private IccRecords mIccRecords;
     private final LocalLog mCarrierIdLocalLog = new LocalLog(20);
+    // mapped carrier id database, or null to read rules from the provider
+    private CarrierIdDatabase mCarrierIdDatabase;
+    // whether the database is being opened or generated in the background
+    private boolean mCarrierIdDatabaseLoading;
+    // incremented when the provider is updated, to drop databases loaded before
+    private int mCarrierIdDatabaseGeneration;
     private final TelephonyManager mTelephonyMgr;
 
     private final ContentObserver mContentObserver = new ContentObserver(this) {
@@ -212,8 +232,18 @@ public class CarrierResolver extends Handler {
                 handleSimLoaded();
                 break;
             case CARRIER_ID_DB_UPDATE_EVENT:
+                // the database file may be older than the updated provider, check again.
+                mCarrierIdDatabase = null;
+                mCarrierIdDatabaseLoading = false;
+                mCarrierIdDatabaseGeneration++;
                 loadCarrierMatchingRulesOnMccMnc();
                 break;
+            case CARRIER_ID_DB_READY_EVENT:
+                if (msg.arg1 == mCarrierIdDatabaseGeneration) {
+                    mCarrierIdDatabaseLoading = false;
+                    mCarrierIdDatabase = (CarrierIdDatabase) msg.obj;
+                }
+                break;
             case PREFER_APN_UPDATE_EVENT:
                 String preferApn = getPreferApn();
                 if (!equals(mPreferApn, preferApn, true)) {
@@ -245,9 +275,111 @@ public class CarrierResolver extends Handler {
         }
     }
 
+    /**
+     * Opens the mapped carrier id database in the background, unless it is open or being opened.
+     * The rules are read from the provider until CARRIER_ID_DB_READY_EVENT switches to it.
+     */
+    private void loadCarrierIdDatabase() {
+        if (mCarrierIdDatabase != null || mCarrierIdDatabaseLoading) return;
+        mCarrierIdDatabaseLoading = true;
+        final int generation = mCarrierIdDatabaseGeneration;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+            CarrierIdDatabase db;
+            synchronized (sCarrierIdDatabaseLock) {
+                db = openCarrierIdDatabase();
+            }
+            obtainMessage(CARRIER_ID_DB_READY_EVENT, generation, 0, db).sendToTarget();
+        });
+    }
+
+    /**
+     * Returns the mapped carrier id database if it exists and is at least as recent as the
+     * carrier list in the provider, otherwise null. A missing or older database is generated
+     * again from the provider. Not called on the handler thread.
+     */
+    private CarrierIdDatabase openCarrierIdDatabase() {
+        File file = new File(SystemProperties.get(PROP_CARRIER_ID_DB, DEFAULT_CARRIER_ID_DB));
+        int providerVersion = TelephonyManager.UNKNOWN_CARRIER_ID_LIST_VERSION;
+        try {
+            providerVersion = getCarrierListVersion();
+        } catch (Exception ex) {
+            loge("[openCarrierIdDatabase]- ex: " + ex);
+        }
+        CarrierIdDatabase db = CarrierIdDatabase.open(file);
+        if (db != null && db.getVersion() < providerVersion) {
+            logd("[openCarrierIdDatabase]- version " + db.getVersion()
+                    + " older than provider version " + providerVersion);
+            db = null;
+        }
+        if (db == null && providerVersion != TelephonyManager.UNKNOWN_CARRIER_ID_LIST_VERSION) {
+            db = generateCarrierIdDatabase(file, providerVersion);
+        }
+        return db;
+    }
+
+    /**
+     * Writes the carrier id database from all the rules in the provider. The database is written
+     * to a temporary file which is then renamed, so a database being mapped is never partial.
+     *
+     * @return the new database, or null if it could not be written
+     */
+    private CarrierIdDatabase generateCarrierIdDatabase(File file, int version) {
+        final long startTime = SystemClock.elapsedRealtime();
+        List<CarrierMatchingRule> rules = new ArrayList<>();
+        File tmp = new File(file.getPath() + "." + mPhone.getPhoneId() + ".tmp");
+        try {
+            Cursor cursor = mContext.getContentResolver().query(
+                    CarrierId.All.CONTENT_URI,
+                    /* projection */ null,
+                    /* selection */ null,
+                    /* selectionArgs */ null, null);
+            if (cursor == null) return null;
+            try {
+                while (cursor.moveToNext()) {
+                    rules.add(makeCarrierMatchingRule(cursor));
+                }
+            } finally {
+                cursor.close();
+            }
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                CarrierIdDatabase.write(new BufferedOutputStream(out), version, rules);
+                out.getFD().sync();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("failed to rename " + tmp);
+            }
+        } catch (Exception ex) {
+            loge("[generateCarrierIdDatabase]- ex: " + ex);
+            tmp.delete();
+            return null;
+        }
+        mCarrierIdLocalLog.log("[generateCarrierIdDatabase] version " + version + " with "
+                + rules.size() + " rule(s) in " + (SystemClock.elapsedRealtime() - startTime)
+                + "ms");
+        return CarrierIdDatabase.open(file);
+    }
+
     private void loadCarrierMatchingRulesOnMccMnc() {
+        final long startTime = SystemClock.elapsedRealtime();
         try {
             String mccmnc = mTelephonyMgr.getSimOperatorNumericForPhone(mPhone.getPhoneId());
+            CarrierIdDatabase db = mCarrierIdDatabase;
+            List<CarrierMatchingRule> rules = (db != null) ? db.getRulesForMccMnc(mccmnc) : null;
+            if (db != null && rules == null) {
+                // corrupt database, use the provider and generate it again in the background.
+                new File(SystemProperties.get(PROP_CARRIER_ID_DB, DEFAULT_CARRIER_ID_DB))
+                        .delete();
+                mCarrierIdDatabase = null;
+            }
+            if (rules != null) {
+                mCarrierMatchingRulesOnMccMnc.clear();
+                mCarrierMatchingRulesOnMccMnc.addAll(rules);
+                mCarrierIdLocalLog.log("[loadCarrierMatchingRules] "
+                        + mCarrierMatchingRulesOnMccMnc.size() + " rule(s) from database in "
+                        + (SystemClock.elapsedRealtime() - startTime) + "ms");
+                matchSubscriptionCarrier();
+                return;
+            }
             Cursor cursor = mContext.getContentResolver().query(
                     CarrierId.All.CONTENT_URI,
                     /* projection */ null,
@@ -273,9 +405,15 @@ public class CarrierResolver extends Handler {
         } catch (Exception ex) {
             loge("[loadCarrierMatchingRules]- ex: " + ex);
         }
+        // once matched from the provider, get the database ready for the next loads
+        loadCarrierIdDatabase();
     }
 
     private String getCarrierNameFromId(int cid) {
+        if (mCarrierIdDatabase != null) {
+            String name = mCarrierIdDatabase.getCarrierName(cid);
+            if (name != null) return name;
+        }
         try {
             Cursor cursor = mContext.getContentResolver().query(
                     CarrierId.All.CONTENT_URI,
@@ -536,6 +674,18 @@ public class CarrierResolver extends Handler {
 
         private int mScore = 0;
 
+        int getCid() {
+            return mCid;
+        }
+
+        String getName() {
+            return mName;
+        }
+
+        int getParentCid() {
+            return mParentCid;
+        }
+
         @VisibleForTesting
         public CarrierMatchingRule(String mccmnc, String imsiPrefixPattern, String iccidPrefix,
                 String gid1, String gid2, String plmn, String spn, String apn,
@@ -1055,6 +1205,8 @@ public class CarrierResolver extends Handler {
         ipw.println("mCarrierName: " + mCarrierName);
         ipw.println("mSpecificCarrierName: " + mSpecificCarrierName);
         ipw.println("carrier_list_version: " + getCarrierListVersion());
+        ipw.println("carrier_id_db_version: " + ((mCarrierIdDatabase != null)
+                ? mCarrierIdDatabase.getVersion() : "none"));
 
         ipw.println("mCarrierMatchingRules on mccmnc: "
                 + mTelephonyMgr.getSimOperatorNumericForPhone(mPhone.getPhoneId()));
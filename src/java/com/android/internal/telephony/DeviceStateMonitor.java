@@ -258,6 +258,7 @@ public class DeviceStateMonitor extends Handler {
 
         log("DeviceStateMonitor mIsPowerSaveOn=" + mIsPowerSaveOn + ",mIsScreenOn="
                 + mIsScreenOn + ",mIsCharging=" + mIsCharging, false);
+        updateIndicationCoalescing();
 
         final IntentFilter filter = new IntentFilter();
         filter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
@@ -526,6 +527,7 @@ public class DeviceStateMonitor extends Handler {
         }
 
         setUnsolResponseFilter(newFilter, false);
+        updateIndicationCoalescing();
     }
 
     /**
@@ -561,6 +563,16 @@ public class DeviceStateMonitor extends Handler {
         }
     }
 
+    /**
+     * Let the RIL hold back frequent indications for longer while the user is unlikely to look
+     * at them, i.e. the screen is off and the device is not charging.
+     */
+    private void updateIndicationCoalescing() {
+        if (mPhone.mCi instanceof RIL) {
+            ((RIL) mPhone.mCi).setDeviceInteractive(mIsScreenOn || mIsCharging);
+        }
+    }
+
     /**
      * Send the device state to the modem.
      *
@@ -76,6 +76,7 @@ import com.android.internal.util.StateMachine;
 import java.io.ByteArrayOutputStream;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -238,6 +239,12 @@ public abstract class InboundSmsHandler extends StateMachine {
 
     private LocalLog mLocalLog = new LocalLog(64);
 
+    /** Multi-part segments of the raw table, so they can be reassembled without a query. */
+    private final MultipartSmsIndex mMultipartSmsIndex = new MultipartSmsIndex();
+
+    /** Keys of the raw table rows, so most messages are de-duped without a query. */
+    private final SmsDuplicateDetector mDuplicateDetector = SmsDuplicateDetector.getInstance();
+
     @UnsupportedAppUsage
     IDeviceIdleController mDeviceIdleController;
 
@@ -374,6 +381,7 @@ public abstract class InboundSmsHandler extends StateMachine {
                     return HANDLED;
 
                 case EVENT_START_ACCEPTING_SMS:
+                    mDuplicateDetector.scheduleRebuild(mResolver, sRawUri);
                     transitionTo(mIdleState);
                     return HANDLED;
 
@@ -828,11 +836,42 @@ public abstract class InboundSmsHandler extends StateMachine {
             return false;
         }
 
+        List<InboundSmsTracker> segments = null;
+        if (messageCount > 1) {
+            segments = mMultipartSmsIndex.takeMessage(tracker);
+            if (segments != null && segments.isEmpty()) {
+                // Wait for the other message parts to arrive, or the message was already
+                // broadcast when the last segment arrived before this EVENT_BROADCAST_SMS.
+                return false;
+            }
+        }
+
         if (messageCount == 1) {
             // single-part message
             pdus = new byte[][]{tracker.getPdu()};
             timestamps = new long[]{tracker.getTimestamp()};
             block = BlockChecker.isBlocked(mContext, tracker.getDisplayAddress(), null);
+        } else if (segments != null) {
+            // multi-part message with all segments in the index, same as the raw table below
+            pdus = new byte[messageCount][];
+            timestamps = new long[messageCount];
+            for (InboundSmsTracker segment : segments) {
+                int index = segment.getSequenceNumber() - tracker.getIndexOffset();
+                if (index >= pdus.length || index < 0) {
+                    loge(String.format(
+                            "processMessagePart: invalid seqNumber = %d, messageCount = %d",
+                            segment.getSequenceNumber(), messageCount));
+                    continue;
+                }
+                pdus[index] = segment.getPdu();
+                if (index == 0 && segment.getDestPort() != -1) {
+                    destPort = segment.getDestPort();
+                }
+                timestamps[index] = segment.getTimestamp();
+                if (!block) {
+                    block = BlockChecker.isBlocked(mContext, segment.getDisplayAddress(), null);
+                }
+            }
         } else {
             // multi-part message
             Cursor cursor = null;
@@ -977,6 +1016,7 @@ public abstract class InboundSmsHandler extends StateMachine {
             } else {
                 deleteFromRawTable(tracker.getDeleteWhere(), tracker.getDeleteWhereArgs(),
                         MARK_DELETED);
+                mMultipartSmsIndex.removeMessage(tracker);
                 return false;
             }
         }
@@ -984,6 +1024,7 @@ public abstract class InboundSmsHandler extends StateMachine {
         if (block) {
             deleteFromRawTable(tracker.getDeleteWhere(), tracker.getDeleteWhereArgs(),
                     DELETE_PERMANENTLY);
+            mMultipartSmsIndex.removeMessage(tracker);
             return false;
         }
 
@@ -1291,6 +1332,16 @@ public abstract class InboundSmsHandler extends StateMachine {
      * false otherwise
      */
     private boolean checkAndHandleDuplicate(InboundSmsTracker tracker) throws SQLException {
+        if (mDuplicateDetector.isFull()) {
+            // The full filter is still used until the new one is built
+            mDuplicateDetector.scheduleRebuild(mResolver, sRawUri);
+        }
+        if (!mDuplicateDetector.isSuspected(tracker)) {
+            // None of the rows of the raw table can match the queries below.
+            return false;
+        }
+
+        boolean duplicate = false;
         Pair<String, String[]> exactMatchQuery = tracker.getExactMatchDupDetectQuery();
 
         Cursor cursor = null;
@@ -1301,6 +1352,7 @@ public abstract class InboundSmsHandler extends StateMachine {
 
             // moveToNext() returns false if no duplicates were found
             if (cursor != null && cursor.moveToNext()) {
+                duplicate = true;
                 if (cursor.getCount() != 1) {
                     loge("Exact match query returned " + cursor.getCount() + " rows");
                 }
@@ -1311,6 +1363,7 @@ public abstract class InboundSmsHandler extends StateMachine {
                         PDU_DELETED_FLAG_PROJECTION_INDEX_MAPPING.get(DELETED_FLAG_COLUMN)) == 1) {
                     loge("Discarding duplicate message segment: " + tracker);
                     logDupPduMismatch(cursor, tracker);
+                    mDuplicateDetector.onSuspectChecked(true);
                     return true;   // reject message
                 } else {
                     // exact match duplicate is not marked deleted. If it is a multi-part segment,
@@ -1344,12 +1397,14 @@ public abstract class InboundSmsHandler extends StateMachine {
 
                 // moveToNext() returns false if no duplicates were found
                 if (cursor != null && cursor.moveToNext()) {
+                    duplicate = true;
                     if (cursor.getCount() != 1) {
                         loge("Inexact match query returned " + cursor.getCount() + " rows");
                     }
                     // delete the old message segment permanently
                     deleteFromRawTable(inexactMatchQuery.first, inexactMatchQuery.second,
                             DELETE_PERMANENTLY);
+                    mMultipartSmsIndex.removeSegments(tracker);
                     loge("Replacing duplicate message segment: " + tracker);
                     logDupPduMismatch(cursor, tracker);
                 }
@@ -1360,6 +1415,7 @@ public abstract class InboundSmsHandler extends StateMachine {
             }
         }
 
+        mDuplicateDetector.onSuspectChecked(duplicate);
         return false;
     }
 
@@ -1398,6 +1454,10 @@ public abstract class InboundSmsHandler extends StateMachine {
             logd("Skipped message de-duping logic");
         }
 
+        if (tracker.getMessageCount() > 1 && !mMultipartSmsIndex.isLoaded()) {
+            loadMultipartSmsIndex();
+        }
+
         String address = tracker.getAddress();
         String refNumber = Integer.toString(tracker.getReferenceNumber());
         String count = Integer.toString(tracker.getMessageCount());
@@ -1406,6 +1466,9 @@ public abstract class InboundSmsHandler extends StateMachine {
         if (VDBG) log("adding content values to raw table: " + values.toString());
         Uri newUri = mResolver.insert(sRawUri, values);
         if (DBG) log("URI of new row -> " + newUri);
+        if (newUri != null) {
+            mDuplicateDetector.add(tracker);
+        }
 
         try {
             long rowId = ContentUris.parseId(newUri);
@@ -1416,6 +1479,7 @@ public abstract class InboundSmsHandler extends StateMachine {
                 // set the delete selection args for multi-part message
                 String[] deleteWhereArgs = {address, refNumber, count};
                 tracker.setDeleteWhere(tracker.getQueryForSegments(), deleteWhereArgs);
+                mMultipartSmsIndex.addSegment(tracker);
             }
             return Intents.RESULT_SMS_HANDLED;
         } catch (Exception e) {
@@ -1424,6 +1488,57 @@ public abstract class InboundSmsHandler extends StateMachine {
         }
     }
 
+    /**
+     * Load the multi-part segments of this handler's format from the raw table into the
+     * multi-part index. Segments of incomplete messages are kept across restarts in the raw
+     * table, so this is needed once before the first segment is added to the index, and again
+     * only if the index was invalidated.
+     */
+    private void loadMultipartSmsIndex() {
+        List<InboundSmsTracker> segments = new ArrayList<>();
+        Cursor cursor = null;
+        try {
+            cursor = mResolver.query(sRawUri,
+                    SmsBroadcastUndelivered.PDU_PENDING_MESSAGE_PROJECTION,
+                    "count > 1 AND deleted = 0", null, null);
+            if (cursor == null) {
+                loge("loadMultipartSmsIndex: error getting multipart segment cursor");
+                return;
+            }
+            while (cursor.moveToNext()) {
+                InboundSmsTracker segment;
+                try {
+                    segment = TelephonyComponentFactory.getInstance()
+                            .inject(InboundSmsTracker.class.getName())
+                            .makeInboundSmsTracker(cursor, is3gpp2());
+                } catch (IllegalArgumentException e) {
+                    loge("loadMultipartSmsIndex: error loading SmsTracker: " + e);
+                    continue;
+                }
+                if (segment.is3gpp2() == is3gpp2()) {
+                    segments.add(segment);
+                }
+            }
+        } catch (SQLException e) {
+            loge("Can't access multipart SMS database", e);
+            return;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        mMultipartSmsIndex.load(segments);
+        if (DBG) log("loadMultipartSmsIndex: loaded " + segments.size() + " segments");
+    }
+
+    /**
+     * Drop the multi-part index after segments were deleted from the raw table by someone else,
+     * e.g. {@link SmsBroadcastUndelivered}. It is loaded again when the next segment arrives.
+     */
+    void invalidateMultipartSmsIndex() {
+        mMultipartSmsIndex.invalidate();
+    }
+
     /**
      * Returns whether the default message format for the current radio technology is 3GPP2.
      * @return true if the radio technology uses 3GPP2 format by default, false for 3GPP format
@@ -1442,11 +1557,14 @@ public abstract class InboundSmsHandler extends StateMachine {
         private final String mDeleteWhere;
         @UnsupportedAppUsage
         private final String[] mDeleteWhereArgs;
+        // The message to remove from the multi-part index once deleted from the raw table
+        private final InboundSmsTracker mTracker;
         private long mBroadcastTimeNano;
 
         SmsBroadcastReceiver(InboundSmsTracker tracker) {
             mDeleteWhere = tracker.getDeleteWhere();
             mDeleteWhereArgs = tracker.getDeleteWhereArgs();
+            mTracker = tracker;
             mBroadcastTimeNano = System.nanoTime();
         }
 
@@ -1509,6 +1627,7 @@ public abstract class InboundSmsHandler extends StateMachine {
                 }
 
                 deleteFromRawTable(mDeleteWhere, mDeleteWhereArgs, MARK_DELETED);
+                mMultipartSmsIndex.removeMessage(mTracker);
                 sendMessage(EVENT_BROADCAST_COMPLETE);
 
                 int durationMillis = (int) ((System.nanoTime() - mBroadcastTimeNano) / 1000000);
@@ -1579,6 +1698,7 @@ public abstract class InboundSmsHandler extends StateMachine {
     private void dropSms(SmsBroadcastReceiver receiver) {
         // Needs phone package permissions.
         deleteFromRawTable(receiver.mDeleteWhere, receiver.mDeleteWhereArgs, MARK_DELETED);
+        mMultipartSmsIndex.removeMessage(receiver.mTracker);
         sendMessage(EVENT_BROADCAST_COMPLETE);
     }
 
@@ -1706,6 +1826,8 @@ public abstract class InboundSmsHandler extends StateMachine {
             mCellBroadcastHandler.dump(fd, pw, args);
         }
         mLocalLog.dump(fd, pw, args);
+        pw.println(mMultipartSmsIndex);
+        pw.println(mDuplicateDetector);
     }
 
     // Some providers send formfeeds in their messages. Convert those formfeeds to newlines.
@@ -321,6 +321,10 @@ public class InboundSmsTracker {
         return mIs3gpp2;
     }
 
+    public boolean is3gpp2WapPdu() {
+        return mIs3gpp2WapPdu;
+    }
+
     public boolean isClass0() {
         return mIsClass0;
     }
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.telephony.Rlog;
+import android.text.TextUtils;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Coalesces frequent unsolicited indications before they are passed on to registrants.
+ *
+ * Each indication type is delivered at most once per minimum interval. An indication arriving
+ * inside the interval is held back and delivered when the interval ends; if more arrive
+ * meanwhile, only the latest one is kept. Types with deduplication enabled also drop an
+ * indication whose payload equals the last one delivered. The intervals are shorter while the
+ * device is interactive (screen on or charging), as reported by {@link DeviceStateMonitor}.
+ *
+ * Coalescing is off unless enabled, and indications are then delivered as they are offered.
+ * {@link #loadConfig} enables it and sets the intervals from system properties.
+ *
+ * {@hide}
+ */
+@VisibleForTesting
+public class IndicationCoalescer {
+    private static final String TAG = "IndicationCoalescer";
+
+    // Whether frequent indications are coalesced, false by default
+    private static final String PROPERTY_COALESCING = "persist.radio.indication_coalescing";
+    // Followed by the lower case type name, e.g. "signal_strength". The value is the minimum
+    // interval in ms while interactive and while idle, separated by a comma, e.g. "1000,10000".
+    private static final String PROPERTY_MIN_INTERVAL_PREFIX =
+            "persist.radio.indication_min_interval_ms.";
+
+    /** Signal strength, latest wins. */
+    public static final int TYPE_SIGNAL_STRENGTH = 0;
+    /** Cell info list, latest wins. */
+    public static final int TYPE_CELL_INFO_LIST = 1;
+    /** Physical channel configs, latest wins and identical lists are dropped. */
+    public static final int TYPE_PHYSICAL_CHANNEL_CONFIG = 2;
+    /** Network state changed. Carries no payload, so pending changes are merged into one. */
+    public static final int TYPE_NETWORK_STATE = 3;
+    private static final int TYPE_COUNT = 4;
+
+    private static final String[] TYPE_NAMES = {
+            "SIGNAL_STRENGTH", "CELL_INFO_LIST", "PHYSICAL_CHANNEL_CONFIG", "NETWORK_STATE"};
+
+    // Minimum intervals in ms while interactive and while idle, indexed by type
+    private static final long[] DEFAULT_INTERACTIVE_INTERVAL_MS = {1000, 1000, 0, 0};
+    private static final long[] DEFAULT_IDLE_INTERVAL_MS = {10000, 10000, 2000, 2000};
+    private static final boolean[] DEDUPE = {false, false, true, false};
+
+    /** Receives the indications that make it through the coalescer. */
+    public interface Delivery {
+        /**
+         * Called with the indication to deliver. Deliveries of one type never overlap and
+         * happen in the order the indications were offered.
+         */
+        void deliver(int type, Object value);
+    }
+
+    private final Handler mHandler;
+    private final Delivery mDelivery;
+    private final Channel[] mChannels = new Channel[TYPE_COUNT];
+    private volatile boolean mInteractive = true;
+    private volatile boolean mEnabled;
+
+    public IndicationCoalescer(Looper looper, Delivery delivery) {
+        mHandler = new Handler(looper);
+        mDelivery = delivery;
+        for (int i = 0; i < TYPE_COUNT; i++) {
+            mChannels[i] = new Channel(i);
+        }
+    }
+
+    /** Offer an indication of the given type. It is delivered now, later or not at all. */
+    public void offer(int type, Object value) {
+        mChannels[type].offer(value);
+    }
+
+    /**
+     * Reads whether coalescing is enabled, and the minimum intervals, from the system
+     * properties. An interval which isn't set, or can't be parsed, is reset to its default.
+     */
+    public void loadConfig() {
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            String property = PROPERTY_MIN_INTERVAL_PREFIX
+                    + TYPE_NAMES[type].toLowerCase(Locale.ROOT);
+            long[] intervals = parseIntervals(property, SystemProperties.get(property));
+            if (intervals != null) {
+                setMinInterval(type, intervals[0], intervals[1]);
+            } else {
+                setMinInterval(type, DEFAULT_INTERACTIVE_INTERVAL_MS[type],
+                        DEFAULT_IDLE_INTERVAL_MS[type]);
+            }
+        }
+        setEnabled(SystemProperties.getBoolean(PROPERTY_COALESCING, false));
+    }
+
+    private static long[] parseIntervals(String property, String value) {
+        if (TextUtils.isEmpty(value)) return null;
+        String[] parts = value.split(",");
+        try {
+            if (parts.length == 2) {
+                long interactiveMs = Long.parseLong(parts[0].trim());
+                long idleMs = Long.parseLong(parts[1].trim());
+                if (interactiveMs >= 0 && idleMs >= 0) {
+                    return new long[] {interactiveMs, idleMs};
+                }
+            }
+        } catch (NumberFormatException e) {
+            // Logged below
+        }
+        Rlog.e(TAG, "Invalid " + property + ": " + value);
+        return null;
+    }
+
+    /**
+     * Enables or disables coalescing. Indications held back are delivered right away when it
+     * is disabled.
+     */
+    public void setEnabled(boolean enabled) {
+        if (mEnabled == enabled) return;
+        mEnabled = enabled;
+        if (!enabled) {
+            for (Channel channel : mChannels) {
+                channel.flush();
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Sets whether the device is interactive, which selects the shorter minimum intervals.
+     * Indications held back under the idle intervals are rescheduled accordingly.
+     */
+    public void setInteractive(boolean interactive) {
+        if (mInteractive == interactive) return;
+        mInteractive = interactive;
+        for (Channel channel : mChannels) {
+            channel.reschedule();
+        }
+    }
+
+    /** Sets the minimum intervals between deliveries of the given type. */
+    public void setMinInterval(int type, long interactiveMs, long idleMs) {
+        Channel channel = mChannels[type];
+        synchronized (channel) {
+            channel.mInteractiveIntervalMs = interactiveMs;
+            channel.mIdleIntervalMs = idleMs;
+        }
+        channel.reschedule();
+    }
+
+    @VisibleForTesting
+    public long getDeliveredCount(int type) {
+        synchronized (mChannels[type]) {
+            return mChannels[type].mDelivered;
+        }
+    }
+
+    @VisibleForTesting
+    public long getMergedCount(int type) {
+        synchronized (mChannels[type]) {
+            return mChannels[type].mMerged;
+        }
+    }
+
+    @VisibleForTesting
+    public long getDroppedCount(int type) {
+        synchronized (mChannels[type]) {
+            return mChannels[type].mDropped;
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" IndicationCoalescer: enabled=" + mEnabled + " interactive=" + mInteractive);
+        for (Channel channel : mChannels) {
+            synchronized (channel) {
+                pw.println("  " + TYPE_NAMES[channel.mType]
+                        + " minIntervalMs=" + channel.mInteractiveIntervalMs
+                        + "/" + channel.mIdleIntervalMs
+                        + " delivered=" + channel.mDelivered
+                        + " merged=" + channel.mMerged
+                        + " dropped=" + channel.mDropped
+                        + " pending=" + channel.mPending);
+            }
+        }
+    }
+
+    private class Channel implements Runnable {
+        final int mType;
+        long mInteractiveIntervalMs;
+        long mIdleIntervalMs;
+
+        boolean mPending;
+        Object mPendingValue;
+        Object mLastValue;
+        boolean mHasDelivered;
+        long mLastDeliveryTime;
+
+        long mDelivered;
+        long mMerged;
+        long mDropped;
+
+        Channel(int type) {
+            mType = type;
+            mInteractiveIntervalMs = DEFAULT_INTERACTIVE_INTERVAL_MS[type];
+            mIdleIntervalMs = DEFAULT_IDLE_INTERVAL_MS[type];
+        }
+
+        private long intervalMs() {
+            return mInteractive ? mInteractiveIntervalMs : mIdleIntervalMs;
+        }
+
+        synchronized void offer(Object value) {
+            if (!mEnabled) {
+                if (mPending) {
+                    // Held back before coalescing was disabled, and superseded by this one
+                    mHandler.removeCallbacks(this);
+                    mPending = false;
+                    mPendingValue = null;
+                    mMerged++;
+                }
+                deliverLocked(value, SystemClock.uptimeMillis());
+                return;
+            }
+            if (mPending) {
+                // Only the latest indication matters once one is already held back.
+                mPendingValue = value;
+                mMerged++;
+                return;
+            }
+            if (DEDUPE[mType] && mHasDelivered && Objects.equals(value, mLastValue)) {
+                mDropped++;
+                return;
+            }
+            long now = SystemClock.uptimeMillis();
+            long nextAllowed = mLastDeliveryTime + intervalMs();
+            if (!mHasDelivered || now >= nextAllowed) {
+                deliverLocked(value, now);
+            } else {
+                mPending = true;
+                mPendingValue = value;
+                mHandler.postAtTime(this, nextAllowed);
+            }
+        }
+
+        synchronized void reschedule() {
+            if (!mPending) return;
+            mHandler.removeCallbacks(this);
+            mHandler.postAtTime(this, mLastDeliveryTime + intervalMs());
+        }
+
+        synchronized void flush() {
+            mHandler.removeCallbacks(this);
+            run();
+        }
+
+        @Override
+        public synchronized void run() {
+            if (!mPending) return;
+            Object value = mPendingValue;
+            mPending = false;
+            mPendingValue = null;
+            if (DEDUPE[mType] && Objects.equals(value, mLastValue)) {
+                mDropped++;
+                return;
+            }
+            deliverLocked(value, SystemClock.uptimeMillis());
+        }
+
+        private void deliverLocked(Object value, long now) {
+            mLastValue = value;
+            mHasDelivered = true;
+            mLastDeliveryTime = now;
+            mDelivered++;
+            // Registrant notification only posts a message, so it is safe to do under the lock,
+            // which keeps deliveries of this type ordered.
+            mDelivery.deliver(mType, value);
+        }
+    }
+}
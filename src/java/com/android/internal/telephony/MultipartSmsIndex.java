@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * In-memory copy of the multi-part message segments that {@link InboundSmsHandler} keeps in the
+ * raw table, so a segment can be reassembled without querying the raw table for the others.
+ *
+ * The raw table stays the source of truth: segments are added here only after they were
+ * inserted, and the index is loaded from the raw table once, before the first segment is added.
+ * When the index can't answer for a message, e.g. before it is loaded or after it was
+ * invalidated, callers fall back to reading the raw table.
+ *
+ * Segments are grouped by address, reference number, message count, format, 3GPP2 WAP PDU flag
+ * and sub id. As in the raw table, all segments are kept, including ones with an invalid sequence
+ * number, so a message is reassembled from the same segments either way.
+ */
+class MultipartSmsIndex {
+    /** Invalidate the index beyond this many incomplete messages, rather than grow unbounded. */
+    static final int MAX_MESSAGES = 256;
+
+    private final HashMap<Key, ArrayList<InboundSmsTracker>> mMessages = new HashMap<>();
+    // Segments added since their EVENT_BROADCAST_SMS was last handled
+    private final Set<InboundSmsTracker> mPending =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+    // Pending segments of messages which were already returned by takeMessage()
+    private final Set<InboundSmsTracker> mDelivered =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean mLoaded;
+
+    private int mLoads;
+    private int mHits;
+    private int mMisses;
+
+    /** Returns whether the index holds all the multi-part segments of the raw table. */
+    synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /** Replace the content of the index with the given segments read from the raw table. */
+    synchronized void load(List<InboundSmsTracker> segments) {
+        clear();
+        for (InboundSmsTracker segment : segments) {
+            getOrCreate(segment).add(segment);
+        }
+        mLoaded = true;
+        mLoads++;
+    }
+
+    /**
+     * Drop the content of the index, e.g. after segments were deleted from the raw table without
+     * the index being told. It must be loaded again before it is used.
+     */
+    synchronized void invalidate() {
+        clear();
+        mLoaded = false;
+    }
+
+    /**
+     * Add a segment which was just inserted into the raw table, and whose EVENT_BROADCAST_SMS is
+     * about to be sent. Ignored if the index is not loaded.
+     */
+    synchronized void addSegment(InboundSmsTracker tracker) {
+        if (!mLoaded) return;
+        getOrCreate(tracker).add(tracker);
+        mPending.add(tracker);
+        if (mMessages.size() > MAX_MESSAGES) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Remove the segments of the tracker's message with the tracker's sequence number, after
+     * they were deleted from the raw table as duplicates.
+     */
+    synchronized void removeSegments(InboundSmsTracker tracker) {
+        Key key = new Key(tracker);
+        ArrayList<InboundSmsTracker> segments = mMessages.get(key);
+        if (segments == null) return;
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            if (segments.get(i).getSequenceNumber() == tracker.getSequenceNumber()) {
+                mPending.remove(segments.remove(i));
+            }
+        }
+        if (segments.isEmpty()) {
+            mMessages.remove(key);
+        }
+    }
+
+    /**
+     * Remove all the segments of the tracker's message, after it was deleted from the raw table
+     * once delivered or dropped. The raw table deletion matches the segments by the same fields
+     * as the index, so this drops the segments loaded while the message was being delivered,
+     * which the index would otherwise keep forever. Ignored for single-part messages.
+     */
+    synchronized void removeMessage(InboundSmsTracker tracker) {
+        if (tracker.getMessageCount() <= 1) return;
+        ArrayList<InboundSmsTracker> segments = mMessages.remove(new Key(tracker));
+        if (segments != null) {
+            for (InboundSmsTracker segment : segments) {
+                mPending.remove(segment);
+            }
+        }
+    }
+
+    /**
+     * Look up the segments of the tracker's message when handling its EVENT_BROADCAST_SMS. A
+     * complete message is removed from the index, so it is returned only once.
+     *
+     * @return All the segments in insertion order if the message is complete, an empty list if
+     * it is incomplete or was already returned, or null if the index can't tell and the raw table
+     * must be read.
+     */
+    synchronized List<InboundSmsTracker> takeMessage(InboundSmsTracker tracker) {
+        mPending.remove(tracker);
+        if (mDelivered.remove(tracker)) {
+            // The message was completed while the event of this segment was queued.
+            mHits++;
+            return Collections.emptyList();
+        }
+        Key key = new Key(tracker);
+        ArrayList<InboundSmsTracker> segments = mLoaded ? mMessages.get(key) : null;
+        if (segments == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        if (segments.size() < tracker.getMessageCount()) {
+            return Collections.emptyList();
+        }
+        mMessages.remove(key);
+        for (InboundSmsTracker segment : segments) {
+            if (mPending.remove(segment)) {
+                mDelivered.add(segment);
+            }
+        }
+        return segments;
+    }
+
+    private ArrayList<InboundSmsTracker> getOrCreate(InboundSmsTracker tracker) {
+        Key key = new Key(tracker);
+        ArrayList<InboundSmsTracker> segments = mMessages.get(key);
+        if (segments == null) {
+            segments = new ArrayList<>(tracker.getMessageCount());
+            mMessages.put(key, segments);
+        }
+        return segments;
+    }
+
+    private void clear() {
+        mMessages.clear();
+        mPending.clear();
+        mDelivered.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MultipartSmsIndex{loaded=" + mLoaded + " messages=" + mMessages.size()
+                + " pending=" + mPending.size() + " loads=" + mLoads + " hits=" + mHits
+                + " misses=" + mMisses + "}";
+    }
+
+    private static final class Key {
+        final String mAddress;
+        final int mReferenceNumber;
+        final int mMessageCount;
+        final boolean mIs3gpp2;
+        final String mQuery;
+        final int mSubId;
+
+        Key(InboundSmsTracker tracker) {
+            mAddress = tracker.getAddress();
+            mReferenceNumber = tracker.getReferenceNumber();
+            mMessageCount = tracker.getMessageCount();
+            mIs3gpp2 = tracker.is3gpp2();
+            // Tells 3GPP2 WAP PDUs apart, like the raw table query does
+            mQuery = tracker.getQueryForSegments();
+            mSubId = tracker.getSubId();
+        }
+
+        @Override
+        public int hashCode() {
+            return ((mReferenceNumber * 31) + mMessageCount) * 31 + Objects.hashCode(mAddress);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return Objects.equals(mAddress, other.mAddress)
+                    && mReferenceNumber == other.mReferenceNumber
+                    && mMessageCount == other.mMessageCount
+                    && mIs3gpp2 == other.mIs3gpp2
+                    && Objects.equals(mQuery, other.mQuery)
+                    && mSubId == other.mSubId;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.SystemClock;
+
+import com.android.internal.telephony.SMSDispatcher.SmsTracker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sends the parts of a multi-part SMS with at most a fixed number of parts in flight, i.e. handed
+ * to the radio and not yet sent or failed. Parts being retried stay in flight. The next part is
+ * sent as soon as one in flight completes. Once a part failed, the message can't be reassembled by
+ * the recipient, so the parts which were not sent yet are failed without being sent.
+ *
+ * A part completes when {@link SmsTracker#onSent} or {@link SmsTracker#onFailed} is called for it,
+ * which happens on every path a part can take, e.g. also when the user refuses to send to a
+ * premium short code. The send latency of each part and of the whole message is reported when the
+ * last part completes.
+ */
+class MultipartSmsSendWindow {
+    /** Sends and fails parts, and receives the result of the message. */
+    interface Callback {
+        /** Send a part, on the thread the dispatcher sends from. */
+        void sendPart(SmsTracker part);
+
+        /** Fail a part that was not sent. */
+        void failPart(SmsTracker part, int error);
+
+        /** Called once when all parts are complete. */
+        void onMessageComplete(MultipartSmsSendWindow window);
+    }
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_IN_FLIGHT = 1;
+    private static final int STATE_COMPLETE = 2;
+    // Failed without being sent, after another part failed
+    private static final int STATE_CANCELLED = 3;
+
+    private final SmsTracker[] mParts;
+    private final int[] mStates;
+    // Elapsed realtime at which each part was sent, -1 if it wasn't, and completed
+    private final long[] mSendTimes;
+    private final long[] mCompleteTimes;
+    private final int mWindowSize;
+    private final Callback mCallback;
+
+    private int mNextPart;
+    private int mInFlight;
+    private int mCompleted;
+    private int mFailed;
+    private int mCancelled;
+    private boolean mAnyPartFailed;
+    private long mStartTime;
+
+    MultipartSmsSendWindow(SmsTracker[] parts, int windowSize, Callback callback) {
+        mParts = parts;
+        mStates = new int[parts.length];
+        mSendTimes = new long[parts.length];
+        mCompleteTimes = new long[parts.length];
+        Arrays.fill(mSendTimes, -1);
+        mWindowSize = Math.max(1, windowSize);
+        mCallback = callback;
+        for (SmsTracker part : parts) {
+            part.mSendWindow = this;
+        }
+    }
+
+    /** Send the first parts of the message. */
+    void start() {
+        List<SmsTracker> toSend;
+        synchronized (this) {
+            mStartTime = SystemClock.elapsedRealtime();
+            toSend = takePartsToSend();
+        }
+        sendParts(toSend);
+    }
+
+    /**
+     * Called when a part was sent or failed. Sends the next parts, or fails the parts which were
+     * not sent if this part failed.
+     */
+    void onPartComplete(SmsTracker part, boolean success, int error) {
+        List<SmsTracker> toSend;
+        List<SmsTracker> toCancel = null;
+        boolean messageComplete;
+        synchronized (this) {
+            int index = indexOf(part);
+            if (index < 0 || mStates[index] == STATE_COMPLETE) return;
+            if (mStates[index] == STATE_IN_FLIGHT) {
+                mInFlight--;
+            }
+            mStates[index] = STATE_COMPLETE;
+            mCompleteTimes[index] = SystemClock.elapsedRealtime();
+            mCompleted++;
+            if (!success) {
+                mFailed++;
+                if (!mAnyPartFailed) {
+                    mAnyPartFailed = true;
+                    toCancel = cancelPendingParts();
+                }
+            }
+            toSend = takePartsToSend();
+            messageComplete = mCompleted == mParts.length;
+        }
+        if (toCancel != null) {
+            for (SmsTracker cancelled : toCancel) {
+                // Completes the cancelled part, and the message with the last one
+                mCallback.failPart(cancelled, error);
+            }
+        }
+        sendParts(toSend);
+        if (messageComplete) {
+            mCallback.onMessageComplete(this);
+        }
+    }
+
+    private int indexOf(SmsTracker part) {
+        for (int i = 0; i < mParts.length; i++) {
+            if (mParts[i] == part) return i;
+        }
+        return -1;
+    }
+
+    private List<SmsTracker> takePartsToSend() {
+        List<SmsTracker> toSend = new ArrayList<>();
+        while (!mAnyPartFailed && mInFlight < mWindowSize && mNextPart < mParts.length) {
+            int index = mNextPart++;
+            if (mStates[index] != STATE_PENDING) continue;
+            mStates[index] = STATE_IN_FLIGHT;
+            mSendTimes[index] = SystemClock.elapsedRealtime();
+            mInFlight++;
+            toSend.add(mParts[index]);
+        }
+        return toSend;
+    }
+
+    private List<SmsTracker> cancelPendingParts() {
+        List<SmsTracker> toCancel = new ArrayList<>();
+        for (int i = mNextPart; i < mParts.length; i++) {
+            if (mStates[i] == STATE_PENDING) {
+                mStates[i] = STATE_CANCELLED;
+                mCancelled++;
+                toCancel.add(mParts[i]);
+            }
+        }
+        mNextPart = mParts.length;
+        return toCancel;
+    }
+
+    private void sendParts(List<SmsTracker> parts) {
+        for (SmsTracker part : parts) {
+            mCallback.sendPart(part);
+        }
+    }
+
+    synchronized int getWindowSize() {
+        return mWindowSize;
+    }
+
+    synchronized int getPartCount() {
+        return mParts.length;
+    }
+
+    /** Returns the number of parts which failed, including the ones which were not sent. */
+    synchronized int getFailedPartCount() {
+        return mFailed;
+    }
+
+    /** Returns the number of parts which were not sent because another part failed. */
+    synchronized int getCancelledPartCount() {
+        return mCancelled;
+    }
+
+    /** Returns the total number of send retries of the parts. */
+    synchronized int getRetryCount() {
+        int retries = 0;
+        for (SmsTracker part : mParts) {
+            retries += part.mRetryCount + part.mImsRetry;
+        }
+        return retries;
+    }
+
+    /** Returns the time from sending a part to its completion, or -1 if it was not sent. */
+    synchronized long getPartLatencyMillis(int index) {
+        if (mSendTimes[index] < 0 || mStates[index] != STATE_COMPLETE) return -1;
+        return mCompleteTimes[index] - mSendTimes[index];
+    }
+
+    /** Returns the time from sending the first part to the completion of the last one. */
+    synchronized long getMessageLatencyMillis() {
+        long last = mStartTime;
+        for (long completeTime : mCompleteTimes) {
+            last = Math.max(last, completeTime);
+        }
+        return last - mStartTime;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MultipartSmsSendWindow{parts=" + mParts.length + " window=" + mWindowSize
+                + " inFlight=" + mInFlight + " completed=" + mCompleted + " failed=" + mFailed
+                + "}";
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.SystemClock;
+
+import com.android.internal.telephony.SMSDispatcher.SmsTracker;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Orders the outgoing messages of one subscription, owned by its {@link SmsDispatchersController}.
+ *
+ * At most a fixed number of messages are in flight, i.e. handed to a dispatcher and not all of
+ * their parts sent or failed. Further messages are queued in one of four priority classes, taken
+ * from the priority the app gave the message (3GPP2 C.S0015-B table 4.5.9-1), and a queued message
+ * is only sent when no message of a higher class is queued. Within a class, apps share the sending
+ * capacity equally, with self-clocked fair queuing: each message gets a virtual finish time that
+ * grows with the number of parts the app already queued, so an app queueing many messages doesn't
+ * delay the messages of the other apps. Messages of the same app are sent in order.
+ *
+ * A message in flight for longer than {@link #STALL_TIMEOUT_MILLIS}, e.g. because the user wasn't
+ * asked yet to confirm sending to a premium short code, stops holding up the queue.
+ */
+class OutboundSmsScheduler {
+    /** Dispatches queued messages. */
+    interface Callback {
+        /** Send a message taken from the queue, on the thread the dispatchers send from. */
+        void dispatch(Runnable send);
+
+        /** Call {@link #releaseStalledRequests()} after the given delay. */
+        void scheduleStallCheck(long delayMillis);
+    }
+
+    static final int PRIORITY_CLASS_EMERGENCY = 0;
+    static final int PRIORITY_CLASS_URGENT = 1;
+    static final int PRIORITY_CLASS_INTERACTIVE = 2;
+    static final int PRIORITY_CLASS_NORMAL = 3;
+    private static final int PRIORITY_CLASS_COUNT = 4;
+    private static final String[] PRIORITY_CLASS_NAMES =
+            {"emergency", "urgent", "interactive", "normal"};
+
+    /** Time after which a message in flight no longer counts against the limit. */
+    static final long STALL_TIMEOUT_MILLIS = 60 * 1000;
+
+    // Virtual time one part of a message takes
+    private static final long PART_COST = 1 << 16;
+
+    private final int mMaxInFlight;
+    private final Callback mCallback;
+
+    private final PriorityClass[] mClasses = new PriorityClass[PRIORITY_CLASS_COUNT];
+    private final List<Request> mInFlight = new ArrayList<>();
+    private long mNextSequence;
+    private int mStalledCount;
+
+    OutboundSmsScheduler(int maxInFlight, Callback callback) {
+        mMaxInFlight = Math.max(1, maxInFlight);
+        mCallback = callback;
+        for (int i = 0; i < PRIORITY_CLASS_COUNT; i++) {
+            mClasses[i] = new PriorityClass();
+        }
+    }
+
+    /**
+     * Map the priority of a message to its class.
+     * @param priority 0 for normal, 1 for interactive, 2 for urgent, 3 for emergency, any other
+     * value if not specified
+     */
+    static int getPriorityClass(int priority) {
+        switch (priority) {
+            case 3:
+                return PRIORITY_CLASS_EMERGENCY;
+            case 2:
+                return PRIORITY_CLASS_URGENT;
+            case 1:
+                return PRIORITY_CLASS_INTERACTIVE;
+            default:
+                return PRIORITY_CLASS_NORMAL;
+        }
+    }
+
+    /**
+     * Send a message now if fewer than the maximum number of messages are in flight, or queue it.
+     * A message sent now is sent on the calling thread.
+     * @param appName the package name of the app sending the message
+     * @param priority the priority of the message, see {@link #getPriorityClass}
+     * @param parts the trackers of the parts of the message
+     * @param send sends the parts
+     */
+    void enqueue(String appName, int priority, SmsTracker[] parts, Runnable send) {
+        List<Request> toDispatch;
+        long stallCheckDelay = -1;
+        synchronized (this) {
+            Request request = new Request(appName, getPriorityClass(priority), parts, send);
+            for (SmsTracker part : parts) {
+                part.mScheduledSend = request;
+            }
+            mClasses[request.mPriorityClass].add(request);
+            toDispatch = takeRequestsToDispatch(SystemClock.elapsedRealtime());
+            if (!toDispatch.contains(request)) {
+                stallCheckDelay = getStallCheckDelay(SystemClock.elapsedRealtime());
+            }
+        }
+        if (stallCheckDelay >= 0) {
+            mCallback.scheduleStallCheck(stallCheckDelay);
+        }
+        for (Request request : toDispatch) {
+            request.mSend.run();
+        }
+    }
+
+    /** Called when a part of a message was sent or failed. */
+    void onPartComplete(Request request, SmsTracker part) {
+        List<Request> toDispatch;
+        synchronized (this) {
+            if (!request.completePart(part) || request.mUncompletedParts > 0) return;
+            if (!mInFlight.remove(request)) return;
+            toDispatch = takeRequestsToDispatch(SystemClock.elapsedRealtime());
+        }
+        // The part completes while its result is handled, send the next messages after it
+        for (Request next : toDispatch) {
+            mCallback.dispatch(next.mSend);
+        }
+    }
+
+    /** Stop counting messages in flight for too long, and send queued messages instead. */
+    void releaseStalledRequests() {
+        releaseStalledRequests(SystemClock.elapsedRealtime());
+    }
+
+    void releaseStalledRequests(long now) {
+        List<Request> toDispatch;
+        long stallCheckDelay;
+        synchronized (this) {
+            for (int i = mInFlight.size() - 1; i >= 0; i--) {
+                if (now - mInFlight.get(i).mDispatchTime >= STALL_TIMEOUT_MILLIS) {
+                    mInFlight.remove(i);
+                    mStalledCount++;
+                }
+            }
+            toDispatch = takeRequestsToDispatch(now);
+            stallCheckDelay = getStallCheckDelay(now);
+        }
+        if (stallCheckDelay >= 0) {
+            mCallback.scheduleStallCheck(stallCheckDelay);
+        }
+        for (Request request : toDispatch) {
+            mCallback.dispatch(request.mSend);
+        }
+    }
+
+    private List<Request> takeRequestsToDispatch(long now) {
+        List<Request> toDispatch = new ArrayList<>();
+        while (mInFlight.size() < mMaxInFlight) {
+            Request request = null;
+            for (PriorityClass priorityClass : mClasses) {
+                request = priorityClass.poll(now);
+                if (request != null) break;
+            }
+            if (request == null) break;
+            request.mDispatchTime = now;
+            mInFlight.add(request);
+            toDispatch.add(request);
+        }
+        return toDispatch;
+    }
+
+    /** Returns the time until the oldest message in flight stalls, or -1 if none is queued. */
+    private long getStallCheckDelay(long now) {
+        if (getQueueDepth() == 0 || mInFlight.isEmpty()) return -1;
+        long oldest = Long.MAX_VALUE;
+        for (Request request : mInFlight) {
+            oldest = Math.min(oldest, request.mDispatchTime);
+        }
+        return Math.max(0, oldest + STALL_TIMEOUT_MILLIS - now);
+    }
+
+    synchronized int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    /** Returns the number of queued messages. */
+    synchronized int getQueueDepth() {
+        int depth = 0;
+        for (PriorityClass priorityClass : mClasses) {
+            depth += priorityClass.mQueue.size();
+        }
+        return depth;
+    }
+
+    synchronized int getQueueDepth(int priorityClass) {
+        return mClasses[priorityClass].mQueue.size();
+    }
+
+    /** Returns the number of messages of a class sent, including those which weren't queued. */
+    synchronized int getDispatchedCount(int priorityClass) {
+        return mClasses[priorityClass].mDispatched;
+    }
+
+    /** Returns the longest time a message of a class waited in the queue. */
+    synchronized long getMaxWaitMillis(int priorityClass) {
+        return mClasses[priorityClass].mMaxWait;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("OutboundSmsScheduler: maxInFlight=" + mMaxInFlight + " inFlight="
+                + mInFlight.size() + " stalled=" + mStalledCount);
+        for (int i = 0; i < PRIORITY_CLASS_COUNT; i++) {
+            PriorityClass priorityClass = mClasses[i];
+            pw.println("  " + PRIORITY_CLASS_NAMES[i] + ": queued=" + priorityClass.mQueue.size()
+                    + " maxQueued=" + priorityClass.mMaxDepth
+                    + " dispatched=" + priorityClass.mDispatched
+                    + " avgWaitMs=" + (priorityClass.mDispatched > 0
+                            ? priorityClass.mTotalWait / priorityClass.mDispatched : 0)
+                    + " maxWaitMs=" + priorityClass.mMaxWait);
+            HashMap<String, Integer> queuedPerApp = new HashMap<>();
+            for (Request request : priorityClass.mQueue) {
+                queuedPerApp.merge(request.mAppName, 1, Integer::sum);
+            }
+            for (String appName : queuedPerApp.keySet()) {
+                pw.println("    " + appName + ": queued=" + queuedPerApp.get(appName));
+            }
+        }
+    }
+
+    /** Queued messages of one priority class, and their statistics. */
+    private final class PriorityClass {
+        final PriorityQueue<Request> mQueue = new PriorityQueue<>(
+                (a, b) -> a.mFinishTag != b.mFinishTag
+                        ? Long.compare(a.mFinishTag, b.mFinishTag)
+                        : Long.compare(a.mSequence, b.mSequence));
+        // Finish tag of the last message queued by each app with messages in the queue
+        final HashMap<String, Long> mLastFinishTags = new HashMap<>();
+        long mVirtualTime;
+
+        int mMaxDepth;
+        int mDispatched;
+        long mTotalWait;
+        long mMaxWait;
+
+        void add(Request request) {
+            Long lastFinishTag = mLastFinishTags.get(request.mAppName);
+            long start = lastFinishTag != null
+                    ? Math.max(mVirtualTime, lastFinishTag) : mVirtualTime;
+            request.mFinishTag = start + request.mParts.length * PART_COST;
+            mLastFinishTags.put(request.mAppName, request.mFinishTag);
+            mQueue.add(request);
+            mMaxDepth = Math.max(mMaxDepth, mQueue.size());
+        }
+
+        Request poll(long now) {
+            Request request = mQueue.poll();
+            if (request == null) return null;
+            mVirtualTime = request.mFinishTag;
+            if (mQueue.isEmpty()) {
+                // No app is behind the others, start over
+                mLastFinishTags.clear();
+                mVirtualTime = 0;
+            }
+            long wait = now - request.mEnqueueTime;
+            mDispatched++;
+            mTotalWait += wait;
+            mMaxWait = Math.max(mMaxWait, wait);
+            return request;
+        }
+    }
+
+    /** A message queued or in flight. */
+    final class Request {
+        final String mAppName;
+        final int mPriorityClass;
+        private final SmsTracker[] mParts;
+        private final boolean[] mCompletedParts;
+        private final Runnable mSend;
+        private final long mSequence;
+        private final long mEnqueueTime;
+        private long mFinishTag;
+        private long mDispatchTime;
+        private int mUncompletedParts;
+
+        private Request(String appName, int priorityClass, SmsTracker[] parts, Runnable send) {
+            mAppName = appName;
+            mPriorityClass = priorityClass;
+            mParts = parts;
+            mCompletedParts = new boolean[parts.length];
+            mUncompletedParts = parts.length;
+            mSend = send;
+            mSequence = mNextSequence++;
+            mEnqueueTime = SystemClock.elapsedRealtime();
+        }
+
+        /** Called by {@link SmsTracker#onSent} and {@link SmsTracker#onFailed}. */
+        void onPartComplete(SmsTracker part) {
+            OutboundSmsScheduler.this.onPartComplete(this, part);
+        }
+
+        private boolean completePart(SmsTracker part) {
+            for (int i = 0; i < mParts.length; i++) {
+                if (mParts[i] == part) {
+                    if (mCompletedParts[i]) return false;
+                    mCompletedParts[i] = true;
+                    mUncompletedParts--;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
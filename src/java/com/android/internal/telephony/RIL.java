@@ -197,8 +197,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     volatile int mWlSequenceNum = 0;
     volatile int mAckWlSequenceNum = 0;
 
-    @UnsupportedAppUsage
-    SparseArray<RILRequest> mRequestList = new SparseArray<RILRequest>();
+    final RilRequestTable mRequestTable = new RilRequestTable();
     static SparseArray<TelephonyHistogram> mRilTimeHistograms = new
             SparseArray<TelephonyHistogram>();
 
@@ -243,6 +242,9 @@ public class RIL extends BaseCommands implements CommandsInterface {
     final AtomicLong mRadioProxyCookie = new AtomicLong(0);
     final RadioProxyDeathRecipient mRadioProxyDeathRecipient;
     final RilHandler mRilHandler;
+    // Null when responses are sent to their targets one by one
+    volatile RilResponseBatcher mResponseBatcher;
+    final IndicationCoalescer mIndicationCoalescer;
 
     //***** Events
     static final int EVENT_WAKE_LOCK_TIMEOUT    = 2;
@@ -287,26 +289,25 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
                     // The timer of WAKE_LOCK_TIMEOUT is reset with each
                     // new send request. So when WAKE_LOCK_TIMEOUT occurs
-                    // all requests in mRequestList already waited at
+                    // all requests in mRequestTable already waited at
                     // least DEFAULT_WAKE_LOCK_TIMEOUT_MS but no response.
                     //
-                    // Note: Keep mRequestList so that delayed response
+                    // Note: Keep mRequestTable so that delayed response
                     // can still be handled when response finally comes.
 
-                    synchronized (mRequestList) {
-                        if (msg.arg1 == mWlSequenceNum && clearWakeLock(FOR_WAKELOCK)) {
-                            if (mRadioBugDetector != null) {
-                                mRadioBugDetector.processWakelockTimeout();
-                            }
-                            if (RILJ_LOGD) {
-                                int count = mRequestList.size();
-                                Rlog.d(RILJ_LOG_TAG, "WAKE_LOCK_TIMEOUT " +
-                                        " mRequestList=" + count);
-                                for (int i = 0; i < count; i++) {
-                                    rr = mRequestList.valueAt(i);
-                                    Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
-                                            + requestToString(rr.mRequest));
-                                }
+                    if (msg.arg1 == mWlSequenceNum && clearWakeLock(FOR_WAKELOCK)) {
+                        if (mRadioBugDetector != null) {
+                            mRadioBugDetector.processWakelockTimeout();
+                        }
+                        if (RILJ_LOGD) {
+                            List<RILRequest> pending = mRequestTable.snapshot();
+                            int count = pending.size();
+                            Rlog.d(RILJ_LOG_TAG, "WAKE_LOCK_TIMEOUT " +
+                                    " mRequestTable=" + count);
+                            for (int i = 0; i < count; i++) {
+                                rr = pending.get(i);
+                                Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
+                                        + requestToString(rr.mRequest));
                             }
                         }
                     }
@@ -589,6 +590,9 @@ public class RIL extends BaseCommands implements CommandsInterface {
         mOemHookResponse = new OemHookResponse(this);
         mOemHookIndication = new OemHookIndication(this);
         mRilHandler = new RilHandler();
+        mIndicationCoalescer = new IndicationCoalescer(mRilHandler.getLooper(),
+                this::deliverCoalescedIndication);
+        mIndicationCoalescer.loadConfig();
         mRadioProxyDeathRecipient = new RadioProxyDeathRecipient();
 
         PowerManager pm = (PowerManager)context.getSystemService(Context.POWER_SERVICE);
@@ -600,6 +604,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 DEFAULT_WAKE_LOCK_TIMEOUT_MS);
         mAckWakeLockTimeout = SystemProperties.getInt(
                 TelephonyProperties.PROPERTY_WAKE_LOCK_TIMEOUT, DEFAULT_ACK_WAKE_LOCK_TIMEOUT_MS);
+        mResponseBatcher = RilResponseBatcher.createFromSystemProperties();
         mWakeLockCount = 0;
         mRILDefaultWorkSource = new WorkSource(context.getApplicationInfo().uid,
                 context.getPackageName());
@@ -639,10 +644,9 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
     private void addRequest(RILRequest rr) {
         acquireWakeLock(rr, FOR_WAKELOCK);
-        synchronized (mRequestList) {
-            rr.mStartTimeMs = SystemClock.elapsedRealtime();
-            mRequestList.append(rr.mSerial, rr);
-        }
+        rr.mStartTimeMs = SystemClock.elapsedRealtime();
+        rr.mSendTimeNs = SystemClock.elapsedRealtimeNanos();
+        mRequestTable.put(rr);
     }
 
     private RILRequest obtainRequest(int request, Message result, WorkSource workSource) {
@@ -4691,10 +4695,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     }
 
     void processRequestAck(int serial) {
-        RILRequest rr;
-        synchronized (mRequestList) {
-            rr = mRequestList.get(serial);
-        }
+        RILRequest rr = mRequestTable.get(serial);
         if (rr == null) {
             Rlog.w(RIL.RILJ_LOG_TAG, "processRequestAck: Unexpected solicited ack response! "
                     + "serial: " + serial);
@@ -4722,9 +4723,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr = null;
 
         if (type == RadioResponseType.SOLICITED_ACK) {
-            synchronized (mRequestList) {
-                rr = mRequestList.get(serial);
-            }
+            rr = mRequestTable.get(serial);
             if (rr == null) {
                 Rlog.w(RILJ_LOG_TAG, "Unexpected solicited ack response! sn: " + serial);
             } else {
@@ -4832,7 +4831,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 riljLog(rr.serialString() + "< " + requestToString(rr.mRequest)
                         + " error " + responseInfo.error);
             }
-            rr.onError(responseInfo.error, ret);
+            rr.onError(responseInfo.error, ret, mResponseBatcher);
         }
         mMetrics.writeOnRilSolicitedResponse(mPhoneId, rr.mSerial, responseInfo.error,
                 rr.mRequest, ret);
@@ -4942,10 +4941,69 @@ public class RIL extends BaseCommands implements CommandsInterface {
         return mRilHandler;
     }
 
+    /**
+     * Notifies registrants of an indication that made it through {@link IndicationCoalescer}.
+     */
+    private void deliverCoalescedIndication(int type, Object value) {
+        switch (type) {
+            case IndicationCoalescer.TYPE_SIGNAL_STRENGTH:
+                if (mSignalStrengthRegistrant != null) {
+                    mSignalStrengthRegistrant.notifyRegistrant(new AsyncResult(null, value, null));
+                }
+                break;
+            case IndicationCoalescer.TYPE_CELL_INFO_LIST:
+                mRilCellInfoListRegistrants.notifyRegistrants(new AsyncResult(null, value, null));
+                break;
+            case IndicationCoalescer.TYPE_PHYSICAL_CHANNEL_CONFIG:
+                mPhysicalChannelConfigurationRegistrants.notifyRegistrants(
+                        new AsyncResult(null, value, null));
+                break;
+            case IndicationCoalescer.TYPE_NETWORK_STATE:
+                mNetworkStateRegistrants.notifyRegistrants();
+                break;
+        }
+    }
+
+    /**
+     * Tells the indication coalescer whether the device is interactive (screen on or charging),
+     * which selects how often frequent indications are passed on to registrants. The coalescer
+     * configuration is read again, so that coalescing can be turned on or off at runtime.
+     */
+    public void setDeviceInteractive(boolean interactive) {
+        mIndicationCoalescer.loadConfig();
+        mIndicationCoalescer.setInteractive(interactive);
+    }
+
+    /** Returns the coalescer in front of frequent unsolicited indications. */
+    @VisibleForTesting
+    public IndicationCoalescer getIndicationCoalescer() {
+        return mIndicationCoalescer;
+    }
+
+    /**
+     * Enables or disables batched delivery of solicited responses.
+     *
+     * @param enabled true to deliver responses in batches per looper, false to send each
+     *                response to its target as it arrives
+     * @param windowMs How long a batch waits for more responses before being delivered
+     */
+    @VisibleForTesting
+    public void setResponseBatchingEnabled(boolean enabled, long windowMs) {
+        mResponseBatcher = enabled ? new RilResponseBatcher(windowMs) : null;
+    }
+
+    /**
+     * Sends a solicited response message to its target, through the response batcher if
+     * batching is enabled.
+     */
+    void sendResponseMessage(Message msg) {
+        RilResponseBatcher.sendResponse(mResponseBatcher, msg);
+    }
+
     /** Returns the Ril request list. */
     @VisibleForTesting
-    public SparseArray<RILRequest> getRilRequestList() {
-        return mRequestList;
+    public RilRequestTable getRilRequestList() {
+        return mRequestTable;
     }
 
     @UnsupportedAppUsage
@@ -5006,51 +5064,47 @@ public class RIL extends BaseCommands implements CommandsInterface {
     }
 
     /**
-     * Release each request in mRequestList then clear the list
+     * Release each request in mRequestTable then clear the list
      * @param error is the RIL_Errno sent back
-     * @param loggable true means to print all requests in mRequestList
+     * @param loggable true means to print all requests in mRequestTable
      */
     @UnsupportedAppUsage
     private void clearRequestList(int error, boolean loggable) {
         RILRequest rr;
-        synchronized (mRequestList) {
-            int count = mRequestList.size();
-            if (RILJ_LOGD && loggable) {
-                Rlog.d(RILJ_LOG_TAG, "clearRequestList " + " mWakeLockCount="
-                        + mWakeLockCount + " mRequestList=" + count);
-            }
+        // Requests are removed from the table before they are completed, so a response racing
+        // with the clear is delivered by exactly one side.
+        List<RILRequest> drained = mRequestTable.drain();
+        int count = drained.size();
+        if (RILJ_LOGD && loggable) {
+            Rlog.d(RILJ_LOG_TAG, "clearRequestList " + " mWakeLockCount="
+                    + mWakeLockCount + " mRequestTable=" + count);
+        }
 
-            for (int i = 0; i < count; i++) {
-                rr = mRequestList.valueAt(i);
-                if (RILJ_LOGD && loggable) {
-                    Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
-                            + requestToString(rr.mRequest));
-                }
-                rr.onError(error, null);
-                decrementWakeLock(rr);
-                rr.release();
+        for (int i = 0; i < count; i++) {
+            rr = drained.get(i);
+            if (RILJ_LOGD && loggable) {
+                Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
+                        + requestToString(rr.mRequest));
             }
-            mRequestList.clear();
+            rr.onError(error, null);
+            decrementWakeLock(rr);
+            rr.release();
         }
     }
 
     @UnsupportedAppUsage
     private RILRequest findAndRemoveRequestFromList(int serial) {
-        RILRequest rr = null;
-        synchronized (mRequestList) {
-            rr = mRequestList.get(serial);
-            if (rr != null) {
-                mRequestList.remove(serial);
-            }
-        }
-
-        return rr;
+        return mRequestTable.remove(serial);
     }
 
     private void addToRilHistogram(RILRequest rr) {
         long endTime = SystemClock.elapsedRealtime();
         int totalTime = (int) (endTime - rr.mStartTimeMs);
 
+        long endTimeNs = SystemClock.elapsedRealtimeNanos();
+        mMetrics.writeRilRequestLatency(mPhoneId, rr.mRequest,
+                (rr.mSendTimeNs - rr.mObtainTimeNs) / 1000, (endTimeNs - rr.mSendTimeNs) / 1000);
+
         synchronized (mRilTimeHistograms) {
             TelephonyHistogram entry = mRilTimeHistograms.get(rr.mRequest);
             if (entry == null) {
@@ -5721,19 +5775,24 @@ public class RIL extends BaseCommands implements CommandsInterface {
         pw.println("RIL: " + this);
         pw.println(" mWakeLock=" + mWakeLock);
         pw.println(" mWakeLockTimeout=" + mWakeLockTimeout);
-        synchronized (mRequestList) {
-            synchronized (mWakeLock) {
-                pw.println(" mWakeLockCount=" + mWakeLockCount);
-            }
-            int count = mRequestList.size();
-            pw.println(" mRequestList count=" + count);
-            for (int i = 0; i < count; i++) {
-                RILRequest rr = mRequestList.valueAt(i);
-                pw.println("  [" + rr.mSerial + "] " + requestToString(rr.mRequest));
-            }
+        synchronized (mWakeLock) {
+            pw.println(" mWakeLockCount=" + mWakeLockCount);
+        }
+        List<RILRequest> pending = mRequestTable.snapshot();
+        int count = pending.size();
+        pw.println(" mRequestTable count=" + count);
+        for (int i = 0; i < count; i++) {
+            RILRequest rr = pending.get(i);
+            pw.println("  [" + rr.mSerial + "] " + requestToString(rr.mRequest));
         }
         pw.println(" mLastNITZTimeInfo=" + Arrays.toString(mLastNITZTimeInfo));
         pw.println(" mTestingEmergencyCall=" + mTestingEmergencyCall.get());
+        RILRequest.dumpPoolStats(pw);
+        mIndicationCoalescer.dump(pw);
+        RilResponseBatcher batcher = mResponseBatcher;
+        if (batcher != null) {
+            batcher.dump(pw);
+        }
         mClientWakelockTracker.dumpClientRequestTracker(pw);
     }
 
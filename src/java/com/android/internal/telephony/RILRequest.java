@@ -20,10 +20,14 @@ import android.annotation.UnsupportedAppUsage;
 import android.os.AsyncResult;
 import android.os.Message;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.WorkSource;
 import android.os.WorkSource.WorkChain;
 import android.telephony.Rlog;
 
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -38,10 +42,24 @@ public class RILRequest {
     //***** Class Variables
     static Random sRandom = new Random();
     static AtomicInteger sNextSerial = new AtomicInteger(0);
+
+    // Requests are obtained on handler and binder threads and released on the HIDL callback
+    // threads, so like Message.obtain() they share a single bounded pool.
+    private static final int DEFAULT_POOL_SIZE = 32;
+    private static final String PROPERTY_POOL_SIZE = "ro.telephony.ril_request_pool_size";
+
     private static Object sPoolSync = new Object();
     private static RILRequest sPool = null;
     private static int sPoolSize = 0;
-    private static final int MAX_POOL_SIZE = 4;
+    private static int sMaxPoolSize =
+            Math.max(0, SystemProperties.getInt(PROPERTY_POOL_SIZE, DEFAULT_POOL_SIZE));
+
+    // Pool statistics, reported by RIL#dump, guarded by sPoolSync
+    private static long sPoolHits;
+    private static long sPoolMisses;
+    private static long sPoolDrops;
+    private static int sInUse;
+    private static int sInUseHighWater;
 
     //***** Instance Variables
     @UnsupportedAppUsage
@@ -51,11 +69,16 @@ public class RILRequest {
     @UnsupportedAppUsage
     Message mResult;
     RILRequest mNext;
+    // Whether the request is released, so that releasing it again has no effect
+    private boolean mReleased;
     int mWakeLockType;
     WorkSource mWorkSource;
     String mClientId;
     // time in ms when RIL request was made
     long mStartTimeMs;
+    // elapsed realtime in ns when the request was obtained and when it was sent
+    long mObtainTimeNs;
+    long mSendTimeNs;
 
     public int getSerial() {
         return mSerial;
@@ -85,8 +108,14 @@ public class RILRequest {
                 rr = sPool;
                 sPool = rr.mNext;
                 rr.mNext = null;
+                rr.mReleased = false;
                 sPoolSize--;
+                sPoolHits++;
+            } else {
+                sPoolMisses++;
             }
+            sInUse++;
+            sInUseHighWater = Math.max(sInUseHighWater, sInUse);
         }
 
         if (rr == null) {
@@ -102,6 +131,8 @@ public class RILRequest {
         rr.mWakeLockType = RIL.INVALID_WAKELOCK;
         rr.mWorkSource = null;
         rr.mStartTimeMs = SystemClock.elapsedRealtime();
+        rr.mObtainTimeNs = SystemClock.elapsedRealtimeNanos();
+        rr.mSendTimeNs = rr.mObtainTimeNs;
         if (result != null && result.getTarget() == null) {
             throw new NullPointerException("Message target must not be null");
         }
@@ -157,27 +188,94 @@ public class RILRequest {
     /**
      * Returns a RILRequest instance to the pool.
      *
-     * Note: This should only be called once per use.
+     * Note: This should only be called once per use. Releasing a request again before it is
+     * obtained again has no effect.
      */
     @UnsupportedAppUsage
     void release() {
         synchronized (sPoolSync) {
-            if (sPoolSize < MAX_POOL_SIZE) {
+            if (mReleased) {
+                Rlog.e(LOG_TAG, "RILRequest released twice: " + serialString());
+                return;
+            }
+            mReleased = true;
+            if (mWakeLockType != RIL.INVALID_WAKELOCK) {
+                //This is OK for some wakelock types and not others
+                if (mWakeLockType == RIL.FOR_WAKELOCK) {
+                    Rlog.e(LOG_TAG, "RILRequest releasing with held wake lock: "
+                            + serialString());
+                }
+            }
+            mResult = null;
+            mWorkSource = null;
+            mClientId = null;
+            sInUse--;
+            if (sPoolSize < sMaxPoolSize) {
                 mNext = sPool;
                 sPool = this;
                 sPoolSize++;
-                mResult = null;
-                if (mWakeLockType != RIL.INVALID_WAKELOCK) {
-                    //This is OK for some wakelock types and not others
-                    if (mWakeLockType == RIL.FOR_WAKELOCK) {
-                        Rlog.e(LOG_TAG, "RILRequest releasing with held wake lock: "
-                                + serialString());
-                    }
-                }
+            } else {
+                sPoolDrops++;
             }
         }
     }
 
+    /**
+     * Sets the number of requests kept in the pool. Requests currently pooled are discarded.
+     */
+    @VisibleForTesting
+    public static void setPoolCapacity(int capacity) {
+        synchronized (sPoolSync) {
+            sMaxPoolSize = Math.max(0, capacity);
+            sPool = null;
+            sPoolSize = 0;
+        }
+    }
+
+    /** Clears the pool statistics. The high-water mark restarts from the current usage. */
+    @VisibleForTesting
+    public static void resetPoolStats() {
+        synchronized (sPoolSync) {
+            sPoolHits = 0;
+            sPoolMisses = 0;
+            sPoolDrops = 0;
+            sInUseHighWater = sInUse;
+        }
+    }
+
+    @VisibleForTesting
+    public static long getPoolHits() {
+        synchronized (sPoolSync) {
+            return sPoolHits;
+        }
+    }
+
+    @VisibleForTesting
+    public static long getPoolMisses() {
+        synchronized (sPoolSync) {
+            return sPoolMisses;
+        }
+    }
+
+    @VisibleForTesting
+    public static int getInUseHighWaterMark() {
+        synchronized (sPoolSync) {
+            return sInUseHighWater;
+        }
+    }
+
+    static void dumpPoolStats(PrintWriter pw) {
+        synchronized (sPoolSync) {
+            pw.println(" RILRequest pool: capacity=" + sMaxPoolSize
+                    + " size=" + sPoolSize
+                    + " hits=" + sPoolHits
+                    + " misses=" + sPoolMisses
+                    + " drops=" + sPoolDrops
+                    + " inUse=" + sInUse
+                    + " highWaterMark=" + sInUseHighWater);
+        }
+    }
+
     private RILRequest() {
     }
 
@@ -210,6 +308,16 @@ public class RILRequest {
 
     @UnsupportedAppUsage
     void onError(int error, Object ret) {
+        onError(error, ret, null);
+    }
+
+    /**
+     * Sends the error result to the requester.
+     *
+     * @param batcher If not null, the result is sent through the response batcher so it stays
+     *                ordered with successful responses.
+     */
+    void onError(int error, Object ret, RilResponseBatcher batcher) {
         CommandException ex;
 
         ex = CommandException.fromRilErrno(error);
@@ -222,7 +330,7 @@ public class RILRequest {
 
         if (mResult != null) {
             AsyncResult.forMessage(mResult, ret, ex);
-            mResult.sendToTarget();
+            RilResponseBatcher.sendResponse(batcher, mResult);
         }
     }
 }
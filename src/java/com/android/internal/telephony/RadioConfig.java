@@ -73,6 +73,9 @@ public class RadioConfig extends Handler {
     private final RadioConfigResponse mRadioConfigResponse;
     private final RadioConfigIndication mRadioConfigIndication;
     private final SparseArray<RILRequest> mRequestList = new SparseArray<RILRequest>();
+    // Null unless solicited responses are delivered in batches, as they are for RIL
+    private final RilResponseBatcher mResponseBatcher =
+            RilResponseBatcher.createFromSystemProperties();
     /* default work source which will blame phone process */
     private final WorkSource mDefaultWorkSource;
     private static RadioConfig sRadioConfig;
@@ -248,6 +251,11 @@ public class RadioConfig extends Handler {
         return rr;
     }
 
+    /** Returns the batcher of solicited responses, or null if batching is disabled. */
+    RilResponseBatcher getResponseBatcher() {
+        return mResponseBatcher;
+    }
+
     /**
      * This is a helper function to be called when a RadioConfigResponse callback is called.
      * It finds and returns RILRequest corresponding to the response if one is found.
@@ -52,11 +52,12 @@ public class RadioConfigResponse extends IRadioConfigResponse.Stub {
             ArrayList<IccSlotStatus> ret = RadioConfig.convertHalSlotStatus(slotStatus);
             if (responseInfo.error == RadioError.NONE) {
                 // send response
-                RadioResponse.sendMessageResponse(rr.mResult, ret);
+                RadioResponse.sendMessageResponse(mRadioConfig.getResponseBatcher(), rr.mResult,
+                        ret);
                 Rlog.d(TAG, rr.serialString() + "< "
                         + mRadioConfig.requestToString(rr.mRequest) + " " + ret.toString());
             } else {
-                rr.onError(responseInfo.error, ret);
+                rr.onError(responseInfo.error, ret, mRadioConfig.getResponseBatcher());
                 Rlog.e(TAG, rr.serialString() + "< "
                         + mRadioConfig.requestToString(rr.mRequest) + " error "
                         + responseInfo.error);
@@ -78,11 +79,12 @@ public class RadioConfigResponse extends IRadioConfigResponse.Stub {
             ArrayList<IccSlotStatus> ret = RadioConfig.convertHalSlotStatus_1_2(slotStatus);
             if (responseInfo.error == RadioError.NONE) {
                 // send response
-                RadioResponse.sendMessageResponse(rr.mResult, ret);
+                RadioResponse.sendMessageResponse(mRadioConfig.getResponseBatcher(), rr.mResult,
+                        ret);
                 Rlog.d(TAG, rr.serialString() + "< "
                         + mRadioConfig.requestToString(rr.mRequest) + " " + ret.toString());
             } else {
-                rr.onError(responseInfo.error, ret);
+                rr.onError(responseInfo.error, ret, mRadioConfig.getResponseBatcher());
                 Rlog.e(TAG, rr.serialString() + "< "
                         + mRadioConfig.requestToString(rr.mRequest) + " error "
                         + responseInfo.error);
@@ -101,11 +103,12 @@ public class RadioConfigResponse extends IRadioConfigResponse.Stub {
         if (rr != null) {
             if (responseInfo.error == RadioError.NONE) {
                 // send response
-                RadioResponse.sendMessageResponse(rr.mResult, null);
+                RadioResponse.sendMessageResponse(mRadioConfig.getResponseBatcher(), rr.mResult,
+                        null);
                 Rlog.d(TAG, rr.serialString() + "< "
                         + mRadioConfig.requestToString(rr.mRequest));
             } else {
-                rr.onError(responseInfo.error, null);
+                rr.onError(responseInfo.error, null, mRadioConfig.getResponseBatcher());
                 Rlog.e(TAG, rr.serialString() + "< "
                         + mRadioConfig.requestToString(rr.mRequest) + " error "
                         + responseInfo.error);
@@ -143,11 +146,12 @@ public class RadioConfigResponse extends IRadioConfigResponse.Stub {
             PhoneCapability ret = convertHalPhoneCapability(phoneCapability);
             if (responseInfo.error == RadioError.NONE) {
                 // send response
-                RadioResponse.sendMessageResponse(rr.mResult, ret);
+                RadioResponse.sendMessageResponse(mRadioConfig.getResponseBatcher(), rr.mResult,
+                        ret);
                 Rlog.d(TAG, rr.serialString() + "< "
                         + mRadioConfig.requestToString(rr.mRequest) + " " + ret.toString());
             } else {
-                rr.onError(responseInfo.error, ret);
+                rr.onError(responseInfo.error, ret, mRadioConfig.getResponseBatcher());
                 Rlog.e(TAG, rr.serialString() + "< "
                         + mRadioConfig.requestToString(rr.mRequest) + " error "
                         + responseInfo.error);
@@ -166,11 +170,12 @@ public class RadioConfigResponse extends IRadioConfigResponse.Stub {
         if (rr != null) {
             if (responseInfo.error == RadioError.NONE) {
                 // send response
-                RadioResponse.sendMessageResponse(rr.mResult, null);
+                RadioResponse.sendMessageResponse(mRadioConfig.getResponseBatcher(), rr.mResult,
+                        null);
                 Rlog.d(TAG, rr.serialString() + "< "
                         + mRadioConfig.requestToString(rr.mRequest));
             } else {
-                rr.onError(responseInfo.error, null);
+                rr.onError(responseInfo.error, null, mRadioConfig.getResponseBatcher());
                 Rlog.e(TAG, rr.serialString() + "< "
                         + mRadioConfig.requestToString(rr.mRequest) + " error "
                         + responseInfo.error);
@@ -190,11 +195,12 @@ public class RadioConfigResponse extends IRadioConfigResponse.Stub {
         if (rr != null) {
             if (responseInfo.error == RadioError.NONE) {
                 // send response
-                RadioResponse.sendMessageResponse(rr.mResult, rr.mRequest);
+                RadioResponse.sendMessageResponse(mRadioConfig.getResponseBatcher(), rr.mResult,
+                        rr.mRequest);
                 Rlog.d(TAG, rr.serialString() + "< "
                         + mRadioConfig.requestToString(rr.mRequest));
             } else {
-                rr.onError(responseInfo.error, null);
+                rr.onError(responseInfo.error, null, mRadioConfig.getResponseBatcher());
                 Rlog.e(TAG, rr.serialString() + "< "
                         + mRadioConfig.requestToString(rr.mRequest) + " error "
                         + responseInfo.error);
@@ -213,11 +219,12 @@ public class RadioConfigResponse extends IRadioConfigResponse.Stub {
         if (rr != null) {
             if (responseInfo.error == RadioError.NONE) {
                 // send response
-                RadioResponse.sendMessageResponse(rr.mResult, modemsConfig);
+                RadioResponse.sendMessageResponse(mRadioConfig.getResponseBatcher(), rr.mResult,
+                        modemsConfig);
                 Rlog.d(TAG, rr.serialString() + "< "
                         + mRadioConfig.requestToString(rr.mRequest));
             } else {
-                rr.onError(responseInfo.error, modemsConfig);
+                rr.onError(responseInfo.error, modemsConfig, mRadioConfig.getResponseBatcher());
                 Rlog.e(TAG, rr.serialString() + "< "
                         + mRadioConfig.requestToString(rr.mRequest) + " error "
                         + responseInfo.error);
@@ -150,7 +150,7 @@ public class RadioIndication extends IRadioIndication.Stub {
 
         if (RIL.RILJ_LOGD) mRil.unsljLog(RIL_UNSOL_RESPONSE_NETWORK_STATE_CHANGED);
 
-        mRil.mNetworkStateRegistrants.notifyRegistrants();
+        mRil.mIndicationCoalescer.offer(IndicationCoalescer.TYPE_NETWORK_STATE, null);
     }
 
     public void newSms(int indicationType, ArrayList<Byte> pdu) {
@@ -235,9 +235,7 @@ public class RadioIndication extends IRadioIndication.Stub {
         // Note this is set to "verbose" because it happens frequently
         if (RIL.RILJ_LOGV) mRil.unsljLogvRet(RIL_UNSOL_SIGNAL_STRENGTH, ss);
 
-        if (mRil.mSignalStrengthRegistrant != null) {
-            mRil.mSignalStrengthRegistrant.notifyRegistrant(new AsyncResult (null, ss, null));
-        }
+        mRil.mIndicationCoalescer.offer(IndicationCoalescer.TYPE_SIGNAL_STRENGTH, ss);
     }
 
     /**
@@ -267,9 +265,7 @@ public class RadioIndication extends IRadioIndication.Stub {
         // Note this is set to "verbose" because it happens frequently
         if (RIL.RILJ_LOGV) mRil.unsljLogvRet(RIL_UNSOL_SIGNAL_STRENGTH, ss);
 
-        if (mRil.mSignalStrengthRegistrant != null) {
-            mRil.mSignalStrengthRegistrant.notifyRegistrant(new AsyncResult(null, ss, null));
-        }
+        mRil.mIndicationCoalescer.offer(IndicationCoalescer.TYPE_SIGNAL_STRENGTH, ss);
     }
 
     /**
@@ -284,9 +280,7 @@ public class RadioIndication extends IRadioIndication.Stub {
 
         if (RIL.RILJ_LOGV) mRil.unsljLogvRet(RIL_UNSOL_SIGNAL_STRENGTH, ss);
 
-        if (mRil.mSignalStrengthRegistrant != null) {
-            mRil.mSignalStrengthRegistrant.notifyRegistrant(new AsyncResult(null, ss, null));
-        }
+        mRil.mIndicationCoalescer.offer(IndicationCoalescer.TYPE_SIGNAL_STRENGTH, ss);
     }
 
     /**
@@ -733,7 +727,7 @@ public class RadioIndication extends IRadioIndication.Stub {
 
         if (RIL.RILJ_LOGD) mRil.unsljLogRet(RIL_UNSOL_CELL_INFO_LIST, response);
 
-        mRil.mRilCellInfoListRegistrants.notifyRegistrants(new AsyncResult(null, response, null));
+        mRil.mIndicationCoalescer.offer(IndicationCoalescer.TYPE_CELL_INFO_LIST, response);
     }
 
     /** Get unsolicited message for cellInfoList using HAL V1_2 */
@@ -745,7 +739,7 @@ public class RadioIndication extends IRadioIndication.Stub {
 
         if (RIL.RILJ_LOGD) mRil.unsljLogRet(RIL_UNSOL_CELL_INFO_LIST, response);
 
-        mRil.mRilCellInfoListRegistrants.notifyRegistrants(new AsyncResult(null, response, null));
+        mRil.mIndicationCoalescer.offer(IndicationCoalescer.TYPE_CELL_INFO_LIST, response);
     }
 
     /** Get unsolicited message for cellInfoList using HAL V1_4 */
@@ -757,7 +751,7 @@ public class RadioIndication extends IRadioIndication.Stub {
 
         if (RIL.RILJ_LOGD) mRil.unsljLogRet(RIL_UNSOL_CELL_INFO_LIST, response);
 
-        mRil.mRilCellInfoListRegistrants.notifyRegistrants(new AsyncResult(null, response, null));
+        mRil.mIndicationCoalescer.offer(IndicationCoalescer.TYPE_CELL_INFO_LIST, response);
     }
 
     /** Incremental network scan results */
@@ -1050,8 +1044,8 @@ public class RadioIndication extends IRadioIndication.Stub {
 
         if (RIL.RILJ_LOGD) mRil.unsljLogRet(RIL_UNSOL_PHYSICAL_CHANNEL_CONFIG, response);
 
-        mRil.mPhysicalChannelConfigurationRegistrants.notifyRegistrants(
-                new AsyncResult(null, response, null));
+        mRil.mIndicationCoalescer.offer(IndicationCoalescer.TYPE_PHYSICAL_CHANNEL_CONFIG,
+                response);
     }
 
     private void responseNetworkScan(int indicationType,
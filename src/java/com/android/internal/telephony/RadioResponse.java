@@ -77,14 +77,29 @@ public class RadioResponse extends IRadioResponse.Stub {
     }
 
     /**
-     * Helper function to send response msg
+     * Helper function to send a solicited response msg, batched with other responses if the
+     * RIL has response batching enabled
+     * @param ril RIL instance the response was received on
      * @param msg Response message to be sent
      * @param ret Return object to be included in the response message
      */
-    static void sendMessageResponse(Message msg, Object ret) {
+    static void sendMessageResponse(RIL ril, Message msg, Object ret) {
         if (msg != null) {
             AsyncResult.forMessage(msg, ret, null);
-            msg.sendToTarget();
+            ril.sendResponseMessage(msg);
+        }
+    }
+
+    /**
+     * Helper function to send a solicited response msg through a response batcher
+     * @param batcher Response batcher, or null to send the message right away
+     * @param msg Response message to be sent
+     * @param ret Return object to be included in the response message
+     */
+    static void sendMessageResponse(RilResponseBatcher batcher, Message msg, Object ret) {
+        if (msg != null) {
+            AsyncResult.forMessage(msg, ret, null);
+            RilResponseBatcher.sendResponse(batcher, msg);
         }
     }
 
@@ -304,7 +319,7 @@ public class RadioResponse extends IRadioResponse.Stub {
 
         if (rr != null) {
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, voiceRegResponse);
+                sendMessageResponse(mRil, rr.mResult, voiceRegResponse);
             }
             mRil.processResponseDone(rr, responseInfo, voiceRegResponse);
         }
@@ -321,7 +336,7 @@ public class RadioResponse extends IRadioResponse.Stub {
 
         if (rr != null) {
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, voiceRegResponse);
+                sendMessageResponse(mRil, rr.mResult, voiceRegResponse);
             }
             mRil.processResponseDone(rr, responseInfo, voiceRegResponse);
         }
@@ -338,7 +353,7 @@ public class RadioResponse extends IRadioResponse.Stub {
 
         if (rr != null) {
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, dataRegResponse);
+                sendMessageResponse(mRil, rr.mResult, dataRegResponse);
             }
             mRil.processResponseDone(rr, responseInfo, dataRegResponse);
         }
@@ -355,7 +370,7 @@ public class RadioResponse extends IRadioResponse.Stub {
 
         if (rr != null) {
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, dataRegResponse);
+                sendMessageResponse(mRil, rr.mResult, dataRegResponse);
             }
             mRil.processResponseDone(rr, responseInfo, dataRegResponse);
         }
@@ -372,7 +387,7 @@ public class RadioResponse extends IRadioResponse.Stub {
 
         if (rr != null) {
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, dataRegResponse);
+                sendMessageResponse(mRil, rr.mResult, dataRegResponse);
             }
             mRil.processResponseDone(rr, responseInfo, dataRegResponse);
         }
@@ -1293,7 +1308,7 @@ public class RadioResponse extends IRadioResponse.Stub {
                 responseInfo.error = RadioError.NONE;
             }
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -1355,12 +1370,12 @@ public class RadioResponse extends IRadioResponse.Stub {
 
             if (responseInfo.error == RadioError.NONE) {
                 ret = TelephonyManager.SET_CARRIER_RESTRICTION_SUCCESS;
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             } else if (responseInfo.error == RadioError.REQUEST_NOT_SUPPORTED) {
                 // Handle the case REQUEST_NOT_SUPPORTED as a valid response
                 responseInfo.error = RadioError.NONE;
                 ret = TelephonyManager.SET_CARRIER_RESTRICTION_NOT_SUPPORTED;
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -1378,7 +1393,7 @@ public class RadioResponse extends IRadioResponse.Stub {
 
             if (responseInfo.error == RadioError.NONE) {
                 ret = TelephonyManager.SET_CARRIER_RESTRICTION_SUCCESS;
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -1486,7 +1501,7 @@ public class RadioResponse extends IRadioResponse.Stub {
                     }
                     // If responseInfo.error is NONE, response function sends the response message
                     // even if result is actually an error.
-                    sendMessageResponse(rr.mResult, ret);
+                    sendMessageResponse(mRil, rr.mResult, ret);
                     break;
                 case RadioError.REQUEST_NOT_SUPPORTED:
                     ret = new KeepaliveStatus(KeepaliveStatus.ERROR_UNSUPPORTED);
@@ -1513,7 +1528,7 @@ public class RadioResponse extends IRadioResponse.Stub {
 
         try {
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, null);
+                sendMessageResponse(mRil, rr.mResult, null);
             } else {
                 //TODO: Error code translation
             }
@@ -1577,7 +1592,7 @@ public class RadioResponse extends IRadioResponse.Stub {
             IccCardStatus iccCardStatus = convertHalCardStatus(cardStatus);
             mRil.riljLog("responseIccCardStatus: from HIDL: " + iccCardStatus);
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, iccCardStatus);
+                sendMessageResponse(mRil, rr.mResult, iccCardStatus);
             }
             mRil.processResponseDone(rr, responseInfo, iccCardStatus);
         }
@@ -1594,7 +1609,7 @@ public class RadioResponse extends IRadioResponse.Stub {
             iccCardStatus.iccid = cardStatus.iccid;
             mRil.riljLog("responseIccCardStatus: from HIDL: " + iccCardStatus);
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, iccCardStatus);
+                sendMessageResponse(mRil, rr.mResult, iccCardStatus);
             }
             mRil.processResponseDone(rr, responseInfo, iccCardStatus);
         }
@@ -1612,7 +1627,7 @@ public class RadioResponse extends IRadioResponse.Stub {
             iccCardStatus.eid = cardStatus.eid;
             mRil.riljLog("responseIccCardStatus: from HIDL: " + iccCardStatus);
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, iccCardStatus);
+                sendMessageResponse(mRil, rr.mResult, iccCardStatus);
             }
             mRil.processResponseDone(rr, responseInfo, iccCardStatus);
         }
@@ -1642,7 +1657,7 @@ public class RadioResponse extends IRadioResponse.Stub {
                 ret[i] = var.get(i);
             }
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -1721,7 +1736,7 @@ public class RadioResponse extends IRadioResponse.Stub {
             }
 
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, dcCalls);
+                sendMessageResponse(mRil, rr.mResult, dcCalls);
             }
             mRil.processResponseDone(rr, responseInfo, dcCalls);
         }
@@ -1802,7 +1817,7 @@ public class RadioResponse extends IRadioResponse.Stub {
             }
 
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, dcCalls);
+                sendMessageResponse(mRil, rr.mResult, dcCalls);
             }
             mRil.processResponseDone(rr, responseInfo, dcCalls);
         }
@@ -1815,7 +1830,7 @@ public class RadioResponse extends IRadioResponse.Stub {
         if (rr != null) {
             Object ret = null;
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -1826,7 +1841,7 @@ public class RadioResponse extends IRadioResponse.Stub {
 
         if (rr != null) {
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, str);
+                sendMessageResponse(mRil, rr.mResult, str);
             }
             mRil.processResponseDone(rr, responseInfo, str);
         }
@@ -1850,7 +1865,7 @@ public class RadioResponse extends IRadioResponse.Stub {
                 ret[i] = strings.get(i);
             }
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(ril, rr.mResult, ret);
             }
             ril.processResponseDone(rr, responseInfo, ret);
         }
@@ -1865,7 +1880,7 @@ public class RadioResponse extends IRadioResponse.Stub {
             ret.causeCode = fcInfo.causeCode;
             ret.vendorCause = fcInfo.vendorCause;
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -1879,7 +1894,7 @@ public class RadioResponse extends IRadioResponse.Stub {
         if (rr != null) {
             SignalStrength ret = new SignalStrength(signalStrength);
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -1893,7 +1908,7 @@ public class RadioResponse extends IRadioResponse.Stub {
         if (rr != null) {
             SignalStrength ret = new SignalStrength(signalStrength);
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -1907,7 +1922,7 @@ public class RadioResponse extends IRadioResponse.Stub {
         if (rr != null) {
             SignalStrength ret = new SignalStrength(signalStrength);
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -1919,7 +1934,7 @@ public class RadioResponse extends IRadioResponse.Stub {
         if (rr != null) {
             SmsResponse ret = new SmsResponse(sms.messageRef, sms.ackPDU, sms.errorCode);
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -1932,7 +1947,7 @@ public class RadioResponse extends IRadioResponse.Stub {
         if (rr != null) {
             DataCallResponse response = RIL.convertDataCallResult(setupDataCallResult);
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, response);
+                sendMessageResponse(mRil, rr.mResult, response);
             }
             mRil.processResponseDone(rr, responseInfo, response);
         }
@@ -1945,7 +1960,7 @@ public class RadioResponse extends IRadioResponse.Stub {
         if (rr != null) {
             IccIoResult ret = new IccIoResult(result.sw1, result.sw2, result.simResponse);
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -1967,7 +1982,7 @@ public class RadioResponse extends IRadioResponse.Stub {
                 ret[i].timeSeconds = callForwardInfos.get(i).timeSeconds;
             }
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -2000,7 +2015,7 @@ public class RadioResponse extends IRadioResponse.Stub {
                         convertOpertatorInfoToString(networkInfos.get(i).status)));
             }
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -2014,7 +2029,7 @@ public class RadioResponse extends IRadioResponse.Stub {
             if (responseInfo.error == RadioError.NONE) {
                 nsr = new NetworkScanResult(
                         NetworkScanResult.SCAN_STATUS_PARTIAL, RadioError.NONE, null);
-                sendMessageResponse(rr.mResult, nsr);
+                sendMessageResponse(mRil, rr.mResult, nsr);
             }
             mRil.processResponseDone(rr, responseInfo, nsr);
         }
@@ -2028,7 +2043,7 @@ public class RadioResponse extends IRadioResponse.Stub {
             ArrayList<DataCallResponse> response =
                     RIL.convertDataCallResultList(dataCallResultList);
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, response);
+                sendMessageResponse(mRil, rr.mResult, response);
             }
             mRil.processResponseDone(rr, responseInfo, response);
         }
@@ -2058,7 +2073,7 @@ public class RadioResponse extends IRadioResponse.Stub {
                 }
             }
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -2076,7 +2091,7 @@ public class RadioResponse extends IRadioResponse.Stub {
                         configs.get(i).toCodeScheme, configs.get(i).selected));
             }
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -2124,7 +2139,7 @@ public class RadioResponse extends IRadioResponse.Stub {
                 }
             }
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -2137,7 +2152,7 @@ public class RadioResponse extends IRadioResponse.Stub {
         if (rr != null) {
             ArrayList<CellInfo> ret = RIL.convertHalCellInfoList(cellInfo);
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -2151,7 +2166,7 @@ public class RadioResponse extends IRadioResponse.Stub {
         if (rr != null) {
             ArrayList<CellInfo> ret = RIL.convertHalCellInfoList_1_2(cellInfo);
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -2165,7 +2180,7 @@ public class RadioResponse extends IRadioResponse.Stub {
         if (rr != null) {
             ArrayList<CellInfo> ret = RIL.convertHalCellInfoList_1_4(cellInfo);
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -2192,7 +2207,7 @@ public class RadioResponse extends IRadioResponse.Stub {
                         0, 0);
                 responseInfo.error = RadioError.NONE;
             }
-            sendMessageResponse(rr.mResult, ret);
+            sendMessageResponse(mRil, rr.mResult, ret);
             mRil.processResponseDone(rr, responseInfo, ret);
         }
     }
@@ -2205,7 +2220,7 @@ public class RadioResponse extends IRadioResponse.Stub {
         if (rr != null) {
             ArrayList<HardwareConfig> ret = RIL.convertHalHwConfigList(config, mRil);
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -2223,7 +2238,7 @@ public class RadioResponse extends IRadioResponse.Stub {
                             ? android.util.Base64.decode(result.simResponse,
                             android.util.Base64.DEFAULT) : (byte[]) null);
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -2236,7 +2251,7 @@ public class RadioResponse extends IRadioResponse.Stub {
         if (rr != null) {
             RadioCapability ret = RIL.convertHalRadioCapability(rc, mRil);
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -2250,7 +2265,7 @@ public class RadioResponse extends IRadioResponse.Stub {
             ret.add(statusInfo.lceStatus);
             ret.add(Byte.toUnsignedInt(statusInfo.actualIntervalMs));
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -2262,7 +2277,7 @@ public class RadioResponse extends IRadioResponse.Stub {
         if (rr != null) {
             LinkCapacityEstimate ret = RIL.convertHalLceData(lceInfo, mRil);
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, ret);
+                sendMessageResponse(mRil, rr.mResult, ret);
             }
             mRil.processResponseDone(rr, responseInfo, ret);
         }
@@ -2323,7 +2338,7 @@ public class RadioResponse extends IRadioResponse.Stub {
         }
 
         if (responseInfo.error == RadioError.NONE) {
-            sendMessageResponse(rr.mResult, ret);
+            sendMessageResponse(mRil, rr.mResult, ret);
         }
         mRil.processResponseDone(rr, responseInfo, ret);
     }
@@ -2344,7 +2359,7 @@ public class RadioResponse extends IRadioResponse.Stub {
 
         if (rr != null) {
             if (responseInfo.error == RadioError.NONE) {
-                sendMessageResponse(rr.mResult, isEnabled);
+                sendMessageResponse(mRil, rr.mResult, isEnabled);
             }
             mRil.processResponseDone(rr, responseInfo, isEnabled);
         }
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Table of pending {@link RILRequest}s keyed by serial number.
+ *
+ * The table is an open-addressed, linearly probed array of entries, each holding a serial and
+ * its request. The serial is kept in the entry rather than read back from the request, which
+ * may have been released and obtained again with another serial. A slot only needs to hold a
+ * single reference which can be claimed and released with a compare-and-set. Inserts, lookups
+ * and removals never take a lock; only rehashing the table does, and operations that run into a
+ * slot frozen by a rehash wait for it to complete and retry against the new array.
+ *
+ * Removed requests leave tombstones behind, which inserts reuse. The table is rehashed once the
+ * requests and tombstones fill three quarters of it, so that lookups of serials which are not in
+ * the table stop at an empty slot after a few probes.
+ *
+ * Serials are handed out sequentially by {@link RILRequest#obtain}, so as long as the number of
+ * outstanding requests stays below the capacity nearly every request lands in its home slot.
+ *
+ * {@hide}
+ */
+@VisibleForTesting
+public class RilRequestTable {
+    private static final int DEFAULT_INITIAL_CAPACITY = 64;
+
+    /** Marks a slot whose request has been removed. Probing continues past it. */
+    private static final Entry TOMBSTONE = new Entry(-1, null);
+
+    /** Marks a slot that has been copied into a newer array by a rehash in progress. */
+    private static final Entry MOVED = new Entry(-1, null);
+
+    private final Object mResizeLock = new Object();
+    private final AtomicInteger mSize = new AtomicInteger(0);
+    // Number of slots holding a request or a tombstone
+    private final AtomicInteger mUsed = new AtomicInteger(0);
+    private volatile AtomicReferenceArray<Entry> mSlots;
+
+    public RilRequestTable() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    public RilRequestTable(int initialCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(initialCapacity, 2) - 1) << 1;
+        mSlots = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Adds a request to the table, keyed by its serial. Serials must be unique among the
+     * requests currently in the table.
+     */
+    public void put(RILRequest rr) {
+        Entry entry = new Entry(rr.mSerial, rr);
+        while (true) {
+            AtomicReferenceArray<Entry> slots = mSlots;
+            int mask = slots.length() - 1;
+            int index = entry.mSerial & mask;
+            boolean moved = false;
+            for (int probe = 0; probe <= mask; probe++) {
+                Entry current = slots.get(index);
+                if (current == MOVED) {
+                    moved = true;
+                    break;
+                }
+                if ((current == null || current == TOMBSTONE)
+                        && slots.compareAndSet(index, current, entry)) {
+                    mSize.incrementAndGet();
+                    if (current == null
+                            && mUsed.incrementAndGet() > slots.length() - slots.length() / 4) {
+                        rehash(slots);
+                    }
+                    return;
+                }
+                index = (index + 1) & mask;
+            }
+            if (moved) {
+                awaitResize(slots);
+            } else {
+                rehash(slots);
+            }
+        }
+    }
+
+    /** Returns the request with the given serial, or null if there is none. */
+    public RILRequest get(int serial) {
+        while (true) {
+            AtomicReferenceArray<Entry> slots = mSlots;
+            int mask = slots.length() - 1;
+            int index = serial & mask;
+            boolean moved = false;
+            for (int probe = 0; probe <= mask; probe++) {
+                Entry current = slots.get(index);
+                if (current == null) {
+                    return null;
+                }
+                if (current == MOVED) {
+                    moved = true;
+                    break;
+                }
+                if (current != TOMBSTONE && current.mSerial == serial) {
+                    return current.mRequest;
+                }
+                index = (index + 1) & mask;
+            }
+            if (!moved || !awaitResize(slots)) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the request with the given serial, or null if there is none. When
+     * several threads race to remove the same serial exactly one of them gets the request.
+     */
+    public RILRequest remove(int serial) {
+        while (true) {
+            AtomicReferenceArray<Entry> slots = mSlots;
+            int mask = slots.length() - 1;
+            int index = serial & mask;
+            boolean moved = false;
+            for (int probe = 0; probe <= mask; probe++) {
+                Entry current = slots.get(index);
+                if (current == null) {
+                    return null;
+                }
+                if (current == MOVED) {
+                    moved = true;
+                    break;
+                }
+                if (current != TOMBSTONE && current.mSerial == serial) {
+                    if (slots.compareAndSet(index, current, TOMBSTONE)) {
+                        mSize.decrementAndGet();
+                        return current.mRequest;
+                    }
+                    // Lost the race; re-read the slot, it is now either gone or moved.
+                    continue;
+                }
+                index = (index + 1) & mask;
+            }
+            if (!moved || !awaitResize(slots)) {
+                return null;
+            }
+        }
+    }
+
+    /** Returns the number of requests currently in the table. */
+    public int size() {
+        return mSize.get();
+    }
+
+    /**
+     * Returns a snapshot of the pending requests. Requests added or removed while the snapshot is
+     * taken may or may not be included, but every request in the list was pending at some point
+     * during the call and none appears twice.
+     */
+    public List<RILRequest> snapshot() {
+        while (true) {
+            AtomicReferenceArray<Entry> slots = mSlots;
+            List<RILRequest> list = new ArrayList<>(mSize.get());
+            boolean moved = false;
+            for (int i = 0; i < slots.length(); i++) {
+                Entry current = slots.get(i);
+                if (current == MOVED) {
+                    moved = true;
+                    break;
+                }
+                if (current != null && current != TOMBSTONE) {
+                    list.add(current.mRequest);
+                }
+            }
+            if (!moved) {
+                return list;
+            }
+            awaitResize(slots);
+        }
+    }
+
+    /**
+     * Removes every pending request and returns the removed requests. A request that is removed
+     * concurrently by {@link #remove} is returned by exactly one of the two calls.
+     */
+    public List<RILRequest> drain() {
+        List<RILRequest> drained = new ArrayList<>(mSize.get());
+        while (true) {
+            AtomicReferenceArray<Entry> slots = mSlots;
+            boolean moved = false;
+            for (int i = 0; i < slots.length(); i++) {
+                Entry current = slots.get(i);
+                while (current != null && current != TOMBSTONE && current != MOVED) {
+                    if (slots.compareAndSet(i, current, TOMBSTONE)) {
+                        mSize.decrementAndGet();
+                        drained.add(current.mRequest);
+                        break;
+                    }
+                    current = slots.get(i);
+                }
+                if (current == MOVED) {
+                    moved = true;
+                    break;
+                }
+            }
+            if (!moved) {
+                return drained;
+            }
+            awaitResize(slots);
+        }
+    }
+
+    /** Returns the number of slots in the backing array. */
+    @VisibleForTesting
+    public int capacity() {
+        return mSlots.length();
+    }
+
+    /** Returns the number of slots holding a request or a tombstone. */
+    @VisibleForTesting
+    public int usedSlots() {
+        return mUsed.get();
+    }
+
+    /**
+     * Waits for a rehash in progress to publish its array.
+     *
+     * @param observed the array in which the caller ran into a frozen slot
+     * @return true if a newer array has been published, i.e. the caller should retry.
+     */
+    private boolean awaitResize(AtomicReferenceArray<Entry> observed) {
+        synchronized (mResizeLock) {
+            return mSlots != observed;
+        }
+    }
+
+    /**
+     * Copies the requests into a new array without the tombstones, twice as large as needed to
+     * hold them. Each slot of the old array is frozen with {@link #MOVED} before its entry is
+     * copied, so concurrent removals either win before the freeze or wait for the new array to
+     * be published.
+     */
+    private void rehash(AtomicReferenceArray<Entry> expected) {
+        synchronized (mResizeLock) {
+            AtomicReferenceArray<Entry> old = mSlots;
+            if (old != expected) {
+                // Someone else rehashed the table already.
+                return;
+            }
+            List<Entry> entries = new ArrayList<>();
+            for (int i = 0; i < old.length(); i++) {
+                Entry current = old.getAndSet(i, MOVED);
+                if (current != null && current != TOMBSTONE) {
+                    entries.add(current);
+                }
+            }
+            int capacity = old.length();
+            while (entries.size() * 2 > capacity) {
+                capacity *= 2;
+            }
+            AtomicReferenceArray<Entry> rehashed = new AtomicReferenceArray<>(capacity);
+            int mask = capacity - 1;
+            for (Entry entry : entries) {
+                int index = entry.mSerial & mask;
+                while (rehashed.get(index) != null) {
+                    index = (index + 1) & mask;
+                }
+                rehashed.set(index, entry);
+            }
+            mUsed.set(entries.size());
+            mSlots = rehashed;
+        }
+    }
+
+    /** A request and the serial it was added with. */
+    private static final class Entry {
+        final int mSerial;
+        final RILRequest mRequest;
+
+        Entry(int serial, RILRequest request) {
+            mSerial = serial;
+            mRequest = request;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemProperties;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers solicited response messages in batches.
+ *
+ * Instead of enqueuing every response {@link Message} on its target's looper from the binder
+ * thread, which wakes the looper for each one, responses are collected per looper and a single
+ * callback is posted that sends all of them to their targets, in arrival order, from that
+ * looper's thread. Responses arriving before the callback runs (or within the configured window)
+ * join the same batch, so a burst of responses wakes each looper once.
+ *
+ * The messages still go through the target's {@link android.os.MessageQueue}, so they are
+ * recycled and seen by {@link Handler#hasMessages} and {@link Handler#removeMessages}, but only
+ * once their batch was delivered.
+ *
+ * {@hide}
+ */
+@VisibleForTesting
+public class RilResponseBatcher {
+    // Solicited responses are delivered in batches per looper when enabled
+    private static final String PROPERTY_RESPONSE_BATCHING = "ro.telephony.ril_response_batching";
+    private static final String PROPERTY_RESPONSE_BATCH_WINDOW_MS =
+            "ro.telephony.ril_response_batch_window_ms";
+
+    private final long mWindowMs;
+    private final ConcurrentHashMap<Looper, Batch> mBatches = new ConcurrentHashMap<>();
+
+    private final AtomicLong mMessageCount = new AtomicLong(0);
+    private final AtomicLong mWakeupCount = new AtomicLong(0);
+
+    /**
+     * @param windowMs How long to wait for more responses after the first response of a batch.
+     *                 0 dispatches as soon as the target looper gets to the batch.
+     */
+    public RilResponseBatcher(long windowMs) {
+        mWindowMs = Math.max(0, windowMs);
+    }
+
+    /**
+     * Creates a batcher as configured by the system properties.
+     *
+     * @return the batcher, or null if response batching is disabled
+     */
+    static RilResponseBatcher createFromSystemProperties() {
+        if (!SystemProperties.getBoolean(PROPERTY_RESPONSE_BATCHING, false)) {
+            return null;
+        }
+        return new RilResponseBatcher(
+                SystemProperties.getInt(PROPERTY_RESPONSE_BATCH_WINDOW_MS, 0));
+    }
+
+    /**
+     * Sends a response message to its target, through the batcher if there is one.
+     *
+     * @param batcher the batcher, or null to send the message right away
+     */
+    static void sendResponse(RilResponseBatcher batcher, Message msg) {
+        if (batcher != null) {
+            batcher.send(msg);
+        } else {
+            msg.sendToTarget();
+        }
+    }
+
+    /** Queue a response message for delivery to its target. */
+    public void send(Message msg) {
+        Handler target = msg.getTarget();
+        if (target == null) {
+            // Let Message report the missing target as it would without batching.
+            msg.sendToTarget();
+            return;
+        }
+        Looper looper = target.getLooper();
+        mMessageCount.incrementAndGet();
+        while (true) {
+            Batch batch = mBatches.get(looper);
+            if (batch == null) {
+                batch = new Batch(looper);
+                Batch existing = mBatches.putIfAbsent(looper, batch);
+                if (existing != null) {
+                    batch = existing;
+                }
+            }
+            if (batch.add(msg)) {
+                return;
+            }
+            // The batch is being delivered, and was removed from mBatches; start a new one.
+        }
+    }
+
+    /** Returns the number of messages delivered through this batcher. */
+    @VisibleForTesting
+    public long getMessageCount() {
+        return mMessageCount.get();
+    }
+
+    /** Returns the number of times a looper was woken up to deliver a batch. */
+    @VisibleForTesting
+    public long getWakeupCount() {
+        return mWakeupCount.get();
+    }
+
+    /** Returns the number of batches waiting to be delivered. */
+    @VisibleForTesting
+    public int getPendingBatchCount() {
+        return mBatches.size();
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" mResponseBatcher: windowMs=" + mWindowMs
+                + " messages=" + mMessageCount.get()
+                + " wakeups=" + mWakeupCount.get()
+                + " pendingBatches=" + mBatches.size());
+    }
+
+    /**
+     * The responses to one looper. A batch is delivered once, then replaced by a new one, so
+     * that loopers which are gone don't keep an entry in mBatches.
+     */
+    private class Batch implements Runnable {
+        private final Looper mLooper;
+        private final Handler mHandler;
+        private final ArrayList<Message> mPending = new ArrayList<>();
+        private boolean mDelivered;
+
+        Batch(Looper looper) {
+            mLooper = looper;
+            mHandler = new Handler(looper);
+        }
+
+        /** @return false if the batch was already delivered, and the message not added */
+        boolean add(Message msg) {
+            boolean first;
+            synchronized (this) {
+                if (mDelivered) {
+                    return false;
+                }
+                first = mPending.isEmpty();
+                mPending.add(msg);
+            }
+            if (first) {
+                if (mWindowMs > 0) {
+                    mHandler.postDelayed(this, mWindowMs);
+                } else {
+                    mHandler.post(this);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                mDelivered = true;
+            }
+            mBatches.remove(mLooper, this);
+            mWakeupCount.incrementAndGet();
+            // Enqueued from the looper's own thread, the messages don't wake it up again, and
+            // they are handled after anything already in the queue, as if sent one by one.
+            for (int i = 0; i < mPending.size(); i++) {
+                mPending.get(i).sendToTarget();
+            }
+            mPending.clear();
+        }
+    }
+}
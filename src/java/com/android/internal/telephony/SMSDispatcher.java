@@ -56,6 +56,7 @@ import android.os.Message;
 import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.provider.Telephony;
@@ -87,6 +88,7 @@ import com.android.internal.R;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.GsmAlphabet.TextEncodingDetails;
 import com.android.internal.telephony.cdma.sms.UserData;
+import com.android.internal.telephony.metrics.TelephonyMetrics;
 import com.android.internal.telephony.uicc.UiccCard;
 import com.android.internal.telephony.uicc.UiccController;
 
@@ -165,6 +167,13 @@ public abstract class SMSDispatcher extends Handler {
     /** Message sending queue limit */
     private static final int MO_MSG_QUEUE_LIMIT = 5;
 
+    /**
+     * Maximum number of parts of a multi-part SMS in flight at once. If not set, all parts are
+     * handed to the radio at once.
+     */
+    private static final String PROPERTY_MULTIPART_SEND_WINDOW =
+            "persist.radio.multipart_sms_send_window";
+
     /**
      * Message reference for a CONCATENATED_8_BIT_REFERENCE or
      * CONCATENATED_16_BIT_REFERENCE message set.  Should be
@@ -182,6 +191,36 @@ public abstract class SMSDispatcher extends Handler {
     protected boolean mSmsCapable = true;
     protected boolean mSmsSendDisabled;
 
+    /** Maximum number of parts of a multi-part SMS in flight, 0 if not limited. */
+    private int mMultipartSendWindowSize;
+
+    private final MultipartSmsSendWindow.Callback mSendWindowCallback =
+            new MultipartSmsSendWindow.Callback() {
+                @Override
+                public void sendPart(SmsTracker part) {
+                    // Parts complete while their result is handled, send the next ones after it
+                    post(() -> sendSubmitPdu(part));
+                }
+
+                @Override
+                public void failPart(SmsTracker part, int error) {
+                    part.onFailed(mContext, error, 0/*errorCode*/);
+                }
+
+                @Override
+                public void onMessageComplete(MultipartSmsSendWindow window) {
+                    long[] partLatencies = new long[window.getPartCount()];
+                    for (int i = 0; i < partLatencies.length; i++) {
+                        partLatencies[i] = window.getPartLatencyMillis(i);
+                    }
+                    TelephonyMetrics.getInstance().writeMultipartSmsSendResult(
+                            mPhone.getPhoneId(), window.getWindowSize(),
+                            window.getFailedPartCount(), window.getCancelledPartCount(),
+                            window.getRetryCount(), window.getMessageLatencyMillis(),
+                            partLatencies);
+                }
+            };
+
     @UnsupportedAppUsage
     protected static int getNextConcatenatedRef() {
         sConcatenatedRef += 1;
@@ -207,10 +246,20 @@ public abstract class SMSDispatcher extends Handler {
                 com.android.internal.R.bool.config_sms_capable);
         mSmsSendDisabled = !mTelephonyManager.getSmsSendCapableForPhone(
                 mPhone.getPhoneId(), mSmsCapable);
+        mMultipartSendWindowSize = SystemProperties.getInt(PROPERTY_MULTIPART_SEND_WINDOW, 0);
         Rlog.d(TAG, "SMSDispatcher: ctor mSmsCapable=" + mSmsCapable + " format=" + getFormat()
                 + " mSmsSendDisabled=" + mSmsSendDisabled);
     }
 
+    /**
+     * Limit the number of parts of a multi-part SMS in flight at once.
+     * @param windowSize the maximum number of parts in flight, or 0 to send all parts at once
+     */
+    @VisibleForTesting
+    public void setMultipartSendWindowSize(int windowSize) {
+        mMultipartSendWindowSize = windowSize;
+    }
+
     /**
      * Observe the secure setting for updated premium sms determination rules
      */
@@ -804,9 +853,12 @@ public abstract class SMSDispatcher extends Handler {
                     null /*fullMessageText*/, false /*isText*/,
                     true /*persistMessage*/, isForVvm);
 
-            if (!sendSmsByCarrierApp(true /* isDataSms */, tracker)) {
-                sendSubmitPdu(tracker);
-            }
+            scheduleSend(callingPackage, SMS_MESSAGE_PRIORITY_NOT_SPECIFIED,
+                    new SmsTracker[] {tracker}, () -> {
+                        if (!sendSmsByCarrierApp(true /* isDataSms */, tracker)) {
+                            sendSubmitPdu(tracker);
+                        }
+                    });
         } else {
             Rlog.e(TAG, "SMSDispatcher.sendData(): getSubmitPdu() returned null");
             triggerSentIntentForFailure(sentIntent);
@@ -871,9 +923,11 @@ public abstract class SMSDispatcher extends Handler {
                     getFormat(), messageUri, expectMore, text, true /*isText*/,
                     persistMessage, priority, validityPeriod, isForVvm);
 
-            if (!sendSmsByCarrierApp(false /* isDataSms */, tracker)) {
-                sendSubmitPdu(tracker);
-            }
+            scheduleSend(callingPkg, priority, new SmsTracker[] {tracker}, () -> {
+                if (!sendSmsByCarrierApp(false /* isDataSms */, tracker)) {
+                    sendSubmitPdu(tracker);
+                }
+            });
         } else {
             Rlog.e(TAG, "SmsDispatcher.sendText(): getSubmitPdu() returned null");
             triggerSentIntentForFailure(sentIntent);
@@ -1055,17 +1109,44 @@ public abstract class SMSDispatcher extends Handler {
             trackers[i].mPersistMessage = persistMessage;
         }
 
-        String carrierPackage = getCarrierAppPackageName();
-        if (carrierPackage != null) {
-            Rlog.d(TAG, "Found carrier package.");
-            MultipartSmsSender smsSender = new MultipartSmsSender(parts, trackers);
-            smsSender.sendSmsByCarrierApp(carrierPackage,
-                    new MultipartSmsSenderCallback(smsSender));
-        } else {
-            Rlog.v(TAG, "No carrier package.");
-            for (SmsTracker tracker : trackers) {
-                sendSubmitPdu(tracker);
+        scheduleSend(callingPkg, priority, trackers, () -> {
+            String carrierPackage = getCarrierAppPackageName();
+            if (carrierPackage != null) {
+                Rlog.d(TAG, "Found carrier package.");
+                MultipartSmsSender smsSender = new MultipartSmsSender(parts, trackers);
+                smsSender.sendSmsByCarrierApp(carrierPackage,
+                        new MultipartSmsSenderCallback(smsSender));
+            } else {
+                Rlog.v(TAG, "No carrier package.");
+                int windowSize = mMultipartSendWindowSize;
+                if (windowSize > 0 && msgCount > 1) {
+                    new MultipartSmsSendWindow(trackers, windowSize, mSendWindowCallback).start();
+                } else {
+                    for (SmsTracker tracker : trackers) {
+                        sendSubmitPdu(tracker);
+                    }
+                }
             }
+        });
+    }
+
+    /**
+     * Send a message through the outgoing queue of the phone, or at once if it has none or the
+     * message goes to an emergency number.
+     * @param callingPackage the package name of the app sending the message
+     * @param priority the priority of the message
+     * @param trackers the trackers of the parts of the message
+     * @param send sends the parts
+     */
+    private void scheduleSend(String callingPackage, int priority, SmsTracker[] trackers,
+            Runnable send) {
+        OutboundSmsScheduler scheduler = mSmsDispatchersController != null
+                ? mSmsDispatchersController.getOutboundSmsScheduler() : null;
+        if (scheduler == null
+                || PhoneNumberUtils.isLocalEmergencyNumber(mContext, trackers[0].mDestAddress)) {
+            send.run();
+        } else {
+            scheduler.enqueue(callingPackage, priority, trackers, send);
         }
     }
 
@@ -1212,8 +1293,7 @@ public abstract class SMSDispatcher extends Handler {
      * @return true if the destination is approved; false if user confirmation event was sent
      */
     boolean checkDestination(SmsTracker tracker) {
-        if (mContext.checkCallingOrSelfPermission(SEND_SMS_NO_CONFIRMATION)
-                == PackageManager.PERMISSION_GRANTED || tracker.mIsForVvm) {
+        if (tracker.mIsPreApprovedForShortCodes || tracker.mIsForVvm) {
             return true;            // app is pre-approved to send to short codes
         } else {
             int rule = mPremiumSmsRule.get();
@@ -1538,12 +1618,22 @@ public abstract class SMSDispatcher extends Handler {
 
         private final boolean mIsForVvm;
 
+        // Whether the sending app holds SEND_SMS_NO_CONFIRMATION. Checked on the binder call, as
+        // the parts may be sent later from the handler, where the caller is the phone process.
+        private final boolean mIsPreApprovedForShortCodes;
+
+        // Window sending the parts of the multipart message that this part belongs to, if any
+        MultipartSmsSendWindow mSendWindow;
+
+        // Message in the outgoing queue of the phone that this part belongs to, if any
+        OutboundSmsScheduler.Request mScheduledSend;
+
         private SmsTracker(HashMap<String, Object> data, PendingIntent sentIntent,
                 PendingIntent deliveryIntent, PackageInfo appInfo, String destAddr, String format,
                 AtomicInteger unsentPartCount, AtomicBoolean anyPartFailed, Uri messageUri,
                 SmsHeader smsHeader, boolean expectMore, String fullMessageText, int subId,
                 boolean isText, boolean persistMessage, int userId, int priority,
-                int validityPeriod, boolean isForVvm) {
+                int validityPeriod, boolean isForVvm, boolean isPreApprovedForShortCodes) {
             mData = data;
             mSentIntent = sentIntent;
             mDeliveryIntent = deliveryIntent;
@@ -1567,6 +1657,7 @@ public abstract class SMSDispatcher extends Handler {
             mPriority = priority;
             mValidityPeriod = validityPeriod;
             mIsForVvm = isForVvm;
+            mIsPreApprovedForShortCodes = isPreApprovedForShortCodes;
         }
 
         /**
@@ -1742,6 +1833,12 @@ public abstract class SMSDispatcher extends Handler {
                     Rlog.e(TAG, "Failed to send result");
                 }
             }
+            if (mSendWindow != null) {
+                mSendWindow.onPartComplete(this, false, error);
+            }
+            if (mScheduledSend != null) {
+                mScheduledSend.onPartComplete(this);
+            }
         }
 
         /**
@@ -1780,6 +1877,12 @@ public abstract class SMSDispatcher extends Handler {
                     Rlog.e(TAG, "Failed to send result");
                 }
             }
+            if (mSendWindow != null) {
+                mSendWindow.onPartComplete(this, true, 0);
+            }
+            if (mScheduledSend != null) {
+                mScheduledSend.onPartComplete(this);
+            }
         }
     }
 
@@ -1803,10 +1906,13 @@ public abstract class SMSDispatcher extends Handler {
         // Strip non-digits from destination phone number before checking for short codes
         // and before displaying the number to the user if confirmation is required.
         String destAddr = PhoneNumberUtils.extractNetworkPortion((String) data.get("destAddr"));
+        boolean isPreApprovedForShortCodes =
+                mContext.checkCallingOrSelfPermission(SEND_SMS_NO_CONFIRMATION)
+                        == PackageManager.PERMISSION_GRANTED;
         return new SmsTracker(data, sentIntent, deliveryIntent, appInfo, destAddr, format,
                 unsentPartCount, anyPartFailed, messageUri, smsHeader, expectMore,
                 fullMessageText, getSubId(), isText, persistMessage, userId, priority,
-                validityPeriod, isForVvm);
+                validityPeriod, isForVvm, isPreApprovedForShortCodes);
     }
 
     protected SmsTracker getSmsTracker(String callingPackage, HashMap<String, Object> data,
@@ -138,6 +138,8 @@ public class ServiceStateTracker extends Handler {
     private static final boolean VDBG = false;  // STOPSHIP if true
 
     private static final String PROP_FORCE_ROAMING = "telephony.test.forceRoaming";
+    private static final String PROP_INCREMENTAL_POLL_STATE =
+            "ro.telephony.incremental_poll_state";
 
     private static final long SIGNAL_STRENGTH_REFRESH_THRESHOLD_IN_MS =
             TimeUnit.SECONDS.toMillis(10);
@@ -191,6 +193,25 @@ public class ServiceStateTracker extends Handler {
      */
     @VisibleForTesting
     public int[] mPollingContext;
+
+    /**
+     * When enabled, a network state change does not abandon a poll in progress but schedules
+     * a single follow-up poll, and an IWLAN registration change only re-queries IWLAN
+     * registration, replaying the last cellular and operator results.
+     */
+    private boolean mIncrementalPollState;
+    /** True if a network state change arrived while a poll was in progress. */
+    private boolean mPollStatePending;
+    /** Successful results of the current poll, keyed by event, for incremental polls. */
+    private final SparseArray<Object> mLastPollResults = new SparseArray<>();
+    /** Events whose last results are replayed by an IWLAN only poll. */
+    private static final int[] REPLAYED_POLL_EVENTS = {
+            EVENT_POLL_STATE_OPERATOR,
+            EVENT_POLL_STATE_PS_CELLULAR_REGISTRATION,
+            EVENT_POLL_STATE_CS_CELLULAR_REGISTRATION};
+    private long mPollsAvoided;
+    private long mPollQueriesAvoided;
+
     @UnsupportedAppUsage
     private boolean mDesiredPowerState;
 
@@ -600,6 +621,7 @@ public class ServiceStateTracker extends Handler {
                 .makeEriManager(mPhone, EriManager.ERI_FROM_XML);
 
         mRatRatcheter = new RatRatcheter(mPhone);
+        mIncrementalPollState = SystemProperties.getBoolean(PROP_INCREMENTAL_POLL_STATE, false);
         mVoiceCapable = mPhone.getContext().getResources().getBoolean(
                 com.android.internal.R.bool.config_voice_capable);
         mUiccController = UiccController.getInstance();
@@ -621,7 +643,7 @@ public class ServiceStateTracker extends Handler {
             mRegStateManagers.append(transportType, new NetworkRegistrationManager(
                     transportType, phone));
             mRegStateManagers.get(transportType).registerForNetworkRegistrationInfoChanged(
-                    this, EVENT_NETWORK_STATE_CHANGED, null);
+                    this, EVENT_NETWORK_STATE_CHANGED, transportType);
         }
         mLocaleTracker = TelephonyComponentFactory.getInstance()
                 .inject(LocaleTracker.class.getName())
@@ -1214,7 +1236,7 @@ public class ServiceStateTracker extends Handler {
                 break;
 
             case EVENT_NETWORK_STATE_CHANGED:
-                modemTriggeredPollState();
+                onNetworkStateChanged((AsyncResult) msg.obj);
                 break;
 
             case EVENT_GET_SIGNAL_STRENGTH:
@@ -1802,6 +1824,9 @@ public class ServiceStateTracker extends Handler {
             }
         } else try {
             handlePollStateResultMessage(what, ar);
+            if (mIncrementalPollState) {
+                mLastPollResults.put(what, ar.result);
+            }
         } catch (RuntimeException ex) {
             loge("Exception while polling service state. Probably malformed RIL response." + ex);
         }
@@ -1919,6 +1944,11 @@ public class ServiceStateTracker extends Handler {
                 }
             }
             pollStateDone();
+
+            if (mPollStatePending) {
+                mPollStatePending = false;
+                modemTriggeredPollState();
+            }
         }
 
     }
@@ -3002,6 +3032,7 @@ public class ServiceStateTracker extends Handler {
     public void pollState(boolean modemTriggered) {
         mPollingContext = new int[1];
         mPollingContext[0] = 0;
+        mLastPollResults.clear();
 
         log("pollState: modemTriggered=" + modemTriggered);
 
@@ -3062,6 +3093,91 @@ public class ServiceStateTracker extends Handler {
         }
     }
 
+    private boolean isPollStateInProgress() {
+        return mPollingContext != null && mPollingContext[0] > 0;
+    }
+
+    private void onNetworkStateChanged(AsyncResult ar) {
+        if (!mIncrementalPollState) {
+            modemTriggeredPollState();
+            return;
+        }
+
+        if (isPollStateInProgress()) {
+            // The queries in flight may predate this change, so poll once more when they are
+            // done rather than abandoning them. Further changes until then need no extra poll.
+            if (mPollStatePending) {
+                mPollsAvoided++;
+            }
+            mPollStatePending = true;
+            return;
+        }
+
+        int transport = (ar != null && ar.userObj instanceof Integer)
+                ? (Integer) ar.userObj : AccessNetworkConstants.TRANSPORT_TYPE_WWAN;
+        if (transport == AccessNetworkConstants.TRANSPORT_TYPE_WLAN
+                && pollIwlanRegistrationState()) {
+            return;
+        }
+        modemTriggeredPollState();
+    }
+
+    /**
+     * Poll only the IWLAN registration state, rebuilding the rest of the new service state from
+     * the results of the last full poll.
+     *
+     * @return false if there are no complete results to rebuild from, and a full poll is needed.
+     */
+    private boolean pollIwlanRegistrationState() {
+        NetworkRegistrationManager wlanRegStateManager =
+                mRegStateManagers.get(AccessNetworkConstants.TRANSPORT_TYPE_WLAN);
+        if (mCi.getRadioState() != TelephonyManager.RADIO_POWER_ON
+                || wlanRegStateManager == null) {
+            return false;
+        }
+        for (int what : REPLAYED_POLL_EVENTS) {
+            if (mLastPollResults.indexOfKey(what) < 0) return false;
+        }
+
+        log("pollIwlanRegistrationState");
+        mPollingContext = new int[1];
+        for (int what : REPLAYED_POLL_EVENTS) {
+            handlePollStateResultMessage(what,
+                    new AsyncResult(mPollingContext, mLastPollResults.get(what), null));
+        }
+        if (mPhone.isPhoneTypeGsm()) {
+            mNewSS.setIsManualSelection(mSS.getIsManualSelection());
+        }
+        mPollQueriesAvoided += REPLAYED_POLL_EVENTS.length + (mPhone.isPhoneTypeGsm() ? 1 : 0);
+
+        mPollingContext[0]++;
+        wlanRegStateManager.requestNetworkRegistrationInfo(NetworkRegistrationInfo.DOMAIN_PS,
+                obtainMessage(EVENT_POLL_STATE_PS_IWLAN_REGISTRATION, mPollingContext));
+        return true;
+    }
+
+    /** Enable or disable incremental polling of the service state. */
+    @VisibleForTesting
+    public void setIncrementalPollStateEnabled(boolean enabled) {
+        mIncrementalPollState = enabled;
+        if (!enabled) {
+            mPollStatePending = false;
+            mLastPollResults.clear();
+        }
+    }
+
+    /** Returns the number of network state changes absorbed by a poll already scheduled. */
+    @VisibleForTesting
+    public long getPollsAvoided() {
+        return mPollsAvoided;
+    }
+
+    /** Returns the number of RIL queries saved by polling IWLAN registration only. */
+    @VisibleForTesting
+    public long getPollQueriesAvoided() {
+        return mPollQueriesAvoided;
+    }
+
     private void pollStateDone() {
         if (!mPhone.isPhoneTypeGsm()) {
             updateRoamingState();
@@ -3158,11 +3274,16 @@ public class ServiceStateTracker extends Handler {
         boolean hasNrFrequencyRangeChanged =
                 mSS.getNrFrequencyRange() != mNewSS.getNrFrequencyRange();
 
+        // The registration info is keyed by transport type. The lookup by access network type
+        // never finds it, so only incremental polling, which notifies NR state changes, uses the
+        // WWAN transport.
+        int nrTransportType = mIncrementalPollState
+                ? AccessNetworkConstants.TRANSPORT_TYPE_WWAN : AccessNetworkType.EUTRAN;
         boolean hasNrStateChanged = isNrStateChanged(
-                mSS.getNetworkRegistrationInfo(
-                        NetworkRegistrationInfo.DOMAIN_PS, AccessNetworkType.EUTRAN),
-                mNewSS.getNetworkRegistrationInfo(
-                        NetworkRegistrationInfo.DOMAIN_PS, AccessNetworkType.EUTRAN));
+                mSS.getNetworkRegistrationInfo(NetworkRegistrationInfo.DOMAIN_PS,
+                        nrTransportType),
+                mNewSS.getNetworkRegistrationInfo(NetworkRegistrationInfo.DOMAIN_PS,
+                        nrTransportType));
 
         // TODO: loosen this restriction to exempt fields that are provided through system
         // information; otherwise, we will get false positives when things like the operator
@@ -3484,6 +3605,16 @@ public class ServiceStateTracker extends Handler {
             mPhone.notifyLocationChanged(getCellLocation());
         }
 
+        // Physical channel config updates notify these directly. With incremental polling, also
+        // notify when a poll changes them, e.g. when going out of service resets the NR state.
+        if (mIncrementalPollState && hasNrFrequencyRangeChanged) {
+            mNrFrequencyChangedRegistrants.notifyRegistrants();
+        }
+
+        if (mIncrementalPollState && hasNrStateChanged) {
+            mNrStateChangedRegistrants.notifyRegistrants();
+        }
+
         if (mPhone.isPhoneTypeGsm()) {
             if (!isGprsConsistent(mSS.getDataRegState(), mSS.getVoiceRegState())) {
                 if (!mStartedGprsRegCheck && !mReportedGprsNoReg) {
@@ -4792,6 +4923,8 @@ public class ServiceStateTracker extends Handler {
     protected void cancelPollState() {
         // This will effectively cancel the rest of the poll requests.
         mPollingContext = new int[1];
+        mPollStatePending = false;
+        mLastPollResults.clear();
     }
 
     /**
@@ -5027,6 +5160,10 @@ public class ServiceStateTracker extends Handler {
         pw.println(" mRestrictedState=" + mRestrictedState);
         pw.println(" mPollingContext=" + mPollingContext + " - " +
                 (mPollingContext != null ? mPollingContext[0] : ""));
+        pw.println(" mIncrementalPollState=" + mIncrementalPollState
+                + " mPollStatePending=" + mPollStatePending
+                + " mPollsAvoided=" + mPollsAvoided
+                + " mPollQueriesAvoided=" + mPollQueriesAvoided);
         pw.println(" mDesiredPowerState=" + mDesiredPowerState);
         pw.println(" mDontPollSignalStrength=" + mDontPollSignalStrength);
         pw.println(" mSignalStrength=" + mSignalStrength);
@@ -0,0 +1,551 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.telephony.SmsManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Deterministic automaton classifying a string of ASCII digits into the short code categories of
+ * a country in a single pass, equivalent to matching each of the free, standard, premium and
+ * short code regexes of the country in turn with {@link java.util.regex.Matcher#matches}.
+ *
+ * Only the subset of the regex syntax used by the short code patterns can be compiled: literals,
+ * '.', \d and the other predefined classes, character classes with ranges and negation,
+ * capturing and non-capturing groups, alternation, and greedy or reluctant quantifiers. Since
+ * only digits are classified, a construct that can only match other characters never matches.
+ * {@link #compile} returns null for any other construct, and {@link #getNumberCategory} returns
+ * {@link #CATEGORY_UNKNOWN} for any string with a character other than an ASCII digit; callers
+ * use the regexes instead in both cases.
+ */
+class ShortCodeClassifier {
+    /** Returned by {@link #getNumberCategory} for a number with a character that isn't a digit. */
+    static final int CATEGORY_UNKNOWN = -1;
+
+    /** Give up compiling patterns which need more states than this. */
+    static final int MAX_STATES = 4096;
+
+    private static final int DIGITS = 10;
+    private static final int ALL_DIGITS = (1 << DIGITS) - 1;
+    private static final int NO_STATE = -1;
+
+    // Categories in the order the regexes are matched, the first match wins
+    private static final int[] CATEGORIES = {
+            SmsManager.SMS_CATEGORY_FREE_SHORT_CODE,
+            SmsManager.SMS_CATEGORY_STANDARD_SHORT_CODE,
+            SmsManager.SMS_CATEGORY_PREMIUM_SHORT_CODE,
+            SmsManager.SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE
+    };
+
+    // Next state for each state and digit, at index state * DIGITS + digit
+    private final int[] mTransitions;
+    // Category of the numbers ending in each state
+    private final int[] mCategories;
+
+    private ShortCodeClassifier(int[] transitions, int[] categories) {
+        mTransitions = transitions;
+        mCategories = categories;
+    }
+
+    /**
+     * Compile the regexes of a country, each of which may be null.
+     * @return the classifier, or null if a regex uses unsupported syntax or is too large
+     */
+    static ShortCodeClassifier compile(String shortCodeRegex, String premiumShortCodeRegex,
+            String freeShortCodeRegex, String standardShortCodeRegex) {
+        String[] regexes = {freeShortCodeRegex, standardShortCodeRegex, premiumShortCodeRegex,
+                shortCodeRegex};
+        Nfa nfa = new Nfa();
+        int start = nfa.newState();
+        try {
+            for (int i = 0; i < regexes.length; i++) {
+                if (regexes[i] == null) continue;
+                Node node = new Parser(regexes[i]).parse();
+                int[] fragment = nfa.build(node);
+                nfa.addEpsilon(start, fragment[0]);
+                nfa.mAccept[fragment[1]] = i;
+            }
+        } catch (UnsupportedPatternException e) {
+            return null;
+        }
+        return nfa.determinize(start);
+    }
+
+    /**
+     * Returns the category of a number, or {@link #CATEGORY_UNKNOWN} if the number has a character
+     * other than an ASCII digit.
+     */
+    int getNumberCategory(String phoneNumber) {
+        int state = 0;
+        for (int i = 0, length = phoneNumber.length(); i < length; i++) {
+            int digit = phoneNumber.charAt(i) - '0';
+            if (digit < 0 || digit >= DIGITS) return CATEGORY_UNKNOWN;
+            state = mTransitions[state * DIGITS + digit];
+            if (state == NO_STATE) {
+                // Keep checking the remaining characters, they may not all be digits
+                for (int j = i + 1; j < length; j++) {
+                    char c = phoneNumber.charAt(j);
+                    if (c < '0' || c > '9') return CATEGORY_UNKNOWN;
+                }
+                return SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
+            }
+        }
+        return mCategories[state];
+    }
+
+    /** Returns the number of states of the automaton. */
+    int getStateCount() {
+        return mCategories.length;
+    }
+
+    private static final class UnsupportedPatternException extends Exception {
+        UnsupportedPatternException(String message) {
+            super(message);
+        }
+    }
+
+    /** Node of the syntax tree of a regex. */
+    private static final class Node {
+        static final int CHARS = 0;
+        static final int CONCAT = 1;
+        static final int ALTERNATE = 2;
+        static final int REPEAT = 3;
+
+        final int mType;
+        // Digits matched by a CHARS node
+        int mDigits;
+        // Children of a CONCAT or ALTERNATE node, or the repeated node of a REPEAT node
+        final ArrayList<Node> mChildren = new ArrayList<>();
+        // Bounds of a REPEAT node, mMax is -1 if unbounded
+        int mMin;
+        int mMax;
+
+        Node(int type) {
+            mType = type;
+        }
+
+        static Node chars(int digits) {
+            Node node = new Node(CHARS);
+            node.mDigits = digits;
+            return node;
+        }
+    }
+
+    /** Recursive descent parser for the supported subset of the regex syntax. */
+    private static final class Parser {
+        private final String mRegex;
+        private int mPos;
+
+        Parser(String regex) {
+            mRegex = regex;
+        }
+
+        Node parse() throws UnsupportedPatternException {
+            Node node = parseAlternation();
+            if (mPos != mRegex.length()) {
+                throw new UnsupportedPatternException("unexpected " + mRegex.charAt(mPos));
+            }
+            return node;
+        }
+
+        private boolean atEnd() {
+            return mPos >= mRegex.length();
+        }
+
+        private char peek() {
+            return mRegex.charAt(mPos);
+        }
+
+        private Node parseAlternation() throws UnsupportedPatternException {
+            Node first = parseConcatenation();
+            if (atEnd() || peek() != '|') return first;
+            Node node = new Node(Node.ALTERNATE);
+            node.mChildren.add(first);
+            while (!atEnd() && peek() == '|') {
+                mPos++;
+                node.mChildren.add(parseConcatenation());
+            }
+            return node;
+        }
+
+        private Node parseConcatenation() throws UnsupportedPatternException {
+            Node node = new Node(Node.CONCAT);
+            while (!atEnd() && peek() != '|' && peek() != ')') {
+                node.mChildren.add(parseQuantified());
+            }
+            return node.mChildren.size() == 1 ? node.mChildren.get(0) : node;
+        }
+
+        private Node parseQuantified() throws UnsupportedPatternException {
+            Node node = parseAtom();
+            if (atEnd()) return node;
+            int min;
+            int max;
+            char c = peek();
+            if (c == '?') {
+                min = 0;
+                max = 1;
+                mPos++;
+            } else if (c == '*') {
+                min = 0;
+                max = -1;
+                mPos++;
+            } else if (c == '+') {
+                min = 1;
+                max = -1;
+                mPos++;
+            } else if (c == '{') {
+                mPos++;
+                min = parseNumber();
+                max = min;
+                if (!atEnd() && peek() == ',') {
+                    mPos++;
+                    max = (!atEnd() && peek() == '}') ? -1 : parseNumber();
+                }
+                expect('}');
+                if (max != -1 && max < min) {
+                    throw new UnsupportedPatternException("bad repetition");
+                }
+            } else {
+                return node;
+            }
+            // A reluctant quantifier matches the same strings, a possessive one may not
+            if (!atEnd() && peek() == '?') {
+                mPos++;
+            } else if (!atEnd() && peek() == '+') {
+                throw new UnsupportedPatternException("possessive quantifier");
+            }
+            Node repeat = new Node(Node.REPEAT);
+            repeat.mChildren.add(node);
+            repeat.mMin = min;
+            repeat.mMax = max;
+            return repeat;
+        }
+
+        private int parseNumber() throws UnsupportedPatternException {
+            int start = mPos;
+            while (!atEnd() && peek() >= '0' && peek() <= '9' && mPos - start < 4) {
+                mPos++;
+            }
+            if (mPos == start || (!atEnd() && peek() >= '0' && peek() <= '9')) {
+                throw new UnsupportedPatternException("bad repetition count");
+            }
+            return Integer.parseInt(mRegex.substring(start, mPos));
+        }
+
+        private void expect(char c) throws UnsupportedPatternException {
+            if (atEnd() || peek() != c) {
+                throw new UnsupportedPatternException("expected " + c);
+            }
+            mPos++;
+        }
+
+        private Node parseAtom() throws UnsupportedPatternException {
+            char c = peek();
+            mPos++;
+            switch (c) {
+                case '(':
+                    if (!atEnd() && peek() == '?') {
+                        // Only non-capturing groups, no flags or lookarounds
+                        mPos++;
+                        expect(':');
+                    }
+                    Node group = parseAlternation();
+                    expect(')');
+                    return group;
+                case '[':
+                    return Node.chars(parseClass());
+                case '.':
+                    return Node.chars(ALL_DIGITS);
+                case '\\':
+                    return Node.chars(parseEscape());
+                case '^':
+                case '$':
+                case ')':
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    throw new UnsupportedPatternException("unexpected " + c);
+                default:
+                    return Node.chars(digitMask(c));
+            }
+        }
+
+        private int parseEscape() throws UnsupportedPatternException {
+            if (atEnd()) throw new UnsupportedPatternException("trailing backslash");
+            char c = peek();
+            mPos++;
+            switch (c) {
+                case 'd':
+                case 'w':
+                case 'S':
+                case 'H':
+                case 'V':
+                    return ALL_DIGITS;
+                case 'D':
+                case 'W':
+                case 's':
+                case 'h':
+                case 'v':
+                    return 0;
+                default:
+                    // Escaped letters and digits are other constructs, e.g. back references
+                    if (Character.isLetterOrDigit(c)) {
+                        throw new UnsupportedPatternException("escape \\" + c);
+                    }
+                    return 0;
+            }
+        }
+
+        private int parseClass() throws UnsupportedPatternException {
+            boolean negated = false;
+            if (!atEnd() && peek() == '^') {
+                negated = true;
+                mPos++;
+            }
+            int digits = 0;
+            boolean first = true;
+            while (true) {
+                if (atEnd()) throw new UnsupportedPatternException("unterminated class");
+                char c = peek();
+                if (c == ']' && !first) {
+                    mPos++;
+                    break;
+                }
+                if (c == '[' || c == ']' || c == '&') {
+                    throw new UnsupportedPatternException("nested class");
+                }
+                first = false;
+                mPos++;
+                if (c == '\\') {
+                    if (!atEnd() && peek() != 'd' && peek() != 'D' && peek() != 's'
+                            && peek() != 'S' && peek() != 'w' && peek() != 'W') {
+                        // An escaped character may start a range, keep it simple
+                        char escaped = peek();
+                        if (Character.isLetterOrDigit(escaped)) {
+                            throw new UnsupportedPatternException("escape \\" + escaped);
+                        }
+                        mPos++;
+                        c = escaped;
+                    } else {
+                        digits |= parseEscape();
+                        continue;
+                    }
+                }
+                if (mPos + 1 < mRegex.length() && peek() == '-' && mRegex.charAt(mPos + 1) != ']') {
+                    char end = mRegex.charAt(mPos + 1);
+                    if (end == '\\' || end == '[' || end < c) {
+                        throw new UnsupportedPatternException("bad range");
+                    }
+                    mPos += 2;
+                    for (char d = '0'; d <= '9'; d++) {
+                        if (d >= c && d <= end) digits |= digitMask(d);
+                    }
+                } else {
+                    digits |= digitMask(c);
+                }
+            }
+            return negated ? ~digits & ALL_DIGITS : digits;
+        }
+
+        private static int digitMask(char c) {
+            return (c >= '0' && c <= '9') ? 1 << (c - '0') : 0;
+        }
+    }
+
+    /**
+     * Nondeterministic automaton built from the syntax trees, where each state has at most one
+     * transition on a set of digits and any number of empty transitions.
+     */
+    private static final class Nfa {
+        // Bound the size before determinizing, e.g. for large repetition counts
+        private static final int MAX_NFA_STATES = 16 * MAX_STATES;
+
+        int mCount;
+        int[] mDigits = new int[64];
+        int[] mNext = new int[64];
+        int[][] mEpsilon = new int[64][];
+        // Index of the regex accepted in each state, or -1
+        int[] mAccept = new int[64];
+
+        int newState() {
+            if (mCount == mDigits.length) {
+                int size = mCount * 2;
+                mDigits = Arrays.copyOf(mDigits, size);
+                mNext = Arrays.copyOf(mNext, size);
+                mEpsilon = Arrays.copyOf(mEpsilon, size);
+                mAccept = Arrays.copyOf(mAccept, size);
+            }
+            mNext[mCount] = NO_STATE;
+            mAccept[mCount] = -1;
+            return mCount++;
+        }
+
+        void addEpsilon(int from, int to) {
+            int[] epsilon = mEpsilon[from];
+            if (epsilon == null) {
+                mEpsilon[from] = new int[] {to};
+            } else {
+                epsilon = Arrays.copyOf(epsilon, epsilon.length + 1);
+                epsilon[epsilon.length - 1] = to;
+                mEpsilon[from] = epsilon;
+            }
+        }
+
+        /** Build the states of a node, returns its start and end states. */
+        int[] build(Node node) throws UnsupportedPatternException {
+            if (mCount > MAX_NFA_STATES) {
+                throw new UnsupportedPatternException("too many states");
+            }
+            int start = newState();
+            int end;
+            switch (node.mType) {
+                case Node.CHARS:
+                    end = newState();
+                    mDigits[start] = node.mDigits;
+                    mNext[start] = end;
+                    break;
+                case Node.CONCAT:
+                    end = start;
+                    for (Node child : node.mChildren) {
+                        int[] fragment = build(child);
+                        addEpsilon(end, fragment[0]);
+                        end = fragment[1];
+                    }
+                    break;
+                case Node.ALTERNATE:
+                    end = newState();
+                    for (Node child : node.mChildren) {
+                        int[] fragment = build(child);
+                        addEpsilon(start, fragment[0]);
+                        addEpsilon(fragment[1], end);
+                    }
+                    break;
+                case Node.REPEAT:
+                    Node child = node.mChildren.get(0);
+                    end = start;
+                    for (int i = 0; i < node.mMin; i++) {
+                        int[] fragment = build(child);
+                        addEpsilon(end, fragment[0]);
+                        end = fragment[1];
+                    }
+                    if (node.mMax == -1) {
+                        int[] fragment = build(child);
+                        int loop = newState();
+                        addEpsilon(end, loop);
+                        addEpsilon(loop, fragment[0]);
+                        addEpsilon(fragment[1], loop);
+                        end = loop;
+                    } else {
+                        int last = newState();
+                        for (int i = node.mMin; i < node.mMax; i++) {
+                            int[] fragment = build(child);
+                            addEpsilon(end, fragment[0]);
+                            addEpsilon(end, last);
+                            end = fragment[1];
+                        }
+                        addEpsilon(end, last);
+                        end = last;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("unknown node " + node.mType);
+            }
+            return new int[] {start, end};
+        }
+
+        private BitSet closure(BitSet states) {
+            BitSet closure = (BitSet) states.clone();
+            int[] stack = new int[mCount];
+            int size = 0;
+            for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+                stack[size++] = s;
+            }
+            while (size > 0) {
+                int[] epsilon = mEpsilon[stack[--size]];
+                if (epsilon == null) continue;
+                for (int next : epsilon) {
+                    if (!closure.get(next)) {
+                        closure.set(next);
+                        stack[size++] = next;
+                    }
+                }
+            }
+            return closure;
+        }
+
+        /** Subset construction, returns null if there are too many states. */
+        ShortCodeClassifier determinize(int start) {
+            HashMap<BitSet, Integer> ids = new HashMap<>();
+            ArrayList<BitSet> sets = new ArrayList<>();
+            BitSet initial = new BitSet(mCount);
+            initial.set(start);
+            initial = closure(initial);
+            ids.put(initial, 0);
+            sets.add(initial);
+
+            int[] transitions = new int[DIGITS * 16];
+            for (int id = 0; id < sets.size(); id++) {
+                BitSet set = sets.get(id);
+                if ((id + 1) * DIGITS > transitions.length) {
+                    transitions = Arrays.copyOf(transitions, transitions.length * 2);
+                }
+                for (int digit = 0; digit < DIGITS; digit++) {
+                    BitSet next = new BitSet(mCount);
+                    for (int s = set.nextSetBit(0); s >= 0; s = set.nextSetBit(s + 1)) {
+                        if ((mDigits[s] & (1 << digit)) != 0) {
+                            next.set(mNext[s]);
+                        }
+                    }
+                    int nextId = NO_STATE;
+                    if (!next.isEmpty()) {
+                        next = closure(next);
+                        Integer existing = ids.get(next);
+                        if (existing == null) {
+                            if (sets.size() >= MAX_STATES) return null;
+                            existing = sets.size();
+                            ids.put(next, existing);
+                            sets.add(next);
+                        }
+                        nextId = existing;
+                    }
+                    transitions[id * DIGITS + digit] = nextId;
+                }
+            }
+
+            int[] categories = new int[sets.size()];
+            for (int id = 0; id < sets.size(); id++) {
+                int accept = CATEGORIES.length;
+                BitSet set = sets.get(id);
+                for (int s = set.nextSetBit(0); s >= 0; s = set.nextSetBit(s + 1)) {
+                    if (mAccept[s] != -1 && mAccept[s] < accept) {
+                        accept = mAccept[s];
+                    }
+                }
+                categories[id] = accept < CATEGORIES.length ? CATEGORIES[accept]
+                        : SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
+            }
+            return new ShortCodeClassifier(Arrays.copyOf(transitions, sets.size() * DIGITS),
+                    categories);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable mapping between slot indexes and the sub ids in each slot, used by
+ * {@link SubscriptionController}. Changes create a new index, which the owner publishes with a
+ * single reference write, so lookups never lock and never see a half-applied change.
+ *
+ * Lookups don't allocate: the slot of a sub id is read from a table indexed by sub id, and the
+ * sub ids of a slot from a small sorted array of slots. The arrays returned by this class are
+ * shared and must not be modified.
+ *
+ * Since phone id and slot index are the same, this also maps sub ids to phone ids.
+ */
+class SlotSubIdIndex {
+    /** Returned by {@link #getSlotIndex} for sub ids which are not in any slot. */
+    static final int NO_SLOT = Integer.MIN_VALUE;
+
+    static final SlotSubIdIndex EMPTY = new SlotSubIdIndex(new int[0], new int[0][]);
+
+    // Sub ids are database row ids, so they stay small. Beyond this bound, fall back to a binary
+    // search rather than allocate a huge table.
+    private static final int MAX_TABLE_SUB_ID = 1 << 16;
+
+    // Slot indexes in ascending order, and the sub ids of each slot in insertion order
+    private final int[] mSlots;
+    private final int[][] mSubIds;
+    // All sub ids in slot order
+    private final int[] mAllSubIds;
+    // Slot of each sub id, indexed by sub id. Null if there is a sub id above MAX_TABLE_SUB_ID.
+    private final int[] mSlotBySubId;
+    // Sorted sub ids and their slots, only used when mSlotBySubId is null
+    private final int[] mSortedSubIds;
+    private final int[] mSortedSubIdSlots;
+
+    private SlotSubIdIndex(int[] slots, int[][] subIds) {
+        mSlots = slots;
+        mSubIds = subIds;
+
+        int count = 0;
+        int maxSubId = -1;
+        int minSubId = 0;
+        for (int[] ids : subIds) {
+            count += ids.length;
+            for (int subId : ids) {
+                maxSubId = Math.max(maxSubId, subId);
+                minSubId = Math.min(minSubId, subId);
+            }
+        }
+        mAllSubIds = new int[count];
+        int pos = 0;
+        for (int[] ids : subIds) {
+            System.arraycopy(ids, 0, mAllSubIds, pos, ids.length);
+            pos += ids.length;
+        }
+
+        if (minSubId >= 0 && maxSubId < MAX_TABLE_SUB_ID) {
+            mSlotBySubId = new int[maxSubId + 1];
+            Arrays.fill(mSlotBySubId, NO_SLOT);
+            // Walk the slots backwards so a sub id found in two slots maps to the lower one.
+            for (int i = slots.length - 1; i >= 0; i--) {
+                for (int subId : subIds[i]) {
+                    mSlotBySubId[subId] = slots[i];
+                }
+            }
+            mSortedSubIds = null;
+            mSortedSubIdSlots = null;
+        } else {
+            mSlotBySubId = null;
+            // Sort (sub id, position in mAllSubIds) pairs. Positions follow the slot order, so
+            // the first pair of each sub id has its lowest slot.
+            long[] pairs = new long[count];
+            int[] slotOfPosition = new int[count];
+            pos = 0;
+            for (int i = 0; i < slots.length; i++) {
+                for (int subId : subIds[i]) {
+                    pairs[pos] = ((long) subId << 32) | pos;
+                    slotOfPosition[pos] = slots[i];
+                    pos++;
+                }
+            }
+            Arrays.sort(pairs);
+            int unique = 0;
+            int[] sortedSubIds = new int[count];
+            int[] sortedSlots = new int[count];
+            for (long pair : pairs) {
+                int subId = (int) (pair >> 32);
+                if (unique > 0 && sortedSubIds[unique - 1] == subId) continue;
+                sortedSubIds[unique] = subId;
+                sortedSlots[unique] = slotOfPosition[(int) pair];
+                unique++;
+            }
+            mSortedSubIds = Arrays.copyOf(sortedSubIds, unique);
+            mSortedSubIdSlots = Arrays.copyOf(sortedSlots, unique);
+        }
+    }
+
+    /** Returns the number of slots with at least one sub id. */
+    int size() {
+        return mSlots.length;
+    }
+
+    /** Returns the sub ids of the given slot, or null if it has none. */
+    int[] getSubIds(int slotIndex) {
+        int i = Arrays.binarySearch(mSlots, slotIndex);
+        return i >= 0 ? mSubIds[i] : null;
+    }
+
+    /** Returns the lowest slot holding the given sub id, or {@link #NO_SLOT}. */
+    int getSlotIndex(int subId) {
+        if (mSlotBySubId != null) {
+            return (subId >= 0 && subId < mSlotBySubId.length) ? mSlotBySubId[subId] : NO_SLOT;
+        }
+        int i = Arrays.binarySearch(mSortedSubIds, subId);
+        return i >= 0 ? mSortedSubIdSlots[i] : NO_SLOT;
+    }
+
+    /** Returns whether the given slot holds the given sub id. */
+    boolean contains(int slotIndex, int subId) {
+        int[] subIds = getSubIds(slotIndex);
+        if (subIds == null) return false;
+        for (int id : subIds) {
+            if (id == subId) return true;
+        }
+        return false;
+    }
+
+    /** Returns the sub ids of all slots, ordered by slot index. */
+    int[] getAllSubIds() {
+        return mAllSubIds;
+    }
+
+    /**
+     * Returns an index where the given slot also holds subId.
+     *
+     * @param replace Whether subId replaces the sub ids the slot already holds.
+     */
+    SlotSubIdIndex withSubId(int slotIndex, int subId, boolean replace) {
+        int i = Arrays.binarySearch(mSlots, slotIndex);
+        if (i >= 0) {
+            int[][] subIds = mSubIds.clone();
+            if (replace) {
+                subIds[i] = new int[] {subId};
+            } else {
+                subIds[i] = Arrays.copyOf(mSubIds[i], mSubIds[i].length + 1);
+                subIds[i][mSubIds[i].length] = subId;
+            }
+            return new SlotSubIdIndex(mSlots, subIds);
+        }
+
+        int insert = -i - 1;
+        int[] slots = new int[mSlots.length + 1];
+        int[][] subIds = new int[mSlots.length + 1][];
+        System.arraycopy(mSlots, 0, slots, 0, insert);
+        System.arraycopy(mSubIds, 0, subIds, 0, insert);
+        slots[insert] = slotIndex;
+        subIds[insert] = new int[] {subId};
+        System.arraycopy(mSlots, insert, slots, insert + 1, mSlots.length - insert);
+        System.arraycopy(mSubIds, insert, subIds, insert + 1, mSlots.length - insert);
+        return new SlotSubIdIndex(slots, subIds);
+    }
+
+    /**
+     * Returns an index where the given slot no longer holds subId. The slot is removed when it
+     * has no sub id left.
+     */
+    SlotSubIdIndex withoutSubId(int slotIndex, int subId) {
+        int i = Arrays.binarySearch(mSlots, slotIndex);
+        if (i < 0) return this;
+        int[] ids = mSubIds[i];
+        int pos = 0;
+        while (pos < ids.length && ids[pos] != subId) pos++;
+        if (pos == ids.length) return this;
+        if (ids.length == 1) return withoutSlot(slotIndex);
+
+        int[] remaining = new int[ids.length - 1];
+        System.arraycopy(ids, 0, remaining, 0, pos);
+        System.arraycopy(ids, pos + 1, remaining, pos, ids.length - pos - 1);
+        int[][] subIds = mSubIds.clone();
+        subIds[i] = remaining;
+        return new SlotSubIdIndex(mSlots, subIds);
+    }
+
+    /** Returns an index without the given slot. */
+    SlotSubIdIndex withoutSlot(int slotIndex) {
+        int i = Arrays.binarySearch(mSlots, slotIndex);
+        if (i < 0) return this;
+        if (mSlots.length == 1) return EMPTY;
+
+        int[] slots = new int[mSlots.length - 1];
+        int[][] subIds = new int[mSlots.length - 1][];
+        System.arraycopy(mSlots, 0, slots, 0, i);
+        System.arraycopy(mSubIds, 0, subIds, 0, i);
+        System.arraycopy(mSlots, i + 1, slots, i, mSlots.length - i - 1);
+        System.arraycopy(mSubIds, i + 1, subIds, i, mSlots.length - i - 1);
+        return new SlotSubIdIndex(slots, subIds);
+    }
+
+    /** Returns a new map from slot index to sub ids, ordered by slot index. */
+    Map<Integer, ArrayList<Integer>> toMap() {
+        Map<Integer, ArrayList<Integer>> map = new LinkedHashMap<>();
+        for (int i = 0; i < mSlots.length; i++) {
+            ArrayList<Integer> subIds = new ArrayList<>(mSubIds[i].length);
+            for (int subId : mSubIds[i]) {
+                subIds.add(subId);
+            }
+            map.put(mSlots[i], subIds);
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < mSlots.length; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(mSlots[i]).append('=').append(Arrays.toString(mSubIds[i]));
+        }
+        return sb.append('}').toString();
+    }
+}
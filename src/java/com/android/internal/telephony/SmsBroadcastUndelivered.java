@@ -18,32 +18,43 @@ package com.android.internal.telephony;
 
 import android.annotation.UnsupportedAppUsage;
 import android.content.BroadcastReceiver;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.os.PersistableBundle;
+import android.os.RemoteException;
 import android.os.UserManager;
 import android.telephony.CarrierConfigManager;
 import android.telephony.Rlog;
 import android.telephony.SubscriptionManager;
+import android.util.SparseArray;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.cdma.CdmaInboundSmsHandler;
 import com.android.internal.telephony.gsm.GsmInboundSmsHandler;
 import com.android.internal.telephony.metrics.TelephonyMetrics;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Called when the credential-encrypted storage is unlocked, collecting all acknowledged messages
  * and deleting any partial message segments older than 7 days. Called from a worker thread to
- * avoid delaying phone app startup. The last step is to broadcast the first pending message from
- * the main thread, then the remaining pending messages will be broadcast after the previous
- * ordered broadcast completes.
+ * avoid delaying phone app startup. The raw table is read in pages, and each message is sent to
+ * an inbound SMS handler as soon as its last segment is read, so delivery starts before the whole
+ * table is scanned. Messages are sent to the handlers of the phone of their subscription when
+ * known, so the handlers of different phones broadcast them concurrently. Each handler broadcasts
+ * its pending messages one at a time, after the previous ordered broadcast completes.
  */
 public class SmsBroadcastUndelivered {
     private static final String TAG = "SmsBroadcastUndelivered";
@@ -52,11 +63,19 @@ public class SmsBroadcastUndelivered {
     /** Delete any partial message segments older than 7 days. */
     static final long DEFAULT_PARTIAL_SEGMENT_EXPIRE_AGE = (long) (60 * 60 * 1000) * 24 * 7;
 
+    /** Number of raw table rows read per query. */
+    @VisibleForTesting
+    static final int PAGE_SIZE = 500;
+
+    /** Number of expired messages deleted per batch of operations. */
+    @VisibleForTesting
+    static final int DELETE_BATCH_SIZE = 100;
+
     /**
      * Query projection for dispatching pending messages at boot time.
      * Column order must match the {@code *_COLUMN} constants in {@link InboundSmsHandler}.
      */
-    private static final String[] PDU_PENDING_MESSAGE_PROJECTION = {
+    static final String[] PDU_PENDING_MESSAGE_PROJECTION = {
             "pdu",
             "sequence",
             "destination_port",
@@ -98,6 +117,9 @@ public class SmsBroadcastUndelivered {
     /** Handler for 3GPP2-format messages (may be null). */
     private final CdmaInboundSmsHandler mCdmaInboundSmsHandler;
 
+    /** Handlers of each phone, indexed by phone id, as {3GPP, 3GPP2}. */
+    private final SparseArray<InboundSmsHandler[]> mHandlersByPhoneId = new SparseArray<>();
+
     /** Broadcast receiver that processes the raw table when the user unlocks the phone for the
      *  first time after reboot and the credential-encrypted storage is available.
      */
@@ -121,7 +143,8 @@ public class SmsBroadcastUndelivered {
         @Override
         public void run() {
             scanRawTable(context, mCdmaInboundSmsHandler, mGsmInboundSmsHandler,
-                    System.currentTimeMillis() - getUndeliveredSmsExpirationTime(context));
+                    System.currentTimeMillis() - getUndeliveredSmsExpirationTime(context),
+                    SmsBroadcastUndelivered.this);
             InboundSmsHandler.cancelNewMessageNotification(context);
         }
     }
@@ -131,6 +154,8 @@ public class SmsBroadcastUndelivered {
         if (instance == null) {
             instance = new SmsBroadcastUndelivered(
                 context, gsmInboundSmsHandler, cdmaInboundSmsHandler);
+        } else {
+            instance.addHandlers(gsmInboundSmsHandler, cdmaInboundSmsHandler);
         }
 
         // Tell handlers to start processing new messages and transit from the startup state to the
@@ -150,6 +175,7 @@ public class SmsBroadcastUndelivered {
         mResolver = context.getContentResolver();
         mGsmInboundSmsHandler = gsmInboundSmsHandler;
         mCdmaInboundSmsHandler = cdmaInboundSmsHandler;
+        addHandlers(gsmInboundSmsHandler, cdmaInboundSmsHandler);
 
         UserManager userManager = (UserManager) context.getSystemService(Context.USER_SERVICE);
 
@@ -162,11 +188,54 @@ public class SmsBroadcastUndelivered {
         }
     }
 
+    /**
+     * Remember the handlers of a phone, to send them the messages of its subscription.
+     */
+    private void addHandlers(GsmInboundSmsHandler gsmInboundSmsHandler,
+            CdmaInboundSmsHandler cdmaInboundSmsHandler) {
+        int phoneId = getPhoneId(gsmInboundSmsHandler, cdmaInboundSmsHandler);
+        if (phoneId == SubscriptionManager.INVALID_PHONE_INDEX) return;
+        synchronized (mHandlersByPhoneId) {
+            mHandlersByPhoneId.put(phoneId,
+                    new InboundSmsHandler[] {gsmInboundSmsHandler, cdmaInboundSmsHandler});
+        }
+    }
+
+    /**
+     * Returns the handler of the phone currently holding the given subscription for the given
+     * format, or null if it is not known.
+     */
+    private InboundSmsHandler getHandler(int subId, boolean is3gpp2) {
+        if (!SubscriptionManager.isValidSubscriptionId(subId)) return null;
+        SubscriptionController subController = SubscriptionController.getInstance();
+        if (subController == null) return null;
+        // getPhoneId() returns the default phone for a subscription which isn't active, while
+        // the slot index, which is the phone id, is invalid then.
+        int phoneId = subController.getSlotIndex(subId);
+        synchronized (mHandlersByPhoneId) {
+            InboundSmsHandler[] handlers = mHandlersByPhoneId.get(phoneId);
+            return handlers != null ? handlers[is3gpp2 ? 1 : 0] : null;
+        }
+    }
+
     /**
      * Scan the raw table for complete SMS messages to broadcast, and old PDUs to delete.
      */
     static void scanRawTable(Context context, CdmaInboundSmsHandler cdmaInboundSmsHandler,
             GsmInboundSmsHandler gsmInboundSmsHandler, long oldMessageTimestamp) {
+        scanRawTable(context, cdmaInboundSmsHandler, gsmInboundSmsHandler, oldMessageTimestamp,
+                null);
+    }
+
+    /**
+     * Scan the raw table for complete SMS messages to broadcast, and old PDUs to delete.
+     *
+     * @param router Used to find the handlers of the phone of each message, if not null.
+     * Messages of unknown phones are sent to the given handlers.
+     */
+    private static void scanRawTable(Context context, CdmaInboundSmsHandler cdmaInboundSmsHandler,
+            GsmInboundSmsHandler gsmInboundSmsHandler, long oldMessageTimestamp,
+            SmsBroadcastUndelivered router) {
         if (DBG) Rlog.d(TAG, "scanning raw table for undelivered messages");
         long startTime = System.nanoTime();
         ContentResolver contentResolver = context.getContentResolver();
@@ -174,63 +243,163 @@ public class SmsBroadcastUndelivered {
                 new HashMap<SmsReferenceKey, Integer>(4);
         HashSet<SmsReferenceKey> oldMultiPartMessages = new HashSet<SmsReferenceKey>(4);
         Cursor cursor = null;
+        int rowCount = 0;
         try {
-            // query only non-deleted ones
-            cursor = contentResolver.query(InboundSmsHandler.sRawUri,
-                    PDU_PENDING_MESSAGE_PROJECTION, "deleted = 0", null, null);
-            if (cursor == null) {
-                Rlog.e(TAG, "error getting pending message cursor");
-                return;
-            }
-
+            // Only scan the rows which were there when the scan started. Later ones belong to new
+            // messages, which the handlers broadcast themselves.
+            long lastRowId = getLastRowId(contentResolver);
+            long previousRowId = -1;
             boolean isCurrentFormat3gpp2 = InboundSmsHandler.isCurrentFormat3gpp2();
-            while (cursor.moveToNext()) {
-                InboundSmsTracker tracker;
-                try {
-                    tracker = TelephonyComponentFactory.getInstance()
-                            .inject(InboundSmsTracker.class.getName()).makeInboundSmsTracker(cursor,
-                            isCurrentFormat3gpp2);
-                } catch (IllegalArgumentException e) {
-                    Rlog.e(TAG, "error loading SmsTracker: " + e);
-                    continue;
+            while (previousRowId < lastRowId) {
+                // query only non-deleted ones
+                cursor = contentResolver.query(InboundSmsHandler.sRawUri,
+                        PDU_PENDING_MESSAGE_PROJECTION, "deleted = 0 AND _id > ? AND _id <= ?",
+                        new String[] {Long.toString(previousRowId), Long.toString(lastRowId)},
+                        "_id ASC LIMIT " + PAGE_SIZE);
+                if (cursor == null) {
+                    Rlog.e(TAG, "error getting pending message cursor");
+                    return;
+                }
+                if (cursor.getCount() == 0) {
+                    break;
                 }
 
-                if (tracker.getMessageCount() == 1) {
-                    // deliver single-part message
-                    broadcastSms(tracker, cdmaInboundSmsHandler, gsmInboundSmsHandler);
-                } else {
-                    SmsReferenceKey reference = new SmsReferenceKey(tracker);
-                    Integer receivedCount = multiPartReceivedCount.get(reference);
-                    if (receivedCount == null) {
-                        multiPartReceivedCount.put(reference, 1);    // first segment seen
-                        if (tracker.getTimestamp() < oldMessageTimestamp) {
-                            // older than oldMessageTimestamp; delete if we don't find all the
-                            // segments
-                            oldMultiPartMessages.add(reference);
-                        }
+                while (cursor.moveToNext()) {
+                    rowCount++;
+                    previousRowId = cursor.getLong(InboundSmsHandler.ID_COLUMN);
+                    InboundSmsTracker tracker;
+                    try {
+                        tracker = TelephonyComponentFactory.getInstance()
+                                .inject(InboundSmsTracker.class.getName())
+                                .makeInboundSmsTracker(cursor, isCurrentFormat3gpp2);
+                    } catch (IllegalArgumentException e) {
+                        Rlog.e(TAG, "error loading SmsTracker: " + e);
+                        continue;
+                    }
+
+                    if (tracker.getMessageCount() == 1) {
+                        // deliver single-part message
+                        broadcastSms(tracker, cdmaInboundSmsHandler, gsmInboundSmsHandler,
+                                router);
                     } else {
-                        int newCount = receivedCount + 1;
-                        if (newCount == tracker.getMessageCount()) {
-                            // looks like we've got all the pieces; send a single tracker
-                            // to state machine which will find the other pieces to broadcast
-                            if (DBG) Rlog.d(TAG, "found complete multi-part message");
-                            broadcastSms(tracker, cdmaInboundSmsHandler, gsmInboundSmsHandler);
-                            // don't delete this old message until after we broadcast it
-                            oldMultiPartMessages.remove(reference);
+                        SmsReferenceKey reference = new SmsReferenceKey(tracker);
+                        Integer receivedCount = multiPartReceivedCount.get(reference);
+                        if (receivedCount == null) {
+                            multiPartReceivedCount.put(reference, 1);    // first segment seen
+                            if (tracker.getTimestamp() < oldMessageTimestamp) {
+                                // older than oldMessageTimestamp; delete if we don't find all the
+                                // segments
+                                oldMultiPartMessages.add(reference);
+                            }
                         } else {
-                            multiPartReceivedCount.put(reference, newCount);
+                            int newCount = receivedCount + 1;
+                            if (newCount == tracker.getMessageCount()) {
+                                // looks like we've got all the pieces; send a single tracker
+                                // to state machine which will find the other pieces to broadcast
+                                if (DBG) Rlog.d(TAG, "found complete multi-part message");
+                                broadcastSms(tracker, cdmaInboundSmsHandler,
+                                        gsmInboundSmsHandler, router);
+                                // don't delete this old message until after we broadcast it
+                                oldMultiPartMessages.remove(reference);
+                            } else {
+                                multiPartReceivedCount.put(reference, newCount);
+                            }
                         }
                     }
                 }
+                cursor.close();
+                cursor = null;
             }
             // Retrieve the phone id, required for metrics
             int phoneId = getPhoneId(gsmInboundSmsHandler, cdmaInboundSmsHandler);
 
             // Delete old incomplete message segments
-            for (SmsReferenceKey message : oldMultiPartMessages) {
-                // delete permanently
-                int rows = contentResolver.delete(InboundSmsHandler.sRawUriPermanentDelete,
-                        message.getDeleteWhere(), message.getDeleteWhereArgs());
+            deleteOldMultiPartMessages(contentResolver, new ArrayList<>(oldMultiPartMessages),
+                    phoneId);
+            if (!oldMultiPartMessages.isEmpty()) {
+                // The handlers of any phone may have indexed the deleted segments.
+                invalidateMultipartSmsIndexes(cdmaInboundSmsHandler, gsmInboundSmsHandler,
+                        router);
+            }
+        } catch (SQLException e) {
+            Rlog.e(TAG, "error reading pending SMS messages", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            if (DBG) Rlog.d(TAG, "finished scanning " + rowCount + " rows of raw table in "
+                    + ((System.nanoTime() - startTime) / 1000000) + " ms");
+        }
+    }
+
+    /**
+     * Invalidate the multi-part index of the given handlers, and of the handlers of every phone
+     * known to the router if not null.
+     */
+    private static void invalidateMultipartSmsIndexes(CdmaInboundSmsHandler cdmaInboundSmsHandler,
+            GsmInboundSmsHandler gsmInboundSmsHandler, SmsBroadcastUndelivered router) {
+        HashSet<InboundSmsHandler> handlers = new HashSet<>();
+        handlers.add(cdmaInboundSmsHandler);
+        handlers.add(gsmInboundSmsHandler);
+        if (router != null) {
+            synchronized (router.mHandlersByPhoneId) {
+                for (int i = 0; i < router.mHandlersByPhoneId.size(); i++) {
+                    handlers.addAll(Arrays.asList(router.mHandlersByPhoneId.valueAt(i)));
+                }
+            }
+        }
+        for (InboundSmsHandler handler : handlers) {
+            if (handler != null) {
+                handler.invalidateMultipartSmsIndex();
+            }
+        }
+    }
+
+    /**
+     * Returns the largest row id of the raw table, or -1 if it is empty.
+     */
+    private static long getLastRowId(ContentResolver contentResolver) {
+        Cursor cursor = contentResolver.query(InboundSmsHandler.sRawUri, new String[] {"_id"},
+                null, null, "_id DESC LIMIT 1");
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Permanently delete the segments of the given incomplete messages, in batches.
+     */
+    private static void deleteOldMultiPartMessages(ContentResolver contentResolver,
+            List<SmsReferenceKey> messages, int phoneId) {
+        for (int start = 0; start < messages.size(); start += DELETE_BATCH_SIZE) {
+            List<SmsReferenceKey> batch =
+                    messages.subList(start, Math.min(messages.size(), start + DELETE_BATCH_SIZE));
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>(batch.size());
+            for (SmsReferenceKey message : batch) {
+                operations.add(ContentProviderOperation
+                        .newDelete(InboundSmsHandler.sRawUriPermanentDelete)
+                        .withSelection(message.getDeleteWhere(), message.getDeleteWhereArgs())
+                        .build());
+            }
+
+            ContentProviderResult[] results;
+            try {
+                results = contentResolver.applyBatch(
+                        InboundSmsHandler.sRawUriPermanentDelete.getAuthority(), operations);
+            } catch (RemoteException | OperationApplicationException e) {
+                // The segments are deleted on the next scan.
+                Rlog.e(TAG, "error deleting old multi-part message segments", e);
+                return;
+            }
+
+            for (int i = 0; i < batch.size(); i++) {
+                SmsReferenceKey message = batch.get(i);
+                int rows = (results[i].count != null) ? results[i].count : 0;
                 if (rows == 0) {
                     Rlog.e(TAG, "No rows were deleted from raw table!");
                 } else if (DBG) {
@@ -244,14 +413,6 @@ public class SmsBroadcastUndelivered {
                             message.mMessageCount);
                 }
             }
-        } catch (SQLException e) {
-            Rlog.e(TAG, "error reading pending SMS messages", e);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-            if (DBG) Rlog.d(TAG, "finished scanning raw table in "
-                    + ((System.nanoTime() - startTime) / 1000000) + " ms");
         }
     }
 
@@ -274,12 +435,13 @@ public class SmsBroadcastUndelivered {
      */
     private static void broadcastSms(InboundSmsTracker tracker,
             CdmaInboundSmsHandler cdmaInboundSmsHandler,
-            GsmInboundSmsHandler gsmInboundSmsHandler) {
-        InboundSmsHandler handler;
-        if (tracker.is3gpp2()) {
-            handler = cdmaInboundSmsHandler;
-        } else {
-            handler = gsmInboundSmsHandler;
+            GsmInboundSmsHandler gsmInboundSmsHandler, SmsBroadcastUndelivered router) {
+        InboundSmsHandler handler = null;
+        if (router != null) {
+            handler = router.getHandler(tracker.getSubId(), tracker.is3gpp2());
+        }
+        if (handler == null) {
+            handler = tracker.is3gpp2() ? cdmaInboundSmsHandler : gsmInboundSmsHandler;
         }
         if (handler != null) {
             handler.sendMessage(InboundSmsHandler.EVENT_BROADCAST_SMS, tracker);
@@ -30,6 +30,7 @@ import android.net.Uri;
 import android.os.AsyncResult;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemProperties;
 import android.os.UserManager;
 import android.provider.Telephony.Sms;
 import android.provider.Telephony.Sms.Intents;
@@ -78,6 +79,16 @@ public class SmsDispatchersController extends Handler {
     /** InboundSmsHandler exited WaitingState */
     protected static final int EVENT_SMS_HANDLER_EXITING_WAITING_STATE = 17;
 
+    /** Check for outgoing messages in flight for too long */
+    private static final int EVENT_CHECK_STALLED_SMS = 18;
+
+    /**
+     * Maximum number of outgoing messages in flight at once, further messages are queued by
+     * priority and app. If set to 0, the default, messages are sent in the order they come in.
+     */
+    private static final String PROPERTY_SMS_MAX_IN_FLIGHT = "persist.radio.sms_max_in_flight";
+    private static final int DEFAULT_SMS_MAX_IN_FLIGHT = 0;
+
     /** Delete any partial message segments after being IN_SERVICE for 1 day. */
     private static final long PARTIAL_SEGMENT_WAIT_DURATION = (long) (60 * 60 * 1000) * 24;
     /** Constant for invalid time */
@@ -101,6 +112,8 @@ public class SmsDispatchersController extends Handler {
     private final SmsUsageMonitor mUsageMonitor;
     private final CommandsInterface mCi;
     private final Context mContext;
+    /** Outgoing message queue of this phone, null if not enabled. */
+    private final OutboundSmsScheduler mOutboundSmsScheduler;
 
     /** true if IMS is registered and sms is supported, false otherwise.*/
     private boolean mIms = false;
@@ -115,6 +128,11 @@ public class SmsDispatchersController extends Handler {
         mCi = phone.mCi;
         mPhone = phone;
 
+        int maxInFlight = SystemProperties.getInt(PROPERTY_SMS_MAX_IN_FLIGHT,
+                DEFAULT_SMS_MAX_IN_FLIGHT);
+        mOutboundSmsScheduler = maxInFlight > 0
+                ? new OutboundSmsScheduler(maxInFlight, mOutboundSmsSchedulerCallback) : null;
+
         // Create dispatchers, inbound SMS handlers and
         // broadcast undelivered messages in raw table.
         mImsSmsDispatcher = new ImsSmsDispatcher(phone, this);
@@ -159,6 +177,29 @@ public class SmsDispatchersController extends Handler {
         }
     };
 
+    private final OutboundSmsScheduler.Callback mOutboundSmsSchedulerCallback =
+            new OutboundSmsScheduler.Callback() {
+                @Override
+                public void dispatch(Runnable send) {
+                    post(send);
+                }
+
+                @Override
+                public void scheduleStallCheck(long delayMillis) {
+                    removeMessages(EVENT_CHECK_STALLED_SMS);
+                    sendEmptyMessageDelayed(EVENT_CHECK_STALLED_SMS, delayMillis);
+                }
+            };
+
+    /**
+     * Returns the queue of outgoing messages of this phone, or null if messages are sent in the
+     * order they come in.
+     */
+    @VisibleForTesting
+    OutboundSmsScheduler getOutboundSmsScheduler() {
+        return mOutboundSmsScheduler;
+    }
+
     public void dispose() {
         mCi.unregisterForOn(this);
         mCi.unregisterForImsNetworkStateChanged(this);
@@ -212,6 +253,10 @@ public class SmsDispatchersController extends Handler {
                 resetPartialSegmentWaitTimer();
                 break;
 
+            case EVENT_CHECK_STALLED_SMS:
+                mOutboundSmsScheduler.releaseStalledRequests();
+                break;
+
             default:
                 if (isCdmaMo()) {
                     mCdmaDispatcher.handleMessage(msg);
@@ -811,6 +856,9 @@ public class SmsDispatchersController extends Handler {
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         mGsmInboundSmsHandler.dump(fd, pw, args);
         mCdmaInboundSmsHandler.dump(fd, pw, args);
+        if (mOutboundSmsScheduler != null) {
+            mOutboundSmsScheduler.dump(pw);
+        }
     }
 
     private void logd(String msg) {
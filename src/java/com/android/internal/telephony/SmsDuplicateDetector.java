@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.telephony.Rlog;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory front end for the duplicate detection of {@link InboundSmsHandler}, so a message which
+ * is not a duplicate is accepted without querying the raw table.
+ *
+ * The detector remembers the keys of the rows in the raw table which the duplicate queries of
+ * {@link InboundSmsTracker#getExactMatchDupDetectQuery} and
+ * {@link InboundSmsTracker#getInexactMatchDupDetectQuery} could match. Recently inserted keys are
+ * kept exactly in a small LRU; older ones, and the rows found when the detector is rebuilt from
+ * the raw table, are added to a Bloom filter. Keys are never removed, since a Bloom filter can't
+ * forget them, so rows which were deleted since can only cause false positives. A message is
+ * suspected to be a duplicate if one of its keys may be known, and only then is the raw table
+ * queried. Until the detector is built, every message is suspected.
+ *
+ * The raw table is read on a background thread. Meanwhile the previous Bloom filter is still
+ * used, and the keys added while the raw table is read are added to the new filter as well, so
+ * no key is lost when the filters are swapped.
+ *
+ * The raw table is shared by the handlers of all phones and formats, so one detector is shared
+ * by all of them too.
+ */
+class SmsDuplicateDetector {
+    private static final String LOG_TAG = "SmsDuplicateDetector";
+
+    /** Number of keys the Bloom filter is sized for, unless the raw table holds more. */
+    static final int DEFAULT_CAPACITY = 4096;
+    /** Number of recently inserted keys kept exactly. */
+    static final int LRU_SIZE = 128;
+
+    private static final String[] RAW_KEY_PROJECTION = {
+            "address",
+            "reference_number",
+            "count",
+            "sequence",
+            "date",
+            "message_body",
+            "destination_port",
+            "deleted"
+    };
+
+    private static final SmsDuplicateDetector sInstance = new SmsDuplicateDetector();
+
+    private final Map<Long, Boolean> mRecentKeys = new LinkedHashMap<Long, Boolean>(
+            LRU_SIZE, 0.75f, true /* accessOrder */) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            if (size() > LRU_SIZE) {
+                addToBloomFilter(eldest.getKey());
+                return true;
+            }
+            return false;
+        }
+    };
+    private BloomFilter mBloomFilter;
+    // Keys added while the raw table is read for a rebuild, null if no rebuild is running
+    private ArrayList<Long> mPendingKeys;
+
+    private int mHits;
+    private int mMisses;
+    private int mFalsePositives;
+    private int mRebuilds;
+
+    static SmsDuplicateDetector getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Rebuild the detector from the rows of the raw table on a background thread, unless a
+     * rebuild is already running. Called when a handler starts accepting messages, and when the
+     * Bloom filter is full.
+     */
+    void scheduleRebuild(ContentResolver resolver, Uri rawUri) {
+        synchronized (this) {
+            if (mPendingKeys != null) return;
+            mPendingKeys = new ArrayList<>();
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> rebuild(resolver, rawUri));
+    }
+
+    /**
+     * Rebuild the detector from the rows of the raw table. The detector isn't locked while the raw
+     * table is read. If it can't be read, the previous Bloom filter is kept.
+     */
+    @VisibleForTesting
+    void rebuild(ContentResolver resolver, Uri rawUri) {
+        synchronized (this) {
+            if (mPendingKeys == null) {
+                mPendingKeys = new ArrayList<>();
+            }
+        }
+        BloomFilter filter = null;
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(rawUri, RAW_KEY_PROJECTION, null, null, null);
+            if (cursor == null) {
+                Rlog.e(LOG_TAG, "rebuild: error getting raw table cursor");
+            } else {
+                filter = new BloomFilter(Math.max(DEFAULT_CAPACITY, 2 * cursor.getCount()));
+                while (cursor.moveToNext()) {
+                    String address = cursor.getString(0);
+                    int referenceNumber = cursor.getInt(1);
+                    int count = cursor.getInt(2);
+                    int sequence = cursor.getInt(3);
+                    boolean is3gpp2WapPdu = (cursor.getInt(6)
+                            & InboundSmsTracker.DEST_PORT_FLAG_3GPP2_WAP_PDU) != 0;
+                    filter.add(exactKey(address, referenceNumber, count, sequence,
+                            cursor.getLong(4), cursor.getString(5), is3gpp2WapPdu));
+                    if (count > 1 && cursor.getInt(7) == 0) {
+                        filter.add(inexactKey(address, referenceNumber, count, sequence,
+                                is3gpp2WapPdu));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            Rlog.e(LOG_TAG, "rebuild: can't access SMS database", e);
+            filter = null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        synchronized (this) {
+            if (filter != null) {
+                for (long key : mPendingKeys) {
+                    filter.add(key);
+                }
+                // The recent keys are either in the raw table or pending, so all are in the filter
+                mRecentKeys.clear();
+                mBloomFilter = filter;
+                mRebuilds++;
+            }
+            mPendingKeys = null;
+        }
+    }
+
+    /** Returns whether the Bloom filter is full, and the detector should be rebuilt. */
+    synchronized boolean isFull() {
+        return mBloomFilter != null && mBloomFilter.isFull();
+    }
+
+    /** Remember the keys of a row which was just inserted into the raw table. */
+    synchronized void add(InboundSmsTracker tracker) {
+        addKey(exactKey(tracker));
+        if (tracker.getMessageCount() > 1) {
+            addKey(inexactKey(tracker));
+        }
+    }
+
+    private void addKey(long key) {
+        mRecentKeys.put(key, Boolean.TRUE);
+        if (mPendingKeys != null) {
+            mPendingKeys.add(key);
+        }
+    }
+
+    /**
+     * Returns whether the raw table may hold a duplicate of the given message. If it doesn't,
+     * the message is counted as a miss.
+     */
+    synchronized boolean isSuspected(InboundSmsTracker tracker) {
+        if (mBloomFilter == null) return true;
+        if (mightContain(exactKey(tracker))
+                || (tracker.getMessageCount() > 1 && mightContain(inexactKey(tracker)))) {
+            return true;
+        }
+        mMisses++;
+        return false;
+    }
+
+    /** Count the result of querying the raw table for a suspected duplicate. */
+    synchronized void onSuspectChecked(boolean duplicate) {
+        if (duplicate) {
+            mHits++;
+        } else {
+            mFalsePositives++;
+        }
+    }
+
+    private boolean mightContain(long key) {
+        return mRecentKeys.containsKey(key) || mBloomFilter.mightContain(key);
+    }
+
+    private void addToBloomFilter(long key) {
+        if (mBloomFilter != null) {
+            mBloomFilter.add(key);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SmsDuplicateDetector{built=" + (mBloomFilter != null) + " hits=" + mHits
+                + " misses=" + mMisses + " falsePositives=" + mFalsePositives
+                + " rebuilds=" + mRebuilds + " rebuilding=" + (mPendingKeys != null)
+                + (mBloomFilter != null ? " keys=" + mBloomFilter.mCount : "") + "}";
+    }
+
+    private static long exactKey(InboundSmsTracker tracker) {
+        return exactKey(tracker.getAddress(), tracker.getReferenceNumber(),
+                tracker.getMessageCount(), tracker.getSequenceNumber(), tracker.getTimestamp(),
+                tracker.getMessageBody(), tracker.is3gpp2WapPdu());
+    }
+
+    private static long inexactKey(InboundSmsTracker tracker) {
+        return inexactKey(tracker.getAddress(), tracker.getReferenceNumber(),
+                tracker.getMessageCount(), tracker.getSequenceNumber(), tracker.is3gpp2WapPdu());
+    }
+
+    // Same columns as the exact match query
+    private static long exactKey(String address, int referenceNumber, int count, int sequence,
+            long date, String messageBody, boolean is3gpp2WapPdu) {
+        long h = hash(0x6a09e667f3bcc908L, address);
+        h = hash(h, ((long) referenceNumber << 32) | (count & 0xffffffffL));
+        h = hash(h, ((long) sequence << 1) | (is3gpp2WapPdu ? 1 : 0));
+        h = hash(h, date);
+        return mix(hash(h, messageBody));
+    }
+
+    // Same columns as the inexact match query, with a different seed than the exact key
+    private static long inexactKey(String address, int referenceNumber, int count, int sequence,
+            boolean is3gpp2WapPdu) {
+        long h = hash(0xbb67ae8584caa73bL, address);
+        h = hash(h, ((long) referenceNumber << 32) | (count & 0xffffffffL));
+        return mix(hash(h, ((long) sequence << 1) | (is3gpp2WapPdu ? 1 : 0)));
+    }
+
+    // FNV-1a over the chars of s, with a marker for null
+    private static long hash(long h, String s) {
+        if (s == null) return hash(h, -1L);
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return (h ^ s.length()) * 0x100000001b3L;
+    }
+
+    private static long hash(long h, long value) {
+        return mix(h ^ value) * 0x100000001b3L;
+    }
+
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    /** Bloom filter of 64-bit keys, with about 1% false positives at capacity. */
+    private static final class BloomFilter {
+        private static final int BITS_PER_KEY = 10;
+        private static final int HASHES = 7;
+
+        private final long[] mBits;
+        private final int mMask;
+        private final int mCapacity;
+        int mCount;
+
+        BloomFilter(int capacity) {
+            int bits = Integer.highestOneBit(Math.max(64, capacity * BITS_PER_KEY - 1)) << 1;
+            mBits = new long[bits / 64];
+            mMask = bits - 1;
+            mCapacity = capacity;
+        }
+
+        void add(long key) {
+            int h1 = (int) key;
+            int h2 = (int) (key >>> 32) | 1;
+            for (int i = 0; i < HASHES; i++) {
+                int bit = (h1 + i * h2) & mMask;
+                mBits[bit >>> 6] |= 1L << bit;
+            }
+            mCount++;
+        }
+
+        boolean mightContain(long key) {
+            int h1 = (int) key;
+            int h2 = (int) (key >>> 32) | 1;
+            for (int i = 0; i < HASHES; i++) {
+                int bit = (h1 + i * h2) & mMask;
+                if ((mBits[bit >>> 6] & (1L << bit)) == 0) return false;
+            }
+            return true;
+        }
+
+        boolean isFull() {
+            return mCount > mCapacity;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sliding window limit on the number of SMS each app sends, used by {@link SmsUsageMonitor}.
+ *
+ * Each app has its own window, holding the send times of its messages in a ring buffer of
+ * primitive timestamps which grows up to the app's limit, so counting a message rarely allocates.
+ * Windows are only locked by the app they belong to, and timestamps older than the window's period
+ * are dropped when the window is next used, rather than by scanning all apps on every send. At
+ * most once per period, windows whose messages have all expired are dropped, so apps which no
+ * longer send don't keep their window. By default all apps share the same limit and period, which
+ * can be changed per app.
+ */
+class SmsRateLimiter {
+    /** Returned by {@link #tryAcquire} when the messages would exceed the limit. */
+    static final int LIMIT_REACHED = -1;
+
+    /** Returned by {@link Window} methods once the window was dropped from the map. */
+    private static final int WINDOW_DROPPED = -2;
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private final int mDefaultMaxAllowed;
+    private final long mDefaultCheckPeriod;
+    private final ConcurrentHashMap<String, Window> mWindows = new ConcurrentHashMap<>();
+    private volatile long mNextPruneTime;
+
+    SmsRateLimiter(int maxAllowed, long checkPeriod) {
+        mDefaultMaxAllowed = maxAllowed;
+        mDefaultCheckPeriod = checkPeriod;
+    }
+
+    /**
+     * Count messages an app is about to send if they don't exceed its limit.
+     * @param appName the package name of the app
+     * @param count the number of messages
+     * @param now the current time, in the same time base as all other calls
+     * @return the number of messages the app can still send in the current window, or
+     * {@link #LIMIT_REACHED} if the messages were not counted
+     */
+    int tryAcquire(String appName, int count, long now) {
+        if (now >= mNextPruneTime) {
+            mNextPruneTime = now + mDefaultCheckPeriod;
+            prune(now);
+        }
+        int remaining;
+        do {
+            // Retry if the window was dropped after it was looked up
+            remaining = getWindow(appName).tryAcquire(count, now);
+        } while (remaining == WINDOW_DROPPED);
+        return remaining;
+    }
+
+    /** Returns the number of messages an app can still send in the current window. */
+    int getRemainingQuota(String appName, long now) {
+        Window window = mWindows.get(appName);
+        return window != null ? window.getRemainingQuota(now) : mDefaultMaxAllowed;
+    }
+
+    /**
+     * Change the limit of an app. The most recent messages already sent by the app still count
+     * against the new limit.
+     */
+    void setWindow(String appName, int maxAllowed, long checkPeriod) {
+        while (!getWindow(appName).setLimit(maxAllowed, checkPeriod)) {
+            // The window was dropped after it was looked up
+        }
+    }
+
+    /** Forget the messages sent by all apps, and the per-app limits. */
+    void clear() {
+        mWindows.clear();
+    }
+
+    /**
+     * Drop the windows which use the default limit and whose messages have all expired. Windows
+     * with a per-app limit are kept so the limit isn't lost.
+     */
+    @VisibleForTesting
+    void prune(long now) {
+        for (Map.Entry<String, Window> entry : mWindows.entrySet()) {
+            Window window = entry.getValue();
+            if (window.dropIfIdle(now)) {
+                mWindows.remove(entry.getKey(), window);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    int getWindowCount() {
+        return mWindows.size();
+    }
+
+    private Window getWindow(String appName) {
+        Window window = mWindows.get(appName);
+        if (window == null) {
+            window = mWindows.computeIfAbsent(appName,
+                    name -> new Window(mDefaultMaxAllowed, mDefaultCheckPeriod));
+        }
+        return window;
+    }
+
+    /** Send times of the messages of one app, oldest first. */
+    private static final class Window {
+        private static final long[] EMPTY = new long[0];
+
+        private long[] mTimestamps = EMPTY;
+        private int mHead;
+        private int mSize;
+        private int mMaxAllowed;
+        private long mCheckPeriod;
+        private boolean mHasCustomLimit;
+        private boolean mDropped;
+
+        Window(int maxAllowed, long checkPeriod) {
+            mMaxAllowed = maxAllowed;
+            mCheckPeriod = checkPeriod;
+        }
+
+        synchronized int tryAcquire(int count, long now) {
+            if (mDropped) {
+                return WINDOW_DROPPED;
+            }
+            expire(now);
+            if (mSize + count > mMaxAllowed) {
+                return LIMIT_REACHED;
+            }
+            if (mSize + count > mTimestamps.length) {
+                resize(Math.min(mMaxAllowed,
+                        Math.max(mSize + count, Math.max(INITIAL_CAPACITY, mSize * 2))), mSize);
+            }
+            for (int i = 0; i < count; i++) {
+                mTimestamps[(mHead + mSize) % mTimestamps.length] = now;
+                mSize++;
+            }
+            return mMaxAllowed - mSize;
+        }
+
+        synchronized int getRemainingQuota(long now) {
+            expire(now);
+            return Math.max(0, mMaxAllowed - mSize);
+        }
+
+        /** Returns false if the window was dropped, and the limit was not changed. */
+        synchronized boolean setLimit(int maxAllowed, long checkPeriod) {
+            if (mDropped) {
+                return false;
+            }
+            int capacity = Math.max(0, maxAllowed);
+            if (capacity < mTimestamps.length) {
+                // Keep the most recent timestamps which fit
+                resize(capacity, Math.min(mSize, capacity));
+            }
+            mMaxAllowed = maxAllowed;
+            mCheckPeriod = checkPeriod;
+            mHasCustomLimit = true;
+            return true;
+        }
+
+        /**
+         * Mark the window as dropped if it uses the default limit and holds no message sent in
+         * the current period. Once dropped the window isn't used anymore.
+         */
+        synchronized boolean dropIfIdle(long now) {
+            expire(now);
+            if (mSize == 0 && !mHasCustomLimit) {
+                mDropped = true;
+            }
+            return mDropped;
+        }
+
+        /** Move the most recent {@code keep} timestamps into a new buffer of the given size. */
+        private void resize(int capacity, int keep) {
+            long[] timestamps = capacity > 0 ? new long[capacity] : EMPTY;
+            for (int i = 0; i < keep; i++) {
+                timestamps[i] = mTimestamps[(mHead + mSize - keep + i) % mTimestamps.length];
+            }
+            mTimestamps = timestamps;
+            mHead = 0;
+            mSize = keep;
+        }
+
+        private void expire(long now) {
+            long beginCheckPeriod = now - mCheckPeriod;
+            while (mSize > 0 && mTimestamps[mHead] < beginCheckPeriod) {
+                mHead = (mHead + 1) % mTimestamps.length;
+                mSize--;
+            }
+        }
+    }
+}
@@ -26,6 +26,7 @@ import android.database.ContentObserver;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.RemoteException;
 import android.os.UserHandle;
 import android.provider.Settings;
@@ -49,9 +50,7 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
@@ -95,11 +94,8 @@ public class SmsUsageMonitor {
     /** Premium SMS permission when the owner has allowed the app to send premium SMS. */
     public static final int PREMIUM_SMS_PERMISSION_ALWAYS_ALLOW = 3;
 
-    private final int mCheckPeriod;
-    private final int mMaxAllowed;
-
-    private final HashMap<String, ArrayList<Long>> mSmsStamp =
-            new HashMap<String, ArrayList<Long>>();
+    /** Per-app limit on the number of SMS sent without user permission. */
+    private final SmsRateLimiter mRateLimiter;
 
     /** Context for retrieving regexes from XML resource. */
     private final Context mContext;
@@ -110,6 +106,13 @@ public class SmsUsageMonitor {
     /** Cached short code pattern matcher for {@link #mCurrentCountry}. */
     private ShortCodePatternMatcher mCurrentPatternMatcher;
 
+    /**
+     * Short code pattern matchers of the countries loaded since the pattern file last changed,
+     * null for the countries without patterns.
+     */
+    private final HashMap<String, ShortCodePatternMatcher> mPatternMatcherCache =
+            new HashMap<String, ShortCodePatternMatcher>();
+
     /** Notice when the enabled setting changes - can be changed through gservices */
     private final AtomicBoolean mCheckEnabled = new AtomicBoolean(true);
 
@@ -168,13 +171,16 @@ public class SmsUsageMonitor {
     private static final String ATTR_PACKAGE_SMS_POLICY = "sms-policy";
 
     /**
-     * SMS short code regex pattern matcher for a specific country.
+     * SMS short code regex pattern matcher for a specific country. Numbers are classified with
+     * the patterns compiled into a {@link ShortCodeClassifier} when possible, and with the regexes
+     * otherwise.
      */
     private static final class ShortCodePatternMatcher {
         private final Pattern mShortCodePattern;
         private final Pattern mPremiumShortCodePattern;
         private final Pattern mFreeShortCodePattern;
         private final Pattern mStandardShortCodePattern;
+        private final ShortCodeClassifier mClassifier;
 
         ShortCodePatternMatcher(String shortCodeRegex, String premiumShortCodeRegex,
                 String freeShortCodeRegex, String standardShortCodeRegex) {
@@ -185,9 +191,20 @@ public class SmsUsageMonitor {
                     Pattern.compile(freeShortCodeRegex) : null);
             mStandardShortCodePattern = (standardShortCodeRegex != null ?
                     Pattern.compile(standardShortCodeRegex) : null);
+            mClassifier = ShortCodeClassifier.compile(shortCodeRegex, premiumShortCodeRegex,
+                    freeShortCodeRegex, standardShortCodeRegex);
+            if (mClassifier == null) {
+                Rlog.w(TAG, "Can't compile short code patterns, using regex matching");
+            }
         }
 
         int getNumberCategory(String phoneNumber) {
+            if (mClassifier != null) {
+                int category = mClassifier.getNumberCategory(phoneNumber);
+                if (category != ShortCodeClassifier.CATEGORY_UNKNOWN) {
+                    return category;
+                }
+            }
             if (mFreeShortCodePattern != null && mFreeShortCodePattern.matcher(phoneNumber)
                     .matches()) {
                 return SmsManager.SMS_CATEGORY_FREE_SHORT_CODE;
@@ -246,14 +263,16 @@ public class SmsUsageMonitor {
         mContext = context;
         ContentResolver resolver = context.getContentResolver();
 
-        mMaxAllowed = Settings.Global.getInt(resolver,
+        int maxAllowed = Settings.Global.getInt(resolver,
                 Settings.Global.SMS_OUTGOING_CHECK_MAX_COUNT,
                 DEFAULT_SMS_MAX_COUNT);
 
-        mCheckPeriod = Settings.Global.getInt(resolver,
+        int checkPeriod = Settings.Global.getInt(resolver,
                 Settings.Global.SMS_OUTGOING_CHECK_INTERVAL_MS,
                 DEFAULT_SMS_CHECK_PERIOD);
 
+        mRateLimiter = new SmsRateLimiter(maxAllowed, checkPeriod);
+
         mSettingsObserverHandler = new SettingsObserverHandler(mContext, mCheckEnabled);
 
         loadPremiumSmsPolicyDb();
@@ -336,7 +355,7 @@ public class SmsUsageMonitor {
 
     /** Clear the SMS application list for disposal. */
     void dispose() {
-        mSmsStamp.clear();
+        mRateLimiter.clear();
     }
 
     /**
@@ -351,17 +370,32 @@ public class SmsUsageMonitor {
      */
     @UnsupportedAppUsage
     public boolean check(String appName, int smsWaiting) {
-        synchronized (mSmsStamp) {
-            removeExpiredTimestamps();
+        int remaining = mRateLimiter.tryAcquire(appName, smsWaiting,
+                SystemClock.elapsedRealtime());
+        if (VDBG) log("SMS send app=" + appName + " waiting=" + smsWaiting
+                + " remaining=" + remaining);
+        return remaining != SmsRateLimiter.LIMIT_REACHED;
+    }
 
-            ArrayList<Long> sentList = mSmsStamp.get(appName);
-            if (sentList == null) {
-                sentList = new ArrayList<Long>();
-                mSmsStamp.put(appName, sentList);
-            }
+    /**
+     * Returns the number of SMS an application can still send in the current check period
+     * without user confirmation.
+     *
+     * @param appName the package name of the app
+     */
+    public int getRemainingQuota(String appName) {
+        return mRateLimiter.getRemainingQuota(appName, SystemClock.elapsedRealtime());
+    }
 
-            return isUnderLimit(sentList, smsWaiting);
-        }
+    /**
+     * Override the limit on the number of SMS an application can send without user confirmation.
+     *
+     * @param appName the package name of the app
+     * @param maxAllowed the number of SMS the app can send in each check period
+     * @param checkPeriodMs the check period in milliseconds
+     */
+    public void setSendLimit(String appName, int maxAllowed, int checkPeriodMs) {
+        mRateLimiter.setWindow(appName, maxAllowed, checkPeriodMs);
     }
 
     /**
@@ -395,14 +429,25 @@ public class SmsUsageMonitor {
             }
 
             if (countryIso != null) {
+                long patternFileLastModified = mPatternFile.lastModified();
+                boolean patternsChanged = patternFileLastModified != mPatternFileLastModified;
+                if (patternsChanged) {
+                    mPatternMatcherCache.clear();
+                    mPatternFileLastModified = patternFileLastModified;
+                }
                 if (mCurrentCountry == null || !countryIso.equals(mCurrentCountry) ||
-                        mPatternFile.lastModified() != mPatternFileLastModified) {
-                    if (mPatternFile.exists()) {
-                        if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from file");
-                        mCurrentPatternMatcher = getPatternMatcherFromFile(countryIso);
+                        patternsChanged) {
+                    if (mPatternMatcherCache.containsKey(countryIso)) {
+                        mCurrentPatternMatcher = mPatternMatcherCache.get(countryIso);
                     } else {
-                        if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from resource");
-                        mCurrentPatternMatcher = getPatternMatcherFromResource(countryIso);
+                        if (mPatternFile.exists()) {
+                            if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from file");
+                            mCurrentPatternMatcher = getPatternMatcherFromFile(countryIso);
+                        } else {
+                            if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from resource");
+                            mCurrentPatternMatcher = getPatternMatcherFromResource(countryIso);
+                        }
+                        mPatternMatcherCache.put(countryIso, mCurrentPatternMatcher);
                     }
                     mCurrentCountry = countryIso;
                 }
@@ -598,44 +643,6 @@ public class SmsUsageMonitor {
         throw new SecurityException("Disallowed call for uid " + uid);
     }
 
-    /**
-     * Remove keys containing only old timestamps. This can happen if an SMS app is used
-     * to send messages and then uninstalled.
-     */
-    private void removeExpiredTimestamps() {
-        long beginCheckPeriod = System.currentTimeMillis() - mCheckPeriod;
-
-        synchronized (mSmsStamp) {
-            Iterator<Map.Entry<String, ArrayList<Long>>> iter = mSmsStamp.entrySet().iterator();
-            while (iter.hasNext()) {
-                Map.Entry<String, ArrayList<Long>> entry = iter.next();
-                ArrayList<Long> oldList = entry.getValue();
-                if (oldList.isEmpty() || oldList.get(oldList.size() - 1) < beginCheckPeriod) {
-                    iter.remove();
-                }
-            }
-        }
-    }
-
-    private boolean isUnderLimit(ArrayList<Long> sent, int smsWaiting) {
-        Long ct = System.currentTimeMillis();
-        long beginCheckPeriod = ct - mCheckPeriod;
-
-        if (VDBG) log("SMS send size=" + sent.size() + " time=" + ct);
-
-        while (!sent.isEmpty() && sent.get(0) < beginCheckPeriod) {
-            sent.remove(0);
-        }
-
-        if ((sent.size() + smsWaiting) <= mMaxAllowed) {
-            for (int i = 0; i < smsWaiting; i++ ) {
-                sent.add(ct);
-            }
-            return true;
-        }
-        return false;
-    }
-
     private static void log(String msg) {
         Rlog.d(TAG, msg);
     }
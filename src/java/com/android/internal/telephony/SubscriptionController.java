@@ -29,11 +29,13 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Parcel;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
 import android.os.ServiceManager;
@@ -54,6 +56,7 @@ import android.telephony.euicc.EuiccManager;
 import android.text.TextUtils;
 import android.util.LocalLog;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.IccCardConstants.State;
@@ -77,7 +80,6 @@ import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
@@ -108,14 +110,32 @@ public class SubscriptionController extends ISub.Stub {
             ParcelUuid.fromString(CarrierConfigManager.REMOVE_GROUP_UUID_STRING);
     private final LocalLog mLocalLog = new LocalLog(200);
 
-    // Lock that both mCacheActiveSubInfoList and mCacheOpportunisticSubInfoList use.
+    // Lock that writers of mSubInfoSnapshot, mCacheActiveSubInfoList and
+    // mCacheOpportunisticSubInfoList use. Readers don't need it, as all three are immutable once
+    // published. The SubscriptionInfo objects they hold are mutable, so they are only handed out
+    // as copies.
     private Object mSubInfoListLock = new Object();
 
+    /* Copy of all SubInfoRecord(s) in the database, null if it needs to be reloaded */
+    private volatile SubInfoSnapshot mSubInfoSnapshot;
+    private int mSubInfoSnapshotReloads;
+    private int mSubInfoSnapshotUpdates;
+
+    /* Drops the snapshot when the database is changed by anyone, including other processes */
+    @VisibleForTesting
+    final ContentObserver mSubInfoObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidateSubInfoSnapshot();
+        }
+    };
+
     /* The Cache of Active SubInfoRecord(s) list of currently in use SubInfoRecord(s) */
-    private final List<SubscriptionInfo> mCacheActiveSubInfoList = new ArrayList<>();
+    private volatile List<SubscriptionInfo> mCacheActiveSubInfoList = Collections.emptyList();
 
     /* Similar to mCacheActiveSubInfoList but only caching opportunistic subscriptions. */
-    private List<SubscriptionInfo> mCacheOpportunisticSubInfoList = new ArrayList<>();
+    private volatile List<SubscriptionInfo> mCacheOpportunisticSubInfoList =
+            Collections.emptyList();
     private AtomicBoolean mOpptSubInfoListChangedDirtyBit = new AtomicBoolean();
 
     private static final Comparator<SubscriptionInfo> SUBSCRIPTION_INFO_COMPARATOR =
@@ -142,8 +162,10 @@ public class SubscriptionController extends ISub.Stub {
 
     private AppOpsManager mAppOps;
 
-    // Each slot can have multiple subs.
-    private static Map<Integer, ArrayList<Integer>> sSlotIndexToSubIds = new ConcurrentHashMap<>();
+    // Each slot can have multiple subs. Replaced as a whole under sSlotIndexToSubIdsLock on
+    // every change, so readers need no lock.
+    private static volatile SlotSubIdIndex sSlotIndexToSubIds = SlotSubIdIndex.EMPTY;
+    private static final Object sSlotIndexToSubIdsLock = new Object();
     private static int mDefaultFallbackSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
     @UnsupportedAppUsage
     private static int mDefaultPhoneId = SubscriptionManager.DEFAULT_PHONE_INDEX;
@@ -255,6 +277,7 @@ public class SubscriptionController extends ISub.Stub {
         ContentValues value = new ContentValues(1);
         value.put(SubscriptionManager.SIM_SLOT_INDEX, SubscriptionManager.INVALID_SIM_SLOT_INDEX);
         mContext.getContentResolver().update(SubscriptionManager.CONTENT_URI, value, null, null);
+        invalidateSubInfoSnapshot();
     }
 
     private SubscriptionController(Phone phone) {
@@ -267,6 +290,9 @@ public class SubscriptionController extends ISub.Stub {
 
         migrateImsSettings();
 
+        mContext.getContentResolver().registerContentObserver(SubscriptionManager.CONTENT_URI,
+                true, mSubInfoObserver);
+
         // clear SLOT_INDEX for all subs
         clearSlotIndexForSubInfoRecords();
 
@@ -314,10 +340,7 @@ public class SubscriptionController extends ISub.Stub {
 
         MultiSimSettingController.getInstance().notifySubscriptionInfoChanged();
         TelephonyMetrics metrics = TelephonyMetrics.getInstance();
-        List<SubscriptionInfo> subInfos;
-        synchronized (mSubInfoListLock) {
-            subInfos = new ArrayList<>(mCacheActiveSubInfoList);
-        }
+        List<SubscriptionInfo> subInfos = new ArrayList<>(mCacheActiveSubInfoList);
 
         if (mOpptSubInfoListChangedDirtyBit.getAndSet(false)) {
             notifyOpportunisticSubscriptionInfoChanged();
@@ -332,68 +355,55 @@ public class SubscriptionController extends ISub.Stub {
      */
     @UnsupportedAppUsage
     private SubscriptionInfo getSubInfoRecord(Cursor cursor) {
-        int id = cursor.getInt(cursor.getColumnIndexOrThrow(
-                SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID));
-        String iccId = cursor.getString(cursor.getColumnIndexOrThrow(
-                SubscriptionManager.ICC_ID));
-        int simSlotIndex = cursor.getInt(cursor.getColumnIndexOrThrow(
-                SubscriptionManager.SIM_SLOT_INDEX));
-        String displayName = cursor.getString(cursor.getColumnIndexOrThrow(
-                SubscriptionManager.DISPLAY_NAME));
-        String carrierName = cursor.getString(cursor.getColumnIndexOrThrow(
-                SubscriptionManager.CARRIER_NAME));
-        int nameSource = cursor.getInt(cursor.getColumnIndexOrThrow(
-                SubscriptionManager.NAME_SOURCE));
-        int iconTint = cursor.getInt(cursor.getColumnIndexOrThrow(
-                SubscriptionManager.COLOR));
-        String number = cursor.getString(cursor.getColumnIndexOrThrow(
-                SubscriptionManager.NUMBER));
-        int dataRoaming = cursor.getInt(cursor.getColumnIndexOrThrow(
-                SubscriptionManager.DATA_ROAMING));
-        // Get the blank bitmap for this SubInfoRecord
-        Bitmap iconBitmap = BitmapFactory.decodeResource(mContext.getResources(),
-                com.android.internal.R.drawable.ic_sim_card_multi_24px_clr);
-        String mcc = cursor.getString(cursor.getColumnIndexOrThrow(
-                SubscriptionManager.MCC_STRING));
-        String mnc = cursor.getString(cursor.getColumnIndexOrThrow(
-                SubscriptionManager.MNC_STRING));
-        String ehplmnsRaw = cursor.getString(cursor.getColumnIndexOrThrow(
-                SubscriptionManager.EHPLMNS));
-        String hplmnsRaw = cursor.getString(cursor.getColumnIndexOrThrow(
-                SubscriptionManager.HPLMNS));
+        return getSubInfoRecord(cursor, new SubInfoColumns(cursor));
+    }
+
+    private SubscriptionInfo getSubInfoRecord(Cursor cursor, SubInfoColumns columns) {
+        int id = cursor.getInt(columns.mId);
+        String iccId = cursor.getString(columns.mIccId);
+        int simSlotIndex = cursor.getInt(columns.mSimSlotIndex);
+        String displayName = cursor.getString(columns.mDisplayName);
+        String carrierName = cursor.getString(columns.mCarrierName);
+        int nameSource = cursor.getInt(columns.mNameSource);
+        int iconTint = cursor.getInt(columns.mColor);
+        String number = cursor.getString(columns.mNumber);
+        int dataRoaming = cursor.getInt(columns.mDataRoaming);
+        // Get the blank bitmap for this SubInfoRecord. It is the same for all records, so only
+        // decode it once per cursor.
+        if (columns.mIconBitmap == null) {
+            columns.mIconBitmap = BitmapFactory.decodeResource(mContext.getResources(),
+                    com.android.internal.R.drawable.ic_sim_card_multi_24px_clr);
+        }
+        Bitmap iconBitmap = columns.mIconBitmap;
+        String mcc = cursor.getString(columns.mMcc);
+        String mnc = cursor.getString(columns.mMnc);
+        String ehplmnsRaw = cursor.getString(columns.mEhplmns);
+        String hplmnsRaw = cursor.getString(columns.mHplmns);
         String[] ehplmns = ehplmnsRaw == null ? null : ehplmnsRaw.split(",");
         String[] hplmns = hplmnsRaw == null ? null : hplmnsRaw.split(",");
 
         // cardId is the private ICCID/EID string, also known as the card string
-        String cardId = cursor.getString(cursor.getColumnIndexOrThrow(
-                SubscriptionManager.CARD_ID));
-        String countryIso = cursor.getString(cursor.getColumnIndexOrThrow(
-                SubscriptionManager.ISO_COUNTRY_CODE));
+        String cardId = cursor.getString(columns.mCardId);
+        String countryIso = cursor.getString(columns.mCountryIso);
         // publicCardId is the publicly exposed int card ID
         int publicCardId = mUiccController.convertToPublicCardId(cardId);
-        boolean isEmbedded = cursor.getInt(cursor.getColumnIndexOrThrow(
-                SubscriptionManager.IS_EMBEDDED)) == 1;
-        int carrierId = cursor.getInt(cursor.getColumnIndexOrThrow(
-                SubscriptionManager.CARRIER_ID));
+        boolean isEmbedded = cursor.getInt(columns.mIsEmbedded) == 1;
+        int carrierId = cursor.getInt(columns.mCarrierId);
         UiccAccessRule[] accessRules;
         if (isEmbedded) {
-            accessRules = UiccAccessRule.decodeRules(cursor.getBlob(
-                    cursor.getColumnIndexOrThrow(SubscriptionManager.ACCESS_RULES)));
+            accessRules = UiccAccessRule.decodeRules(cursor.getBlob(columns.mAccessRules));
         } else {
             accessRules = null;
         }
-        UiccAccessRule[] carrierConfigAccessRules = UiccAccessRule.decodeRules(cursor.getBlob(
-            cursor.getColumnIndexOrThrow(SubscriptionManager.ACCESS_RULES_FROM_CARRIER_CONFIGS)));
-        boolean isOpportunistic = cursor.getInt(cursor.getColumnIndexOrThrow(
-                SubscriptionManager.IS_OPPORTUNISTIC)) == 1;
-        String groupUUID = cursor.getString(cursor.getColumnIndexOrThrow(
-                SubscriptionManager.GROUP_UUID));
-        int profileClass = cursor.getInt(cursor.getColumnIndexOrThrow(
-                SubscriptionManager.PROFILE_CLASS));
-        int subType = cursor.getInt(cursor.getColumnIndexOrThrow(
-                SubscriptionManager.SUBSCRIPTION_TYPE));
-        String groupOwner = getOptionalStringFromCursor(cursor, SubscriptionManager.GROUP_OWNER,
-                /*defaultVal*/ null);
+        UiccAccessRule[] carrierConfigAccessRules = UiccAccessRule.decodeRules(
+                cursor.getBlob(columns.mCarrierConfigAccessRules));
+        boolean isOpportunistic = cursor.getInt(columns.mIsOpportunistic) == 1;
+        String groupUUID = cursor.getString(columns.mGroupUuid);
+        int profileClass = cursor.getInt(columns.mProfileClass);
+        int subType = cursor.getInt(columns.mSubType);
+        // Return null if the column doesn't exist.
+        String groupOwner = columns.mGroupOwner == -1 ? null
+                : cursor.getString(columns.mGroupOwner);
 
         if (VDBG) {
             String iccIdToPrint = SubscriptionInfo.givePrintableIccid(iccId);
@@ -431,6 +441,159 @@ public class SubscriptionController extends ISub.Stub {
         return (columnIndex == -1) ? defaultVal : cursor.getString(columnIndex);
     }
 
+    /**
+     * Column indexes of a siminfo cursor, resolved once and reused for all of its rows.
+     */
+    private static final class SubInfoColumns {
+        final int mId;
+        final int mIccId;
+        final int mSimSlotIndex;
+        final int mDisplayName;
+        final int mCarrierName;
+        final int mNameSource;
+        final int mColor;
+        final int mNumber;
+        final int mDataRoaming;
+        final int mMcc;
+        final int mMnc;
+        final int mEhplmns;
+        final int mHplmns;
+        final int mCardId;
+        final int mCountryIso;
+        final int mIsEmbedded;
+        final int mCarrierId;
+        final int mAccessRules;
+        final int mCarrierConfigAccessRules;
+        final int mIsOpportunistic;
+        final int mGroupUuid;
+        final int mProfileClass;
+        final int mSubType;
+        // -1 if the column doesn't exist
+        final int mGroupOwner;
+        // Decoded with the first record
+        Bitmap mIconBitmap;
+
+        SubInfoColumns(Cursor cursor) {
+            mId = cursor.getColumnIndexOrThrow(SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID);
+            mIccId = cursor.getColumnIndexOrThrow(SubscriptionManager.ICC_ID);
+            mSimSlotIndex = cursor.getColumnIndexOrThrow(SubscriptionManager.SIM_SLOT_INDEX);
+            mDisplayName = cursor.getColumnIndexOrThrow(SubscriptionManager.DISPLAY_NAME);
+            mCarrierName = cursor.getColumnIndexOrThrow(SubscriptionManager.CARRIER_NAME);
+            mNameSource = cursor.getColumnIndexOrThrow(SubscriptionManager.NAME_SOURCE);
+            mColor = cursor.getColumnIndexOrThrow(SubscriptionManager.COLOR);
+            mNumber = cursor.getColumnIndexOrThrow(SubscriptionManager.NUMBER);
+            mDataRoaming = cursor.getColumnIndexOrThrow(SubscriptionManager.DATA_ROAMING);
+            mMcc = cursor.getColumnIndexOrThrow(SubscriptionManager.MCC_STRING);
+            mMnc = cursor.getColumnIndexOrThrow(SubscriptionManager.MNC_STRING);
+            mEhplmns = cursor.getColumnIndexOrThrow(SubscriptionManager.EHPLMNS);
+            mHplmns = cursor.getColumnIndexOrThrow(SubscriptionManager.HPLMNS);
+            mCardId = cursor.getColumnIndexOrThrow(SubscriptionManager.CARD_ID);
+            mCountryIso = cursor.getColumnIndexOrThrow(SubscriptionManager.ISO_COUNTRY_CODE);
+            mIsEmbedded = cursor.getColumnIndexOrThrow(SubscriptionManager.IS_EMBEDDED);
+            mCarrierId = cursor.getColumnIndexOrThrow(SubscriptionManager.CARRIER_ID);
+            mAccessRules = cursor.getColumnIndexOrThrow(SubscriptionManager.ACCESS_RULES);
+            mCarrierConfigAccessRules = cursor.getColumnIndexOrThrow(
+                    SubscriptionManager.ACCESS_RULES_FROM_CARRIER_CONFIGS);
+            mIsOpportunistic = cursor.getColumnIndexOrThrow(SubscriptionManager.IS_OPPORTUNISTIC);
+            mGroupUuid = cursor.getColumnIndexOrThrow(SubscriptionManager.GROUP_UUID);
+            mProfileClass = cursor.getColumnIndexOrThrow(SubscriptionManager.PROFILE_CLASS);
+            mSubType = cursor.getColumnIndexOrThrow(SubscriptionManager.SUBSCRIPTION_TYPE);
+            mGroupOwner = cursor.getColumnIndex(SubscriptionManager.GROUP_OWNER);
+        }
+    }
+
+    /**
+     * Immutable copy of all SubInfoRecord(s) in the database.
+     */
+    private static final class SubInfoSnapshot {
+        // All records, in database order
+        final List<SubscriptionInfo> mRecords;
+        final SparseArray<SubscriptionInfo> mRecordsById;
+
+        SubInfoSnapshot(List<SubscriptionInfo> records) {
+            mRecords = Collections.unmodifiableList(records);
+            mRecordsById = new SparseArray<>(records.size());
+            for (SubscriptionInfo info : records) {
+                mRecordsById.put(info.getSubscriptionId(), info);
+            }
+        }
+
+        /**
+         * @return a copy of this snapshot with the record of subId replaced by info, or removed if
+         * info is null.
+         */
+        SubInfoSnapshot replace(int subId, SubscriptionInfo info) {
+            List<SubscriptionInfo> records = new ArrayList<>(mRecords.size() + 1);
+            boolean replaced = false;
+            for (SubscriptionInfo record : mRecords) {
+                if (record.getSubscriptionId() != subId) {
+                    records.add(record);
+                } else if (info != null) {
+                    records.add(info);
+                    replaced = true;
+                }
+            }
+            if (!replaced && info != null) {
+                records.add(info);
+            }
+            return new SubInfoSnapshot(records);
+        }
+    }
+
+    /**
+     * @return the snapshot of all SubInfoRecord(s), loading it from the database if needed.
+     */
+    private SubInfoSnapshot getSubInfoSnapshot() {
+        SubInfoSnapshot snapshot = mSubInfoSnapshot;
+        if (snapshot != null) return snapshot;
+        synchronized (mSubInfoListLock) {
+            if (mSubInfoSnapshot == null) {
+                reloadSubInfoSnapshot();
+            }
+            return mSubInfoSnapshot;
+        }
+    }
+
+    // Must be called with mSubInfoListLock held.
+    private void reloadSubInfoSnapshot() {
+        List<SubscriptionInfo> records = querySubInfo(null, null);
+        mSubInfoSnapshot = new SubInfoSnapshot(records != null ? records : new ArrayList<>());
+        mSubInfoSnapshotReloads++;
+    }
+
+    /**
+     * @return a copy of a cached SubInfoRecord, so callers in this process can't change the cache.
+     * It is copied through a parcel, as callers in other processes get it.
+     */
+    private static SubscriptionInfo copySubInfo(SubscriptionInfo info) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            info.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return SubscriptionInfo.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static List<SubscriptionInfo> copySubInfoList(List<SubscriptionInfo> infos) {
+        List<SubscriptionInfo> copies = new ArrayList<>(infos.size());
+        for (SubscriptionInfo info : infos) {
+            copies.add(copySubInfo(info));
+        }
+        return copies;
+    }
+
+    /**
+     * Drop the snapshot of all SubInfoRecord(s) after the database was changed without refreshing
+     * the caches. It is reloaded on the next read.
+     */
+    private void invalidateSubInfoSnapshot() {
+        synchronized (mSubInfoListLock) {
+            mSubInfoSnapshot = null;
+        }
+    }
+
     /**
      * Query SubInfoRecord(s) from subinfo database
      * @param selection A filter declaring which rows to return
@@ -440,17 +603,27 @@ public class SubscriptionController extends ISub.Stub {
     @UnsupportedAppUsage
     public List<SubscriptionInfo> getSubInfo(String selection, Object queryKey) {
         if (VDBG) logd("selection:" + selection + ", querykey: " + queryKey);
+        if (selection == null && queryKey == null) {
+            // All records, which don't need a query.
+            List<SubscriptionInfo> records = getSubInfoSnapshot().mRecords;
+            return records.isEmpty() ? null : copySubInfoList(records);
+        }
         String[] selectionArgs = null;
         if (queryKey != null) {
             selectionArgs = new String[] {queryKey.toString()};
         }
+        return querySubInfo(selection, selectionArgs);
+    }
+
+    private List<SubscriptionInfo> querySubInfo(String selection, String[] selectionArgs) {
         ArrayList<SubscriptionInfo> subList = null;
         Cursor cursor = mContext.getContentResolver().query(SubscriptionManager.CONTENT_URI,
                 null, selection, selectionArgs, null);
         try {
             if (cursor != null) {
+                SubInfoColumns columns = new SubInfoColumns(cursor);
                 while (cursor.moveToNext()) {
-                    SubscriptionInfo subInfo = getSubInfoRecord(cursor);
+                    SubscriptionInfo subInfo = getSubInfoRecord(cursor, columns);
                     if (subInfo != null)
                     {
                         if (subList == null)
@@ -548,10 +721,8 @@ public class SubscriptionController extends ISub.Stub {
      * @hide
      */
     public SubscriptionInfo getSubscriptionInfo(int subId) {
-        List<SubscriptionInfo> subInfoList = getSubInfo(
-                SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID + "=" + subId, null);
-        if (subInfoList == null || subInfoList.isEmpty()) return null;
-        return subInfoList.get(0);
+        SubscriptionInfo info = getSubInfoSnapshot().mRecordsById.get(subId);
+        return info != null ? copySubInfo(info) : null;
     }
 
     /**
@@ -715,42 +886,60 @@ public class SubscriptionController extends ISub.Stub {
      */
     @VisibleForTesting  // For mockito to mock this method
     public void refreshCachedActiveSubscriptionInfoList() {
-        boolean opptSubListChanged;
-
         synchronized (mSubInfoListLock) {
-            List<SubscriptionInfo> activeSubscriptionInfoList = getSubInfo(
-                    SubscriptionManager.SIM_SLOT_INDEX + ">=0 OR "
-                    + SubscriptionManager.SUBSCRIPTION_TYPE + "="
-                    + SubscriptionManager.SUBSCRIPTION_TYPE_REMOTE_SIM,
-                    null);
-
-            if (activeSubscriptionInfoList != null) {
-                // Log when active sub info changes.
-                if (mCacheActiveSubInfoList.size() != activeSubscriptionInfoList.size()
-                        || !mCacheActiveSubInfoList.containsAll(activeSubscriptionInfoList)) {
-                    logdl("Active subscription info list changed. " + activeSubscriptionInfoList);
-                }
+            reloadSubInfoSnapshot();
+            refreshCachedSubInfoListsFromSnapshot();
+        }
+    }
 
-                mCacheActiveSubInfoList.clear();
-                activeSubscriptionInfoList.sort(SUBSCRIPTION_INFO_COMPARATOR);
-                mCacheActiveSubInfoList.addAll(activeSubscriptionInfoList);
+    /**
+     * Refresh the caches after only the record of the given subscription was updated. Only that
+     * record is read back from the database.
+     */
+    private void refreshCachedSubscriptionInfo(int subId) {
+        synchronized (mSubInfoListLock) {
+            if (mSubInfoSnapshot == null) {
+                reloadSubInfoSnapshot();
             } else {
-                logd("activeSubscriptionInfoList is null.");
-                mCacheActiveSubInfoList.clear();
+                List<SubscriptionInfo> records = querySubInfo(
+                        SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID + "=?",
+                        new String[] {String.valueOf(subId)});
+                mSubInfoSnapshot = mSubInfoSnapshot.replace(subId,
+                        records != null ? records.get(0) : null);
+                mSubInfoSnapshotUpdates++;
             }
+            refreshCachedSubInfoListsFromSnapshot();
+        }
+    }
 
-            // Refresh cached opportunistic sub list and detect whether it's changed.
-            refreshCachedOpportunisticSubscriptionInfoList();
+    // Must be called with mSubInfoListLock held.
+    private void refreshCachedSubInfoListsFromSnapshot() {
+        List<SubscriptionInfo> activeSubscriptionInfoList = new ArrayList<>();
+        for (SubscriptionInfo info : mSubInfoSnapshot.mRecords) {
+            if (info.getSimSlotIndex() >= 0 || info.getSubscriptionType()
+                    == SubscriptionManager.SUBSCRIPTION_TYPE_REMOTE_SIM) {
+                activeSubscriptionInfoList.add(info);
+            }
+        }
+        activeSubscriptionInfoList.sort(SUBSCRIPTION_INFO_COMPARATOR);
 
-            if (DBG_CACHE) {
-                if (!mCacheActiveSubInfoList.isEmpty()) {
-                    for (SubscriptionInfo si : mCacheActiveSubInfoList) {
-                        logd("[refreshCachedActiveSubscriptionInfoList] Setting Cached info="
-                                + si);
-                    }
-                } else {
-                    logdl("[refreshCachedActiveSubscriptionInfoList]- no info return");
+        // Log when active sub info changes.
+        if (mCacheActiveSubInfoList.size() != activeSubscriptionInfoList.size()
+                || !mCacheActiveSubInfoList.containsAll(activeSubscriptionInfoList)) {
+            logdl("Active subscription info list changed. " + activeSubscriptionInfoList);
+        }
+        mCacheActiveSubInfoList = Collections.unmodifiableList(activeSubscriptionInfoList);
+
+        // Refresh cached opportunistic sub list and detect whether it's changed.
+        refreshCachedOpportunisticSubscriptionInfoList();
+
+        if (DBG_CACHE) {
+            if (!mCacheActiveSubInfoList.isEmpty()) {
+                for (SubscriptionInfo si : mCacheActiveSubInfoList) {
+                    logd("[refreshCachedActiveSubscriptionInfoList] Setting Cached info=" + si);
                 }
+            } else {
+                logdl("[refreshCachedActiveSubscriptionInfoList]- no info return");
             }
         }
     }
@@ -793,22 +982,9 @@ public class SubscriptionController extends ISub.Stub {
         // Now that all security checks passes, perform the operation as ourselves.
         final long identity = Binder.clearCallingIdentity();
         try {
-            Cursor cursor = mContext.getContentResolver().query(SubscriptionManager.CONTENT_URI,
-                    null, null, null, null);
-            try {
-                if (cursor != null) {
-                    int count = cursor.getCount();
-                    if (DBG) logd("[getAllSubInfoCount]- " + count + " SUB(s) in DB");
-                    return count;
-                }
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
-            }
-            if (DBG) logd("[getAllSubInfoCount]- no SUB in DB");
-
-            return 0;
+            int count = getSubInfoSnapshot().mRecords.size();
+            if (DBG) logd("[getAllSubInfoCount]- " + count + " SUB(s) in DB");
+            return count;
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -1210,7 +1386,7 @@ public class SubscriptionController extends ISub.Stub {
                             null, null);
 
                     // Refresh the Cache of Active Subscription Info List
-                    refreshCachedActiveSubscriptionInfoList();
+                    refreshCachedSubscriptionInfo(subId);
 
                     if (DBG) logdl("[addSubInfoRecord] sim name = " + nameToSet);
                 }
@@ -1262,9 +1438,7 @@ public class SubscriptionController extends ISub.Stub {
      */
     private boolean isActiveSubscriptionId(int subId) {
         if (!SubscriptionManager.isValidSubscriptionId(subId)) return false;
-        ArrayList<Integer> subIdList = getActiveSubIdArrayList();
-        if (subIdList.isEmpty()) return false;
-        return subIdList.contains(new Integer(subId));
+        return sSlotIndexToSubIds.getSlotIndex(subId) != SlotSubIdIndex.NO_SLOT;
     }
 
     /*
@@ -1322,15 +1496,12 @@ public class SubscriptionController extends ISub.Stub {
             refreshCachedActiveSubscriptionInfoList();
 
             // update sSlotIndexToSubIds struct
-            ArrayList<Integer> subIdsList = sSlotIndexToSubIds.get(slotIndex);
-            if (subIdsList == null) {
-                loge("sSlotIndexToSubIds has no entry for slotIndex = " + slotIndex);
-            } else {
-                if (subIdsList.contains(subId)) {
-                    subIdsList.remove(new Integer(subId));
-                    if (subIdsList.isEmpty()) {
-                        sSlotIndexToSubIds.remove(slotIndex);
-                    }
+            synchronized (sSlotIndexToSubIdsLock) {
+                SlotSubIdIndex index = sSlotIndexToSubIds;
+                if (index.getSubIds(slotIndex) == null) {
+                    loge("sSlotIndexToSubIds has no entry for slotIndex = " + slotIndex);
+                } else if (index.contains(slotIndex, subId)) {
+                    sSlotIndexToSubIds = index.withoutSubId(slotIndex, subId);
                 } else {
                     loge("sSlotIndexToSubIds has no subid: " + subId
                             + ", in index: " + slotIndex);
@@ -1378,7 +1549,9 @@ public class SubscriptionController extends ISub.Stub {
         // Refresh the Cache of Active Subscription Info List
         refreshCachedActiveSubscriptionInfoList();
 
-        sSlotIndexToSubIds.remove(slotIndex);
+        synchronized (sSlotIndexToSubIdsLock) {
+            sSlotIndexToSubIds = sSlotIndexToSubIds.withoutSlot(slotIndex);
+        }
     }
 
     /**
@@ -1492,7 +1665,7 @@ public class SubscriptionController extends ISub.Stub {
                     SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
 
             // Refresh the Cache of Active Subscription Info List
-            refreshCachedActiveSubscriptionInfoList();
+            refreshCachedSubscriptionInfo(subId);
 
             notifySubscriptionInfoChanged();
 
@@ -1526,7 +1699,7 @@ public class SubscriptionController extends ISub.Stub {
                     SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
 
             // Refresh the Cache of Active Subscription Info List
-            refreshCachedActiveSubscriptionInfoList();
+            refreshCachedSubscriptionInfo(subId);
 
             notifySubscriptionInfoChanged();
 
@@ -1664,7 +1837,7 @@ public class SubscriptionController extends ISub.Stub {
                     SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
 
             // Refresh the Cache of Active Subscription Info List
-            refreshCachedActiveSubscriptionInfoList();
+            refreshCachedSubscriptionInfo(subId);
 
             if (DBG) logd("[setDisplayNumber]- update result :" + result);
             notifySubscriptionInfoChanged();
@@ -1700,7 +1873,7 @@ public class SubscriptionController extends ISub.Stub {
                 SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
 
         // Refresh the Cache of Active Subscription Info List
-        refreshCachedActiveSubscriptionInfoList();
+        refreshCachedSubscriptionInfo(subId);
 
         if (DBG) logd("[setAssociatedPlmns]- update result :" + count);
         notifySubscriptionInfoChanged();
@@ -1759,6 +1932,7 @@ public class SubscriptionController extends ISub.Stub {
                 copyDataFromCursorToContentValue(propKey, cursor, values);
             }
             updateDatabase(values, refSubId, true);
+            invalidateSubInfoSnapshot();
         }
     }
 
@@ -1831,7 +2005,7 @@ public class SubscriptionController extends ISub.Stub {
                     SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
 
             // Refresh the Cache of Active Subscription Info List
-            refreshCachedActiveSubscriptionInfoList();
+            refreshCachedSubscriptionInfo(subId);
 
             notifySubscriptionInfoChanged();
 
@@ -1869,7 +2043,7 @@ public class SubscriptionController extends ISub.Stub {
                 SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
 
         // Refresh the Cache of Active Subscription Info List
-        refreshCachedActiveSubscriptionInfoList();
+        refreshCachedSubscriptionInfo(subId);
 
         notifySubscriptionInfoChanged();
 
@@ -1890,7 +2064,7 @@ public class SubscriptionController extends ISub.Stub {
                 SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
 
         // Refresh the Cache of Active Subscription Info List
-        refreshCachedActiveSubscriptionInfoList();
+        refreshCachedSubscriptionInfo(subId);
 
         notifySubscriptionInfoChanged();
 
@@ -1941,7 +2115,7 @@ public class SubscriptionController extends ISub.Stub {
                 SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
 
         // Refresh the Cache of Active Subscription Info List
-        refreshCachedActiveSubscriptionInfoList();
+        refreshCachedSubscriptionInfo(subId);
 
         notifySubscriptionInfoChanged();
         return result;
@@ -1959,21 +2133,18 @@ public class SubscriptionController extends ISub.Stub {
             return SubscriptionManager.INVALID_SIM_SLOT_INDEX;
         }
 
-        int size = sSlotIndexToSubIds.size();
+        SlotSubIdIndex index = sSlotIndexToSubIds;
+        int size = index.size();
 
         if (size == 0) {
             if (DBG) logd("[getSlotIndex]- size == 0, return SIM_NOT_INSERTED instead");
             return SubscriptionManager.SIM_NOT_INSERTED;
         }
 
-        for (Entry<Integer, ArrayList<Integer>> entry : sSlotIndexToSubIds.entrySet()) {
-            int sim = entry.getKey();
-            ArrayList<Integer> subs = entry.getValue();
-
-            if (subs != null && subs.contains(subId)) {
-                if (VDBG) logv("[getSlotIndex]- return = " + sim);
-                return sim;
-            }
+        int sim = index.getSlotIndex(subId);
+        if (sim != SlotSubIdIndex.NO_SLOT) {
+            if (VDBG) logv("[getSlotIndex]- return = " + sim);
+            return sim;
         }
 
         if (DBG) logd("[getSlotIndex]- return fail");
@@ -1988,6 +2159,15 @@ public class SubscriptionController extends ISub.Stub {
     @Override
     @Deprecated
     public int[] getSubId(int slotIndex) {
+        int[] subIds = getSubIdsInternal(slotIndex);
+        return subIds != null ? subIds.clone() : null;
+    }
+
+    /**
+     * Same as {@link #getSubId}, but returns the shared array of the current slot index, which
+     * must not be modified.
+     */
+    private int[] getSubIdsInternal(int slotIndex) {
         if (VDBG) printStackTrace("[getSubId]+ slotIndex=" + slotIndex);
 
         // Map default slotIndex to the current default subId.
@@ -2009,7 +2189,8 @@ public class SubscriptionController extends ISub.Stub {
         }
 
         // Check if we've got any SubscriptionInfo records using slotIndexToSubId as a surrogate.
-        int size = sSlotIndexToSubIds.size();
+        SlotSubIdIndex index = sSlotIndexToSubIds;
+        int size = index.size();
         if (size == 0) {
             if (VDBG) {
                 logd("[getSubId]- sSlotIndexToSubIds.size == 0, return null slotIndex="
@@ -2018,14 +2199,9 @@ public class SubscriptionController extends ISub.Stub {
             return null;
         }
 
-        // Convert ArrayList to array
-        ArrayList<Integer> subIds = sSlotIndexToSubIds.get(slotIndex);
-        if (subIds != null && subIds.size() > 0) {
-            int[] subIdArr = new int[subIds.size()];
-            for (int i = 0; i < subIds.size(); i++) {
-                subIdArr[i] = subIds.get(i);
-            }
-            if (VDBG) logd("[getSubId]- subIdArr=" + subIdArr);
+        int[] subIdArr = index.getSubIds(slotIndex);
+        if (subIdArr != null) {
+            if (VDBG) logd("[getSubId]- subIdArr=" + Arrays.toString(subIdArr));
             return subIdArr;
         } else {
             if (DBG) logd("[getSubId]- numSubIds == 0, return null slotIndex=" + slotIndex);
@@ -2052,7 +2228,8 @@ public class SubscriptionController extends ISub.Stub {
             return SubscriptionManager.INVALID_PHONE_INDEX;
         }
 
-        int size = sSlotIndexToSubIds.size();
+        SlotSubIdIndex index = sSlotIndexToSubIds;
+        int size = index.size();
         if (size == 0) {
             phoneId = mDefaultPhoneId;
             if (VDBG) logdl("[getPhoneId]- no sims, returning default phoneId=" + phoneId);
@@ -2060,14 +2237,10 @@ public class SubscriptionController extends ISub.Stub {
         }
 
         // FIXME: Assumes phoneId == slotIndex
-        for (Entry<Integer, ArrayList<Integer>> entry: sSlotIndexToSubIds.entrySet()) {
-            int sim = entry.getKey();
-            ArrayList<Integer> subs = entry.getValue();
-
-            if (subs != null && subs.contains(subId)) {
-                if (VDBG) logdl("[getPhoneId]- found subId=" + subId + " phoneId=" + sim);
-                return sim;
-            }
+        int sim = index.getSlotIndex(subId);
+        if (sim != SlotSubIdIndex.NO_SLOT) {
+            if (VDBG) logdl("[getPhoneId]- found subId=" + subId + " phoneId=" + sim);
+            return sim;
         }
 
         phoneId = mDefaultPhoneId;
@@ -2088,14 +2261,17 @@ public class SubscriptionController extends ISub.Stub {
         // Now that all security checks passes, perform the operation as ourselves.
         final long identity = Binder.clearCallingIdentity();
         try {
-            int size = sSlotIndexToSubIds.size();
+            int size;
+            synchronized (sSlotIndexToSubIdsLock) {
+                size = sSlotIndexToSubIds.size();
+                sSlotIndexToSubIds = SlotSubIdIndex.EMPTY;
+            }
 
             if (size == 0) {
                 if (DBG) logdl("[clearSubInfo]- no simInfo size=" + size);
                 return 0;
             }
 
-            sSlotIndexToSubIds.clear();
             if (DBG) logdl("[clearSubInfo]- clear size=" + size);
             return size;
         } finally {
@@ -2411,7 +2587,7 @@ public class SubscriptionController extends ISub.Stub {
     // when there are multiple subscriptions per sim and probably for other reasons.
     @UnsupportedAppUsage
     public int getSubIdUsingPhoneId(int phoneId) {
-        int[] subIds = getSubId(phoneId);
+        int[] subIds = getSubIdsInternal(phoneId);
         if (subIds == null || subIds.length == 0) {
             return SubscriptionManager.INVALID_SUBSCRIPTION_ID;
         }
@@ -2430,25 +2606,13 @@ public class SubscriptionController extends ISub.Stub {
             return null;
         }
 
-        Cursor cursor = mContext.getContentResolver().query(SubscriptionManager.CONTENT_URI,
-                null, SubscriptionManager.SIM_SLOT_INDEX + "=?",
-                new String[]{String.valueOf(slotIndex)}, null);
         ArrayList<SubscriptionInfo> subList = null;
-        try {
-            if (cursor != null) {
-                while (cursor.moveToNext()) {
-                    SubscriptionInfo subInfo = getSubInfoRecord(cursor);
-                    if (subInfo != null) {
-                        if (subList == null) {
-                            subList = new ArrayList<SubscriptionInfo>();
-                        }
-                        subList.add(subInfo);
-                    }
+        for (SubscriptionInfo subInfo : getSubInfoSnapshot().mRecords) {
+            if (subInfo.getSimSlotIndex() == slotIndex) {
+                if (subList == null) {
+                    subList = new ArrayList<SubscriptionInfo>();
                 }
-            }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+                subList.add(copySubInfo(subInfo));
             }
         }
         if (DBG) logd("[getSubInfoUsingSlotIndex]- null info return");
@@ -2470,22 +2634,6 @@ public class SubscriptionController extends ISub.Stub {
         sPhones = phones;
     }
 
-    private synchronized ArrayList<Integer> getActiveSubIdArrayList() {
-        // Clone the sub id list so it can't change out from under us while iterating
-        List<Entry<Integer, ArrayList<Integer>>> simInfoList =
-                new ArrayList<>(sSlotIndexToSubIds.entrySet());
-
-        // Put the set of sub ids in slot index order
-        Collections.sort(simInfoList, (x, y) -> x.getKey().compareTo(y.getKey()));
-
-        // Collect the sub ids for each slot in turn
-        ArrayList<Integer> allSubs = new ArrayList<>();
-        for (Entry<Integer, ArrayList<Integer>> slot : simInfoList) {
-            allSubs.addAll(slot.getValue());
-        }
-        return allSubs;
-    }
-
     private boolean isSubscriptionVisible(int subId) {
         for (SubscriptionInfo info : mCacheOpportunisticSubInfoList) {
             if (info.getSubscriptionId() == subId) {
@@ -2503,24 +2651,21 @@ public class SubscriptionController extends ISub.Stub {
      */
     @Override
     public int[] getActiveSubIdList(boolean visibleOnly) {
-        List<Integer> allSubs = getActiveSubIdArrayList();
+        // Sub ids in slot index order
+        int[] allSubs = sSlotIndexToSubIds.getAllSubIds();
 
+        int[] subIdArr;
         if (visibleOnly) {
             // Grouped opportunistic subscriptions should be hidden.
-            allSubs = allSubs.stream().filter(subId -> isSubscriptionVisible(subId))
-                    .collect(Collectors.toList());
-        }
-
-        int[] subIdArr = new int[allSubs.size()];
-        int i = 0;
-        for (int sub : allSubs) {
-            subIdArr[i] = sub;
-            i++;
+            subIdArr = Arrays.stream(allSubs).filter(subId -> isSubscriptionVisible(subId))
+                    .toArray();
+        } else {
+            subIdArr = allSubs.clone();
         }
 
         if (VDBG) {
-            logdl("[getActiveSubIdList] allSubs=" + allSubs + " subIdArr.length="
-                    + subIdArr.length);
+            logdl("[getActiveSubIdList] allSubs=" + Arrays.toString(allSubs)
+                    + " subIdArr.length=" + subIdArr.length);
         }
         return subIdArr;
     }
@@ -2543,7 +2688,7 @@ public class SubscriptionController extends ISub.Stub {
     @Deprecated // This should be moved into isActiveSubId(int, String)
     public boolean isActiveSubId(int subId) {
         boolean retVal = SubscriptionManager.isValidSubscriptionId(subId)
-                && getActiveSubIdArrayList().contains(subId);
+                && sSlotIndexToSubIds.getSlotIndex(subId) != SlotSubIdIndex.NO_SLOT;
 
         if (VDBG) logdl("[isActiveSubId]- " + retVal);
         return retVal;
@@ -2766,7 +2911,8 @@ public class SubscriptionController extends ISub.Stub {
                     .from(mContext).getDefaultSmsPhoneId());
             pw.flush();
 
-            for (Entry<Integer, ArrayList<Integer>> entry : sSlotIndexToSubIds.entrySet()) {
+            for (Entry<Integer, ArrayList<Integer>> entry
+                    : sSlotIndexToSubIds.toMap().entrySet()) {
                 pw.println(" sSlotIndexToSubId[" + entry.getKey() + "]: subIds=" + entry);
             }
             pw.flush();
@@ -2797,6 +2943,11 @@ public class SubscriptionController extends ISub.Stub {
             pw.flush();
             pw.println("++++++++++++++++++++++++++++++++");
 
+            pw.println(" subInfoSnapshotReloads=" + mSubInfoSnapshotReloads
+                    + " subInfoSnapshotUpdates=" + mSubInfoSnapshotUpdates);
+            pw.flush();
+            pw.println("++++++++++++++++++++++++++++++++");
+
             mLocalLog.dump(fd, pw, args);
             pw.flush();
             pw.println("++++++++++++++++++++++++++++++++");
@@ -3587,46 +3738,39 @@ public class SubscriptionController extends ISub.Stub {
             canReadAllPhoneState = false;
         }
 
-        synchronized (mSubInfoListLock) {
-            // If the caller can read all phone state, just return the full list.
-            if (canReadAllPhoneState) {
-                return new ArrayList<>(cacheSubList);
-            }
-
-            // Filter the list to only include subscriptions which the caller can manage.
-            return cacheSubList.stream()
-                    .filter(subscriptionInfo -> {
-                        try {
-                            return TelephonyPermissions.checkCallingOrSelfReadPhoneState(mContext,
-                                    subscriptionInfo.getSubscriptionId(), callingPackage,
-                                    "getSubscriptionInfoList");
-                        } catch (SecurityException e) {
-                            return false;
-                        }
-                    })
-                    .collect(Collectors.toList());
+        // The cached lists are never modified once published, so no locking is needed.
+        // If the caller can read all phone state, just return the full list.
+        if (canReadAllPhoneState) {
+            return copySubInfoList(cacheSubList);
         }
-    }
 
-    private synchronized boolean addToSubIdList(int slotIndex, int subId, int subscriptionType) {
-        ArrayList<Integer> subIdsList = sSlotIndexToSubIds.get(slotIndex);
-        if (subIdsList == null) {
-            subIdsList = new ArrayList<>();
-            sSlotIndexToSubIds.put(slotIndex, subIdsList);
-        }
+        // Filter the list to only include subscriptions which the caller can manage.
+        return cacheSubList.stream()
+                .filter(subscriptionInfo -> {
+                    try {
+                        return TelephonyPermissions.checkCallingOrSelfReadPhoneState(mContext,
+                                subscriptionInfo.getSubscriptionId(), callingPackage,
+                                "getSubscriptionInfoList");
+                    } catch (SecurityException e) {
+                        return false;
+                    }
+                })
+                .map(SubscriptionController::copySubInfo)
+                .collect(Collectors.toList());
+    }
 
-        // add the given subId unless it already exists
-        if (subIdsList.contains(subId)) {
-            logdl("slotIndex, subId combo already exists in the map. Not adding it again.");
-            return false;
-        }
-        if (isSubscriptionForRemoteSim(subscriptionType)) {
-            // For Remote SIM subscriptions, a slot can have multiple subscriptions.
-            subIdsList.add(subId);
-        } else {
-            // for all other types of subscriptions, a slot can have only one subscription at a time
-            subIdsList.clear();
-            subIdsList.add(subId);
+    private boolean addToSubIdList(int slotIndex, int subId, int subscriptionType) {
+        synchronized (sSlotIndexToSubIdsLock) {
+            SlotSubIdIndex index = sSlotIndexToSubIds;
+            // add the given subId unless it already exists
+            if (index.contains(slotIndex, subId)) {
+                logdl("slotIndex, subId combo already exists in the map. Not adding it again.");
+                return false;
+            }
+            // For Remote SIM subscriptions, a slot can have multiple subscriptions. For all other
+            // types of subscriptions, a slot can have only one subscription at a time.
+            sSlotIndexToSubIds = index.withSubId(slotIndex, subId,
+                    !isSubscriptionForRemoteSim(subscriptionType));
         }
         if (DBG) logdl("slotIndex, subId combo is added to the map.");
         return true;
@@ -3642,7 +3786,7 @@ public class SubscriptionController extends ISub.Stub {
      */
     @VisibleForTesting(visibility = VisibleForTesting.Visibility.PRIVATE)
     public Map<Integer, ArrayList<Integer>> getSlotIndexToSubIdsMap() {
-        return sSlotIndexToSubIds;
+        return sSlotIndexToSubIds.toMap();
     }
 
     /**
@@ -3681,14 +3825,14 @@ public class SubscriptionController extends ISub.Stub {
                 subList = new ArrayList<>();
             }
 
-            mCacheOpportunisticSubInfoList = subList;
-
-            for (SubscriptionInfo info : mCacheOpportunisticSubInfoList) {
+            for (SubscriptionInfo info : subList) {
                 if (shouldDisableSubGroup(info.getGroupUuid())) {
                     info.setGroupDisabled(true);
                 }
             }
 
+            mCacheOpportunisticSubInfoList = Collections.unmodifiableList(subList);
+
             if (DBG_CACHE) {
                 if (!mCacheOpportunisticSubInfoList.isEmpty()) {
                     for (SubscriptionInfo si : mCacheOpportunisticSubInfoList) {
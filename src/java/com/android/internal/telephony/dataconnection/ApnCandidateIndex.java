@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.telephony.data.ApnSetting;
+import android.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Index of the APNs which can be used for an APN type on a network type, so that
+ * {@link DcTracker} doesn't check every APN of the carrier on each data setup attempt.
+ *
+ * The candidates are computed on first use and kept until the index is cleared, which
+ * must happen whenever the list of APNs it was created with changes.
+ */
+class ApnCandidateIndex {
+    private final List<ApnSetting> mAllApnSettings;
+
+    // (APN type bitmask << 32 | network type) -> candidates
+    private final LongSparseArray<List<ApnSetting>> mCandidates = new LongSparseArray<>();
+
+    /**
+     * @param allApnSettings all the APNs of the carrier, in order of preference. Not copied.
+     */
+    ApnCandidateIndex(List<ApnSetting> allApnSettings) {
+        mAllApnSettings = allApnSettings;
+    }
+
+    /**
+     * Get the APNs which can handle an APN type and support a network type.
+     *
+     * @param apnTypeBitmask the requested APN type
+     * @param networkType the {@link android.telephony.TelephonyManager} network type
+     * @return the APNs in the order of the list of all APNs, which must not be modified
+     */
+    List<ApnSetting> getCandidates(int apnTypeBitmask, int networkType) {
+        long key = ((long) apnTypeBitmask << 32) | (networkType & 0xFFFFFFFFL);
+        List<ApnSetting> candidates = mCandidates.get(key);
+        if (candidates == null) {
+            ArrayList<ApnSetting> list = new ArrayList<>();
+            for (ApnSetting apn : mAllApnSettings) {
+                if (apn.canHandleType(apnTypeBitmask) && apn.canSupportNetworkType(networkType)) {
+                    list.add(apn);
+                }
+            }
+            candidates = Collections.unmodifiableList(list);
+            mCandidates.put(key, candidates);
+        }
+        return candidates;
+    }
+
+    /**
+     * Forget the candidates, after the list of all APNs changed.
+     */
+    void clear() {
+        mCandidates.clear();
+    }
+
+    /**
+     * @return the number of APN type and network type pairs indexed
+     */
+    int size() {
+        return mCandidates.size();
+    }
+}
@@ -80,6 +80,7 @@ import com.android.internal.telephony.dataconnection.DcTracker.ReleaseNetworkTyp
 import com.android.internal.telephony.dataconnection.DcTracker.RequestNetworkType;
 import com.android.internal.telephony.metrics.TelephonyMetrics;
 import com.android.internal.telephony.nano.TelephonyProto.RilDataCall;
+import com.android.internal.telephony.nano.TelephonyProto.TelephonyEvent.RilSetupDataCall;
 import com.android.internal.util.AsyncChannel;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.Protocol;
@@ -194,6 +195,9 @@ public class DataConnection extends StateMachine {
         @RequestNetworkType
         final int mRequestType;
         final int mSubId;
+        // Metrics event of the setup request, and when it was sent
+        RilSetupDataCall mSetupDataCallEvent;
+        long mSetupRequestTime;
 
         ConnectionParams(ApnContext apnContext, int profileId, int rilRadioTechnology,
                          Message onCompletedMsg, int connectionGeneration,
@@ -723,8 +727,11 @@ public class DataConnection extends StateMachine {
                 reason,
                 linkProperties,
                 msg);
-        TelephonyMetrics.getInstance().writeSetupDataCall(mPhone.getPhoneId(), cp.mRilRat,
-                dp.getProfileId(), dp.getApn(), dp.getProtocolType());
+        cp.mSetupRequestTime = SystemClock.elapsedRealtime();
+        cp.mSetupDataCallEvent = TelephonyMetrics.getInstance().writeSetupDataCall(
+                mPhone.getPhoneId(), cp.mRilRat, dp.getProfileId(), dp.getApn(),
+                dp.getProtocolType(),
+                cp.mApnContext != null ? cp.mApnContext.getApnTypeBitmask() : 0);
         return DataFailCause.NONE;
     }
 
@@ -1904,6 +1911,11 @@ public class DataConnection extends StateMachine {
                     if (cp.mApnContext != null) {
                         cp.mApnContext.requestLog("onSetupConnectionCompleted result=" + result);
                     }
+                    if (result != SetupResult.ERROR_STALE && cp.mSetupDataCallEvent != null) {
+                        TelephonyMetrics.getInstance().writeSetupDataCallLatency(
+                                cp.mSetupDataCallEvent,
+                                SystemClock.elapsedRealtime() - cp.mSetupRequestTime);
+                    }
                     switch (result) {
                         case SUCCESS:
                             // All is well
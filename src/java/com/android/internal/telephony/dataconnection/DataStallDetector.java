@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.net.TrafficStats;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Detects data stalls from the packets sent and received on the mobile networks, for
+ * {@link DcTracker}, which samples it on the data stall alarm and runs the recovery steps.
+ *
+ * A stall is suspected while packets are sent without any being received. The detector also
+ * picks the delay until the next sample: it backs off exponentially while there is no traffic at
+ * all, so that an idle device isn't woken up for nothing, and samples at the shortest delay while
+ * a stall is suspected or being recovered from.
+ */
+class DataStallDetector {
+    /**
+     * Source of the packet counters, which only need to increase between two samples.
+     */
+    interface CounterSource {
+        /** @return the number of packets sent */
+        long getTxPackets();
+
+        /** @return the number of packets received */
+        long getRxPackets();
+    }
+
+    /** The TCP packets of the mobile networks, as counted by {@link TrafficStats}. */
+    static final CounterSource MOBILE_TCP_COUNTERS = new CounterSource() {
+        @Override
+        public long getTxPackets() {
+            return TrafficStats.getMobileTcpTxPackets();
+        }
+
+        @Override
+        public long getRxPackets() {
+            return TrafficStats.getMobileTcpRxPackets();
+        }
+    };
+
+    private CounterSource mSource;
+    private long mTxPkts;
+    private long mRxPkts;
+    private long mLastSampleMs = -1;
+    // Number of packets sent since the last received packet
+    private long mSentSinceLastRecv;
+    // Number of samples in a row without any traffic
+    private int mIdleSamples;
+    // Time since which a stall is suspected, or -1
+    private long mSuspectedSinceMs = -1;
+    // Whether a stall was detected and no disruptive recovery step was taken since
+    private boolean mStallUnrecovered;
+
+    private long mSampleCount;
+    private int mStallCount;
+    private int mFalsePositiveCount;
+    private long mTotalDetectionLatencyMs;
+    private long mMaxDetectionLatencyMs;
+
+    /**
+     * @param source the packet counters to sample
+     */
+    DataStallDetector(CounterSource source) {
+        mSource = source;
+    }
+
+    @VisibleForTesting
+    void setCounterSource(CounterSource source) {
+        mSource = source;
+    }
+
+    /**
+     * Sample the packet counters.
+     *
+     * @param nowMs the current elapsed realtime
+     * @param countSent whether to count the packets sent without any received, which is not done
+     *        while a voice call may be holding back the data traffic
+     * @param ignoreReceived whether to handle the received packets as if there were none, to
+     *        simulate a stall
+     * @return whether packets were received since the previous sample
+     */
+    boolean sample(long nowMs, boolean countSent, boolean ignoreReceived) {
+        long txPkts = mSource.getTxPackets();
+        long rxPkts = mSource.getRxPackets();
+        long sent = txPkts - mTxPkts;
+        long received = ignoreReceived ? 0 : rxPkts - mRxPkts;
+        mTxPkts = txPkts;
+        mRxPkts = rxPkts;
+        long previousSampleMs = mLastSampleMs;
+        mLastSampleMs = nowMs;
+        mSampleCount++;
+
+        if (received > 0) {
+            mIdleSamples = 0;
+            mSentSinceLastRecv = 0;
+            mSuspectedSinceMs = -1;
+            if (mStallUnrecovered) {
+                // The traffic came back without the network being disrupted
+                mFalsePositiveCount++;
+                mStallUnrecovered = false;
+            }
+            return true;
+        }
+        if (sent > 0 && received == 0) {
+            mIdleSamples = 0;
+            if (countSent) {
+                if (mSentSinceLastRecv == 0) {
+                    // The stall may have started any time since the previous sample
+                    mSuspectedSinceMs = previousSampleMs >= 0 ? previousSampleMs : nowMs;
+                }
+                mSentSinceLastRecv += sent;
+            } else {
+                mSentSinceLastRecv = 0;
+                mSuspectedSinceMs = -1;
+            }
+        } else {
+            mIdleSamples++;
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of packets sent since the last received packet
+     */
+    long getSentSinceLastRecv() {
+        return mSentSinceLastRecv;
+    }
+
+    /**
+     * Note that a stall was detected, from the packets sent since the last received packet.
+     *
+     * @param nowMs the current elapsed realtime
+     */
+    void onStallDetected(long nowMs) {
+        mStallCount++;
+        mStallUnrecovered = true;
+        if (mSuspectedSinceMs >= 0) {
+            long latencyMs = nowMs - mSuspectedSinceMs;
+            mTotalDetectionLatencyMs += latencyMs;
+            mMaxDetectionLatencyMs = Math.max(mMaxDetectionLatencyMs, latencyMs);
+            mSuspectedSinceMs = -1;
+        }
+    }
+
+    /**
+     * Note that a recovery step was taken, after which the packets are counted again.
+     *
+     * @param disruptive whether the step disrupted the data connection or the radio
+     */
+    void onRecoveryStep(boolean disruptive) {
+        mSentSinceLastRecv = 0;
+        mSuspectedSinceMs = -1;
+        if (disruptive) {
+            mStallUnrecovered = false;
+        }
+    }
+
+    /**
+     * @return whether a stall is suspected or was detected without being recovered from yet
+     */
+    boolean isStallSuspected() {
+        return mSentSinceLastRecv > 0 || mStallUnrecovered;
+    }
+
+    /**
+     * Get the delay until the next sample, when no stall is suspected.
+     *
+     * @param baseDelayMs the delay while there is traffic
+     * @param maxDelayMs the longest delay when backing off
+     * @return the base delay, doubled for each sample in a row without traffic up to the longest
+     */
+    long getNextSampleDelayMs(long baseDelayMs, long maxDelayMs) {
+        return getBackOffDelayMs(baseDelayMs, maxDelayMs, mIdleSamples);
+    }
+
+    /**
+     * @param baseDelayMs the delay while there is traffic
+     * @param maxDelayMs the longest delay
+     * @param idleSamples the number of samples in a row without traffic
+     * @return the base delay, doubled for each idle sample up to the longest
+     */
+    static long getBackOffDelayMs(long baseDelayMs, long maxDelayMs, int idleSamples) {
+        long delayMs = baseDelayMs;
+        for (int i = 0; i < idleSamples && delayMs < maxDelayMs; i++) {
+            delayMs *= 2;
+        }
+        return Math.max(baseDelayMs, Math.min(delayMs, maxDelayMs));
+    }
+
+    /** @return the number of samples taken */
+    long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /** @return the number of stalls detected */
+    int getStallCount() {
+        return mStallCount;
+    }
+
+    /**
+     * @return the number of stalls detected after which packets were received again before any
+     *         disruptive recovery step
+     */
+    int getFalsePositiveCount() {
+        return mFalsePositiveCount;
+    }
+
+    /**
+     * @return the longest time from the last sample before a stall was suspected to its
+     *         detection, which bounds how late it was detected
+     */
+    long getMaxDetectionLatencyMs() {
+        return mMaxDetectionLatencyMs;
+    }
+
+    /** @return the average of the detection latencies */
+    long getAverageDetectionLatencyMs() {
+        return mStallCount > 0 ? mTotalDetectionLatencyMs / mStallCount : 0;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("DataStallDetector: txPkts=" + mTxPkts + " rxPkts=" + mRxPkts
+                + " sentSinceLastRecv=" + mSentSinceLastRecv + " idleSamples=" + mIdleSamples
+                + " suspected=" + isStallSuspected());
+        pw.println("  samples=" + mSampleCount + " stalls=" + mStallCount
+                + " falsePositives=" + mFalsePositiveCount
+                + " avgDetectionLatencyMs=" + getAverageDetectionLatencyMs()
+                + " maxDetectionLatencyMs=" + mMaxDetectionLatencyMs);
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Schedules the data call setups of {@link DcTracker}, so that the APN contexts are brought up
+ * concurrently, up to the number of data calls the modem can set up at once.
+ *
+ * The setups started over the limit are queued in order, and started as the ones in flight
+ * complete. The scheduler also measures the time to bring up all the APN contexts: a bring-up
+ * round starts with a setup while none is in flight, and ends when none is in flight or queued.
+ */
+class DcBringUpScheduler {
+    /** No limit on the number of setups in flight. */
+    static final int UNLIMITED = Integer.MAX_VALUE;
+
+    // ApnContext -> its setup in flight
+    private final HashMap<ApnContext, Setup> mInFlight = new HashMap<>();
+    private final ArrayDeque<ApnContext> mQueue = new ArrayDeque<>();
+    private int mMaxInFlight = UNLIMITED;
+
+    private long mRoundStartMs = -1;
+    private int mRoundCount;
+    private long mLastRoundMs;
+    private long mMaxRoundMs;
+    private int mMaxConcurrent;
+    // APN type -> latency of its last setup
+    private final HashMap<String, Long> mLastSetupLatencyMs = new HashMap<>();
+
+    /**
+     * Set the number of setups which may be in flight at once.
+     *
+     * @param maxInFlight the limit, at least 1, or {@link #UNLIMITED}
+     */
+    void setMaxInFlight(int maxInFlight) {
+        mMaxInFlight = Math.max(1, maxInFlight);
+    }
+
+    int getMaxInFlight() {
+        return mMaxInFlight;
+    }
+
+    /**
+     * @return whether a setup can start now, without going over the limit or overtaking a
+     *         queued one
+     */
+    boolean canStart() {
+        return mQueue.isEmpty() && mInFlight.size() < mMaxInFlight;
+    }
+
+    /**
+     * Queue the setup of an APN context, to start when {@link #pollNext} returns it.
+     */
+    void enqueue(ApnContext apnContext) {
+        if (!mQueue.contains(apnContext)) {
+            mQueue.add(apnContext);
+        }
+    }
+
+    /**
+     * @return the next queued APN context if a setup can start now, or null
+     */
+    ApnContext pollNext() {
+        if (mInFlight.size() >= mMaxInFlight) {
+            return null;
+        }
+        return mQueue.poll();
+    }
+
+    /**
+     * Note that the setup of an APN context, admitted by {@link #canStart} or {@link #pollNext},
+     * was requested from its data connection.
+     *
+     * @param generation the connection generation of the setup
+     * @param nowMs the current elapsed realtime
+     */
+    void onSetupStarted(ApnContext apnContext, int generation, long nowMs) {
+        mQueue.remove(apnContext);
+        if (mInFlight.isEmpty() && mRoundStartMs < 0) {
+            mRoundStartMs = nowMs;
+        }
+        mInFlight.put(apnContext, new Setup(generation, nowMs));
+        mMaxConcurrent = Math.max(mMaxConcurrent, mInFlight.size());
+    }
+
+    /**
+     * Note that a setup of an APN context completed, successfully or not, or was abandoned. Only
+     * releases the setup in flight if it has the same generation, as an older one was already
+     * replaced by it.
+     *
+     * @param generation the connection generation of the setup
+     * @param nowMs the current elapsed realtime
+     * @return the setup latency, or -1 if the setup wasn't in flight
+     */
+    long onSetupComplete(ApnContext apnContext, int generation, long nowMs) {
+        Setup setup = mInFlight.get(apnContext);
+        long latencyMs = -1;
+        if (setup != null && setup.mGeneration == generation) {
+            mInFlight.remove(apnContext);
+            latencyMs = nowMs - setup.mStartMs;
+            mLastSetupLatencyMs.put(apnContext.getApnType(), latencyMs);
+        }
+        maybeEndRound(nowMs);
+        return latencyMs;
+    }
+
+    /**
+     * Drop the queued setups and stop counting the ones in flight, when the data connections
+     * are cleaned up.
+     *
+     * @param nowMs the current elapsed realtime
+     */
+    void reset(long nowMs) {
+        mQueue.clear();
+        mInFlight.clear();
+        maybeEndRound(nowMs);
+    }
+
+    private void maybeEndRound(long nowMs) {
+        if (mRoundStartMs >= 0 && mInFlight.isEmpty() && mQueue.isEmpty()) {
+            mLastRoundMs = nowMs - mRoundStartMs;
+            mMaxRoundMs = Math.max(mMaxRoundMs, mLastRoundMs);
+            mRoundCount++;
+            mRoundStartMs = -1;
+        }
+    }
+
+    int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    int getQueuedCount() {
+        return mQueue.size();
+    }
+
+    /** @return the most setups which were in flight at once */
+    int getMaxConcurrent() {
+        return mMaxConcurrent;
+    }
+
+    /** @return the number of bring-up rounds completed */
+    int getRoundCount() {
+        return mRoundCount;
+    }
+
+    /** @return the time the last bring-up round took, from its first setup to its last */
+    long getLastRoundMs() {
+        return mLastRoundMs;
+    }
+
+    long getMaxRoundMs() {
+        return mMaxRoundMs;
+    }
+
+    /**
+     * @return the latency of the last setup of an APN type, or -1 if none completed
+     */
+    long getLastSetupLatencyMs(String apnType) {
+        Long latencyMs = mLastSetupLatencyMs.get(apnType);
+        return latencyMs != null ? latencyMs : -1;
+    }
+
+    private static final class Setup {
+        final int mGeneration;
+        final long mStartMs;
+
+        Setup(int generation, long startMs) {
+            mGeneration = generation;
+            mStartMs = startMs;
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("DcBringUpScheduler: maxInFlight="
+                + (mMaxInFlight == UNLIMITED ? "unlimited" : String.valueOf(mMaxInFlight))
+                + " inFlight=" + mInFlight.size() + " queued=" + mQueue.size()
+                + " maxConcurrent=" + mMaxConcurrent);
+        pw.println("  rounds=" + mRoundCount + " lastRoundMs=" + mLastRoundMs
+                + " maxRoundMs=" + mMaxRoundMs);
+        for (Map.Entry<String, Long> entry : mLastSetupLatencyMs.entrySet()) {
+            pw.println("  " + entry.getKey() + ": lastSetupLatencyMs=" + entry.getValue());
+        }
+    }
+}
@@ -34,6 +34,7 @@ import android.telephony.data.DataCallResponse;
 
 import com.android.internal.telephony.DctConstants;
 import com.android.internal.telephony.Phone;
+import com.android.internal.telephony.dataconnection.DataConnection.SetupResult;
 import com.android.internal.telephony.dataconnection.DataConnection.UpdateLinkPropertyResult;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
@@ -63,6 +64,14 @@ public class DcController extends StateMachine {
     final ArrayList<DataConnection> mDcListAll = new ArrayList<>();
     // @GuardedBy("mDcListAll")
     private final HashMap<Integer, DataConnection> mDcListActiveByCid = new HashMap<>();
+    // The last data call response applied to the link properties of the active DC of each cid,
+    // so that the unchanged entries of the data call lists are skipped
+    // @GuardedBy("mDcListAll")
+    private final HashMap<Integer, DataCallResponse> mAppliedResponseByCid = new HashMap<>();
+
+    // Number of data call list entries of active calls skipped as unchanged, and applied
+    private long mSkippedUpdateCount;
+    private long mAppliedUpdateCount;
 
     private DccDefaultState mDccDefaultState = new DccDefaultState();
 
@@ -136,6 +145,7 @@ public class DcController extends StateMachine {
     void removeDc(DataConnection dc) {
         synchronized (mDcListAll) {
             mDcListActiveByCid.remove(dc.mCid);
+            mAppliedResponseByCid.remove(dc.mCid);
             mDcListAll.remove(dc);
         }
     }
@@ -146,6 +156,7 @@ public class DcController extends StateMachine {
         }
         synchronized (mDcListAll) {
             mDcListActiveByCid.put(dc.mCid, dc);
+            mAppliedResponseByCid.remove(dc.mCid);
         }
     }
 
@@ -158,6 +169,7 @@ public class DcController extends StateMachine {
     void removeActiveDcByCid(DataConnection dc) {
         synchronized (mDcListAll) {
             DataConnection removedDc = mDcListActiveByCid.remove(dc.mCid);
+            mAppliedResponseByCid.remove(dc.mCid);
             if (DBG && removedDc == null) {
                 log("removeActiveDcByCid removedDc=null dc=" + dc);
             }
@@ -229,20 +241,18 @@ public class DcController extends StateMachine {
          * @param dcsList as sent by RIL_UNSOL_DATA_CALL_LIST_CHANGED
          */
         private void onDataStateChanged(ArrayList<DataCallResponse> dcsList) {
-            final ArrayList<DataConnection> dcListAll;
             final HashMap<Integer, DataConnection> dcListActiveByCid;
             synchronized (mDcListAll) {
-                dcListAll = new ArrayList<>(mDcListAll);
                 dcListActiveByCid = new HashMap<>(mDcListActiveByCid);
+                if (VDBG) {
+                    log("onDataStateChanged: mDcListAll=" + mDcListAll);
+                }
             }
 
             if (DBG) {
                 lr("onDataStateChanged: dcsList=" + dcsList
                         + " dcListActiveByCid=" + dcListActiveByCid);
             }
-            if (VDBG) {
-                log("onDataStateChanged: mDcListAll=" + dcListAll);
-            }
 
             // Create hashmap of cid to DataCallResponse
             HashMap<Integer, DataCallResponse> dataCallResponseListByCid =
@@ -281,6 +291,11 @@ public class DcController extends StateMachine {
                 List<ApnContext> apnContexts = dc.getApnContexts();
                 if (apnContexts.size() == 0) {
                     if (DBG) loge("onDataStateChanged: no connected apns, ignore");
+                } else if (newState.getLinkStatus() != DataConnActiveStatus.INACTIVE
+                        && newState.equals(getAppliedResponse(newState.getId()))) {
+                    // Its link properties were already updated from the same response
+                    mSkippedUpdateCount++;
+                    if (VDBG) log("onDataStateChanged: same response, skip cid=" + dc.mCid);
                 } else {
                     // Determine if the connection/apnContext should be cleaned up
                     // or just a notification should be sent out.
@@ -317,7 +332,11 @@ public class DcController extends StateMachine {
                         }
                     } else {
                         // Its active so update the DataConnections link properties
+                        mAppliedUpdateCount++;
                         UpdateLinkPropertyResult result = dc.updateLinkProperty(newState);
+                        if (result.setupResult == SetupResult.SUCCESS) {
+                            setAppliedResponse(newState.getId(), newState);
+                        }
                         if (result.oldLp.equals(result.newLp)) {
                             if (DBG) log("onDataStateChanged: no change");
                         } else {
@@ -425,6 +444,33 @@ public class DcController extends StateMachine {
         }
     }
 
+    private DataCallResponse getAppliedResponse(int cid) {
+        synchronized (mDcListAll) {
+            return mAppliedResponseByCid.get(cid);
+        }
+    }
+
+    private void setAppliedResponse(int cid, DataCallResponse response) {
+        synchronized (mDcListAll) {
+            mAppliedResponseByCid.put(cid, response);
+        }
+    }
+
+    /**
+     * @return the number of data call list entries of active calls skipped as unchanged
+     */
+    long getSkippedUpdateCount() {
+        return mSkippedUpdateCount;
+    }
+
+    /**
+     * @return the number of data call list entries of active calls applied to their link
+     *         properties
+     */
+    long getAppliedUpdateCount() {
+        return mAppliedUpdateCount;
+    }
+
     /**
      * lr is short name for logAndAddLogRec
      * @param s
@@ -468,5 +514,7 @@ public class DcController extends StateMachine {
             pw.println(" mDcListAll=" + mDcListAll);
             pw.println(" mDcListActiveByCid=" + mDcListActiveByCid);
         }
+        pw.println(" mSkippedUpdateCount=" + mSkippedUpdateCount
+                + " mAppliedUpdateCount=" + mAppliedUpdateCount);
     }
 }
@@ -98,6 +98,7 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.DctConstants;
 import com.android.internal.telephony.EventLogTags;
 import com.android.internal.telephony.GsmCdmaPhone;
+import com.android.internal.telephony.HardwareConfig;
 import com.android.internal.telephony.ITelephony;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneConstants;
@@ -105,6 +106,7 @@ import com.android.internal.telephony.PhoneFactory;
 import com.android.internal.telephony.PhoneSwitcher;
 import com.android.internal.telephony.RILConstants;
 import com.android.internal.telephony.SettingsObserver;
+import com.android.internal.telephony.TelephonyDevController;
 import com.android.internal.telephony.TelephonyIntents;
 import com.android.internal.telephony.dataconnection.DataConnectionReasons.DataAllowedReasonType;
 import com.android.internal.telephony.dataconnection.DataConnectionReasons.DataDisallowedReasonType;
@@ -126,6 +128,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -247,6 +250,8 @@ public class DcTracker extends Handler {
     private static final int POLL_NETSTAT_MILLIS = 1000;
     // 10 min. default polling interval when screen is off.
     private static final int POLL_NETSTAT_SCREEN_OFF_MILLIS = 1000*60*10;
+    // Longest polling interval when screen is on, when backing off without any traffic
+    private static final int POLL_NETSTAT_IDLE_MAX_MILLIS = 1000 * 8;
     // Default sent packets without ack which triggers initial recovery steps
     private static final int NUMBER_SENT_PACKETS_OF_HANG = 10;
 
@@ -254,6 +259,9 @@ public class DcTracker extends Handler {
     private static final int DATA_STALL_ALARM_NON_AGGRESSIVE_DELAY_IN_MS_DEFAULT = 1000 * 60 * 6;
     // Default for the data stall alarm for aggressive stall detection
     private static final int DATA_STALL_ALARM_AGGRESSIVE_DELAY_IN_MS_DEFAULT = 1000 * 60;
+    // Longest delay of the data stall alarm when screen is off, when backing off without any
+    // traffic
+    private static final int DATA_STALL_ALARM_MAX_DELAY_IN_MS = 1000 * 60 * 30;
 
     private static final boolean DATA_STALL_SUSPECTED = true;
     private static final boolean DATA_STALL_NOT_SUSPECTED = false;
@@ -289,6 +297,12 @@ public class DcTracker extends Handler {
     /** all APN settings applicable to the current carrier */
     private ArrayList<ApnSetting> mAllApnSettings = new ArrayList<>();
 
+    /** APNs of mAllApnSettings by APN type and network type, cleared when it changes */
+    private final ApnCandidateIndex mApnCandidateIndex = new ApnCandidateIndex(mAllApnSettings);
+
+    /** Limits the data call setups in flight, and measures how long bringing them up takes */
+    private final DcBringUpScheduler mBringUpScheduler = new DcBringUpScheduler();
+
     /** preferred apn */
     private ApnSetting mPreferredApn = null;
 
@@ -430,8 +444,11 @@ public class DcTracker extends Handler {
             updateDataActivity();
 
             if (mIsScreenOn) {
-                mNetStatPollPeriod = Settings.Global.getInt(mResolver,
+                // Back off while there is no traffic to show
+                int pollPeriod = Settings.Global.getInt(mResolver,
                         Settings.Global.PDP_WATCHDOG_POLL_INTERVAL_MS, POLL_NETSTAT_MILLIS);
+                mNetStatPollPeriod = (int) DataStallDetector.getBackOffDelayMs(pollPeriod,
+                        Math.max(pollPeriod, POLL_NETSTAT_IDLE_MAX_MILLIS), mNetStatIdlePolls);
             } else {
                 mNetStatPollPeriod = Settings.Global.getInt(mResolver,
                         Settings.Global.PDP_WATCHDOG_LONG_POLL_INTERVAL_MS,
@@ -543,14 +560,6 @@ public class DcTracker extends Handler {
             return "{txSum=" + txPkts + " rxSum=" + rxPkts + "}";
         }
 
-        /**
-         * Get Tcp Tx/Rx packet count from TrafficStats
-         */
-        public void updateTcpTxRxSum() {
-            this.txPkts = TrafficStats.getMobileTcpTxPackets();
-            this.rxPkts = TrafficStats.getMobileTcpRxPackets();
-        }
-
         /**
          * Get total Tx/Rx packet count from TrafficStats
          */
@@ -647,15 +656,16 @@ public class DcTracker extends Handler {
     private long mTxPkts;
     private long mRxPkts;
     private int mNetStatPollPeriod;
+    // Number of activity polls in a row without any traffic
+    private int mNetStatIdlePolls;
     private boolean mNetStatPollEnabled = false;
 
-    private TxRxSum mDataStallTxRxSum = new TxRxSum(0, 0);
+    private final DataStallDetector mDataStallDetector =
+            new DataStallDetector(DataStallDetector.MOBILE_TCP_COUNTERS);
     // Used to track stale data stall alarms.
     private int mDataStallAlarmTag = (int) SystemClock.elapsedRealtime();
     // The current data stall alarm intent
     private PendingIntent mDataStallAlarmIntent = null;
-    // Number of packets sent since the last received packet
-    private long mSentSinceLastRecv;
     // Controls when a simple recovery attempt it to be tried
     private int mNoRecvPollCount = 0;
     // Reference counter for enabling fail fast
@@ -1526,11 +1536,63 @@ public class DcTracker extends Handler {
             log("setupDataOnAllConnectableApns: " + reason + " " + sb);
         }
 
+        updateMaxConcurrentSetups();
+        setupQueuedApns();
         for (ApnContext apnContext : mPrioritySortedApnContexts) {
             setupDataOnConnectableApn(apnContext, reason, retryFailures);
         }
     }
 
+    /**
+     * Update the number of data calls which can be set up at once, which is the number of data
+     * calls the modem supports, or one if only a single data connection is allowed.
+     */
+    private void updateMaxConcurrentSetups() {
+        int radioTech = getDataRat();
+        if (radioTech == ServiceState.RIL_RADIO_TECHNOLOGY_UNKNOWN) {
+            radioTech = getVoiceRat();
+        }
+        int maxInFlight = DcBringUpScheduler.UNLIMITED;
+        if (isOnlySingleDcAllowed(radioTech)) {
+            maxInFlight = 1;
+        } else {
+            int modemCount = TelephonyDevController.getModemCount();
+            if (modemCount > 0) {
+                HardwareConfig modem = TelephonyDevController.getInstance().getModem(
+                        Math.min(mPhone.getPhoneId(), modemCount - 1));
+                if (modem != null && modem.maxActiveDataCall > 0) {
+                    maxInFlight = modem.maxActiveDataCall;
+                }
+            }
+        }
+        mBringUpScheduler.setMaxInFlight(maxInFlight);
+    }
+
+    /**
+     * Start the queued data call setups, as far as the number of setups in flight allows.
+     */
+    private void setupQueuedApns() {
+        ApnContext apnContext;
+        while ((apnContext = mBringUpScheduler.pollNext()) != null) {
+            if (apnContext.isConnectable()) {
+                if (DBG) log("setupQueuedApns: " + apnContext.getApnType());
+                trySetupAdmittedData(apnContext);
+            }
+        }
+    }
+
+    /**
+     * Set up data for an APN context admitted by the bring-up scheduler, and count the setup
+     * against its limit if it was started.
+     */
+    private void trySetupAdmittedData(ApnContext apnContext) {
+        if (trySetupData(apnContext, REQUEST_TYPE_NORMAL)
+                && apnContext.getState() == DctConstants.State.CONNECTING) {
+            mBringUpScheduler.onSetupStarted(apnContext, apnContext.getConnectionGeneration(),
+                    SystemClock.elapsedRealtime());
+        }
+    }
+
     private void setupDataOnConnectableApn(ApnContext apnContext, String reason,
             RetryFailures retryFailures) {
         if (VDBG) log("setupDataOnAllConnectableApns: apnContext " + apnContext);
@@ -1546,9 +1608,15 @@ public class DcTracker extends Handler {
             }
         }
         if (apnContext.isConnectable()) {
-            log("isConnectable() call trySetupData");
             apnContext.setReason(reason);
-            trySetupData(apnContext, REQUEST_TYPE_NORMAL);
+            if (!mBringUpScheduler.canStart()) {
+                // Set up once enough of the setups in flight complete
+                log("isConnectable() queue setup of " + apnContext.getApnType());
+                mBringUpScheduler.enqueue(apnContext);
+                return;
+            }
+            log("isConnectable() call trySetupData");
+            trySetupAdmittedData(apnContext);
         }
     }
 
@@ -1695,6 +1763,7 @@ public class DcTracker extends Handler {
             }
         }
 
+        mBringUpScheduler.reset(SystemClock.elapsedRealtime());
         stopNetStatPoll();
         stopDataStallAlarm();
 
@@ -2153,10 +2222,18 @@ public class DcTracker extends Handler {
             ((GsmCdmaPhone)mPhone).updateCurrentCarrierInProvider();
         }
 
-        // TODO: It'd be nice to only do this if the changed entrie(s)
-        // match the current operator.
-        if (DBG) log("onApnChanged: createAllApnList and cleanUpAllConnections");
+        ArrayList<ApnSetting> oldApnSettings = new ArrayList<>(mAllApnSettings);
+        ApnSetting oldPreferredApn = mPreferredApn;
+        if (DBG) log("onApnChanged: createAllApnList");
         createAllApnList();
+        if (mAllApnSettings.equals(oldApnSettings)
+                && Objects.equals(mPreferredApn, oldPreferredApn)) {
+            // Only APNs of other carriers changed, don't disturb the data connections
+            if (DBG) log("onApnChanged: APNs of the current carrier are unchanged");
+            return;
+        }
+
+        if (DBG) log("onApnChanged: cleanUpConnectionsOnUpdatedApns");
         setDataProfilesAsNeeded();
         setInitialAttachApn();
         cleanUpConnectionsOnUpdatedApns(!isDisconnected, Phone.REASON_APN_CHANGED);
@@ -2325,6 +2402,7 @@ public class DcTracker extends Handler {
 
         cleanUpAllConnectionsInternal(true, Phone.REASON_SIM_NOT_READY);
         mAllApnSettings.clear();
+        mApnCandidateIndex.clear();
         mAutoAttachOnCreationConfig = false;
         // Clear auto attach as modem is expected to do a new attach once SIM is ready
         mAutoAttachEnabled.set(false);
@@ -2795,6 +2873,19 @@ public class DcTracker extends Handler {
         startDataStallAlarm(DATA_STALL_NOT_SUSPECTED);
     }
 
+    private void onBringUpComplete(ApnContext apnContext, int generation) {
+        int roundCount = mBringUpScheduler.getRoundCount();
+        long latencyMs = mBringUpScheduler.onSetupComplete(apnContext, generation,
+                SystemClock.elapsedRealtime());
+        if (DBG && latencyMs >= 0) {
+            log("onBringUpComplete: " + apnContext.getApnType() + " latencyMs=" + latencyMs);
+            if (mBringUpScheduler.getRoundCount() != roundCount) {
+                log("onBringUpComplete: all setups done in "
+                        + mBringUpScheduler.getLastRoundMs() + "ms");
+            }
+        }
+    }
+
     /**
      * A SETUP (aka bringUp) has completed, possibly with an error. If
      * there is an error this method will call {@link #onDataSetupCompleteError}.
@@ -3203,6 +3294,7 @@ public class DcTracker extends Handler {
      */
     private void createAllApnList() {
         mAllApnSettings.clear();
+        mApnCandidateIndex.clear();
         IccRecords r = mIccRecords.get();
         String operator = (r != null) ? r.getOperatorNumeric() : "";
 
@@ -3249,31 +3341,55 @@ public class DcTracker extends Handler {
     }
 
     private void dedupeApnSettings() {
-        ArrayList<ApnSetting> resultApns = new ArrayList<ApnSetting>();
-
-        // coalesce APNs if they are similar enough to prevent
-        // us from bringing up two data calls with the same interface
-        int i = 0;
-        while (i < mAllApnSettings.size() - 1) {
-            ApnSetting first = mAllApnSettings.get(i);
-            ApnSetting second = null;
-            int j = i + 1;
-            while (j < mAllApnSettings.size()) {
-                second = mAllApnSettings.get(j);
-                if (first.similar(second)) {
-                    ApnSetting newApn = mergeApns(first, second);
-                    mAllApnSettings.set(i, newApn);
-                    first = newApn;
-                    mAllApnSettings.remove(j);
-                } else {
-                    j++;
+        ArrayList<ApnSetting> resultApns = dedupeApnSettings(mAllApnSettings);
+        mAllApnSettings.clear();
+        mAllApnSettings.addAll(resultApns);
+    }
+
+    /**
+     * Coalesce APNs if they are similar enough to prevent us from bringing up two data calls
+     * with the same interface. Each APN is merged into the first earlier one it is similar to.
+     */
+    @VisibleForTesting
+    static ArrayList<ApnSetting> dedupeApnSettings(List<ApnSetting> apns) {
+        ArrayList<ApnSetting> resultApns = new ArrayList<ApnSetting>(apns.size());
+        // Only APNs with the same key can be similar, so an APN is only compared to those.
+        // Merging keeps the key of the first APN.
+        HashMap<List<Object>, ArrayList<Integer>> resultIndexesByKey = new HashMap<>();
+        for (ApnSetting apn : apns) {
+            List<Object> key = getSimilarityKey(apn);
+            ArrayList<Integer> resultIndexes = resultIndexesByKey.get(key);
+            if (resultIndexes == null) {
+                resultIndexes = new ArrayList<>();
+                resultIndexesByKey.put(key, resultIndexes);
+            }
+
+            boolean merged = false;
+            for (int i : resultIndexes) {
+                ApnSetting first = resultApns.get(i);
+                if (first.similar(apn)) {
+                    resultApns.set(i, mergeApns(first, apn));
+                    merged = true;
+                    break;
                 }
             }
-            i++;
+            if (!merged) {
+                resultIndexes.add(resultApns.size());
+                resultApns.add(apn);
+            }
         }
+        return resultApns;
     }
 
-    private ApnSetting mergeApns(ApnSetting dest, ApnSetting src) {
+    /**
+     * @return the fields which {@link ApnSetting#similar} requires to be equal
+     */
+    private static List<Object> getSimilarityKey(ApnSetting apn) {
+        return Arrays.asList(apn.getApnName(), apn.isEnabled(), apn.getProfileId(),
+                apn.getMvnoType(), apn.getMvnoMatchData());
+    }
+
+    private static ApnSetting mergeApns(ApnSetting dest, ApnSetting src) {
         int id = dest.getId();
         if ((src.getApnTypeBitmask() & ApnSetting.TYPE_DEFAULT) == ApnSetting.TYPE_DEFAULT) {
             id = src.getId();
@@ -3399,26 +3515,9 @@ public class DcTracker extends Handler {
             }
         }
 
-        if (DBG) log("buildWaitingApns: mAllApnSettings=" + mAllApnSettings);
-        for (ApnSetting apn : mAllApnSettings) {
-            if (apn.canHandleType(requestedApnTypeBitmask)) {
-                if (apn.canSupportNetworkType(
-                        ServiceState.rilRadioTechnologyToNetworkType(radioTech))) {
-                    if (VDBG) log("buildWaitingApns: adding apn=" + apn);
-                    apnList.add(apn);
-                } else {
-                    if (DBG) {
-                        log("buildWaitingApns: networkTypeBitmask:"
-                                + apn.getNetworkTypeBitmask()
-                                + " does not include radioTech:"
-                                + ServiceState.rilRadioTechnologyToString(radioTech));
-                    }
-                }
-            } else if (VDBG) {
-                log("buildWaitingApns: couldn't handle requested ApnType="
-                        + requestedApnType);
-            }
-        }
+        if (VDBG) log("buildWaitingApns: mAllApnSettings=" + mAllApnSettings);
+        apnList.addAll(mApnCandidateIndex.getCandidates(requestedApnTypeBitmask,
+                ServiceState.rilRadioTechnologyToNetworkType(radioTech)));
 
         apnList = sortApnListByPreferred(apnList);
         if (DBG) log("buildWaitingApns: " + apnList.size() + " APNs in the list: " + apnList);
@@ -3702,6 +3801,8 @@ public class DcTracker extends Handler {
                 apnContext = pair.first;
                 generation = pair.second;
                 requestType = msg.arg2;
+                // Release the setup whatever its outcome, stale ones included
+                onBringUpComplete(apnContext, generation);
                 if (apnContext.getConnectionGeneration() == generation) {
                     boolean success = true;
                     int cause = DataFailCause.UNKNOWN;
@@ -3714,6 +3815,7 @@ public class DcTracker extends Handler {
                     loge("EVENT_DATA_SETUP_COMPLETE: Dropped the event because generation "
                             + "did not match.");
                 }
+                setupQueuedApns();
                 break;
 
             case DctConstants.EVENT_DATA_SETUP_COMPLETE_ERROR:
@@ -3722,12 +3824,14 @@ public class DcTracker extends Handler {
                 apnContext = pair.first;
                 generation = pair.second;
                 requestType = msg.arg2;
+                onBringUpComplete(apnContext, generation);
                 if (apnContext.getConnectionGeneration() == generation) {
                     onDataSetupCompleteError(apnContext, requestType);
                 } else {
                     loge("EVENT_DATA_SETUP_COMPLETE_ERROR: Dropped the event because generation "
                             + "did not match.");
                 }
+                setupQueuedApns();
                 break;
 
             case DctConstants.EVENT_DISCONNECT_DONE:
@@ -3736,12 +3840,15 @@ public class DcTracker extends Handler {
                 pair = (Pair<ApnContext, Integer>) ar.userObj;
                 apnContext = pair.first;
                 generation = pair.second;
+                // A setup torn down before it completed no longer holds up the others
+                onBringUpComplete(apnContext, generation);
                 if (apnContext.getConnectionGeneration() == generation) {
                     onDisconnectDone(apnContext);
                 } else {
                     loge("EVENT_DISCONNECT_DONE: Dropped the event because generation "
                             + "did not match.");
                 }
+                setupQueuedApns();
                 break;
 
             case DctConstants.EVENT_VOICE_CALL_STARTED:
@@ -4232,12 +4339,13 @@ public class DcTracker extends Handler {
         pw.println(" mTxPkts=" + mTxPkts);
         pw.println(" mRxPkts=" + mRxPkts);
         pw.println(" mNetStatPollPeriod=" + mNetStatPollPeriod);
+        pw.println(" mNetStatIdlePolls=" + mNetStatIdlePolls);
         pw.println(" mNetStatPollEnabled=" + mNetStatPollEnabled);
-        pw.println(" mDataStallTxRxSum=" + mDataStallTxRxSum);
         pw.println(" mDataStallAlarmTag=" + mDataStallAlarmTag);
         pw.println(" mDataStallNoRxEnabled=" + mDataStallNoRxEnabled);
         pw.println(" mEmergencyApn=" + mEmergencyApn);
-        pw.println(" mSentSinceLastRecv=" + mSentSinceLastRecv);
+        mDataStallDetector.dump(pw);
+        mBringUpScheduler.dump(pw);
         pw.println(" mNoRecvPollCount=" + mNoRecvPollCount);
         pw.println(" mResolver=" + mResolver);
         pw.println(" mReconnectIntent=" + mReconnectIntent);
@@ -4455,7 +4563,13 @@ public class DcTracker extends Handler {
                         || !containsAllApns(currentWaitingApns, waitingApns))) {
                     if (VDBG) log("new waiting apn is different for " + apnContext);
                     apnContext.setWaitingApns(waitingApns);
-                    if (!apnContext.isDisconnected()) {
+                    // After an APN change, a connection whose APN is still unchanged and usable
+                    // can stay up
+                    ApnSetting apnSetting = apnContext.getApnSetting();
+                    if (Phone.REASON_APN_CHANGED.equals(reason) && apnSetting != null
+                            && waitingApns.contains(apnSetting)) {
+                        if (VDBG) log("cleanUpConnectionsOnUpdatedApns: keep " + apnContext);
+                    } else if (!apnContext.isDisconnected()) {
                         if (VDBG) log("cleanUpConnectionsOnUpdatedApns for " + apnContext);
                         apnContext.setReason(reason);
                         cleanUpConnectionInternal(true, RELEASE_TYPE_DETACH, apnContext);
@@ -4484,6 +4598,7 @@ public class DcTracker extends Handler {
         mTxPkts = -1;
         mRxPkts = -1;
         mNetStatPollPeriod = POLL_NETSTAT_MILLIS;
+        mNetStatIdlePolls = 0;
     }
 
     private void startNetStatPoll() {
@@ -4590,6 +4705,7 @@ public class DcTracker extends Handler {
                 newActivity = (mActivity == DctConstants.Activity.DORMANT) ?
                         mActivity : DctConstants.Activity.NONE;
             }
+            mNetStatIdlePolls = (sent > 0 || received > 0) ? 0 : mNetStatIdlePolls + 1;
 
             if (mActivity != newActivity && mIsScreenOn) {
                 if (VDBG)
@@ -4766,14 +4882,14 @@ public class DcTracker extends Handler {
                 switch (recoveryAction) {
                     case RECOVERY_ACTION_GET_DATA_CALL_LIST:
                         EventLog.writeEvent(EventLogTags.DATA_STALL_RECOVERY_GET_DATA_CALL_LIST,
-                            mSentSinceLastRecv);
+                            mDataStallDetector.getSentSinceLastRecv());
                         if (DBG) log("doRecovery() get data call list");
                         mDataServiceManager.requestDataCallList(obtainMessage());
                         putRecoveryAction(RECOVERY_ACTION_CLEANUP);
                         break;
                     case RECOVERY_ACTION_CLEANUP:
                         EventLog.writeEvent(EventLogTags.DATA_STALL_RECOVERY_CLEANUP,
-                            mSentSinceLastRecv);
+                            mDataStallDetector.getSentSinceLastRecv());
                         if (DBG) log("doRecovery() cleanup all connections");
                         cleanUpConnection(mApnContexts.get(ApnSetting.getApnTypeString(
                                 ApnSetting.TYPE_DEFAULT)));
@@ -4781,14 +4897,14 @@ public class DcTracker extends Handler {
                         break;
                     case RECOVERY_ACTION_REREGISTER:
                         EventLog.writeEvent(EventLogTags.DATA_STALL_RECOVERY_REREGISTER,
-                            mSentSinceLastRecv);
+                            mDataStallDetector.getSentSinceLastRecv());
                         if (DBG) log("doRecovery() re-register");
                         mPhone.getServiceStateTracker().reRegisterNetwork(null);
                         putRecoveryAction(RECOVERY_ACTION_RADIO_RESTART);
                         break;
                     case RECOVERY_ACTION_RADIO_RESTART:
                         EventLog.writeEvent(EventLogTags.DATA_STALL_RECOVERY_RADIO_RESTART,
-                            mSentSinceLastRecv);
+                            mDataStallDetector.getSentSinceLastRecv());
                         if (DBG) log("restarting radio");
                         restartRadio();
                         reset();
@@ -4797,7 +4913,8 @@ public class DcTracker extends Handler {
                         throw new RuntimeException("doRecovery: Invalid recoveryAction="
                             + recoveryAction);
                 }
-                mSentSinceLastRecv = 0;
+                mDataStallDetector.onRecoveryStep(
+                        recoveryAction != RECOVERY_ACTION_GET_DATA_CALL_LIST);
                 mTimeLastRecoveryStartMs = SystemClock.elapsedRealtime();
             }
         }
@@ -4830,43 +4947,22 @@ public class DcTracker extends Handler {
     }
 
     private void updateDataStallInfo() {
-        long sent, received;
-
-        TxRxSum preTxRxSum = new TxRxSum(mDataStallTxRxSum);
-        mDataStallTxRxSum.updateTcpTxRxSum();
-
-        if (VDBG_STALL) {
-            log("updateDataStallInfo: mDataStallTxRxSum=" + mDataStallTxRxSum +
-                    " preTxRxSum=" + preTxRxSum);
-        }
-
-        sent = mDataStallTxRxSum.txPkts - preTxRxSum.txPkts;
-        received = mDataStallTxRxSum.rxPkts - preTxRxSum.rxPkts;
-
+        boolean ignoreReceived = false;
         if (RADIO_TESTS) {
             if (SystemProperties.getBoolean("radio.test.data.stall", false)) {
                 log("updateDataStallInfo: radio.test.data.stall true received = 0;");
-                received = 0;
+                ignoreReceived = true;
             }
         }
-        if ( sent > 0 && received > 0 ) {
-            if (VDBG_STALL) log("updateDataStallInfo: IN/OUT");
-            mSentSinceLastRecv = 0;
+        if (mDataStallDetector.sample(SystemClock.elapsedRealtime(), isPhoneStateIdle(),
+                ignoreReceived)) {
+            if (VDBG_STALL) log("updateDataStallInfo: IN");
             mDsRecoveryHandler.reset();
-        } else if (sent > 0 && received == 0) {
-            if (isPhoneStateIdle()) {
-                mSentSinceLastRecv += sent;
-            } else {
-                mSentSinceLastRecv = 0;
-            }
+        } else if (mDataStallDetector.getSentSinceLastRecv() > 0) {
             if (DBG) {
-                log("updateDataStallInfo: OUT sent=" + sent +
-                        " mSentSinceLastRecv=" + mSentSinceLastRecv);
+                log("updateDataStallInfo: OUT mSentSinceLastRecv="
+                        + mDataStallDetector.getSentSinceLastRecv());
             }
-        } else if (sent == 0 && received > 0) {
-            if (VDBG_STALL) log("updateDataStallInfo: IN");
-            mSentSinceLastRecv = 0;
-            mDsRecoveryHandler.reset();
         } else {
             if (VDBG_STALL) log("updateDataStallInfo: NONE");
         }
@@ -4899,16 +4995,18 @@ public class DcTracker extends Handler {
                 NUMBER_SENT_PACKETS_OF_HANG);
 
         boolean suspectedStall = DATA_STALL_NOT_SUSPECTED;
-        if (mSentSinceLastRecv >= hangWatchdogTrigger) {
+        long sentSinceLastRecv = mDataStallDetector.getSentSinceLastRecv();
+        if (sentSinceLastRecv >= hangWatchdogTrigger) {
             if (DBG) {
                 log("onDataStallAlarm: tag=" + tag + " do recovery action="
                         + mDsRecoveryHandler.getRecoveryAction());
             }
             suspectedStall = DATA_STALL_SUSPECTED;
+            mDataStallDetector.onStallDetected(SystemClock.elapsedRealtime());
             sendMessage(obtainMessage(DctConstants.EVENT_DO_RECOVERY));
         } else {
             if (VDBG_STALL) {
-                log("onDataStallAlarm: tag=" + tag + " Sent " + String.valueOf(mSentSinceLastRecv) +
+                log("onDataStallAlarm: tag=" + tag + " Sent " + String.valueOf(sentSinceLastRecv) +
                     " pkts since last received, < watchdogTrigger=" + hangWatchdogTrigger);
             }
         }
@@ -4920,16 +5018,21 @@ public class DcTracker extends Handler {
 
         if (mDsRecoveryHandler.isNoRxDataStallDetectionEnabled()
                 && getOverallState() == DctConstants.State.CONNECTED) {
-            // If screen is on or data stall is currently suspected, set the alarm
-            // with an aggressive timeout.
-            if (mIsScreenOn || suspectedStall || mDsRecoveryHandler.isAggressiveRecovery()) {
-                delayInMs = Settings.Global.getInt(mResolver,
-                        Settings.Global.DATA_STALL_ALARM_AGGRESSIVE_DELAY_IN_MS,
-                        DATA_STALL_ALARM_AGGRESSIVE_DELAY_IN_MS_DEFAULT);
+            int aggressiveDelayInMs = Settings.Global.getInt(mResolver,
+                    Settings.Global.DATA_STALL_ALARM_AGGRESSIVE_DELAY_IN_MS,
+                    DATA_STALL_ALARM_AGGRESSIVE_DELAY_IN_MS_DEFAULT);
+            int nonAggressiveDelayInMs = Settings.Global.getInt(mResolver,
+                    Settings.Global.DATA_STALL_ALARM_NON_AGGRESSIVE_DELAY_IN_MS,
+                    DATA_STALL_ALARM_NON_AGGRESSIVE_DELAY_IN_MS_DEFAULT);
+            // If data stall is currently suspected or the screen is on, set the alarm with an
+            // aggressive timeout. Otherwise use the non-aggressive one, backed off while there is
+            // no traffic.
+            if (mIsScreenOn || suspectedStall || mDsRecoveryHandler.isAggressiveRecovery()
+                    || mDataStallDetector.isStallSuspected()) {
+                delayInMs = aggressiveDelayInMs;
             } else {
-                delayInMs = Settings.Global.getInt(mResolver,
-                        Settings.Global.DATA_STALL_ALARM_NON_AGGRESSIVE_DELAY_IN_MS,
-                        DATA_STALL_ALARM_NON_AGGRESSIVE_DELAY_IN_MS_DEFAULT);
+                delayInMs = (int) mDataStallDetector.getNextSampleDelayMs(nonAggressiveDelayInMs,
+                        Math.max(nonAggressiveDelayInMs, DATA_STALL_ALARM_MAX_DELAY_IN_MS));
             }
 
             mDataStallAlarmTag += 1;
@@ -4977,6 +5080,11 @@ public class DcTracker extends Handler {
         startDataStallAlarm(DATA_STALL_NOT_SUSPECTED);
     }
 
+    @VisibleForTesting
+    DataStallDetector getDataStallDetector() {
+        return mDataStallDetector;
+    }
+
     /**
      * Provisioning APN
      */
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.internal.telephony.metrics;
+
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.nano.TelephonyProto.RilRequestLatency;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RilLatencyMetrics records the latency of RIL requests per request type and phone, and converts
+ * them to RilRequestLatency proto bufs which are included in the Telephony proto buf.
+ *
+ * Each request contributes two samples: the time it waited between being obtained and being sent
+ * to the modem, and the time the modem took to respond. Samples are kept in log-linear
+ * histograms so percentiles are reported with a bounded relative error regardless of range.
+ * Recording only locks the stripe that the (phone, request) key falls in.
+ */
+public class RilLatencyMetrics {
+
+    private static final int STRIPE_COUNT = 16;
+
+    private final Object[] mLocks = new Object[STRIPE_COUNT];
+
+    @SuppressWarnings("unchecked")
+    private final SparseArray<Entry>[] mStripes = new SparseArray[STRIPE_COUNT];
+
+    public RilLatencyMetrics() {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mLocks[i] = new Object();
+            mStripes[i] = new SparseArray<>();
+        }
+    }
+
+    /**
+     * Record the latency of a completed RIL request.
+     *
+     * @param phoneId Phone id
+     * @param request RIL_REQUEST_* of the request
+     * @param queueMicros Time from obtaining the request to sending it, in microseconds
+     * @param modemMicros Time from sending the request to receiving the response, in microseconds
+     */
+    public void record(int phoneId, int request, long queueMicros, long modemMicros) {
+        int key = makeKey(phoneId, request);
+        int stripe = (key ^ (key >>> 16)) & (STRIPE_COUNT - 1);
+        synchronized (mLocks[stripe]) {
+            Entry entry = mStripes[stripe].get(key);
+            if (entry == null) {
+                entry = new Entry(phoneId, request);
+                mStripes[stripe].put(key, entry);
+            }
+            entry.queue.record(queueMicros);
+            entry.modem.record(modemMicros);
+        }
+    }
+
+    /**
+     * Build RilRequestLatency protos, one for each request type and phone seen so far.
+     * @return RilRequestLatency array
+     */
+    public RilRequestLatency[] buildProto() {
+        List<RilRequestLatency> list = new ArrayList<>();
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            synchronized (mLocks[i]) {
+                SparseArray<Entry> stripe = mStripes[i];
+                for (int j = 0; j < stripe.size(); j++) {
+                    Entry entry = stripe.valueAt(j);
+                    RilRequestLatency proto = new RilRequestLatency();
+                    proto.request = entry.request;
+                    proto.phoneId = entry.phoneId;
+                    proto.queueLatency = entry.queue.buildProto();
+                    proto.modemLatency = entry.modem.buildProto();
+                    list.add(proto);
+                }
+            }
+        }
+        return list.toArray(new RilRequestLatency[list.size()]);
+    }
+
+    /** Print the latency percentiles of each request type and phone. */
+    public void dump(IndentingPrintWriter pw) {
+        for (RilRequestLatency latency : buildProto()) {
+            pw.println("[" + latency.phoneId + "] request=" + latency.request
+                    + " queue(us)=" + percentilesToString(latency.queueLatency)
+                    + " modem(us)=" + percentilesToString(latency.modemLatency));
+        }
+    }
+
+    /** Clear all recorded samples. */
+    public void reset() {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            synchronized (mLocks[i]) {
+                mStripes[i].clear();
+            }
+        }
+    }
+
+    private static String percentilesToString(RilRequestLatency.Percentiles p) {
+        return "{n=" + p.count + " p50=" + p.p50Micros + " p90=" + p.p90Micros
+                + " p99=" + p.p99Micros + " p999=" + p.p999Micros + " max=" + p.maxMicros + "}";
+    }
+
+    private static int makeKey(int phoneId, int request) {
+        return (phoneId << 16) | (request & 0xFFFF);
+    }
+
+    private static class Entry {
+        final int phoneId;
+        final int request;
+        final LatencyHistogram queue = new LatencyHistogram();
+        final LatencyHistogram modem = new LatencyHistogram();
+
+        Entry(int phoneId, int request) {
+            this.phoneId = phoneId;
+            this.request = request;
+        }
+    }
+
+    /**
+     * Log-linear histogram of non-negative values. Values below {@link #SUB_BUCKETS} get a bucket
+     * each; above that every power of two is split into {@link #SUB_BUCKETS} equal buckets, which
+     * keeps the relative error of any reported value under 1 / SUB_BUCKETS. Not thread safe.
+     */
+    @VisibleForTesting
+    public static class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        // Enough buckets to cover every non-negative long value
+        private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final long[] mCounts = new long[BUCKET_COUNT];
+        private long mCount;
+        private long mMax;
+
+        /** Add a sample. Negative values are recorded as zero. */
+        public void record(long value) {
+            if (value < 0) value = 0;
+            mCounts[bucketOf(value)]++;
+            mCount++;
+            if (value > mMax) mMax = value;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * Returns the value at the given percentile, i.e. the highest value equivalent to the
+         * bucket holding that sample, capped by the largest sample seen.
+         *
+         * @param percentile Percentile in the range (0, 100]
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (mCount == 0) return 0;
+            long target = (long) Math.ceil(percentile / 100 * mCount);
+            if (target < 1) target = 1;
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mCounts[i];
+                if (seen >= target) {
+                    return Math.min(highestValueOf(i), mMax);
+                }
+            }
+            return mMax;
+        }
+
+        RilRequestLatency.Percentiles buildProto() {
+            RilRequestLatency.Percentiles p = new RilRequestLatency.Percentiles();
+            p.count = mCount;
+            p.p50Micros = getValueAtPercentile(50);
+            p.p90Micros = getValueAtPercentile(90);
+            p.p99Micros = getValueAtPercentile(99);
+            p.p999Micros = getValueAtPercentile(99.9);
+            p.maxMicros = mMax;
+            return p;
+        }
+
+        private static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+            return (shift + 1) * SUB_BUCKETS + sub;
+        }
+
+        private static long highestValueOf(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            int shift = bucket / SUB_BUCKETS - 1;
+            long sub = bucket % SUB_BUCKETS;
+            long upper = ((SUB_BUCKETS + sub + 1) << shift) - 1;
+            // The top bucket would overflow; it ends at the largest long.
+            return upper < 0 ? Long.MAX_VALUE : upper;
+        }
+    }
+}
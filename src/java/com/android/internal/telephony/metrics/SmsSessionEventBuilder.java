@@ -116,4 +116,10 @@ public class SmsSessionEventBuilder {
         mEvent.smsType = type;
         return this;
     }
+
+    /** Set details on an outgoing multipart SMS */
+    public SmsSessionEventBuilder setMultipartSmsSend(SmsSession.Event.MultipartSmsSend send) {
+        mEvent.multipartSmsSend = send;
+        return this;
+    }
 }
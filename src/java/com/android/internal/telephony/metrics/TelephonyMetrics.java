@@ -222,6 +222,9 @@ public class TelephonyMetrics {
     /** Indicating if some of the telephony events are dropped in this log */
     private boolean mTelephonyEventsDropped = false;
 
+    /** Latency of RIL requests. Has its own locking so it is not recorded under this lock. */
+    private final RilLatencyMetrics mRilLatencyMetrics = new RilLatencyMetrics();
+
     public TelephonyMetrics() {
         mStartSystemTimeMs = System.currentTimeMillis();
         mStartElapsedTimeMs = SystemClock.elapsedRealtime();
@@ -406,6 +409,8 @@ public class TelephonyMetrics {
                 return "SMS_RECEIVED";
             case SmsSession.Event.Type.INCOMPLETE_SMS_RECEIVED:
                 return "INCOMPLETE_SMS_RECEIVED";
+            case SmsSession.Event.Type.MULTIPART_SMS_SEND_RESULT:
+                return "MULTIPART_SMS_SEND_RESULT";
             default:
                 return Integer.toString(event);
         }
@@ -547,6 +552,15 @@ public class TelephonyMetrics {
                     pw.println("Received: " + event.incompleteSms.receivedParts + "/"
                             + event.incompleteSms.totalParts);
                     pw.decreaseIndent();
+                } else if (event.type == SmsSession.Event.Type.MULTIPART_SMS_SEND_RESULT) {
+                    SmsSession.Event.MultipartSmsSend send = event.multipartSmsSend;
+                    pw.increaseIndent();
+                    pw.println("Parts: " + send.totalParts + " window: " + send.windowSize
+                            + " failed: " + send.failedParts + " cancelled: "
+                            + send.cancelledParts + " retries: " + send.retries);
+                    pw.println("Latency (ms): " + send.messageLatencyMillis + " parts: "
+                            + Arrays.toString(send.partLatencyMillis));
+                    pw.decreaseIndent();
                 }
             }
             pw.decreaseIndent();
@@ -578,6 +592,10 @@ public class TelephonyMetrics {
         pw.println("Energy consumed across measured modem rails (mAh): "
                 + new DecimalFormat("#.##").format(s.monitoredRailEnergyConsumedMah));
         pw.decreaseIndent();
+        pw.println("RIL request latency:");
+        pw.increaseIndent();
+        mRilLatencyMetrics.dump(pw);
+        pw.decreaseIndent();
         pw.println("Hardware Version: " + SystemProperties.get("ro.boot.revision", ""));
     }
 
@@ -599,6 +617,7 @@ public class TelephonyMetrics {
         mTelephonyEvents.clear();
         mCompletedCallSessions.clear();
         mCompletedSmsSessions.clear();
+        mRilLatencyMetrics.reset();
 
         mTelephonyEventsDropped = false;
 
@@ -706,6 +725,9 @@ public class TelephonyMetrics {
             histogramProto.bucketCounters = rilHistogram.getBucketCounters();
         }
 
+        // Build RIL request latency metrics
+        log.rilRequestLatencies = mRilLatencyMetrics.buildProto();
+
         // Build modem power metrics
         log.modemPowerStats = new ModemPowerMetrics().buildProto();
 
@@ -1382,6 +1404,22 @@ public class TelephonyMetrics {
      */
     public void writeSetupDataCall(int phoneId, int radioTechnology, int profileId, String apn,
                                    int protocol) {
+        writeSetupDataCall(phoneId, radioTechnology, profileId, apn, protocol, 0);
+    }
+
+    /**
+     * Write setup data call event
+     *
+     * @param phoneId Phone id
+     * @param radioTechnology The data call RAT
+     * @param profileId Data profile id
+     * @param apn APN in string
+     * @param protocol Data connection protocol
+     * @param apnTypeBitmask APN types the data call is set up for
+     * @return The event, to pass to {@link #writeSetupDataCallLatency} when the setup completes
+     */
+    public RilSetupDataCall writeSetupDataCall(int phoneId, int radioTechnology, int profileId,
+            String apn, int protocol, int apnTypeBitmask) {
 
         RilSetupDataCall setupDataCall = new RilSetupDataCall();
         setupDataCall.rat = radioTechnology;
@@ -1391,9 +1429,22 @@ public class TelephonyMetrics {
         }
 
         setupDataCall.type = protocol + 1;
+        setupDataCall.apnTypeBitmask = apnTypeBitmask;
 
         addTelephonyEvent(new TelephonyEventBuilder(phoneId).setSetupDataCall(
                 setupDataCall).build());
+        return setupDataCall;
+    }
+
+    /**
+     * Write the latency of a data call setup into its setup data call event
+     *
+     * @param setupDataCall The event written when the setup was requested
+     * @param latencyMillis Time from the request to the completion of the setup
+     */
+    public synchronized void writeSetupDataCallLatency(RilSetupDataCall setupDataCall,
+            long latencyMillis) {
+        setupDataCall.setupLatencyMillis = (int) Math.min(latencyMillis, Integer.MAX_VALUE);
     }
 
     /**
@@ -1831,6 +1882,20 @@ public class TelephonyMetrics {
                 .setDeactivateDataCallResponse(rilError + 1).build());
     }
 
+    /**
+     * Write the latency of a completed RIL request. This is called for every solicited response,
+     * so it does not take the metrics lock.
+     *
+     * @param phoneId Phone id
+     * @param rilRequest RIL request
+     * @param queueMicros Time from obtaining the request to sending it, in microseconds
+     * @param modemMicros Time from sending the request to receiving the response, in microseconds
+     */
+    public void writeRilRequestLatency(int phoneId, int rilRequest, long queueMicros,
+            long modemMicros) {
+        mRilLatencyMetrics.record(phoneId, rilRequest, queueMicros, modemMicros);
+    }
+
     /**
      * Write RIL solicited response event
      *
@@ -2218,6 +2283,39 @@ public class TelephonyMetrics {
         smsSession.increaseExpectedResponse();
     }
 
+    /**
+     * Write the result of an outgoing multipart SMS sent with a window of parts in flight
+     *
+     * @param phoneId Phone id
+     * @param windowSize Maximum number of parts in flight
+     * @param failedParts Number of failed parts, including the parts not sent after a failure
+     * @param cancelledParts Number of parts not sent because another part failed
+     * @param retries Total number of send retries of the parts
+     * @param messageLatencyMillis Time from sending the first part to the completion of the last
+     * @param partLatencyMillis Time from sending each part to its completion, -1 if not sent
+     */
+    public synchronized void writeMultipartSmsSendResult(int phoneId, int windowSize,
+            int failedParts, int cancelledParts, int retries, long messageLatencyMillis,
+            long[] partLatencyMillis) {
+        SmsSession.Event.MultipartSmsSend send = new SmsSession.Event.MultipartSmsSend();
+        send.totalParts = partLatencyMillis.length;
+        send.windowSize = windowSize;
+        send.failedParts = failedParts;
+        send.cancelledParts = cancelledParts;
+        send.retries = retries;
+        send.messageLatencyMillis = (int) Math.min(messageLatencyMillis, Integer.MAX_VALUE);
+        send.partLatencyMillis = new int[partLatencyMillis.length];
+        for (int i = 0; i < partLatencyMillis.length; i++) {
+            send.partLatencyMillis[i] = (int) Math.min(partLatencyMillis[i], Integer.MAX_VALUE);
+        }
+
+        InProgressSmsSession smsSession = startNewSmsSessionIfNeeded(phoneId);
+        smsSession.addEvent(
+                new SmsSessionEventBuilder(SmsSession.Event.Type.MULTIPART_SMS_SEND_RESULT)
+                        .setMultipartSmsSend(send));
+        finishSmsSessionIfNeeded(smsSession);
+    }
+
     /**
      * Write incoming Broadcast SMS event
      *
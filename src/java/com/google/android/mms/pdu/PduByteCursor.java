@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cursor over the bytes of a pdu, used by {@link PduParser}.
+ *
+ * Reads like a {@link java.io.ByteArrayInputStream}, but from a {@link ByteBuffer} which may be a
+ * heap or a mapped buffer, without locking on every byte, and hands out the data of the parts as
+ * slices of the buffer instead of copies.
+ */
+public class PduByteCursor {
+    private final ByteBuffer mBuffer;
+    private int mMark;
+
+    /**
+     * Constructor. The cursor starts at the position of the buffer, and reads up to its limit.
+     * Reading doesn't change the position of the buffer.
+     *
+     * @param buffer the pdu data
+     */
+    public PduByteCursor(ByteBuffer buffer) {
+        mBuffer = buffer.slice();
+    }
+
+    /**
+     * Read the next byte.
+     *
+     * @return the byte as an int from 0 to 255, or -1 at the end of the pdu
+     */
+    public int read() {
+        return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+    }
+
+    /**
+     * Read up to len bytes into an array.
+     *
+     * @return the number of bytes read, or -1 at the end of the pdu
+     */
+    public int read(byte[] b, int off, int len) {
+        int count = skipLength(len);
+        if (count > 0) {
+            mBuffer.get(b, off, count);
+        }
+        return count;
+    }
+
+    /**
+     * Skip up to len bytes.
+     *
+     * @return the number of bytes skipped, or -1 at the end of the pdu
+     */
+    public int skip(int len) {
+        int count = skipLength(len);
+        if (count > 0) {
+            mBuffer.position(mBuffer.position() + count);
+        }
+        return count;
+    }
+
+    private int skipLength(int len) {
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+        return Math.max(0, Math.min(len, mBuffer.remaining()));
+    }
+
+    /**
+     * Read the next len bytes as a slice sharing the pdu data. If fewer bytes are left, they are
+     * copied and padded with zeros to len bytes.
+     *
+     * @return the bytes, positioned at their start
+     */
+    public ByteBuffer readSlice(int len) {
+        if (len > mBuffer.remaining()) {
+            byte[] padded = new byte[len];
+            read(padded, 0, len);
+            return ByteBuffer.wrap(padded);
+        }
+        ByteBuffer slice = mBuffer.slice();
+        slice.limit(len);
+        mBuffer.position(mBuffer.position() + len);
+        return slice;
+    }
+
+    /**
+     * @return the number of bytes left
+     */
+    public int available() {
+        return mBuffer.remaining();
+    }
+
+    /**
+     * Mark the current position, to go back to with {@link #reset}.
+     *
+     * @param readLimit ignored, the whole pdu stays readable
+     */
+    public void mark(int readLimit) {
+        mMark = mBuffer.position();
+    }
+
+    /**
+     * Go back to the marked position, or to the start if none was marked.
+     */
+    public void reset() {
+        mBuffer.position(mMark);
+    }
+}
@@ -19,6 +19,8 @@ package com.google.android.mms.pdu;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
 import android.util.Log;
 import android.text.TextUtils;
 
@@ -26,6 +28,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 
@@ -112,6 +119,16 @@ public class PduComposer {
      */
     private PduHeaders mPduHeader = null;
 
+    /**
+     * Whether the data of the parts are left out of mMessage, to be written by writeTo().
+     */
+    private boolean mStreaming = false;
+
+    /**
+     * Data of the parts left out of mMessage, in order.
+     */
+    private ArrayList<DataSegment> mDataSegments = null;
+
     /**
      * Map of all content type
      */
@@ -149,6 +166,56 @@ public class PduComposer {
      *         the PDU is invalid.
      */
     public byte[] make() {
+        if (compose() != PDU_COMPOSE_SUCCESS) {
+            return null;
+        }
+
+        return mMessage.toByteArray();
+    }
+
+    /**
+     * Make the message and write it to a stream. Unlike make(), the data of
+     * the parts are not held in memory: they are written from their buffer
+     * or read from their Uri block by block, so the memory used doesn't
+     * depend on the size of the parts. Nothing is written if the PDU is
+     * invalid. Like make(), this should only be called once per composer.
+     *
+     * @param out the stream to write to
+     * @return the number of bytes written, or -1 if the PDU is invalid.
+     * @throws IOException if writing fails, or the data of a part can't be
+     *         read or changed size while the message was written.
+     */
+    public long writeTo(OutputStream out) throws IOException {
+        return writeTo(Channels.newChannel(out));
+    }
+
+    /**
+     * Make the message and write it to a channel, e.g. a FileChannel.
+     *
+     * @see #writeTo(OutputStream)
+     */
+    public long writeTo(WritableByteChannel channel) throws IOException {
+        mStreaming = true;
+        mDataSegments = new ArrayList<DataSegment>();
+        if (compose() != PDU_COMPOSE_SUCCESS) {
+            return -1;
+        }
+
+        // The headers, with the data of each part written at its offset
+        byte[] message = mMessage.toByteArray();
+        long written = 0;
+        int offset = 0;
+        for (DataSegment segment : mDataSegments) {
+            written += writeFully(channel,
+                    ByteBuffer.wrap(message, offset, segment.offset - offset));
+            offset = segment.offset;
+            written += writeData(channel, segment);
+        }
+        written += writeFully(channel, ByteBuffer.wrap(message, offset, message.length - offset));
+        return written;
+    }
+
+    private int compose() {
         // Get Message-type.
         int type = mPdu.getMessageType();
 
@@ -156,30 +223,99 @@ public class PduComposer {
         switch (type) {
             case PduHeaders.MESSAGE_TYPE_SEND_REQ:
             case PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF:
-                if (makeSendRetrievePdu(type) != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeSendRetrievePdu(type);
             case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
-                if (makeNotifyResp() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeNotifyResp();
             case PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND:
-                if (makeAckInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeAckInd();
             case PduHeaders.MESSAGE_TYPE_READ_REC_IND:
-                if (makeReadRecInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeReadRecInd();
             default:
-                return null;
+                return PDU_COMPOSE_FIELD_NOT_SUPPORTED;
         }
+    }
 
-        return mMessage.toByteArray();
+    private static long writeFully(WritableByteChannel channel, ByteBuffer buffer)
+            throws IOException {
+        long length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return length;
+    }
+
+    /**
+     * Write the data of a part, checking it still has the length written in
+     * the headers.
+     */
+    private long writeData(WritableByteChannel channel, DataSegment segment)
+            throws IOException {
+        if (segment.buffer != null) {
+            return writeFully(channel, segment.buffer.duplicate());
+        }
+
+        InputStream cr = mResolver.openInputStream(segment.uri);
+        if (cr == null) {
+            throw new IOException("Can't read " + segment.uri);
+        }
+        try {
+            byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
+            long remaining = segment.length;
+            while (remaining > 0) {
+                int len = cr.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (len == -1) {
+                    break;
+                }
+                writeFully(channel, ByteBuffer.wrap(buffer, 0, len));
+                remaining -= len;
+            }
+            if (remaining != 0 || cr.read() != -1) {
+                throw new IOException("Data of " + segment.uri + " changed size");
+            }
+        } finally {
+            try {
+                cr.close();
+            } catch (IOException e) {
+            }
+        }
+        return segment.length;
+    }
+
+    /**
+     * Get the length of the data of a part, without reading it if the
+     * provider knows it.
+     */
+    private long getDataLength(Uri uri) throws IOException {
+        AssetFileDescriptor fd = mResolver.openAssetFileDescriptor(uri, "r");
+        if (fd != null) {
+            try {
+                long length = fd.getLength();
+                if (length != AssetFileDescriptor.UNKNOWN_LENGTH) {
+                    return length;
+                }
+            } finally {
+                fd.close();
+            }
+        }
+
+        InputStream cr = mResolver.openInputStream(uri);
+        if (cr == null) {
+            throw new IOException("Can't read " + uri);
+        }
+        try {
+            byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
+            long length = 0;
+            int len;
+            while ((len = cr.read(buffer)) != -1) {
+                length += len;
+            }
+            return length;
+        } finally {
+            try {
+                cr.close();
+            } catch (IOException e) {
+            }
+        }
     }
 
     /**
@@ -190,6 +326,18 @@ public class PduComposer {
         mPosition = mPosition + length;
     }
 
+    /**
+     * Copy the remaining bytes of a buffer to mMessage, a block at a time.
+     */
+    protected void arraycopy(ByteBuffer buf) {
+        byte[] block = new byte[Math.min(buf.remaining(), PDU_COMPOSER_BLOCK_SIZE)];
+        while (buf.hasRemaining()) {
+            int length = Math.min(buf.remaining(), block.length);
+            buf.get(block, 0, length);
+            arraycopy(block, 0, length);
+        }
+    }
+
     /**
      * Append a byte to mMessage.
      */
@@ -995,11 +1143,32 @@ public class PduComposer {
             int headerLength = attachment.getLength();
 
             int dataLength = 0; // Just for safety...
-            byte[] partData = part.getData();
-
-            if (partData != null) {
-                arraycopy(partData, 0, partData.length);
-                dataLength = partData.length;
+            DataSegment segment = null;
+            ByteBuffer partData = part.getDataBuffer();
+
+            if (mStreaming) {
+                // Only the length goes in the message for now
+                segment = new DataSegment();
+                segment.buffer = partData;
+                if (segment.buffer != null) {
+                    segment.length = segment.buffer.remaining();
+                } else {
+                    segment.uri = part.getDataUri();
+                    try {
+                        segment.length = getDataLength(segment.uri);
+                    } catch (IOException e) {
+                        return PDU_COMPOSE_CONTENT_ERROR;
+                    } catch (RuntimeException e) {
+                        return PDU_COMPOSE_CONTENT_ERROR;
+                    }
+                    if (segment.length > Integer.MAX_VALUE) {
+                        return PDU_COMPOSE_CONTENT_ERROR;
+                    }
+                }
+                dataLength = (int) segment.length;
+            } else if (partData != null) {
+                dataLength = partData.remaining();
+                arraycopy(partData);
             } else {
                 InputStream cr = null;
                 try {
@@ -1027,7 +1196,7 @@ public class PduComposer {
                 }
             }
 
-            if (dataLength != (attachment.getLength() - headerLength)) {
+            if (!mStreaming && dataLength != (attachment.getLength() - headerLength)) {
                 throw new RuntimeException("BUG: Length sanity check failed");
             }
 
@@ -1035,11 +1204,27 @@ public class PduComposer {
             appendUintvarInteger(headerLength);
             appendUintvarInteger(dataLength);
             mStack.copy();
+
+            if (segment != null) {
+                // The data follows the headers of the part
+                segment.offset = mPosition;
+                mDataSegments.add(segment);
+            }
         }
 
         return PDU_COMPOSE_SUCCESS;
     }
 
+    /**
+     * Data of a part to be written at an offset of the message.
+     */
+    private static class DataSegment {
+        int offset;
+        long length;
+        ByteBuffer buffer;
+        Uri uri;
+    }
+
     /**
      *  Record current message informations.
      */
@@ -22,9 +22,9 @@ import android.util.Log;
 import com.google.android.mms.ContentType;
 import com.google.android.mms.InvalidHeaderValueException;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 
@@ -56,7 +56,7 @@ public class PduParser {
     /**
      * The pdu data.
      */
-    private ByteArrayInputStream mPduDataStream = null;
+    private PduByteCursor mPduDataStream = null;
 
     /**
      * Store pdu headers
@@ -97,7 +97,19 @@ public class PduParser {
      * @param parseContentDisposition whether to parse the Content-Disposition part header
      */
     public PduParser(byte[] pduDataStream, boolean parseContentDisposition) {
-        mPduDataStream = new ByteArrayInputStream(pduDataStream);
+        this(ByteBuffer.wrap(pduDataStream), parseContentDisposition);
+    }
+
+    /**
+     * Constructor. The data of the parsed parts are slices of the buffer rather than copies, so
+     * the buffer must not be modified while the pdu is in use.
+     *
+     * @param pduData pdu data to be parsed, from its position to its limit, which may be a heap
+     *        or a mapped buffer
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     */
+    public PduParser(ByteBuffer pduData, boolean parseContentDisposition) {
+        mPduDataStream = new PduByteCursor(pduData);
         mParseContentDisposition = parseContentDisposition;
     }
 
@@ -233,7 +245,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return headers in PduHeaders structure, null when parse fail
      */
-    protected PduHeaders parseHeaders(ByteArrayInputStream pduDataStream){
+    protected PduHeaders parseHeaders(PduByteCursor pduDataStream){
         if (pduDataStream == null) {
             return null;
         }
@@ -832,7 +844,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return parts in PduBody structure
      */
-    protected PduBody parseParts(ByteArrayInputStream pduDataStream) {
+    protected PduBody parseParts(PduByteCursor pduDataStream) {
         if (pduDataStream == null) {
             return null;
         }
@@ -897,12 +909,12 @@ public class PduParser {
 
             /* get part's data */
             if (dataLength > 0) {
-                byte[] partData = new byte[dataLength];
+                // A slice of the pdu, copied only if it needs to be decoded
+                ByteBuffer partData = pduDataStream.readSlice(dataLength);
                 String partContentType = new String(part.getContentType());
-                pduDataStream.read(partData, 0, dataLength);
                 if (partContentType.equalsIgnoreCase(ContentType.MULTIPART_ALTERNATIVE)) {
                     // parse "multipart/vnd.wap.multipart.alternative".
-                    PduBody childBody = parseParts(new ByteArrayInputStream(partData));
+                    PduBody childBody = parseParts(new PduByteCursor(partData));
                     // take the first part of children.
                     part = childBody.getPart(0);
                 } else {
@@ -912,10 +924,11 @@ public class PduParser {
                         String encoding = new String(partDataEncoding);
                         if (encoding.equalsIgnoreCase(PduPart.P_BASE64)) {
                             // Decode "base64" into "binary".
-                            partData = Base64.decodeBase64(partData);
+                            partData = wrap(Base64.decodeBase64(toByteArray(partData)));
                         } else if (encoding.equalsIgnoreCase(PduPart.P_QUOTED_PRINTABLE)) {
                             // Decode "quoted-printable" into "binary".
-                            partData = QuotedPrintable.decodeQuotedPrintable(partData);
+                            partData = wrap(QuotedPrintable.decodeQuotedPrintable(
+                                    toByteArray(partData)));
                         } else {
                             // "binary" is the default encoding.
                         }
@@ -941,6 +954,16 @@ public class PduParser {
         return body;
     }
 
+    private static byte[] toByteArray(ByteBuffer data) {
+        byte[] array = new byte[data.remaining()];
+        data.duplicate().get(array);
+        return array;
+    }
+
+    private static ByteBuffer wrap(byte[] data) {
+        return data != null ? ByteBuffer.wrap(data) : null;
+    }
+
     /**
      * Log status.
      *
@@ -958,7 +981,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the integer, -1 when failed
      */
-    protected static int parseUnsignedInt(ByteArrayInputStream pduDataStream) {
+    protected static int parseUnsignedInt(PduByteCursor pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * The maximum size of a uintvar is 32 bits.
@@ -992,7 +1015,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the integer
      */
-    protected static int parseValueLength(ByteArrayInputStream pduDataStream) {
+    protected static int parseValueLength(PduByteCursor pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Value-length = Short-length | (Length-quote Length)
@@ -1021,7 +1044,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the EncodedStringValue
      */
-    protected static EncodedStringValue parseEncodedStringValue(ByteArrayInputStream pduDataStream){
+    protected static EncodedStringValue parseEncodedStringValue(PduByteCursor pduDataStream){
         /**
          * From OMA-TS-MMS-ENC-V1_3-20050927-C.pdf
          * Encoded-string-value = Text-string | Value-length Char-set Text-string
@@ -1066,7 +1089,7 @@ public class PduParser {
      * @param stringType TYPE_TEXT_STRING or TYPE_QUOTED_STRING
      * @return the string without End-of-string in byte array
      */
-    protected static byte[] parseWapString(ByteArrayInputStream pduDataStream,
+    protected static byte[] parseWapString(PduByteCursor pduDataStream,
             int stringType) {
         assert(null != pduDataStream);
         /**
@@ -1188,7 +1211,7 @@ public class PduParser {
         return false;
     }
 
-    protected static byte[] getWapString(ByteArrayInputStream pduDataStream,
+    protected static byte[] getWapString(PduByteCursor pduDataStream,
             int stringType) {
         assert(null != pduDataStream);
         ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -1223,7 +1246,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the byte
      */
-    protected static int extractByteValue(ByteArrayInputStream pduDataStream) {
+    protected static int extractByteValue(PduByteCursor pduDataStream) {
         assert(null != pduDataStream);
         int temp = pduDataStream.read();
         assert(-1 != temp);
@@ -1236,7 +1259,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the byte
      */
-    protected static int parseShortInteger(ByteArrayInputStream pduDataStream) {
+    protected static int parseShortInteger(PduByteCursor pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Short-integer = OCTET
@@ -1256,7 +1279,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return long integer
      */
-    protected static long parseLongInteger(ByteArrayInputStream pduDataStream) {
+    protected static long parseLongInteger(PduByteCursor pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Long-integer = Short-length Multi-octet-integer
@@ -1294,7 +1317,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return long integer
      */
-    protected static long parseIntegerValue(ByteArrayInputStream pduDataStream) {
+    protected static long parseIntegerValue(PduByteCursor pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Integer-Value = Short-integer | Long-integer
@@ -1318,10 +1341,9 @@ public class PduParser {
      * @param length area size
      * @return the values in this area
      */
-    protected static int skipWapValue(ByteArrayInputStream pduDataStream, int length) {
+    protected static int skipWapValue(PduByteCursor pduDataStream, int length) {
         assert(null != pduDataStream);
-        byte[] area = new byte[length];
-        int readLen = pduDataStream.read(area, 0, length);
+        int readLen = pduDataStream.skip(length);
         if (readLen < length) { //The actually read length is lower than the length
             return -1;
         } else {
@@ -1337,7 +1359,7 @@ public class PduParser {
      * @param map to store parameters of Content-Type field
      * @param length length of all the parameters
      */
-    protected static void parseContentTypeParams(ByteArrayInputStream pduDataStream,
+    protected static void parseContentTypeParams(PduByteCursor pduDataStream,
             HashMap<Integer, Object> map, Integer length) {
         /**
          * From wap-230-wsp-20010705-a.pdf
@@ -1520,7 +1542,7 @@ public class PduParser {
      * @param map to store parameters in Content-Type header field
      * @return Content-Type value
      */
-    protected static byte[] parseContentType(ByteArrayInputStream pduDataStream,
+    protected static byte[] parseContentType(PduByteCursor pduDataStream,
             HashMap<Integer, Object> map) {
         /**
          * From wap-230-wsp-20010705-a.pdf
@@ -1591,7 +1613,7 @@ public class PduParser {
      * @param length length of the headers
      * @return true if parse successfully, false otherwise
      */
-    protected boolean parsePartHeaders(ByteArrayInputStream pduDataStream,
+    protected boolean parsePartHeaders(PduByteCursor pduDataStream,
             PduPart part, int length) {
         assert(null != pduDataStream);
         assert(null != part);
@@ -1698,8 +1720,7 @@ public class PduParser {
                                 thisEndPos = pduDataStream.available();
                                 if (thisStartPos - thisEndPos < len) {
                                     int last = len - (thisStartPos - thisEndPos);
-                                    byte[] temp = new byte[last];
-                                    pduDataStream.read(temp, 0, last);
+                                    pduDataStream.skip(last);
                                 }
                             }
 
@@ -19,6 +19,7 @@ package com.google.android.mms.pdu;
 
 import android.net.Uri;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -117,7 +118,7 @@ public class PduPart {
      /**
       * Part data.
       */
-     private byte[] mPartData = null;
+     private ByteBuffer mPartData = null;
 
      private static final String TAG = "PduPart";
 
@@ -138,31 +139,58 @@ public class PduPart {
             return;
         }
 
-         mPartData = new byte[data.length];
-         System.arraycopy(data, 0, mPartData, 0, data.length);
+         mPartData = ByteBuffer.wrap(data.clone());
+     }
+
+     /**
+      * Set part data without copying it, from the position to the limit of the buffer. The
+      * buffer must not be modified afterwards.
+      *
+      * @param data the data
+      */
+     public void setData(ByteBuffer data) {
+         if(data == null) {
+            return;
+        }
+
+         mPartData = data.slice();
      }
 
      /**
       * @return A copy of the part data or null if the data wasn't set or
       *         the data is stored as Uri.
       * @see #getDataUri
+      * @see #getDataBuffer
       */
      public byte[] getData() {
          if(mPartData == null) {
             return null;
          }
 
-         byte[] byteArray = new byte[mPartData.length];
-         System.arraycopy(mPartData, 0, byteArray, 0, mPartData.length);
+         byte[] byteArray = new byte[mPartData.remaining()];
+         mPartData.duplicate().get(byteArray);
          return byteArray;
      }
 
+     /**
+      * @return A read-only view of the part data, positioned at its start, or null if the data
+      *         wasn't set or the data is stored as Uri.
+      * @see #getData
+      */
+     public ByteBuffer getDataBuffer() {
+         if(mPartData == null) {
+            return null;
+         }
+
+         return mPartData.asReadOnlyBuffer();
+     }
+
     /**
      * @return The length of the data, if this object have data, else 0.
      */
      public int getDataLength() {
          if(mPartData != null){
-             return mPartData.length;
+             return mPartData.remaining();
          } else {
              return 0;
          }
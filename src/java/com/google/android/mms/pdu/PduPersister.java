@@ -55,6 +55,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -788,15 +789,17 @@ public class PduPersister {
         String path = null;
 
         try {
-            byte[] data = part.getData();
+            ByteBuffer data = part.getDataBuffer();
             if (ContentType.TEXT_PLAIN.equals(contentType)
                     || ContentType.APP_SMIL.equals(contentType)
                     || ContentType.TEXT_HTML.equals(contentType)) {
                 ContentValues cv = new ContentValues();
-                if (data == null) {
-                    data = new String("").getBytes(CharacterSets.DEFAULT_CHARSET_NAME);
+                // Text parts are small, and EncodedStringValue needs an array
+                byte[] text = part.getData();
+                if (text == null) {
+                    text = new String("").getBytes(CharacterSets.DEFAULT_CHARSET_NAME);
                 }
-                cv.put(Telephony.Mms.Part.TEXT, new EncodedStringValue(data).getString());
+                cv.put(Telephony.Mms.Part.TEXT, new EncodedStringValue(text).getString());
                 if (mContentResolver.update(uri, cv, null, null) != 1) {
                     throw new MmsException("unable to update " + uri.toString());
                 }
@@ -861,15 +864,23 @@ public class PduPersister {
                     if (LOCAL_LOGV) {
                         Log.v(TAG, "Saving data to: " + uri);
                     }
-                    if (!isDrm) {
-                        os.write(data);
-                    } else {
+                    if (isDrm) {
                         dataUri = uri;
-                        byte[] convertedData = drmConvertSession.convert(data, data.length);
-                        if (convertedData != null) {
-                            os.write(convertedData, 0, convertedData.length);
+                    }
+                    // Write the data a block at a time rather than copying all of it
+                    byte[] buffer = new byte[Math.min(data.remaining(), 8192)];
+                    while (data.hasRemaining()) {
+                        int len = Math.min(data.remaining(), buffer.length);
+                        data.get(buffer, 0, len);
+                        if (!isDrm) {
+                            os.write(buffer, 0, len);
                         } else {
-                            throw new MmsException("Error converting drm data.");
+                            byte[] convertedData = drmConvertSession.convert(buffer, len);
+                            if (convertedData != null) {
+                                os.write(convertedData, 0, convertedData.length);
+                            } else {
+                                throw new MmsException("Error converting drm data.");
+                            }
                         }
                     }
                 }
@@ -1079,7 +1090,7 @@ public class PduPersister {
         // Only update the data when:
         // 1. New binary data supplied or
         // 2. The Uri of the part is different from the current one.
-        if ((part.getData() != null)
+        if ((part.getDataLength() > 0)
                 || (!uri.equals(part.getDataUri()))) {
             persistData(part, uri, contentType, preOpenedFiles);
         }
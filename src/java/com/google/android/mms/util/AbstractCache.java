@@ -19,8 +19,16 @@ package com.google.android.mms.util;
 
 import android.util.Log;
 
-import java.util.HashMap;
-
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache holding up to a maximum size of entries, evicting the least recently used ones to make
+ * room for new ones. The size of an entry is given by {@link #sizeOf}, one per entry by default.
+ * The methods are synchronized on the cache, so that subclasses can keep other state in sync
+ * with it.
+ */
 public abstract class AbstractCache<K, V> {
     private static final String TAG = "AbstractCache";
     private static final boolean DEBUG = false;
@@ -28,40 +36,90 @@ public abstract class AbstractCache<K, V> {
 
     private static final int MAX_CACHED_ITEMS  = 500;
 
-    private final HashMap<K, CacheEntry<V>> mCacheMap;
+    // Iterates from the least to the most recently used entry
+    private final LinkedHashMap<K, CacheEntry<V>> mCacheMap;
+    private final long mMaxSize;
+    private long mSize;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
 
     protected AbstractCache() {
-        mCacheMap = new HashMap<K, CacheEntry<V>>();
+        this(MAX_CACHED_ITEMS);
+    }
+
+    /**
+     * @param maxSize the maximum sum of the sizes of the entries
+     */
+    protected AbstractCache(long maxSize) {
+        mCacheMap = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true);
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns the size of an entry, in the unit of the maximum size of the cache. It must not
+     * change while the entry is cached.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Called when an entry is evicted or replaced by {@link #put}, but not when it is purged.
+     */
+    protected void entryRemoved(K key, V value) {
     }
 
-    public boolean put(K key, V value) {
+    synchronized public boolean put(K key, V value) {
         if (LOCAL_LOGV) {
             Log.v(TAG, "Trying to put " + key + " into cache.");
         }
 
-        if (mCacheMap.size() >= MAX_CACHED_ITEMS) {
-            // TODO Should remove the oldest or least hit cached entry
-            // and then cache the new one.
+        if (key == null) {
+            return false;
+        }
+
+        int size = sizeOf(key, value);
+        if (size > mMaxSize) {
             if (LOCAL_LOGV) {
-                Log.v(TAG, "Failed! size limitation reached.");
+                Log.v(TAG, "Failed! " + key + " is larger than the cache.");
             }
             return false;
         }
 
-        if (key != null) {
-            CacheEntry<V> cacheEntry = new CacheEntry<V>();
-            cacheEntry.value = value;
-            mCacheMap.put(key, cacheEntry);
+        CacheEntry<V> cacheEntry = new CacheEntry<V>();
+        cacheEntry.value = value;
+        cacheEntry.size = size;
+        CacheEntry<V> previous = mCacheMap.put(key, cacheEntry);
+        mSize += size;
+        if (previous != null) {
+            mSize -= previous.size;
+            entryRemoved(key, previous.value);
+        }
+        trimToSize();
 
+        if (LOCAL_LOGV) {
+            Log.v(TAG, key + " cached, " + mCacheMap.size() + " items total.");
+        }
+        return true;
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<K, CacheEntry<V>>> it = mCacheMap.entrySet().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            Map.Entry<K, CacheEntry<V>> eldest = it.next();
+            it.remove();
+            mSize -= eldest.getValue().size;
+            mEvictionCount++;
             if (LOCAL_LOGV) {
-                Log.v(TAG, key + " cached, " + mCacheMap.size() + " items total.");
+                Log.v(TAG, eldest.getKey() + " evicted.");
             }
-            return true;
+            entryRemoved(eldest.getKey(), eldest.getValue().value);
         }
-        return false;
     }
 
-    public V get(K key) {
+    synchronized public V get(K key) {
         if (LOCAL_LOGV) {
             Log.v(TAG, "Trying to get " + key + " from cache.");
         }
@@ -70,21 +128,26 @@ public abstract class AbstractCache<K, V> {
             CacheEntry<V> cacheEntry = mCacheMap.get(key);
             if (cacheEntry != null) {
                 cacheEntry.hit++;
+                mHitCount++;
                 if (LOCAL_LOGV) {
                     Log.v(TAG, key + " hit " + cacheEntry.hit + " times.");
                 }
                 return cacheEntry.value;
             }
         }
+        mMissCount++;
         return null;
     }
 
-    public V purge(K key) {
+    synchronized public V purge(K key) {
         if (LOCAL_LOGV) {
             Log.v(TAG, "Trying to purge " + key);
         }
 
         CacheEntry<V> v = mCacheMap.remove(key);
+        if (v != null) {
+            mSize -= v.size;
+        }
 
         if (LOCAL_LOGV) {
             Log.v(TAG, mCacheMap.size() + " items cached.");
@@ -93,20 +156,55 @@ public abstract class AbstractCache<K, V> {
         return v != null ? v.value : null;
     }
 
-    public void purgeAll() {
+    synchronized public void purgeAll() {
         if (LOCAL_LOGV) {
             Log.v(TAG, "Purging cache, " + mCacheMap.size()
                     + " items dropped.");
         }
         mCacheMap.clear();
+        mSize = 0;
     }
 
-    public int size() {
+    /**
+     * @return the number of entries
+     */
+    synchronized public int size() {
         return mCacheMap.size();
     }
 
+    /**
+     * @return the sum of the sizes of the entries
+     */
+    synchronized public long getSize() {
+        return mSize;
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    synchronized public int getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized public int getMissCount() {
+        return mMissCount;
+    }
+
+    synchronized public int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    synchronized public String toString() {
+        return getClass().getSimpleName() + "[size=" + mSize + "/" + mMaxSize + ", items="
+                + mCacheMap.size() + ", hits=" + mHitCount + ", misses=" + mMissCount
+                + ", evictions=" + mEvictionCount + "]";
+    }
+
     private static class CacheEntry<V> {
         int hit;
+        int size;
         V value;
     }
 }
@@ -44,6 +44,9 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     private static final int MMS_CONVERSATION    = 10;
     private static final int MMS_CONVERSATION_ID = 11;
 
+    // The pdus are weighed by their size, see PduCacheEntry#getSize
+    private static final long MAX_SIZE_BYTES = 1024 * 1024;
+
     private static final UriMatcher URI_MATCHER;
     private static final HashMap<Integer, Integer> MATCH_TO_MSGBOX_ID_MAP;
 
@@ -76,6 +79,7 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     private final HashSet<Uri> mUpdating;
 
     private PduCache() {
+        super(MAX_SIZE_BYTES);
         mMessageBoxes = new HashMap<Integer, HashSet<Uri>>();
         mThreads = new HashMap<Long, HashSet<Uri>>();
         mUpdating = new HashSet<Uri>();
@@ -93,30 +97,42 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
 
     @Override
     synchronized public boolean put(Uri uri, PduCacheEntry entry) {
-        int msgBoxId = entry.getMessageBox();
-        HashSet<Uri> msgBox = mMessageBoxes.get(msgBoxId);
-        if (msgBox == null) {
-            msgBox = new HashSet<Uri>();
-            mMessageBoxes.put(msgBoxId, msgBox);
-        }
-
-        long threadId = entry.getThreadId();
-        HashSet<Uri> thread = mThreads.get(threadId);
-        if (thread == null) {
-            thread = new HashSet<Uri>();
-            mThreads.put(threadId, thread);
-        }
-
         Uri finalKey = normalizeKey(uri);
+        // Index the entry after putting it, as that may evict others
         boolean result = super.put(finalKey, entry);
         if (result) {
+            int msgBoxId = entry.getMessageBox();
+            HashSet<Uri> msgBox = mMessageBoxes.get(msgBoxId);
+            if (msgBox == null) {
+                msgBox = new HashSet<Uri>();
+                mMessageBoxes.put(msgBoxId, msgBox);
+            }
             msgBox.add(finalKey);
+
+            long threadId = entry.getThreadId();
+            HashSet<Uri> thread = mThreads.get(threadId);
+            if (thread == null) {
+                thread = new HashSet<Uri>();
+                mThreads.put(threadId, thread);
+            }
             thread.add(finalKey);
         }
         setUpdating(uri, false);
         return result;
     }
 
+    @Override
+    protected int sizeOf(Uri key, PduCacheEntry entry) {
+        return entry.getSize();
+    }
+
+    @Override
+    protected void entryRemoved(Uri key, PduCacheEntry entry) {
+        // Evicted or replaced, the new entry is indexed by put()
+        removeFromThreads(key, entry);
+        removeFromMessageBoxes(key, entry);
+    }
+
     synchronized public void setUpdating(Uri uri, boolean updating) {
         if (updating) {
             mUpdating.add(uri);
@@ -232,6 +248,9 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         HashSet<Uri> thread = mThreads.get(entry.getThreadId());
         if (thread != null) {
             thread.remove(key);
+            if (thread.isEmpty()) {
+                mThreads.remove(entry.getThreadId());
+            }
         }
     }
 
@@ -253,9 +272,12 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     }
 
     private void removeFromMessageBoxes(Uri key, PduCacheEntry entry) {
-        HashSet<Uri> msgBox = mThreads.get(Long.valueOf(entry.getMessageBox()));
+        HashSet<Uri> msgBox = mMessageBoxes.get(entry.getMessageBox());
         if (msgBox != null) {
             msgBox.remove(key);
+            if (msgBox.isEmpty()) {
+                mMessageBoxes.remove(entry.getMessageBox());
+            }
         }
     }
 }
@@ -18,16 +18,37 @@
 package com.google.android.mms.util;
 
 import com.google.android.mms.pdu.GenericPdu;
+import com.google.android.mms.pdu.MultimediaMessagePdu;
+import com.google.android.mms.pdu.PduBody;
 
 public final class PduCacheEntry {
+    // Rough heap used by the headers of a pdu, and by a part besides its data
+    private static final int PDU_OVERHEAD_BYTES = 1024;
+    private static final int PART_OVERHEAD_BYTES = 256;
+
     private final GenericPdu mPdu;
     private final int mMessageBox;
     private final long mThreadId;
+    private final int mSize;
 
     public PduCacheEntry(GenericPdu pdu, int msgBox, long threadId) {
         mPdu = pdu;
         mMessageBox = msgBox;
         mThreadId = threadId;
+        mSize = sizeOf(pdu);
+    }
+
+    private static int sizeOf(GenericPdu pdu) {
+        int size = PDU_OVERHEAD_BYTES;
+        if (pdu instanceof MultimediaMessagePdu) {
+            PduBody body = ((MultimediaMessagePdu) pdu).getBody();
+            if (body != null) {
+                for (int i = 0; i < body.getPartsNum(); i++) {
+                    size += PART_OVERHEAD_BYTES + body.getPart(i).getDataLength();
+                }
+            }
+        }
+        return size;
     }
 
     public GenericPdu getPdu() {
@@ -41,4 +62,11 @@ public final class PduCacheEntry {
     public long getThreadId() {
         return mThreadId;
     }
+
+    /**
+     * @return the estimated size of the pdu in bytes, when the entry was created
+     */
+    public int getSize() {
+        return mSize;
+    }
 }
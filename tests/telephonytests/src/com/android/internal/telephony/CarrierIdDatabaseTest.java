@@ -0,0 +1,153 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.CarrierResolver.CarrierMatchingRule;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+public class CarrierIdDatabaseTest {
+    private static final int VERSION = 42;
+
+    private static final CarrierMatchingRule TMO = new CarrierMatchingRule("310260", null,
+            null, null, null, null, null, null, null, 1, "T-Mobile - US", -1);
+    private static final CarrierMatchingRule FI = new CarrierMatchingRule("310260", "3102601",
+            "8901", "6D", null, null, "Fi Network", "h2g2", Arrays.asList("ab12"), 2, "Fi",
+            1);
+    private static final CarrierMatchingRule ATT = new CarrierMatchingRule("310410", null,
+            null, null, null, "AT&T", null, null, null, 3, "AT&T", -1);
+    private static final CarrierMatchingRule SPRINT = new CarrierMatchingRule("310120", null,
+            null, "BA01450000000000", null, null, "Sprint", null, null, 4, "Sprint", -1);
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("carrier_list", ".cidb");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    private CarrierIdDatabase writeAndOpen(List<CarrierMatchingRule> rules) throws Exception {
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            CarrierIdDatabase.write(out, VERSION, rules);
+        }
+        CarrierIdDatabase db = CarrierIdDatabase.open(mFile);
+        assertNotNull(db);
+        return db;
+    }
+
+    private static void assertRuleEquals(CarrierMatchingRule expected,
+            CarrierMatchingRule actual) {
+        assertEquals(expected.mccMnc, actual.mccMnc);
+        assertEquals(expected.imsiPrefixPattern, actual.imsiPrefixPattern);
+        assertEquals(expected.iccidPrefix, actual.iccidPrefix);
+        assertEquals(expected.gid1, actual.gid1);
+        assertEquals(expected.gid2, actual.gid2);
+        assertEquals(expected.plmn, actual.plmn);
+        assertEquals(expected.spn, actual.spn);
+        assertEquals(expected.apn, actual.apn);
+        assertEquals(expected.privilegeAccessRule, actual.privilegeAccessRule);
+        assertEquals(expected.getCid(), actual.getCid());
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getParentCid(), actual.getParentCid());
+    }
+
+    @Test
+    @SmallTest
+    public void testRulesByMccMnc() throws Exception {
+        CarrierIdDatabase db = writeAndOpen(Arrays.asList(TMO, ATT, FI, SPRINT));
+        assertEquals(VERSION, db.getVersion());
+
+        List<CarrierMatchingRule> rules = db.getRulesForMccMnc("310260");
+        assertEquals(2, rules.size());
+        // Rules keep their original order within a bucket.
+        assertRuleEquals(TMO, rules.get(0));
+        assertRuleEquals(FI, rules.get(1));
+
+        rules = db.getRulesForMccMnc("310410");
+        assertEquals(1, rules.size());
+        assertRuleEquals(ATT, rules.get(0));
+        rules = db.getRulesForMccMnc("310120");
+        assertEquals(1, rules.size());
+        assertRuleEquals(SPRINT, rules.get(0));
+
+        assertTrue(db.getRulesForMccMnc("00101").isEmpty());
+        assertTrue(db.getRulesForMccMnc(null).isEmpty());
+    }
+
+    @Test
+    @SmallTest
+    public void testCarrierName() throws Exception {
+        CarrierIdDatabase db = writeAndOpen(Arrays.asList(TMO, ATT, FI, SPRINT));
+        assertEquals("T-Mobile - US", db.getCarrierName(1));
+        assertEquals("Fi", db.getCarrierName(2));
+        assertEquals("Sprint", db.getCarrierName(4));
+        assertNull(db.getCarrierName(5));
+    }
+
+    @Test
+    @SmallTest
+    public void testCorruptOffsets() throws Exception {
+        writeAndOpen(Arrays.asList(ATT));
+        // One bucket and one name after the header, then the rule
+        int nameRefPos = 24 + 16 + 4;
+        int ruleMccMncRefPos = 24 + 16 + 12;
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.seek(nameRefPos);
+            raf.writeInt(Integer.MAX_VALUE);
+            raf.seek(ruleMccMncRefPos);
+            raf.writeInt(-8);
+        }
+        CarrierIdDatabase db = CarrierIdDatabase.open(mFile);
+        assertNotNull(db);
+
+        // Corrupt entries are reported, so that the provider is used instead
+        assertNull(db.getRulesForMccMnc("310410"));
+        assertNull(db.getCarrierName(3));
+        assertTrue(db.getRulesForMccMnc("310260").isEmpty());
+    }
+
+    @Test
+    @SmallTest
+    public void testMissingOrInvalidFile() throws Exception {
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+        }
+        assertNull(CarrierIdDatabase.open(mFile));
+
+        mFile.delete();
+        assertNull(CarrierIdDatabase.open(mFile));
+    }
+}
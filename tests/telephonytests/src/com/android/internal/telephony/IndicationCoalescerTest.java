@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.IndicationCoalescer.TYPE_NETWORK_STATE;
+import static com.android.internal.telephony.IndicationCoalescer.TYPE_PHYSICAL_CHANNEL_CONFIG;
+import static com.android.internal.telephony.IndicationCoalescer.TYPE_SIGNAL_STRENGTH;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.HandlerThread;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class IndicationCoalescerTest {
+    private static final long INTERVAL_MS = 200;
+    private static final long TIMEOUT_MS = 5000;
+
+    private HandlerThread mHandlerThread;
+    private IndicationCoalescer mCoalescer;
+    private final List<Object> mDelivered = new ArrayList<>();
+    private CountDownLatch mLatch;
+
+    @Before
+    public void setUp() throws Exception {
+        mHandlerThread = new HandlerThread("IndicationCoalescerTest");
+        mHandlerThread.start();
+        mCoalescer = new IndicationCoalescer(mHandlerThread.getLooper(), (type, value) -> {
+            synchronized (mDelivered) {
+                mDelivered.add(value);
+            }
+            mLatch.countDown();
+        });
+        mCoalescer.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mHandlerThread.quit();
+    }
+
+    @Test
+    @SmallTest
+    public void testLatestWins() throws Exception {
+        mCoalescer.setMinInterval(TYPE_SIGNAL_STRENGTH, INTERVAL_MS, INTERVAL_MS);
+        mLatch = new CountDownLatch(2);
+        mCoalescer.offer(TYPE_SIGNAL_STRENGTH, "a");
+        mCoalescer.offer(TYPE_SIGNAL_STRENGTH, "b");
+        mCoalescer.offer(TYPE_SIGNAL_STRENGTH, "c");
+        assertTrue(mLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        synchronized (mDelivered) {
+            assertEquals(Arrays.asList("a", "c"), mDelivered);
+        }
+        assertEquals(2, mCoalescer.getDeliveredCount(TYPE_SIGNAL_STRENGTH));
+        assertEquals(1, mCoalescer.getMergedCount(TYPE_SIGNAL_STRENGTH));
+    }
+
+    @Test
+    @SmallTest
+    public void testNetworkStateChangesMerged() throws Exception {
+        mCoalescer.setMinInterval(TYPE_NETWORK_STATE, INTERVAL_MS, INTERVAL_MS);
+        mLatch = new CountDownLatch(2);
+        for (int i = 0; i < 5; i++) {
+            mCoalescer.offer(TYPE_NETWORK_STATE, null);
+        }
+        assertTrue(mLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        assertEquals(2, mCoalescer.getDeliveredCount(TYPE_NETWORK_STATE));
+        assertEquals(3, mCoalescer.getMergedCount(TYPE_NETWORK_STATE));
+    }
+
+    @Test
+    @SmallTest
+    public void testIdenticalPayloadDropped() throws Exception {
+        mCoalescer.setMinInterval(TYPE_PHYSICAL_CHANNEL_CONFIG, 0, 0);
+        mLatch = new CountDownLatch(2);
+        mCoalescer.offer(TYPE_PHYSICAL_CHANNEL_CONFIG, Arrays.asList(1, 2));
+        mCoalescer.offer(TYPE_PHYSICAL_CHANNEL_CONFIG, Arrays.asList(1, 2));
+        mCoalescer.offer(TYPE_PHYSICAL_CHANNEL_CONFIG, Arrays.asList(3));
+        assertTrue(mLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        assertEquals(2, mCoalescer.getDeliveredCount(TYPE_PHYSICAL_CHANNEL_CONFIG));
+        assertEquals(1, mCoalescer.getDroppedCount(TYPE_PHYSICAL_CHANNEL_CONFIG));
+    }
+
+    @Test
+    @SmallTest
+    public void testPassThroughWhenDisabled() throws Exception {
+        mCoalescer.setEnabled(false);
+        mCoalescer.setMinInterval(TYPE_SIGNAL_STRENGTH, INTERVAL_MS, INTERVAL_MS);
+        mLatch = new CountDownLatch(3);
+        mCoalescer.offer(TYPE_SIGNAL_STRENGTH, "a");
+        mCoalescer.offer(TYPE_SIGNAL_STRENGTH, "b");
+        mCoalescer.offer(TYPE_SIGNAL_STRENGTH, "c");
+
+        // Delivered on the calling thread, as they are offered
+        synchronized (mDelivered) {
+            assertEquals(Arrays.asList("a", "b", "c"), mDelivered);
+        }
+        assertEquals(0, mCoalescer.getMergedCount(TYPE_SIGNAL_STRENGTH));
+    }
+
+    @Test
+    @SmallTest
+    public void testDisablingFlushesPending() throws Exception {
+        mCoalescer.setMinInterval(TYPE_SIGNAL_STRENGTH, TIMEOUT_MS * 10, TIMEOUT_MS * 10);
+        mLatch = new CountDownLatch(2);
+        mCoalescer.offer(TYPE_SIGNAL_STRENGTH, "a");
+        mCoalescer.offer(TYPE_SIGNAL_STRENGTH, "b");
+        assertEquals(1, mCoalescer.getDeliveredCount(TYPE_SIGNAL_STRENGTH));
+
+        mCoalescer.setEnabled(false);
+        synchronized (mDelivered) {
+            assertEquals(Arrays.asList("a", "b"), mDelivered);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testBecomingInteractiveFlushesEarly() throws Exception {
+        mCoalescer.setMinInterval(TYPE_SIGNAL_STRENGTH, 0, TIMEOUT_MS * 10);
+        mCoalescer.setInteractive(false);
+        mLatch = new CountDownLatch(2);
+        mCoalescer.offer(TYPE_SIGNAL_STRENGTH, "a");
+        mCoalescer.offer(TYPE_SIGNAL_STRENGTH, "b");
+        assertEquals(1, mCoalescer.getDeliveredCount(TYPE_SIGNAL_STRENGTH));
+
+        mCoalescer.setInteractive(true);
+        assertTrue(mLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        synchronized (mDelivered) {
+            assertEquals(Arrays.asList("a", "b"), mDelivered);
+        }
+    }
+}
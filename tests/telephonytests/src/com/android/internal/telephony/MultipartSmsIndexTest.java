@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class MultipartSmsIndexTest {
+    private static final String ADDRESS = "1234567890";
+
+    private MultipartSmsIndex mIndex;
+
+    @Before
+    public void setUp() {
+        mIndex = new MultipartSmsIndex();
+        mIndex.load(Collections.emptyList());
+    }
+
+    private static InboundSmsTracker segment(int referenceNumber, int sequenceNumber,
+            int messageCount, boolean is3gpp2, int subId) {
+        return new InboundSmsTracker(new byte[] {(byte) sequenceNumber},
+                System.currentTimeMillis(), -1, is3gpp2, ADDRESS, ADDRESS, referenceNumber,
+                sequenceNumber, messageCount, false, "part " + sequenceNumber, false, subId);
+    }
+
+    private static InboundSmsTracker segment(int referenceNumber, int sequenceNumber,
+            int messageCount) {
+        return segment(referenceNumber, sequenceNumber, messageCount, false, 0);
+    }
+
+    @Test
+    @SmallTest
+    public void testReassembly() {
+        InboundSmsTracker part1 = segment(1, 1, 3);
+        InboundSmsTracker part2 = segment(1, 2, 3);
+        InboundSmsTracker part3 = segment(1, 3, 3);
+
+        mIndex.addSegment(part2);
+        assertTrue(mIndex.takeMessage(part2).isEmpty());
+        mIndex.addSegment(part1);
+        assertTrue(mIndex.takeMessage(part1).isEmpty());
+        mIndex.addSegment(part3);
+        assertEquals(Arrays.asList(part2, part1, part3), mIndex.takeMessage(part3));
+
+        // The message is returned only once, later lookups go to the raw table.
+        assertNull(mIndex.takeMessage(part3));
+    }
+
+    @Test
+    @SmallTest
+    public void testNotLoaded() {
+        mIndex.invalidate();
+        assertFalse(mIndex.isLoaded());
+        InboundSmsTracker part1 = segment(1, 1, 2);
+        mIndex.addSegment(part1);
+        assertNull(mIndex.takeMessage(part1));
+
+        // Segments stored before a restart are loaded from the raw table.
+        mIndex.load(Arrays.asList(segment(1, 1, 2)));
+        InboundSmsTracker part2 = segment(1, 2, 2);
+        mIndex.addSegment(part2);
+        assertEquals(2, mIndex.takeMessage(part2).size());
+    }
+
+    @Test
+    @SmallTest
+    public void testSegmentsQueuedBeforeLastOne() {
+        // All segments are stored before the first EVENT_BROADCAST_SMS is handled.
+        List<InboundSmsTracker> parts = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            parts.add(segment(7, i, 10));
+            mIndex.addSegment(parts.get(i - 1));
+        }
+        assertEquals(parts, mIndex.takeMessage(parts.get(0)));
+        // The events of the other segments find the message already delivered, without reading
+        // the raw table.
+        for (int i = 1; i < 10; i++) {
+            List<InboundSmsTracker> segments = mIndex.takeMessage(parts.get(i));
+            assertTrue(segments != null && segments.isEmpty());
+        }
+        assertNull(mIndex.takeMessage(parts.get(1)));
+    }
+
+    @Test
+    @SmallTest
+    public void testKeys() {
+        mIndex.addSegment(segment(1, 1, 2));
+        // Different sub id, format, reference number or count are different messages.
+        InboundSmsTracker[] others = {segment(1, 2, 2, false, 1), segment(1, 2, 2, true, 0),
+                segment(2, 2, 2), segment(1, 2, 3)};
+        for (InboundSmsTracker other : others) {
+            mIndex.addSegment(other);
+            assertTrue(mIndex.takeMessage(other).isEmpty());
+        }
+        InboundSmsTracker part2 = segment(1, 2, 2);
+        mIndex.addSegment(part2);
+        assertEquals(2, mIndex.takeMessage(part2).size());
+    }
+
+    @Test
+    @SmallTest
+    public void testRemoveDuplicateSegments() {
+        InboundSmsTracker part1 = segment(1, 1, 2);
+        mIndex.addSegment(part1);
+        InboundSmsTracker duplicate = segment(1, 1, 2);
+        mIndex.removeSegments(duplicate);
+        mIndex.addSegment(duplicate);
+        assertTrue(mIndex.takeMessage(duplicate).isEmpty());
+
+        InboundSmsTracker part2 = segment(1, 2, 2);
+        mIndex.addSegment(part2);
+        List<InboundSmsTracker> segments = mIndex.takeMessage(part2);
+        assertEquals(2, segments.size());
+        assertSame(duplicate, segments.get(0));
+        // The segment that was replaced was never handed back.
+        assertNull(mIndex.takeMessage(part1));
+    }
+
+    @Test
+    @SmallTest
+    public void testRemoveDeliveredMessage() {
+        // Loaded from the raw table after it was taken, while its broadcast was in flight
+        InboundSmsTracker part1 = segment(1, 1, 2);
+        InboundSmsTracker part2 = segment(1, 2, 2);
+        mIndex.load(Arrays.asList(part1, part2));
+
+        // Deleted from the raw table when the broadcast completes
+        mIndex.removeMessage(part2);
+
+        // A new message with the same reference number isn't mixed with the old segments
+        InboundSmsTracker newPart1 = segment(1, 1, 2);
+        mIndex.addSegment(newPart1);
+        assertTrue(mIndex.takeMessage(newPart1).isEmpty());
+        InboundSmsTracker newPart2 = segment(1, 2, 2);
+        mIndex.addSegment(newPart2);
+        assertEquals(Arrays.asList(newPart1, newPart2), mIndex.takeMessage(newPart2));
+    }
+
+    @Test
+    @SmallTest
+    public void testInvalidatedWhenFull() {
+        for (int ref = 0; ref < MultipartSmsIndex.MAX_MESSAGES; ref++) {
+            mIndex.addSegment(segment(ref, 1, 2));
+        }
+        assertTrue(mIndex.isLoaded());
+        mIndex.addSegment(segment(MultipartSmsIndex.MAX_MESSAGES, 1, 2));
+        assertFalse(mIndex.isLoaded());
+    }
+
+    @Test
+    @SmallTest
+    public void testBursts() {
+        // Bursts of interleaved 10-part messages, with the events of each segment handled in a
+        // random order after some more segments arrived.
+        Random random = new Random(20191015);
+        for (int burst = 0; burst < 20; burst++) {
+            List<InboundSmsTracker> arrivals = new ArrayList<>();
+            for (int ref = 0; ref < 20; ref++) {
+                for (int seq = 1; seq <= 10; seq++) {
+                    arrivals.add(segment(burst * 20 + ref, seq, 10));
+                }
+            }
+            Collections.shuffle(arrivals, random);
+
+            List<InboundSmsTracker> queued = new ArrayList<>();
+            int delivered = 0;
+            for (int i = 0; i < arrivals.size() || !queued.isEmpty(); i++) {
+                if (i < arrivals.size()) {
+                    mIndex.addSegment(arrivals.get(i));
+                    queued.add(arrivals.get(i));
+                }
+                if (i >= arrivals.size() || random.nextBoolean()) {
+                    InboundSmsTracker next = queued.remove(random.nextInt(queued.size()));
+                    List<InboundSmsTracker> segments = mIndex.takeMessage(next);
+                    if (!segments.isEmpty()) {
+                        assertEquals(10, segments.size());
+                        for (InboundSmsTracker s : segments) {
+                            assertEquals(next.getReferenceNumber(), s.getReferenceNumber());
+                        }
+                        delivered++;
+                    }
+                }
+            }
+            assertEquals(20, delivered);
+        }
+        assertTrue(mIndex.isLoaded());
+    }
+}
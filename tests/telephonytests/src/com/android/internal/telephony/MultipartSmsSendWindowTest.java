@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import android.telephony.SmsManager;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.SMSDispatcher.SmsTracker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class MultipartSmsSendWindowTest {
+    private SmsTracker[] mParts;
+    private final List<SmsTracker> mSent = new ArrayList<>();
+    private final List<SmsTracker> mFailed = new ArrayList<>();
+    private int mMessageCompleteCount;
+    private MultipartSmsSendWindow mWindow;
+
+    private final MultipartSmsSendWindow.Callback mCallback =
+            new MultipartSmsSendWindow.Callback() {
+                @Override
+                public void sendPart(SmsTracker part) {
+                    mSent.add(part);
+                }
+
+                @Override
+                public void failPart(SmsTracker part, int error) {
+                    mFailed.add(part);
+                    // Like SmsTracker#onFailed
+                    mWindow.onPartComplete(part, false, error);
+                }
+
+                @Override
+                public void onMessageComplete(MultipartSmsSendWindow window) {
+                    mMessageCompleteCount++;
+                }
+            };
+
+    @Before
+    public void setUp() {
+        mParts = new SmsTracker[5];
+        for (int i = 0; i < mParts.length; i++) {
+            mParts[i] = mock(SmsTracker.class);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testWindow() {
+        mWindow = new MultipartSmsSendWindow(mParts, 2, mCallback);
+        mWindow.start();
+        assertEquals(Arrays.asList(mParts[0], mParts[1]), mSent);
+
+        // Parts may complete out of order, and the retries of each part are counted
+        mParts[1].mRetryCount = 1;
+        mWindow.onPartComplete(mParts[0], true, 0);
+        assertEquals(Arrays.asList(mParts[0], mParts[1], mParts[2]), mSent);
+        mWindow.onPartComplete(mParts[2], true, 0);
+        mWindow.onPartComplete(mParts[1], true, 0);
+        assertEquals(5, mSent.size());
+        // Completing a part twice has no effect
+        mWindow.onPartComplete(mParts[1], true, 0);
+        assertEquals(5, mSent.size());
+
+        mWindow.onPartComplete(mParts[3], true, 0);
+        assertEquals(0, mMessageCompleteCount);
+        mWindow.onPartComplete(mParts[4], true, 0);
+        assertEquals(1, mMessageCompleteCount);
+
+        assertEquals(0, mWindow.getFailedPartCount());
+        assertEquals(1, mWindow.getRetryCount());
+        for (int i = 0; i < mParts.length; i++) {
+            assertTrue(mWindow.getPartLatencyMillis(i) >= 0);
+        }
+        assertTrue(mWindow.getMessageLatencyMillis() >= 0);
+    }
+
+    @Test
+    @SmallTest
+    public void testPartialFailure() {
+        mWindow = new MultipartSmsSendWindow(mParts, 2, mCallback);
+        mWindow.start();
+        mWindow.onPartComplete(mParts[0], false, SmsManager.RESULT_ERROR_GENERIC_FAILURE);
+
+        // The parts which were not sent fail at once, the one in flight completes normally
+        assertEquals(Arrays.asList(mParts[0], mParts[1]), mSent);
+        assertEquals(Arrays.asList(mParts[2], mParts[3], mParts[4]), mFailed);
+        assertEquals(0, mMessageCompleteCount);
+        mWindow.onPartComplete(mParts[1], true, 0);
+        assertEquals(2, mSent.size());
+        assertEquals(1, mMessageCompleteCount);
+
+        assertEquals(4, mWindow.getFailedPartCount());
+        assertEquals(3, mWindow.getCancelledPartCount());
+        assertTrue(mWindow.getPartLatencyMillis(1) >= 0);
+        assertEquals(-1, mWindow.getPartLatencyMillis(2));
+    }
+
+    @Test
+    @SmallTest
+    public void testLastPartFails() {
+        mWindow = new MultipartSmsSendWindow(mParts, mParts.length, mCallback);
+        mWindow.start();
+        assertEquals(mParts.length, mSent.size());
+        for (int i = 0; i < mParts.length - 1; i++) {
+            mWindow.onPartComplete(mParts[i], true, 0);
+        }
+        mWindow.onPartComplete(mParts[mParts.length - 1], false,
+                SmsManager.RESULT_ERROR_NO_SERVICE);
+        assertTrue(mFailed.isEmpty());
+        assertEquals(1, mMessageCompleteCount);
+        assertEquals(1, mWindow.getFailedPartCount());
+    }
+}
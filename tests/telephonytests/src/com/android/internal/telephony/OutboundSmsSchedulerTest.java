@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.SMSDispatcher.SmsTracker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+public class OutboundSmsSchedulerTest {
+    private final List<String> mSent = new ArrayList<>();
+    private final HashMap<String, SmsTracker[]> mParts = new HashMap<>();
+    private long mStallCheckDelay = -1;
+    private OutboundSmsScheduler mScheduler;
+
+    private final OutboundSmsScheduler.Callback mCallback = new OutboundSmsScheduler.Callback() {
+        @Override
+        public void dispatch(Runnable send) {
+            send.run();
+        }
+
+        @Override
+        public void scheduleStallCheck(long delayMillis) {
+            mStallCheckDelay = delayMillis;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mScheduler = new OutboundSmsScheduler(1, mCallback);
+    }
+
+    private void enqueue(String app, int priority, String message, int partCount) {
+        SmsTracker[] parts = new SmsTracker[partCount];
+        for (int i = 0; i < partCount; i++) {
+            parts[i] = mock(SmsTracker.class);
+        }
+        mParts.put(message, parts);
+        mScheduler.enqueue(app, priority, parts, () -> mSent.add(message));
+    }
+
+    private void complete(String message) {
+        for (SmsTracker part : mParts.get(message)) {
+            part.mScheduledSend.onPartComplete(part);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testPriorityClasses() {
+        enqueue("app", 0, "first", 1);
+        enqueue("app", -1, "normal", 1);
+        enqueue("app", 1, "interactive", 1);
+        enqueue("app", 3, "emergency", 1);
+        enqueue("app", 2, "urgent", 1);
+        assertEquals(Arrays.asList("first"), mSent);
+        assertEquals(4, mScheduler.getQueueDepth());
+        assertEquals(1, mScheduler.getQueueDepth(OutboundSmsScheduler.PRIORITY_CLASS_NORMAL));
+
+        complete("first");
+        complete("emergency");
+        complete("urgent");
+        complete("interactive");
+        complete("normal");
+        assertEquals(Arrays.asList("first", "emergency", "urgent", "interactive", "normal"), mSent);
+        assertEquals(0, mScheduler.getInFlightCount());
+        assertEquals(2, mScheduler.getDispatchedCount(OutboundSmsScheduler.PRIORITY_CLASS_NORMAL));
+        assertTrue(mScheduler.getMaxWaitMillis(OutboundSmsScheduler.PRIORITY_CLASS_NORMAL) >= 0);
+    }
+
+    @Test
+    @SmallTest
+    public void testFairQueuing() {
+        for (int i = 0; i < 10; i++) {
+            enqueue("bulk", 0, "bulk" + i, 1);
+        }
+        enqueue("otp", 0, "otp", 1);
+        for (int i = 0; i < 3; i++) {
+            complete(mSent.get(i));
+        }
+        // The message of the other app doesn't wait for all the queued messages of the bulk app
+        assertEquals(Arrays.asList("bulk0", "bulk1", "otp", "bulk2"), mSent);
+        assertEquals(7, mScheduler.getQueueDepth());
+    }
+
+    @Test
+    @SmallTest
+    public void testMultipartCost() {
+        enqueue("light", 0, "first", 1);
+        for (int i = 0; i < 4; i++) {
+            enqueue("light", 0, "light" + i, 1);
+            enqueue("other", 0, "other" + i, 1);
+        }
+        for (int i = 0; i < 7; i++) {
+            complete(mSent.get(i));
+        }
+        // A multi-part message costs more than a single part one
+        enqueue("multipart", 0, "multipart", 3);
+        enqueue("light", 0, "light4", 1);
+        for (int i = 7; i < 10; i++) {
+            complete(mSent.get(i));
+        }
+        assertEquals(Arrays.asList("first", "light0", "other0", "light1", "other1", "light2",
+                "other2", "light3", "other3", "light4", "multipart"), mSent);
+
+        // It is in flight until all its parts complete
+        enqueue("light", 0, "last", 1);
+        SmsTracker[] parts = mParts.get("multipart");
+        parts[0].mScheduledSend.onPartComplete(parts[0]);
+        parts[2].mScheduledSend.onPartComplete(parts[2]);
+        parts[2].mScheduledSend.onPartComplete(parts[2]);
+        assertEquals(11, mSent.size());
+        parts[1].mScheduledSend.onPartComplete(parts[1]);
+        assertEquals("last", mSent.get(11));
+    }
+
+    @Test
+    @SmallTest
+    public void testStalledRequest() {
+        enqueue("app", 0, "stalled", 1);
+        assertEquals(-1, mStallCheckDelay);
+        enqueue("app", 0, "next", 1);
+        enqueue("app", 0, "last", 1);
+        assertTrue(mStallCheckDelay > 0);
+        assertTrue(mStallCheckDelay <= OutboundSmsScheduler.STALL_TIMEOUT_MILLIS);
+
+        mScheduler.releaseStalledRequests(SystemClock.elapsedRealtime());
+        assertEquals(Arrays.asList("stalled"), mSent);
+        mScheduler.releaseStalledRequests(
+                SystemClock.elapsedRealtime() + OutboundSmsScheduler.STALL_TIMEOUT_MILLIS);
+        assertEquals(Arrays.asList("stalled", "next"), mSent);
+
+        // The stalled message completing doesn't send another one
+        complete("stalled");
+        assertEquals(2, mSent.size());
+        complete("next");
+        assertEquals(Arrays.asList("stalled", "next", "last"), mSent);
+    }
+}
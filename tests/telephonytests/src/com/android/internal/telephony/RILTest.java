@@ -80,6 +80,9 @@ import static com.android.internal.telephony.RILConstants.RIL_REQUEST_WRITE_SMS_
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
 import static junit.framework.Assert.assertTrue;
 
 import static org.mockito.Matchers.any;
@@ -1664,6 +1667,50 @@ public class RILTest extends TelephonyTest {
         assertEquals("100:foo", request.getWorkSourceClientId());
     }
 
+    @Test
+    public void testRequestPoolReuse() {
+        RILRequest.setPoolCapacity(2);
+        RILRequest.resetPoolStats();
+        int highWater = RILRequest.getInUseHighWaterMark();
+
+        // Burst well past the per-thread cache and the shared pool.
+        List<RILRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            requests.add(RILRequest.obtain(0, null, new WorkSource()));
+        }
+        assertTrue(RILRequest.getInUseHighWaterMark() >= highWater + 20);
+        for (RILRequest rr : requests) {
+            rr.release();
+            assertNull(rr.getResult());
+        }
+
+        long hits = RILRequest.getPoolHits();
+        long misses = RILRequest.getPoolMisses();
+        for (int i = 0; i < 10; i++) {
+            RILRequest rr = RILRequest.obtain(0, null, new WorkSource());
+            assertTrue(requests.contains(rr));
+            rr.release();
+        }
+        assertEquals(hits + 10, RILRequest.getPoolHits());
+        assertEquals(misses, RILRequest.getPoolMisses());
+    }
+
+    @Test
+    public void testRequestReleasedTwice() {
+        RILRequest.setPoolCapacity(2);
+        RILRequest rr = RILRequest.obtain(0, null, new WorkSource());
+        rr.release();
+        rr.release();
+
+        // The request is pooled once, so two live requests never share it
+        RILRequest first = RILRequest.obtain(0, null, new WorkSource());
+        RILRequest second = RILRequest.obtain(0, null, new WorkSource());
+        assertSame(rr, first);
+        assertNotSame(first, second);
+        first.release();
+        second.release();
+    }
+
     @Test
     public void testCellInfoTimestamp_1_4() {
         ArrayList<android.hardware.radio.V1_4.CellInfo> records =
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.os.WorkSource;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class RilRequestTableTest {
+    private static final int REQUESTS_PER_SENDER = 2000;
+
+    private RilRequestTable mTable;
+
+    @Before
+    public void setUp() throws Exception {
+        mTable = new RilRequestTable(4);
+    }
+
+    private static RILRequest obtainRequest() {
+        return RILRequest.obtain(RILConstants.RIL_REQUEST_GET_SIM_STATUS, null,
+                new WorkSource());
+    }
+
+    @Test
+    @SmallTest
+    public void testPutGetRemove() {
+        RILRequest rr = obtainRequest();
+        mTable.put(rr);
+        assertEquals(1, mTable.size());
+        assertSame(rr, mTable.get(rr.mSerial));
+        assertSame(rr, mTable.remove(rr.mSerial));
+        assertNull(mTable.get(rr.mSerial));
+        assertNull(mTable.remove(rr.mSerial));
+        assertEquals(0, mTable.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testGrowKeepsEntries() {
+        List<RILRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            RILRequest rr = obtainRequest();
+            requests.add(rr);
+            mTable.put(rr);
+        }
+        assertEquals(100, mTable.size());
+        assertTrue(mTable.capacity() >= 100);
+        for (RILRequest rr : requests) {
+            assertSame(rr, mTable.get(rr.mSerial));
+        }
+        assertEquals(100, mTable.snapshot().size());
+    }
+
+    @Test
+    @SmallTest
+    public void testReuseRemovedSlots() {
+        // Sequential serials wrapping around the table repeatedly must not grow it.
+        for (int i = 0; i < 1000; i++) {
+            RILRequest rr = obtainRequest();
+            mTable.put(rr);
+            assertSame(rr, mTable.remove(rr.mSerial));
+        }
+        assertEquals(4, mTable.capacity());
+        assertEquals(0, mTable.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testTombstonesRehashed() {
+        // A long-lived request keeps the table from ever becoming empty
+        RILRequest pending = obtainRequest();
+        mTable.put(pending);
+        for (int i = 0; i < 1000; i++) {
+            RILRequest rr = obtainRequest();
+            mTable.put(rr);
+            assertSame(rr, mTable.remove(rr.mSerial));
+            assertTrue(mTable.usedSlots() <= mTable.capacity() * 3 / 4);
+        }
+        assertEquals(4, mTable.capacity());
+        assertSame(pending, mTable.get(pending.mSerial));
+        assertNull(mTable.get(pending.mSerial + 1));
+    }
+
+    @Test
+    @SmallTest
+    public void testKeyedBySerialAdded() {
+        RILRequest rr = obtainRequest();
+        int serial = rr.mSerial;
+        mTable.put(rr);
+        // The request may be released and obtained again with another serial
+        rr.mSerial = serial + 1;
+        assertNull(mTable.get(serial + 1));
+        assertSame(rr, mTable.remove(serial));
+        assertEquals(0, mTable.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testDrain() {
+        Set<RILRequest> requests = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+            RILRequest rr = obtainRequest();
+            requests.add(rr);
+            mTable.put(rr);
+        }
+        List<RILRequest> drained = mTable.drain();
+        assertEquals(requests, new HashSet<>(drained));
+        assertEquals(10, drained.size());
+        assertEquals(0, mTable.size());
+        assertTrue(mTable.snapshot().isEmpty());
+    }
+
+    @Test
+    @SmallTest
+    public void testConcurrentSenders() throws Exception {
+        runConcurrentSenders(1);
+        runConcurrentSenders(4);
+        runConcurrentSenders(16);
+    }
+
+    /**
+     * Each sender adds requests while a responder thread removes them, mimicking binder threads
+     * sending requests while HIDL callbacks complete them. Every request must be removed exactly
+     * once.
+     */
+    private void runConcurrentSenders(int senders) throws Exception {
+        final RilRequestTable table = new RilRequestTable(4);
+        final int total = senders * REQUESTS_PER_SENDER;
+        final AtomicReferenceArray<RILRequest> sent = new AtomicReferenceArray<>(total);
+        final AtomicInteger sentCount = new AtomicInteger(0);
+        final AtomicInteger removedCount = new AtomicInteger(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int s = 0; s < senders; s++) {
+            threads.add(new Thread(() -> {
+                awaitQuietly(start);
+                for (int i = 0; i < REQUESTS_PER_SENDER; i++) {
+                    RILRequest rr = obtainRequest();
+                    table.put(rr);
+                    sent.set(sentCount.getAndIncrement(), rr);
+                }
+            }));
+        }
+        threads.add(new Thread(() -> {
+            awaitQuietly(start);
+            int next = 0;
+            while (next < total) {
+                RILRequest rr = sent.get(next);
+                if (rr == null) {
+                    Thread.yield();
+                    continue;
+                }
+                if (table.remove(rr.mSerial) == rr) {
+                    removedCount.incrementAndGet();
+                }
+                next++;
+            }
+        }));
+
+        for (Thread t : threads) {
+            t.start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(total, removedCount.get());
+        assertEquals(0, table.size());
+        assertTrue(table.snapshot().isEmpty());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
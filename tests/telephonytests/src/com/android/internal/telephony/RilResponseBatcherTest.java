@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class RilResponseBatcherTest {
+    private static final int BURST_SIZE = 100;
+    private static final long TIMEOUT_MS = 5000;
+
+    private HandlerThread mHandlerThread;
+    private List<Integer> mReceived;
+    private CountDownLatch mDone;
+    private Handler mTarget;
+
+    @Before
+    public void setUp() throws Exception {
+        mHandlerThread = new HandlerThread("RilResponseBatcherTest");
+        mHandlerThread.start();
+        mReceived = new ArrayList<>();
+        mTarget = new Handler(mHandlerThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                mReceived.add(msg.what);
+                mDone.countDown();
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mHandlerThread.quit();
+    }
+
+    /** Runs a burst of responses that arrive while the target looper is busy. */
+    private void sendBurst(RilResponseBatcher batcher) throws Exception {
+        mDone = new CountDownLatch(BURST_SIZE);
+        CountDownLatch blocked = new CountDownLatch(1);
+        mTarget.post(() -> {
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        for (int i = 0; i < BURST_SIZE; i++) {
+            Message msg = mTarget.obtainMessage(i);
+            if (batcher != null) {
+                batcher.send(msg);
+            } else {
+                msg.sendToTarget();
+            }
+        }
+        blocked.countDown();
+        assertTrue(mDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    @SmallTest
+    public void testBurstDeliveredInOrderWithOneWakeup() throws Exception {
+        RilResponseBatcher batcher = new RilResponseBatcher(0);
+        sendBurst(batcher);
+
+        assertEquals(BURST_SIZE, mReceived.size());
+        for (int i = 0; i < BURST_SIZE; i++) {
+            assertEquals(i, (int) mReceived.get(i));
+        }
+        assertEquals(BURST_SIZE, batcher.getMessageCount());
+        // Without batching, the looper would handle BURST_SIZE messages.
+        assertEquals(1, batcher.getWakeupCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testWindowCollectsSpreadResponses() throws Exception {
+        RilResponseBatcher batcher = new RilResponseBatcher(200);
+        mDone = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            batcher.send(mTarget.obtainMessage(i));
+            Thread.sleep(10);
+        }
+        assertTrue(mDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, batcher.getWakeupCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testBatchRemovedAfterDelivery() throws Exception {
+        RilResponseBatcher batcher = new RilResponseBatcher(0);
+        sendBurst(batcher);
+        assertEquals(0, batcher.getPendingBatchCount());
+
+        // A later burst starts a new batch
+        mReceived.clear();
+        sendBurst(batcher);
+        assertEquals(BURST_SIZE, mReceived.size());
+        assertEquals(2, batcher.getWakeupCount());
+        assertEquals(0, batcher.getPendingBatchCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testUnbatchedFallback() throws Exception {
+        sendBurst(null);
+        assertEquals(BURST_SIZE, mReceived.size());
+        for (int i = 0; i < BURST_SIZE; i++) {
+            assertEquals(i, (int) mReceived.get(i));
+        }
+    }
+}
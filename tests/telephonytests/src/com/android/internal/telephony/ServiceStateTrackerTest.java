@@ -402,6 +402,70 @@ public class ServiceStateTrackerTest extends TelephonyTest {
                 mSimulatedCommands.getGetNetworkSelectionModeCallCount());
     }
 
+    @Test
+    @MediumTest
+    public void testIncrementalPollStateCoalescesNetworkStateChanges() {
+        sst.setIncrementalPollStateEnabled(true);
+        sst.setRadioPower(true);
+        waitForMs(500);
+        final int getOperatorCallCount = mSimulatedCommands.getGetOperatorCallCount();
+        final int getVoiceRegistrationStateCallCount =
+                mSimulatedCommands.getGetVoiceRegistrationStateCallCount();
+
+        // Three changes while the first poll is in flight need only one follow-up poll.
+        mSimulatedCommands.pauseResponses();
+        for (int i = 0; i < 3; i++) {
+            sst.sendMessage(sst.obtainMessage(ServiceStateTracker.EVENT_NETWORK_STATE_CHANGED,
+                    null));
+        }
+        waitForMs(250);
+        mSimulatedCommands.resumeResponses();
+        waitForMs(250);
+
+        assertEquals(getOperatorCallCount + 2, mSimulatedCommands.getGetOperatorCallCount());
+        assertEquals(getVoiceRegistrationStateCallCount + 2,
+                mSimulatedCommands.getGetVoiceRegistrationStateCallCount());
+        assertEquals(1, sst.getPollsAvoided());
+        assertEquals(ServiceState.STATE_IN_SERVICE, sst.getServiceState().getVoiceRegState());
+    }
+
+    @Test
+    @MediumTest
+    public void testIncrementalPollStateIwlanChangeSkipsCellularQueries() {
+        sst.setIncrementalPollStateEnabled(true);
+        sst.setRadioPower(true);
+        waitForMs(500);
+        final int getOperatorCallCount = mSimulatedCommands.getGetOperatorCallCount();
+        final int getDataRegistrationStateCallCount =
+                mSimulatedCommands.getGetDataRegistrationStateCallCount();
+        final int getVoiceRegistrationStateCallCount =
+                mSimulatedCommands.getGetVoiceRegistrationStateCallCount();
+        final int getNetworkSelectionModeCallCount =
+                mSimulatedCommands.getGetNetworkSelectionModeCallCount();
+        ServiceState oldSS = new ServiceState(sst.getServiceState());
+
+        sst.sendMessage(sst.obtainMessage(ServiceStateTracker.EVENT_NETWORK_STATE_CHANGED,
+                new AsyncResult(AccessNetworkConstants.TRANSPORT_TYPE_WLAN, null, null)));
+        waitForMs(250);
+
+        assertEquals(getOperatorCallCount, mSimulatedCommands.getGetOperatorCallCount());
+        assertEquals(getDataRegistrationStateCallCount,
+                mSimulatedCommands.getGetDataRegistrationStateCallCount());
+        assertEquals(getVoiceRegistrationStateCallCount,
+                mSimulatedCommands.getGetVoiceRegistrationStateCallCount());
+        assertEquals(getNetworkSelectionModeCallCount,
+                mSimulatedCommands.getGetNetworkSelectionModeCallCount());
+        assertEquals(4, sst.getPollQueriesAvoided());
+        // The cellular part of the service state is rebuilt from the last results.
+        assertEquals(oldSS, sst.getServiceState());
+
+        // A cellular change still polls everything.
+        sst.sendMessage(sst.obtainMessage(ServiceStateTracker.EVENT_NETWORK_STATE_CHANGED,
+                new AsyncResult(AccessNetworkConstants.TRANSPORT_TYPE_WWAN, null, null)));
+        waitForMs(250);
+        assertEquals(getOperatorCallCount + 1, mSimulatedCommands.getGetOperatorCallCount());
+    }
+
     @FlakyTest
     @Ignore
     @Test
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static android.telephony.SmsManager.SMS_CATEGORY_FREE_SHORT_CODE;
+import static android.telephony.SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
+import static android.telephony.SmsManager.SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
+import static android.telephony.SmsManager.SMS_CATEGORY_PREMIUM_SHORT_CODE;
+import static android.telephony.SmsManager.SMS_CATEGORY_STANDARD_SHORT_CODE;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+
+import java.util.regex.Pattern;
+
+public class ShortCodeClassifierTest {
+    // Patterns in the style of sms_short_codes.xml: short code, premium, free and standard
+    private static final String[][] COUNTRY_PATTERNS = {
+            {"\\d{5,6}",
+                    "20433|21(?:344|472)|22715|23(?:333|847)|24(?:15|28)0|25209"
+                            + "|27(?:449|606|663)|28498|305(?:00|83)|32(?:340|941)"
+                            + "|33(?:166|786|849)|34746|35(?:182|564)|37975|38(?:135|146|254)"
+                            + "|41(?:366|463)|42335|43(?:355|500)|44(?:578|711|811)|45814"
+                            + "|46(?:157|173|327)|46666|47553|48(?:221|277|669)|50(?:844|920)"
+                            + "|99(?:689|796|807)",
+                    "122|87902|21696|24614|28003|30356|33669|40196|41064|41270|43753|611611",
+                    "44567|244444"},
+            {"\\d{4,6}", "[5-8]\\d{4}",
+                    "116\\d{3}|2020|35890|35900|61509|61623|64(?:024|137|339)|84224|86212",
+                    null},
+            {"\\d{5}", "(?:[1-5]|[6-8]\\d)\\d{3}", "3[2-5]\\d{3}|60[1-9]\\d{3}", null},
+            {"\\d{1,5}", null, null, null},
+            {"1*2+3?|(?:12|3)+.", "[^5]\\d?|\\D|\\w{2}", "[0-35-9]", "(7)7|x"},
+            {"9{1,2}(?:0|)", "8(9)??", null, "[.\\-4]{2,}"},
+    };
+
+    private static int getRegexCategory(Pattern[] patterns, String number) {
+        if (patterns[2] != null && patterns[2].matcher(number).matches()) {
+            return SMS_CATEGORY_FREE_SHORT_CODE;
+        }
+        if (patterns[3] != null && patterns[3].matcher(number).matches()) {
+            return SMS_CATEGORY_STANDARD_SHORT_CODE;
+        }
+        if (patterns[1] != null && patterns[1].matcher(number).matches()) {
+            return SMS_CATEGORY_PREMIUM_SHORT_CODE;
+        }
+        if (patterns[0] != null && patterns[0].matcher(number).matches()) {
+            return SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
+        }
+        return SMS_CATEGORY_NOT_SHORT_CODE;
+    }
+
+    @Test
+    @LargeTest
+    public void testEquivalentToRegexes() {
+        for (String[] regexes : COUNTRY_PATTERNS) {
+            ShortCodeClassifier classifier =
+                    ShortCodeClassifier.compile(regexes[0], regexes[1], regexes[2], regexes[3]);
+            assertNotNull(regexes[0], classifier);
+            Pattern[] patterns = new Pattern[regexes.length];
+            for (int i = 0; i < regexes.length; i++) {
+                patterns[i] = regexes[i] != null ? Pattern.compile(regexes[i]) : null;
+            }
+
+            assertEquals(getRegexCategory(patterns, ""), classifier.getNumberCategory(""));
+            // Every number of up to six digits, including leading zeros
+            char[] digits = new char[6];
+            for (int length = 1; length <= digits.length; length++) {
+                int count = (int) Math.pow(10, length);
+                for (int n = 0; n < count; n++) {
+                    for (int i = length - 1, v = n; i >= 0; i--, v /= 10) {
+                        digits[i] = (char) ('0' + v % 10);
+                    }
+                    String number = new String(digits, 0, length);
+                    assertEquals(number, getRegexCategory(patterns, number),
+                            classifier.getNumberCategory(number));
+                }
+            }
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testNonDigits() {
+        ShortCodeClassifier classifier = ShortCodeClassifier.compile("\\d{4,5}", "1a", null, null);
+        assertEquals(SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE,
+                classifier.getNumberCategory("1234"));
+        assertEquals(ShortCodeClassifier.CATEGORY_UNKNOWN, classifier.getNumberCategory("1a"));
+        assertEquals(ShortCodeClassifier.CATEGORY_UNKNOWN, classifier.getNumberCategory("+1234"));
+        assertEquals(ShortCodeClassifier.CATEGORY_UNKNOWN, classifier.getNumberCategory("123456*"));
+        assertEquals(SMS_CATEGORY_NOT_SHORT_CODE, classifier.getNumberCategory("123456"));
+    }
+
+    @Test
+    @SmallTest
+    public void testUnsupportedSyntax() {
+        String[] unsupported = {"^\\d{5}", "\\d{5}$", "(\\d)\\1", "\\d*+", "(?=1)\\d",
+                "(?i)1", "[1-5&&[^3]]", "\\x31", "\\d{2}{3}", "\\d{1,99999}"};
+        for (String regex : unsupported) {
+            assertNull(regex, ShortCodeClassifier.compile("\\d{5}", regex, null, null));
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SlotSubIdIndexTest {
+    private static final int REMOTE_SLOT = -2;
+
+    @Test
+    @SmallTest
+    public void testAddAndRemove() {
+        SlotSubIdIndex index = SlotSubIdIndex.EMPTY
+                .withSubId(1, 5, true)
+                .withSubId(0, 3, true)
+                .withSubId(REMOTE_SLOT, 7, false)
+                .withSubId(REMOTE_SLOT, 8, false);
+        assertEquals(3, index.size());
+        assertArrayEquals(new int[] {3}, index.getSubIds(0));
+        assertArrayEquals(new int[] {5}, index.getSubIds(1));
+        assertArrayEquals(new int[] {7, 8}, index.getSubIds(REMOTE_SLOT));
+        assertNull(index.getSubIds(2));
+        // Sub ids in slot index order
+        assertArrayEquals(new int[] {7, 8, 3, 5}, index.getAllSubIds());
+        assertEquals(0, index.getSlotIndex(3));
+        assertEquals(1, index.getSlotIndex(5));
+        assertEquals(REMOTE_SLOT, index.getSlotIndex(8));
+        assertEquals(SlotSubIdIndex.NO_SLOT, index.getSlotIndex(4));
+        assertEquals(SlotSubIdIndex.NO_SLOT, index.getSlotIndex(-1));
+        assertTrue(index.contains(REMOTE_SLOT, 7));
+        assertFalse(index.contains(0, 5));
+
+        // A new SIM replaces the sub id of a local slot.
+        index = index.withSubId(0, 9, true);
+        assertArrayEquals(new int[] {9}, index.getSubIds(0));
+        assertEquals(SlotSubIdIndex.NO_SLOT, index.getSlotIndex(3));
+
+        index = index.withoutSubId(REMOTE_SLOT, 7);
+        assertArrayEquals(new int[] {8}, index.getSubIds(REMOTE_SLOT));
+        index = index.withoutSubId(REMOTE_SLOT, 8);
+        assertNull(index.getSubIds(REMOTE_SLOT));
+        assertSame(index, index.withoutSubId(1, 6));
+        index = index.withoutSlot(1);
+        assertEquals(1, index.size());
+        assertSame(SlotSubIdIndex.EMPTY, index.withoutSlot(0));
+    }
+
+    @Test
+    @SmallTest
+    public void testSubIdInTwoSlots() {
+        SlotSubIdIndex index = SlotSubIdIndex.EMPTY.withSubId(1, 4, true).withSubId(0, 4, true);
+        assertEquals(0, index.getSlotIndex(4));
+        index = index.withoutSlot(0);
+        assertEquals(1, index.getSlotIndex(4));
+    }
+
+    @Test
+    @SmallTest
+    public void testLargeSubIds() {
+        SlotSubIdIndex index = SlotSubIdIndex.EMPTY
+                .withSubId(0, Integer.MAX_VALUE, true)
+                .withSubId(1, 2, true)
+                .withSubId(REMOTE_SLOT, 1 << 20, false)
+                .withSubId(REMOTE_SLOT, 2, false);
+        assertEquals(0, index.getSlotIndex(Integer.MAX_VALUE));
+        assertEquals(REMOTE_SLOT, index.getSlotIndex(1 << 20));
+        assertEquals(REMOTE_SLOT, index.getSlotIndex(2));
+        assertEquals(SlotSubIdIndex.NO_SLOT, index.getSlotIndex(3));
+    }
+
+    @Test
+    @SmallTest
+    public void testToMap() {
+        SlotSubIdIndex index = SlotSubIdIndex.EMPTY
+                .withSubId(1, 2, true)
+                .withSubId(REMOTE_SLOT, 3, false)
+                .withSubId(REMOTE_SLOT, 4, false);
+        assertEquals(Arrays.asList(REMOTE_SLOT, 1), new ArrayList<>(index.toMap().keySet()));
+        assertEquals(Arrays.asList(3, 4), index.toMap().get(REMOTE_SLOT));
+    }
+
+    /**
+     * Hot swap SIMs the way SubscriptionInfoUpdater does, removing the slot and then adding the
+     * new sub id, while other threads look up both directions.
+     */
+    @Test
+    public void testConcurrentHotSwap() throws Exception {
+        final int slots = 2;
+        final int swaps = 20000;
+        final AtomicReference<SlotSubIdIndex> current =
+                new AtomicReference<>(SlotSubIdIndex.EMPTY);
+        final AtomicBoolean done = new AtomicBoolean();
+        final List<Throwable> failures = new ArrayList<>();
+
+        Thread writer = new Thread(() -> {
+            int nextSubId = 1;
+            for (int i = 0; i < swaps; i++) {
+                int slot = i % slots;
+                current.set(current.get().withoutSlot(slot));
+                current.set(current.get().withSubId(slot, nextSubId++, true));
+            }
+            done.set(true);
+        });
+
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < 4; r++) {
+            readers.add(new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        SlotSubIdIndex index = current.get();
+                        for (int slot = 0; slot < slots; slot++) {
+                            int[] subIds = index.getSubIds(slot);
+                            if (subIds == null) continue;
+                            assertEquals(1, subIds.length);
+                            assertEquals(slot, index.getSlotIndex(subIds[0]));
+                        }
+                        for (int subId : index.getAllSubIds()) {
+                            assertTrue(index.getSlotIndex(subId) >= 0);
+                        }
+                        assertTrue(index.size() <= slots);
+                    }
+                } catch (Throwable t) {
+                    synchronized (failures) {
+                        failures.add(t);
+                    }
+                }
+            }));
+        }
+
+        for (Thread reader : readers) reader.start();
+        writer.start();
+        writer.join();
+        for (Thread reader : readers) reader.join();
+
+        assertTrue(failures.toString(), failures.isEmpty());
+        SlotSubIdIndex index = current.get();
+        assertArrayEquals(new int[] {swaps - 1, swaps}, index.getAllSubIds());
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.Telephony;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.internal.telephony.cdma.CdmaInboundSmsHandler;
+import com.android.internal.telephony.gsm.GsmInboundSmsHandler;
+import com.android.internal.util.HexDump;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+public class SmsBroadcastUndeliveredTest extends TelephonyTest {
+    private static final Uri RAW_URI = Uri.withAppendedPath(Telephony.Sms.CONTENT_URI, "raw");
+
+    @Mock
+    private GsmInboundSmsHandler mGsmInboundSmsHandler;
+    @Mock
+    private CdmaInboundSmsHandler mCdmaInboundSmsHandler;
+
+    private FakeSmsContentProvider mContentProvider;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        mContentProvider = new FakeSmsContentProvider();
+        ((MockContentResolver) mContext.getContentResolver()).addProvider(
+                Telephony.Sms.CONTENT_URI.getAuthority(), mContentProvider);
+        doReturn(mPhone).when(mGsmInboundSmsHandler).getPhone();
+        doAnswer(invocation -> new InboundSmsTracker((Cursor) invocation.getArgument(0),
+                (boolean) invocation.getArgument(1)))
+                .when(mTelephonyComponentFactory).makeInboundSmsTracker(any(Cursor.class),
+                anyBoolean());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mContentProvider.shutdown();
+        super.tearDown();
+    }
+
+    private void insertSegment(int referenceNumber, int sequence, int count, long date) {
+        ContentValues values = new ContentValues();
+        values.put("pdu", HexDump.toHexString(new byte[] {(byte) sequence}));
+        values.put("date", date);
+        values.put("destination_port", InboundSmsTracker.DEST_PORT_FLAG_NO_PORT
+                | InboundSmsTracker.DEST_PORT_FLAG_3GPP);
+        values.put("address", "1234567890");
+        values.put("display_originating_addr", "1234567890");
+        values.put("reference_number", referenceNumber);
+        values.put("sequence", sequence);
+        values.put("count", count);
+        values.put("message_body", "part " + sequence);
+        values.put("sub_id", 0);
+        mContentProvider.insert(RAW_URI, values);
+    }
+
+    @Test
+    @MediumTest
+    public void testScanLargeRawTable() {
+        // 10000 rows: 4000 single-part messages, 1500 complete 2-part messages, 2000 recent and
+        // 1000 expired incomplete 2-part messages. Segments of a message are spread across
+        // pages.
+        long now = System.currentTimeMillis();
+        long expired = now - 2 * SmsBroadcastUndelivered.DEFAULT_PARTIAL_SEGMENT_EXPIRE_AGE;
+        int ref = 0;
+        for (int i = 0; i < 4000; i++) {
+            insertSegment(ref++, 1, 1, now);
+        }
+        for (int i = 0; i < 1500; i++) {
+            insertSegment(ref++, 1, 2, now);
+        }
+        ref -= 1500;
+        for (int i = 0; i < 1500; i++) {
+            insertSegment(ref++, 2, 2, now);
+        }
+        for (int i = 0; i < 2000; i++) {
+            insertSegment(ref++, 1, 2, now);
+        }
+        for (int i = 0; i < 1000; i++) {
+            insertSegment(ref++, 2, 2, expired);
+        }
+        assertEquals(10000, mContentProvider.getNumRows());
+
+        long startTime = System.nanoTime();
+        SmsBroadcastUndelivered.scanRawTable(mContext, mCdmaInboundSmsHandler,
+                mGsmInboundSmsHandler,
+                now - SmsBroadcastUndelivered.DEFAULT_PARTIAL_SEGMENT_EXPIRE_AGE);
+        logd("scanned 10000 rows in " + (System.nanoTime() - startTime) / 1000000 + " ms");
+
+        verify(mGsmInboundSmsHandler, times(5500)).sendMessage(
+                eq(InboundSmsHandler.EVENT_BROADCAST_SMS), any(InboundSmsTracker.class));
+        verify(mCdmaInboundSmsHandler, never()).sendMessage(
+                eq(InboundSmsHandler.EVENT_BROADCAST_SMS), any(InboundSmsTracker.class));
+        // Only the expired segments were deleted.
+        assertEquals(9000, mContentProvider.getNumRows());
+    }
+}
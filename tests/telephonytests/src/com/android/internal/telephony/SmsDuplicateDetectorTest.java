@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.Telephony;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SmsDuplicateDetectorTest {
+    private static final Uri RAW_URI = Uri.withAppendedPath(Telephony.Sms.CONTENT_URI, "raw");
+    private static final long TIMESTAMP = 1571097600000L;
+
+    private SmsDuplicateDetector mDetector;
+    private FakeSmsContentProvider mContentProvider;
+    private MockContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mDetector = new SmsDuplicateDetector();
+        mContentProvider = new FakeSmsContentProvider();
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(Telephony.Sms.CONTENT_URI.getAuthority(), mContentProvider);
+    }
+
+    @After
+    public void tearDown() {
+        mContentProvider.shutdown();
+    }
+
+    private static InboundSmsTracker singlePart(int n) {
+        return new InboundSmsTracker(new byte[] {1}, TIMESTAMP + n, -1, false, false,
+                "1234567890", "1234567890", "message " + n, false, 0);
+    }
+
+    private static InboundSmsTracker segment(int referenceNumber, int sequenceNumber,
+            String body) {
+        return new InboundSmsTracker(new byte[] {1}, TIMESTAMP, -1, false, "1234567890",
+                "1234567890", referenceNumber, sequenceNumber, 2, false, body, false, 0);
+    }
+
+    @Test
+    @SmallTest
+    public void testNotBuilt() {
+        assertTrue(mDetector.isSuspected(singlePart(0)));
+        mDetector.add(singlePart(0));
+        assertTrue(mDetector.isSuspected(singlePart(1)));
+    }
+
+    @Test
+    @SmallTest
+    public void testRebuildFromRawTable() {
+        mContentProvider.insert(RAW_URI, singlePart(0).getContentValues());
+        mContentProvider.insert(RAW_URI, segment(1, 1, "part 1").getContentValues());
+        mDetector.rebuild(mResolver, RAW_URI);
+
+        assertTrue(mDetector.isSuspected(singlePart(0)));
+        assertFalse(mDetector.isSuspected(singlePart(1)));
+        // Another copy of a segment conflicts with the stored one even if its body differs.
+        assertTrue(mDetector.isSuspected(segment(1, 1, "another part 1")));
+        assertFalse(mDetector.isSuspected(segment(1, 2, "part 2")));
+
+        // Segments which were already broadcast only match exactly.
+        mContentProvider.delete(RAW_URI, null, null);
+        mDetector.rebuild(mResolver, RAW_URI);
+        assertTrue(mDetector.isSuspected(segment(1, 1, "part 1")));
+        assertFalse(mDetector.isSuspected(segment(1, 1, "another part 1")));
+    }
+
+    @Test
+    @SmallTest
+    public void testKeysAddedDuringRebuild() {
+        mDetector.rebuild(mResolver, RAW_URI);
+        mDetector.add(singlePart(0));
+        mContentProvider.insert(RAW_URI, singlePart(0).getContentValues());
+
+        // A message received while the raw table is read is known once the filter is swapped.
+        FakeSmsContentProvider provider = new FakeSmsContentProvider() {
+            @Override
+            public Cursor query(Uri uri, String[] projection, String selection,
+                    String[] selectionArgs, String sortOrder) {
+                mDetector.add(singlePart(1));
+                return mContentProvider.query(uri, projection, selection, selectionArgs,
+                        sortOrder);
+            }
+        };
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(Telephony.Sms.CONTENT_URI.getAuthority(), provider);
+        mDetector.rebuild(resolver, RAW_URI);
+        provider.shutdown();
+        assertTrue(mDetector.isSuspected(singlePart(0)));
+        assertTrue(mDetector.isSuspected(singlePart(1)));
+        assertFalse(mDetector.isSuspected(singlePart(2)));
+
+        // The previous filter is kept if the raw table can't be read.
+        mDetector.rebuild(new MockContentResolver(), RAW_URI);
+        assertTrue(mDetector.isSuspected(singlePart(0)));
+        assertFalse(mDetector.isSuspected(singlePart(2)));
+    }
+
+    @Test
+    @SmallTest
+    public void testNoFalseNegatives() {
+        mDetector.rebuild(mResolver, RAW_URI);
+        int count = SmsDuplicateDetector.DEFAULT_CAPACITY;
+        for (int i = 0; i < count; i++) {
+            mDetector.add(singlePart(i));
+            // Recent keys, and older ones moved to the Bloom filter, are all still known.
+            assertTrue(mDetector.isSuspected(singlePart(i)));
+            assertTrue(mDetector.isSuspected(singlePart(i / 2)));
+        }
+        assertFalse(mDetector.isFull());
+
+        int falsePositives = 0;
+        for (int i = count; i < 2 * count; i++) {
+            if (mDetector.isSuspected(singlePart(i))) falsePositives++;
+        }
+        assertTrue("false positives: " + falsePositives, falsePositives < count / 20);
+
+        for (int i = 0; i < SmsDuplicateDetector.LRU_SIZE + 1; i++) {
+            mDetector.add(singlePart(2 * count + i));
+        }
+        assertTrue(mDetector.isFull());
+    }
+}
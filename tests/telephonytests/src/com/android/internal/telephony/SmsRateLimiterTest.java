@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class SmsRateLimiterTest {
+    private static final int MAX_ALLOWED = 30;
+    private static final long CHECK_PERIOD = 60000;
+
+    private SmsRateLimiter mLimiter;
+
+    @Before
+    public void setUp() {
+        mLimiter = new SmsRateLimiter(MAX_ALLOWED, CHECK_PERIOD);
+    }
+
+    @Test
+    @SmallTest
+    public void testSlidingWindow() {
+        assertEquals(MAX_ALLOWED, mLimiter.getRemainingQuota("app", 0));
+        assertEquals(MAX_ALLOWED - 10, mLimiter.tryAcquire("app", 10, 0));
+        assertEquals(0, mLimiter.tryAcquire("app", MAX_ALLOWED - 10, 1000));
+        assertEquals(SmsRateLimiter.LIMIT_REACHED, mLimiter.tryAcquire("app", 1, 2000));
+        // Other apps have their own window
+        assertEquals(MAX_ALLOWED - 1, mLimiter.tryAcquire("other", 1, 2000));
+
+        // The first 10 messages leave the window, the next ones are still in it
+        assertEquals(10, mLimiter.getRemainingQuota("app", CHECK_PERIOD + 1));
+        assertEquals(SmsRateLimiter.LIMIT_REACHED,
+                mLimiter.tryAcquire("app", 11, CHECK_PERIOD + 1));
+        assertEquals(0, mLimiter.tryAcquire("app", 10, CHECK_PERIOD + 1));
+        assertEquals(MAX_ALLOWED - 10, mLimiter.getRemainingQuota("app", CHECK_PERIOD + 1001));
+        assertEquals(MAX_ALLOWED, mLimiter.getRemainingQuota("app", 3 * CHECK_PERIOD));
+
+        // More messages than the limit are never allowed
+        assertEquals(SmsRateLimiter.LIMIT_REACHED,
+                mLimiter.tryAcquire("new", MAX_ALLOWED + 1, 0));
+    }
+
+    @Test
+    @SmallTest
+    public void testPerAppWindow() {
+        mLimiter.tryAcquire("app", 20, 0);
+        mLimiter.tryAcquire("app", 5, 500);
+        // The most recent messages count against the smaller limit
+        mLimiter.setWindow("app", 8, 1000);
+        assertEquals(0, mLimiter.getRemainingQuota("app", 600));
+        assertEquals(3, mLimiter.getRemainingQuota("app", 1001));
+        assertEquals(8, mLimiter.getRemainingQuota("app", 1501));
+        assertEquals(SmsRateLimiter.LIMIT_REACHED, mLimiter.tryAcquire("app", 9, 1501));
+        assertEquals(0, mLimiter.tryAcquire("app", 8, 1501));
+
+        mLimiter.setWindow("app", 100, CHECK_PERIOD);
+        assertEquals(92, mLimiter.getRemainingQuota("app", 1501));
+        assertEquals(MAX_ALLOWED, mLimiter.getRemainingQuota("other", 1501));
+
+        mLimiter.setWindow("blocked", 0, CHECK_PERIOD);
+        assertEquals(SmsRateLimiter.LIMIT_REACHED, mLimiter.tryAcquire("blocked", 1, 0));
+        assertEquals(0, mLimiter.getRemainingQuota("blocked", 0));
+    }
+
+    @Test
+    @SmallTest
+    public void testIdleWindowsDropped() {
+        mLimiter.tryAcquire("idle", 1, 0);
+        mLimiter.tryAcquire("busy", 1, 0);
+        mLimiter.setWindow("custom", 5, CHECK_PERIOD);
+        mLimiter.tryAcquire("busy", 1, CHECK_PERIOD);
+        assertEquals(3, mLimiter.getWindowCount());
+
+        // Only the window whose messages all expired is dropped, the per-app limit is kept
+        mLimiter.prune(CHECK_PERIOD + 1);
+        assertEquals(2, mLimiter.getWindowCount());
+        assertEquals(MAX_ALLOWED, mLimiter.getRemainingQuota("idle", CHECK_PERIOD + 1));
+        assertEquals(MAX_ALLOWED - 1, mLimiter.getRemainingQuota("busy", CHECK_PERIOD + 1));
+        assertEquals(5, mLimiter.getRemainingQuota("custom", CHECK_PERIOD + 1));
+
+        // Sending once a period has passed drops idle windows too
+        assertEquals(MAX_ALLOWED - 1, mLimiter.tryAcquire("idle", 1, 3 * CHECK_PERIOD));
+        assertEquals(2, mLimiter.getWindowCount());
+        assertEquals(MAX_ALLOWED - 2, mLimiter.tryAcquire("idle", 1, 3 * CHECK_PERIOD));
+    }
+
+    @Test
+    @SmallTest
+    public void testWindowGrowsToLimit() {
+        // Send one message at a time so the buffer grows while older messages are still counted
+        for (int i = 0; i < MAX_ALLOWED; i++) {
+            assertEquals(MAX_ALLOWED - i - 1, mLimiter.tryAcquire("app", 1, i));
+        }
+        assertEquals(SmsRateLimiter.LIMIT_REACHED, mLimiter.tryAcquire("app", 1, MAX_ALLOWED));
+        // Messages expire oldest first across the wrapped buffer
+        assertEquals(2, mLimiter.getRemainingQuota("app", CHECK_PERIOD + 2));
+        assertEquals(0, mLimiter.tryAcquire("app", 2, CHECK_PERIOD + 2));
+        mLimiter.setWindow("app", 3, CHECK_PERIOD);
+        assertEquals(0, mLimiter.getRemainingQuota("app", CHECK_PERIOD + 2));
+        assertEquals(3, mLimiter.getRemainingQuota("app", 2 * CHECK_PERIOD + 3));
+    }
+
+    @Test
+    @MediumTest
+    public void testConcurrentApps() throws Exception {
+        final int threads = 8;
+        final int apps = 64;
+        final int attempts = 4 * MAX_ALLOWED;
+        final AtomicIntegerArray allowed = new AtomicIntegerArray(apps);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] senders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            senders[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                // Every thread sends for every app, all within one check period
+                for (int i = 0; i < attempts; i++) {
+                    for (int app = 0; app < apps; app++) {
+                        int a = (app + offset) % apps;
+                        if (mLimiter.tryAcquire("app" + a, 1, i) >= 0) {
+                            allowed.incrementAndGet(a);
+                        }
+                    }
+                }
+            });
+            senders[t].start();
+        }
+        start.countDown();
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        for (int app = 0; app < apps; app++) {
+            assertEquals("app" + app, MAX_ALLOWED, allowed.get(app));
+            assertEquals(0, mLimiter.getRemainingQuota("app" + app, attempts));
+        }
+        assertEquals(MAX_ALLOWED, mLimiter.getRemainingQuota("app0", CHECK_PERIOD + attempts));
+    }
+}
@@ -194,6 +194,52 @@ public class SubscriptionControllerTest extends TelephonyTest {
                 captorIntent.getValue().getAction());
     }
 
+    @Test @SmallTest
+    public void testSubInfoSnapshot() {
+        testInsertSim();
+        int subId = mSubscriptionControllerUT.getActiveSubIdList(/*visibleOnly*/false)[0];
+        assertEquals(1, mSubscriptionControllerUT.getAllSubInfoList(mCallingPackage).size());
+
+        // Changes made directly in the database are seen once the database notifies them.
+        ContentValues values = new ContentValues();
+        values.put(SubscriptionManager.CARRIER_NAME, "direct");
+        mFakeTelephonyProvider.update(SubscriptionManager.CONTENT_URI, values,
+                SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID + "=" + subId, null);
+        assertNotEquals("direct",
+                mSubscriptionControllerUT.getSubscriptionInfo(subId).getCarrierName());
+        mSubscriptionControllerUT.mSubInfoObserver.onChange(false);
+        assertEquals("direct",
+                mSubscriptionControllerUT.getSubscriptionInfo(subId).getCarrierName());
+
+        // Updating a subscription reloads its record, in all the cached views.
+        mSubscriptionControllerUT.setIconTint(3, subId);
+        SubscriptionInfo subInfo = mSubscriptionControllerUT.getSubscriptionInfo(subId);
+        assertEquals(3, subInfo.getIconTint());
+        assertEquals("direct", subInfo.getCarrierName());
+        assertEquals(3, mSubscriptionControllerUT.getAllSubInfoList(mCallingPackage).get(0)
+                .getIconTint());
+        assertEquals(3, mSubscriptionControllerUT.getActiveSubscriptionInfo(subId,
+                mCallingPackage).getIconTint());
+        assertEquals(3, mSubscriptionControllerUT.getSubInfoUsingSlotIndexPrivileged(
+                subInfo.getSimSlotIndex()).get(0).getIconTint());
+        assertEquals(1, mSubscriptionControllerUT.getAllSubInfoCount(mCallingPackage));
+
+        // The returned records are copies.
+        subInfo.setIconTint(5);
+        mSubscriptionControllerUT.getActiveSubscriptionInfo(subId, mCallingPackage)
+                .setIconTint(5);
+        assertEquals(3, mSubscriptionControllerUT.getSubscriptionInfo(subId).getIconTint());
+        assertEquals(3, mSubscriptionControllerUT.getActiveSubscriptionInfo(subId,
+                mCallingPackage).getIconTint());
+
+        // The returned lists are copies.
+        mSubscriptionControllerUT.getAllSubInfoList(mCallingPackage).clear();
+        mSubscriptionControllerUT.getActiveSubscriptionInfoList(mCallingPackage).clear();
+        assertEquals(1, mSubscriptionControllerUT.getAllSubInfoList(mCallingPackage).size());
+        assertEquals(1,
+                mSubscriptionControllerUT.getActiveSubscriptionInfoList(mCallingPackage).size());
+    }
+
     @Test @SmallTest
     public void testSetGetDisplayNameSrc() {
         testInsertSim();
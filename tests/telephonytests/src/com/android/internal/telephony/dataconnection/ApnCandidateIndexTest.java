@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.telephony.ServiceState;
+import android.telephony.data.ApnSetting;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class ApnCandidateIndexTest {
+    // A carrier database the size of a large MVNO aggregator's
+    private static final int APN_COUNT = 400;
+
+    private final ArrayList<ApnSetting> mAllApnSettings = new ArrayList<>();
+    private ApnCandidateIndex mIndex;
+
+    private static ApnSetting createApnSetting(int id, int apnTypeBitmask,
+            int networkTypeBitmask, boolean carrierEnabled) {
+        return ApnSetting.makeApnSetting(
+                id,                     // id
+                "310260",               // numeric
+                "apn" + id,             // name
+                "apn" + id + ".test",   // apn
+                null,                   // proxy
+                -1,                     // port
+                null,                   // mmsc
+                null,                   // mmsproxy
+                -1,                     // mmsport
+                "",                     // user
+                "",                     // password
+                -1,                     // authtype
+                apnTypeBitmask,         // types
+                ApnSetting.PROTOCOL_IP, // protocol
+                ApnSetting.PROTOCOL_IP, // roaming_protocol
+                carrierEnabled,         // carrier_enabled
+                networkTypeBitmask,     // networktype_bitmask
+                0,                      // profile_id
+                false,                  // modem_cognitive
+                0,                      // max_conns
+                0,                      // wait_time
+                0,                      // max_conns_time
+                0,                      // mtu
+                -1,                     // mvno_type
+                "");                    // mnvo_match_data
+    }
+
+    @Before
+    public void setUp() {
+        Random random = new Random(APN_COUNT);
+        for (int id = 0; id < APN_COUNT; id++) {
+            int apnTypeBitmask = random.nextInt(ApnSetting.TYPE_EMERGENCY << 1);
+            // Some APNs support all network types
+            int networkTypeBitmask = random.nextInt(4) == 0 ? 0 : random.nextInt(1 << 20);
+            mAllApnSettings.add(createApnSetting(id, apnTypeBitmask, networkTypeBitmask,
+                    random.nextInt(10) != 0));
+        }
+        mIndex = new ApnCandidateIndex(mAllApnSettings);
+    }
+
+    /** The candidates as DcTracker#buildWaitingApns used to find them. */
+    private List<ApnSetting> findCandidates(int apnTypeBitmask, int networkType) {
+        List<ApnSetting> candidates = new ArrayList<>();
+        for (ApnSetting apn : mAllApnSettings) {
+            if (apn.canHandleType(apnTypeBitmask) && apn.canSupportNetworkType(networkType)) {
+                candidates.add(apn);
+            }
+        }
+        return candidates;
+    }
+
+    @Test
+    @SmallTest
+    public void testMatchesAllApnsForAllRats() {
+        for (int type = ApnSetting.TYPE_DEFAULT; type <= ApnSetting.TYPE_EMERGENCY; type <<= 1) {
+            for (int rat = ServiceState.RIL_RADIO_TECHNOLOGY_UNKNOWN;
+                    rat <= ServiceState.RIL_RADIO_TECHNOLOGY_LTE_CA; rat++) {
+                int networkType = ServiceState.rilRadioTechnologyToNetworkType(rat);
+                assertEquals("type=" + type + " rat=" + rat, findCandidates(type, networkType),
+                        mIndex.getCandidates(type, networkType));
+            }
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testClear() {
+        int networkType = ServiceState.rilRadioTechnologyToNetworkType(
+                ServiceState.RIL_RADIO_TECHNOLOGY_LTE);
+        List<ApnSetting> candidates = mIndex.getCandidates(ApnSetting.TYPE_DEFAULT, networkType);
+        assertSame(candidates, mIndex.getCandidates(ApnSetting.TYPE_DEFAULT, networkType));
+        assertEquals(1, mIndex.size());
+
+        ApnSetting apn = createApnSetting(APN_COUNT, ApnSetting.TYPE_DEFAULT, 0, true);
+        mAllApnSettings.add(apn);
+        mIndex.clear();
+        assertEquals(0, mIndex.size());
+        candidates = mIndex.getCandidates(ApnSetting.TYPE_DEFAULT, networkType);
+        assertTrue(candidates.contains(apn));
+        assertEquals(findCandidates(ApnSetting.TYPE_DEFAULT, networkType), candidates);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DataStallDetectorTest {
+    private static final long BASE_DELAY_MS = 60 * 1000;
+    private static final long MAX_DELAY_MS = 30 * 60 * 1000;
+
+    private long mTxPackets;
+    private long mRxPackets;
+    private long mNowMs;
+    private DataStallDetector mDetector;
+
+    @Before
+    public void setUp() {
+        mDetector = new DataStallDetector(new DataStallDetector.CounterSource() {
+            @Override
+            public long getTxPackets() {
+                return mTxPackets;
+            }
+
+            @Override
+            public long getRxPackets() {
+                return mRxPackets;
+            }
+        });
+    }
+
+    private boolean sample(long sent, long received) {
+        mTxPackets += sent;
+        mRxPackets += received;
+        mNowMs += mDetector.isStallSuspected() ? BASE_DELAY_MS
+                : mDetector.getNextSampleDelayMs(BASE_DELAY_MS, MAX_DELAY_MS);
+        return mDetector.sample(mNowMs, true, false);
+    }
+
+    @Test
+    @SmallTest
+    public void testBackOffWhileIdle() {
+        assertTrue(sample(10, 10));
+        assertEquals(BASE_DELAY_MS, mDetector.getNextSampleDelayMs(BASE_DELAY_MS, MAX_DELAY_MS));
+
+        long[] expectedDelays = {2, 4, 8, 16, 30, 30};
+        for (long expectedDelay : expectedDelays) {
+            assertFalse(sample(0, 0));
+            assertEquals(expectedDelay * BASE_DELAY_MS,
+                    mDetector.getNextSampleDelayMs(BASE_DELAY_MS, MAX_DELAY_MS));
+        }
+        assertFalse(mDetector.isStallSuspected());
+
+        // Traffic stops the back-off
+        assertTrue(sample(1, 1));
+        assertEquals(BASE_DELAY_MS, mDetector.getNextSampleDelayMs(BASE_DELAY_MS, MAX_DELAY_MS));
+
+        // A delay longer than the longest back-off isn't shortened
+        assertFalse(sample(0, 0));
+        assertEquals(MAX_DELAY_MS * 2,
+                mDetector.getNextSampleDelayMs(MAX_DELAY_MS * 2, MAX_DELAY_MS));
+    }
+
+    @Test
+    @SmallTest
+    public void testBackOffDelay() {
+        assertEquals(1000, DataStallDetector.getBackOffDelayMs(1000, 8000, 0));
+        assertEquals(4000, DataStallDetector.getBackOffDelayMs(1000, 8000, 2));
+        assertEquals(8000, DataStallDetector.getBackOffDelayMs(1000, 8000, 100));
+        assertEquals(6000, DataStallDetector.getBackOffDelayMs(1000, 6000, 3));
+    }
+
+    @Test
+    @SmallTest
+    public void testStallDetection() {
+        sample(10, 10);
+        sample(0, 0);
+        sample(0, 0);
+        long suspectedSinceMs = mNowMs;
+        assertFalse(sample(4, 0));
+        assertEquals(4, mDetector.getSentSinceLastRecv());
+        assertTrue(mDetector.isStallSuspected());
+        assertFalse(sample(6, 0));
+        assertEquals(10, mDetector.getSentSinceLastRecv());
+
+        mDetector.onStallDetected(mNowMs);
+        assertEquals(1, mDetector.getStallCount());
+        assertEquals(mNowMs - suspectedSinceMs, mDetector.getMaxDetectionLatencyMs());
+        assertEquals(mNowMs - suspectedSinceMs, mDetector.getAverageDetectionLatencyMs());
+
+        // Sampled at the shortest delay until recovered
+        mDetector.onRecoveryStep(false);
+        assertEquals(0, mDetector.getSentSinceLastRecv());
+        assertTrue(mDetector.isStallSuspected());
+        mDetector.onRecoveryStep(true);
+        assertFalse(mDetector.isStallSuspected());
+        assertTrue(sample(1, 1));
+        assertEquals(0, mDetector.getFalsePositiveCount());
+        assertEquals(6, mDetector.getSampleCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testFalsePositive() {
+        sample(10, 0);
+        mDetector.onStallDetected(mNowMs);
+        mDetector.onRecoveryStep(false);
+        sample(3, 0);
+        assertTrue(sample(0, 3));
+        assertEquals(1, mDetector.getStallCount());
+        assertEquals(1, mDetector.getFalsePositiveCount());
+        assertFalse(mDetector.isStallSuspected());
+    }
+
+    @Test
+    @SmallTest
+    public void testVoiceCall() {
+        sample(10, 10);
+        mTxPackets += 20;
+        mNowMs += BASE_DELAY_MS;
+        assertFalse(mDetector.sample(mNowMs, false, false));
+        assertEquals(0, mDetector.getSentSinceLastRecv());
+        assertFalse(mDetector.isStallSuspected());
+
+        // Received packets may be ignored to simulate a stall
+        mTxPackets += 20;
+        mRxPackets += 20;
+        mNowMs += BASE_DELAY_MS;
+        assertFalse(mDetector.sample(mNowMs, true, true));
+        assertEquals(20, mDetector.getSentSinceLastRecv());
+    }
+}
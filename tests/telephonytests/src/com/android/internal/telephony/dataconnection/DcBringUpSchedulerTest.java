@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.PhoneConstants;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DcBringUpSchedulerTest {
+    private DcBringUpScheduler mScheduler;
+    private ApnContext mDefault;
+    private ApnContext mIms;
+    private ApnContext mMms;
+
+    private static ApnContext createApnContext(String apnType) {
+        ApnContext apnContext = mock(ApnContext.class);
+        doReturn(apnType).when(apnContext).getApnType();
+        return apnContext;
+    }
+
+    @Before
+    public void setUp() {
+        mScheduler = new DcBringUpScheduler();
+        mDefault = createApnContext(PhoneConstants.APN_TYPE_DEFAULT);
+        mIms = createApnContext(PhoneConstants.APN_TYPE_IMS);
+        mMms = createApnContext(PhoneConstants.APN_TYPE_MMS);
+    }
+
+    @Test
+    @SmallTest
+    public void testUnlimited() {
+        mScheduler.onSetupStarted(mDefault, 1, 100);
+        mScheduler.onSetupStarted(mIms, 1, 100);
+        mScheduler.onSetupStarted(mMms, 1, 110);
+        assertTrue(mScheduler.canStart());
+        assertEquals(3, mScheduler.getMaxConcurrent());
+
+        assertEquals(50, mScheduler.onSetupComplete(mIms, 1, 150));
+        assertEquals(100, mScheduler.onSetupComplete(mDefault, 1, 200));
+        assertEquals(0, mScheduler.getRoundCount());
+        assertEquals(120, mScheduler.onSetupComplete(mMms, 1, 230));
+
+        // All the APN contexts were up 130ms after the first setup started
+        assertEquals(1, mScheduler.getRoundCount());
+        assertEquals(130, mScheduler.getLastRoundMs());
+        assertEquals(50, mScheduler.getLastSetupLatencyMs(PhoneConstants.APN_TYPE_IMS));
+        assertEquals(-1, mScheduler.getLastSetupLatencyMs(PhoneConstants.APN_TYPE_DUN));
+    }
+
+    @Test
+    @SmallTest
+    public void testLimit() {
+        mScheduler.setMaxInFlight(2);
+        mScheduler.onSetupStarted(mDefault, 1, 0);
+        assertTrue(mScheduler.canStart());
+        mScheduler.onSetupStarted(mIms, 1, 0);
+        assertFalse(mScheduler.canStart());
+        mScheduler.enqueue(mMms);
+        mScheduler.enqueue(mMms);
+        assertEquals(1, mScheduler.getQueuedCount());
+        assertNull(mScheduler.pollNext());
+
+        mScheduler.onSetupComplete(mDefault, 1, 100);
+        // A new setup doesn't overtake the queued one
+        assertFalse(mScheduler.canStart());
+        assertEquals(mMms, mScheduler.pollNext());
+        mScheduler.onSetupStarted(mMms, 1, 100);
+        assertEquals(2, mScheduler.getInFlightCount());
+        assertEquals(2, mScheduler.getMaxConcurrent());
+
+        mScheduler.onSetupComplete(mIms, 1, 150);
+        mScheduler.onSetupComplete(mMms, 1, 300);
+        assertEquals(1, mScheduler.getRoundCount());
+        assertEquals(300, mScheduler.getMaxRoundMs());
+    }
+
+    @Test
+    @SmallTest
+    public void testSingleDataConnection() {
+        mScheduler.setMaxInFlight(1);
+        mScheduler.onSetupStarted(mDefault, 1, 0);
+        mScheduler.enqueue(mIms);
+        mScheduler.enqueue(mMms);
+
+        // The queued and in flight setups are dropped on clean up, which ends the round
+        mScheduler.reset(10);
+        assertEquals(0, mScheduler.getQueuedCount());
+        assertEquals(0, mScheduler.getInFlightCount());
+        assertEquals(1, mScheduler.getRoundCount());
+        assertEquals(10, mScheduler.getLastRoundMs());
+        assertTrue(mScheduler.canStart());
+        assertEquals(-1, mScheduler.onSetupComplete(mDefault, 1, 40));
+    }
+
+    @Test
+    @SmallTest
+    public void testStaleCompletion() {
+        mScheduler.setMaxInFlight(1);
+        mScheduler.onSetupStarted(mDefault, 1, 0);
+        mScheduler.onSetupStarted(mDefault, 2, 10);
+        mScheduler.enqueue(mIms);
+
+        // The completion of the replaced setup doesn't release the new one
+        assertEquals(-1, mScheduler.onSetupComplete(mDefault, 1, 20));
+        assertNull(mScheduler.pollNext());
+        assertEquals(20, mScheduler.onSetupComplete(mDefault, 2, 30));
+        assertEquals(mIms, mScheduler.pollNext());
+    }
+}
@@ -28,6 +28,7 @@ import static org.junit.Assert.fail;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -60,6 +61,7 @@ import java.util.List;
 public class DcControllerTest extends TelephonyTest {
 
     private static final int DATA_CONNECTION_ACTIVE_PH_LINK_DORMANT = 1;
+    private static final int DATA_CONNECTION_ACTIVE_PH_LINK_UP = 2;
     private static final int EVENT_DATA_STATE_CHANGED = 0x00040007;
 
     @Mock
@@ -148,4 +150,62 @@ public class DcControllerTest extends TelephonyTest {
 
         verify(mDcTracker, times(1)).sendStopNetStatPoll(eq(DctConstants.Activity.DORMANT));
     }
-}
\ No newline at end of file
+
+    private static DataCallResponse createResponse(int cid, int mtu) {
+        return new DataCallResponse(0, -1, cid, DATA_CONNECTION_ACTIVE_PH_LINK_UP,
+                ApnSetting.PROTOCOL_IP, FAKE_IFNAME,
+                Arrays.asList(new LinkAddress(NetworkUtils.numericToInetAddress(FAKE_ADDRESS), 0)),
+                Arrays.asList(NetworkUtils.numericToInetAddress(FAKE_DNS)),
+                Arrays.asList(NetworkUtils.numericToInetAddress(FAKE_GATEWAY)),
+                Arrays.asList(NetworkUtils.numericToInetAddress(FAKE_PCSCF_ADDRESS)),
+                mtu);
+    }
+
+    private void sendDataCallList(int callCount, int changedCid) {
+        ArrayList<DataCallResponse> l = new ArrayList<DataCallResponse>();
+        for (int cid = 0; cid < callCount; cid++) {
+            l.add(createResponse(cid, cid == changedCid ? 1280 : 1440));
+        }
+        mDcc.sendMessage(EVENT_DATA_STATE_CHANGED, new AsyncResult(null, l, null));
+        waitForMs(100);
+    }
+
+    @Test
+    @SmallTest
+    public void testUnchangedDataCallsSkipped() throws Exception {
+        final int callCount = 100;
+        DataConnection[] dcs = new DataConnection[callCount];
+        for (int cid = 0; cid < callCount; cid++) {
+            dcs[cid] = mock(DataConnection.class);
+            dcs[cid].mCid = cid;
+            doReturn(mApnContexts).when(dcs[cid]).getApnContexts();
+            doReturn(mResult).when(dcs[cid]).updateLinkProperty(any(DataCallResponse.class));
+            mDcc.addActiveDcByCid(dcs[cid]);
+        }
+
+        sendDataCallList(callCount, -1);
+        sendDataCallList(callCount, -1);
+        for (DataConnection dc : dcs) {
+            verify(dc, times(1)).updateLinkProperty(any(DataCallResponse.class));
+        }
+        assertEquals(callCount, mDcc.getAppliedUpdateCount());
+        assertEquals(callCount, mDcc.getSkippedUpdateCount());
+
+        // Only the changed call is updated
+        sendDataCallList(callCount, 7);
+        verify(dcs[7], times(2)).updateLinkProperty(any(DataCallResponse.class));
+        verify(dcs[8], times(1)).updateLinkProperty(any(DataCallResponse.class));
+        assertEquals(callCount + 1, mDcc.getAppliedUpdateCount());
+        assertEquals(2 * callCount - 1, mDcc.getSkippedUpdateCount());
+
+        // A new DC for a cid is updated even if the response didn't change
+        DataConnection dc = mock(DataConnection.class);
+        dc.mCid = 8;
+        doReturn(mApnContexts).when(dc).getApnContexts();
+        doReturn(mResult).when(dc).updateLinkProperty(any(DataCallResponse.class));
+        mDcc.addActiveDcByCid(dc);
+        sendDataCallList(callCount, 7);
+        verify(dc, times(1)).updateLinkProperty(any(DataCallResponse.class));
+        verify(mDcTracker, times(4)).sendStartNetStatPoll(eq(DctConstants.Activity.NONE));
+    }
+}
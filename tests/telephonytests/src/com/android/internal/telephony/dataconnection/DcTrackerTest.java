@@ -25,6 +25,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
@@ -1449,6 +1450,57 @@ public class DcTrackerTest extends TelephonyTest {
         assertTrue(dunApnExpected.equals(dunApns.get(0)));
     }
 
+    @Test
+    @SmallTest
+    public void testDedupeApnSettings() {
+        ArrayList<ApnSetting> apns = new ArrayList<>(Arrays.asList(
+                createApnSetting(ApnSetting.TYPE_DEFAULT),
+                createApnSetting(ApnSetting.TYPE_DUN),
+                createApnSetting(ApnSetting.TYPE_MMS),
+                createApnSetting(ApnSetting.TYPE_DEFAULT | ApnSetting.TYPE_SUPL)));
+
+        // The MMS APN is merged into the first one, the others overlap it or are DUN
+        ArrayList<ApnSetting> result = DcTracker.dedupeApnSettings(apns);
+        assertEquals(3, result.size());
+        assertEquals(ApnSetting.TYPE_DEFAULT | ApnSetting.TYPE_MMS,
+                result.get(0).getApnTypeBitmask());
+        assertEquals(apns.get(1), result.get(1));
+        assertEquals(apns.get(3), result.get(2));
+    }
+
+    // Test APN db changes which don't change the APNs of the carrier
+    @Test
+    @MediumTest
+    public void testApnChangedWithoutDelta() throws Exception {
+        mSimulatedCommands.setDataCallResult(true, createSetupDataCallResult());
+
+        logd("Sending EVENT_RECORDS_LOADED");
+        mDct.sendMessage(mDct.obtainMessage(DctConstants.EVENT_RECORDS_LOADED, null));
+        waitForMs(200);
+
+        logd("Sending EVENT_DATA_CONNECTION_ATTACHED");
+        mDct.sendMessage(mDct.obtainMessage(DctConstants.EVENT_DATA_CONNECTION_ATTACHED, null));
+        waitForMs(200);
+
+        mDct.enableApn(ApnSetting.TYPE_DEFAULT, DcTracker.REQUEST_TYPE_NORMAL, null);
+        waitForMs(200);
+        verifyDataConnected(FAKE_APN1);
+        clearInvocations(mSimulatedCommandsVerifier);
+
+        logd("Sending EVENT_APN_CHANGED");
+        mDct.sendMessage(mDct.obtainMessage(DctConstants.EVENT_APN_CHANGED, null));
+        waitForMs(200);
+
+        // Nothing is sent to the modem and the data connection stays up
+        verify(mSimulatedCommandsVerifier, times(0)).setDataProfile(any(), anyBoolean(),
+                any(Message.class));
+        verify(mSimulatedCommandsVerifier, times(0)).deactivateDataCall(anyInt(), anyInt(),
+                any(Message.class));
+        verify(mSimulatedCommandsVerifier, times(0)).setupDataCall(anyInt(), any(),
+                anyBoolean(), anyBoolean(), anyInt(), any(), any(Message.class));
+        assertEquals(DctConstants.State.CONNECTED, mDct.getOverallState());
+    }
+
     // Test oos
     @Test
     @SmallTest
@@ -1784,6 +1836,87 @@ public class DcTrackerTest extends TelephonyTest {
         verify(mSST, times(1)).powerOffRadioSafely();
     }
 
+    @Test
+    @MediumTest
+    public void testDataStallRecoverySteps() throws Exception {
+        ContentResolver resolver = mContext.getContentResolver();
+        Settings.System.putInt(resolver, "radio.data.stall.recovery.action", 0);
+        doReturn(new SignalStrength()).when(mPhone).getSignalStrength();
+        final long[] packets = new long[2]; // sent, received
+        DataStallDetector detector = mDct.getDataStallDetector();
+        detector.setCounterSource(new DataStallDetector.CounterSource() {
+            @Override
+            public long getTxPackets() {
+                return packets[0];
+            }
+
+            @Override
+            public long getRxPackets() {
+                return packets[1];
+            }
+        });
+
+        mDct.enableApn(ApnSetting.TYPE_DEFAULT, DcTracker.REQUEST_TYPE_NORMAL, null);
+        logd("Sending EVENT_RECORDS_LOADED");
+        mDct.sendMessage(mDct.obtainMessage(DctConstants.EVENT_RECORDS_LOADED, null));
+        waitForMs(200);
+        logd("Sending EVENT_DATA_CONNECTION_ATTACHED");
+        mDct.sendMessage(mDct.obtainMessage(DctConstants.EVENT_DATA_CONNECTION_ATTACHED, null));
+        waitForMs(200);
+        verify(mSimulatedCommandsVerifier, times(1)).setupDataCall(
+                eq(AccessNetworkType.EUTRAN), any(DataProfile.class),
+                eq(false), eq(false), eq(DataService.REQUEST_REASON_NORMAL), any(),
+                any(Message.class));
+
+        // Packets received, no stall
+        packets[0] += 20;
+        packets[1] += 20;
+        fireDataStallAlarm();
+        verify(mSimulatedCommandsVerifier, times(0)).getDataCallList(any(Message.class));
+
+        // Not enough packets sent without any received yet
+        packets[0] += 5;
+        fireDataStallAlarm();
+        verify(mSimulatedCommandsVerifier, times(0)).getDataCallList(any(Message.class));
+
+        packets[0] += 5;
+        fireDataStallAlarm();
+        verify(mSimulatedCommandsVerifier, times(1)).getDataCallList(any(Message.class));
+
+        packets[0] += 10;
+        fireDataStallAlarm();
+        verify(mSimulatedCommandsVerifier, times(1)).deactivateDataCall(
+                eq(DataService.REQUEST_REASON_NORMAL), anyInt(), any(Message.class));
+
+        // Connect again after the clean up
+        mDct.sendMessage(mDct.obtainMessage(DctConstants.EVENT_DATA_CONNECTION_ATTACHED, null));
+        waitForMs(200);
+        verify(mSimulatedCommandsVerifier, times(2)).setupDataCall(
+                eq(AccessNetworkType.EUTRAN), any(DataProfile.class),
+                eq(false), eq(false), eq(DataService.REQUEST_REASON_NORMAL), any(),
+                any(Message.class));
+
+        packets[0] += 10;
+        fireDataStallAlarm();
+        verify(mSST, times(1)).reRegisterNetwork(eq(null));
+
+        packets[0] += 10;
+        fireDataStallAlarm();
+        verify(mSST, times(1)).powerOffRadioSafely();
+
+        assertEquals(4, detector.getStallCount());
+        assertEquals(0, detector.getFalsePositiveCount());
+        assertTrue(detector.getMaxDetectionLatencyMs() >= 0);
+    }
+
+    private void fireDataStallAlarm() throws Exception {
+        Field field = DcTracker.class.getDeclaredField("mDataStallAlarmTag");
+        field.setAccessible(true);
+        mDct.sendMessage(mDct.obtainMessage(DctConstants.EVENT_DATA_STALL_ALARM,
+                (int) field.get(mDct), 0));
+        waitForMs(200);
+    }
+
     private void verifyDataEnabledChangedMessage(boolean enabled, int reason) {
         verify(mHandler, times(1)).sendMessageDelayed(any(), anyLong());
         Pair<Boolean, Integer> result = (Pair) ((AsyncResult) mMessage.obj).result;
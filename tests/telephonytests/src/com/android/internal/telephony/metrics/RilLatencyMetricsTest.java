@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.RILConstants;
+import com.android.internal.telephony.nano.TelephonyProto.RilRequestLatency;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RilLatencyMetricsTest {
+
+    private RilLatencyMetrics mMetrics;
+
+    @Before
+    public void setUp() throws Exception {
+        mMetrics = new RilLatencyMetrics();
+    }
+
+    private static void assertWithinPrecision(long expected, long actual) {
+        // Buckets are 1/8 of a power of two wide, and report their highest value.
+        assertTrue("expected ~" + expected + " but was " + actual,
+                actual >= expected && actual <= expected + expected / 8);
+    }
+
+    @Test
+    @SmallTest
+    public void testPercentiles() {
+        RilLatencyMetrics.LatencyHistogram histogram = new RilLatencyMetrics.LatencyHistogram();
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000, histogram.getMax());
+        assertWithinPrecision(5000, histogram.getValueAtPercentile(50));
+        assertWithinPrecision(9000, histogram.getValueAtPercentile(90));
+        assertWithinPrecision(9900, histogram.getValueAtPercentile(99));
+        // Capped by the largest sample.
+        assertEquals(10000, histogram.getValueAtPercentile(99.9));
+        assertEquals(10000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    @SmallTest
+    public void testSmallAndLargeValues() {
+        RilLatencyMetrics.LatencyHistogram histogram = new RilLatencyMetrics.LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(3);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.getValueAtPercentile(10));
+        assertEquals(3, histogram.getValueAtPercentile(50));
+        assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    @SmallTest
+    public void testBuildProtoPerPhoneAndRequest() {
+        mMetrics.record(0, RILConstants.RIL_REQUEST_GET_SIM_STATUS, 10, 1000);
+        mMetrics.record(0, RILConstants.RIL_REQUEST_GET_SIM_STATUS, 20, 3000);
+        mMetrics.record(1, RILConstants.RIL_REQUEST_GET_SIM_STATUS, 30, 5000);
+        mMetrics.record(0, RILConstants.RIL_REQUEST_SETUP_DATA_CALL, 40, 7000);
+
+        RilRequestLatency[] protos = mMetrics.buildProto();
+        assertEquals(3, protos.length);
+        for (RilRequestLatency proto : protos) {
+            if (proto.phoneId == 0 && proto.request == RILConstants.RIL_REQUEST_GET_SIM_STATUS) {
+                assertEquals(2, proto.queueLatency.count);
+                assertEquals(20, proto.queueLatency.maxMicros);
+                assertEquals(2, proto.modemLatency.count);
+                assertEquals(3000, proto.modemLatency.maxMicros);
+                assertWithinPrecision(1000, proto.modemLatency.p50Micros);
+            } else {
+                assertEquals(1, proto.modemLatency.count);
+            }
+        }
+
+        mMetrics.reset();
+        assertEquals(0, mMetrics.buildProto().length);
+    }
+}
@@ -647,6 +647,25 @@ public class TelephonyMetricsTest extends TelephonyTest {
         assertEquals(PDP_TYPE_IPV4V6, setupDataCall.type);
     }
 
+    // Test write the latency of a RIL setup data call
+    @Test
+    @SmallTest
+    public void testWriteRilSetupDataCallLatency() throws Exception {
+        TelephonyEvent.RilSetupDataCall event = mMetrics.writeSetupDataCall(
+                mPhone.getPhoneId(), 14, 3, "apn", ApnSetting.PROTOCOL_IPV4V6,
+                ApnSetting.TYPE_DEFAULT | ApnSetting.TYPE_SUPL);
+        mMetrics.writeSetupDataCallLatency(event, 250);
+
+        TelephonyLog log = buildProto();
+
+        assertEquals(1, log.events.length);
+        TelephonyEvent.RilSetupDataCall setupDataCall = log.events[0].setupDataCall;
+        assertEquals("apn", setupDataCall.apn);
+        assertEquals(ApnSetting.TYPE_DEFAULT | ApnSetting.TYPE_SUPL,
+                setupDataCall.apnTypeBitmask);
+        assertEquals(250, setupDataCall.setupLatencyMillis);
+    }
+
     // Test write service state changed
     @Test
     @SmallTest
@@ -732,6 +751,18 @@ public class TelephonyMetricsTest extends TelephonyTest {
         assertEquals("123456", state.dataOperator.numeric);
     }
 
+    // Test reset clears the RIL request latencies
+    @Test
+    @SmallTest
+    public void testResetRilRequestLatency() throws Exception {
+        mMetrics.writeRilRequestLatency(mPhone.getPhoneId(), 1, 100, 2000);
+        assertEquals(1, buildProto().rilRequestLatencies.length);
+
+        reset();
+
+        assertEquals(0, buildProto().rilRequestLatencies.length);
+    }
+
     // Test Proto Encoding/Decoding
     @Test
     @SmallTest
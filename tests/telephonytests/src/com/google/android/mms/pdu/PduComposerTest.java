@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+public class PduComposerTest {
+    private static final byte[] SMIL =
+            "<smil><body><par><img src=\"photo.jpg\"/></par></body></smil>".getBytes();
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = mock(Context.class);
+        doReturn(mock(ContentResolver.class)).when(mContext).getContentResolver();
+    }
+
+    private static PduPart createPart(String contentType, String location, byte[] data) {
+        PduPart part = new PduPart();
+        part.setContentType(contentType.getBytes());
+        part.setContentLocation(location.getBytes());
+        part.setData(data);
+        return part;
+    }
+
+    private static SendReq createSendReq(byte[] image) {
+        SendReq sendReq = new SendReq();
+        PduBody body = new PduBody();
+        body.addPart(createPart("application/smil", "smil.xml", SMIL));
+        body.addPart(createPart("image/jpeg", "photo.jpg", image));
+        sendReq.setBody(body);
+        return sendReq;
+    }
+
+    @Test
+    @SmallTest
+    public void testWriteToRoundTrip() throws Exception {
+        byte[] image = new byte[300 * 1024];
+        new Random(0).nextBytes(image);
+        SendReq sendReq = createSendReq(image);
+        sendReq.addTo(new EncodedStringValue("+15555550100"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long written = new PduComposer(mContext, sendReq).writeTo(out);
+        byte[] data = out.toByteArray();
+        assertEquals(data.length, written);
+        // Streaming writes the same bytes as making the whole pdu in memory
+        assertArrayEquals(new PduComposer(mContext, sendReq).make(), data);
+
+        GenericPdu pdu = new PduParser(data, true).parse();
+        assertTrue(pdu instanceof SendReq);
+        PduBody body = ((SendReq) pdu).getBody();
+        assertEquals(2, body.getPartsNum());
+        assertEquals("application/smil", new String(body.getPart(0).getContentType()));
+        assertArrayEquals(SMIL, body.getPart(0).getData());
+        assertEquals("image/jpeg", new String(body.getPart(1).getContentType()));
+        assertEquals("photo.jpg", new String(body.getPart(1).getContentLocation()));
+        assertArrayEquals(image, body.getPart(1).getData());
+    }
+
+    @Test
+    @SmallTest
+    public void testWriteToMissingData() throws Exception {
+        SendReq sendReq = createSendReq(new byte[10]);
+        sendReq.addTo(new EncodedStringValue("+15555550100"));
+        // A part with neither data nor a Uri
+        PduPart part = new PduPart();
+        part.setContentType("text/plain".getBytes());
+        part.setContentLocation("text.txt".getBytes());
+        sendReq.getBody().addPart(part);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(-1, new PduComposer(mContext, sendReq).writeTo(out));
+        assertEquals(0, out.size());
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+public class PduParserTest {
+    private static final byte[] SMIL =
+            "<smil><body><par><img src=\"photo.jpg\"/></par></body></smil>".getBytes();
+
+    private static void writeUintvar(ByteArrayOutputStream out, int value) {
+        int shift = 28;
+        while (shift > 0 && (value >>> shift) == 0) {
+            shift -= 7;
+        }
+        for (; shift > 0; shift -= 7) {
+            out.write(0x80 | ((value >>> shift) & 0x7F));
+        }
+        out.write(value & 0x7F);
+    }
+
+    private static void writeTextString(ByteArrayOutputStream out, String text) {
+        out.write(text.getBytes(), 0, text.length());
+        out.write(0);
+    }
+
+    /** Writes a part with a Content-Location header. */
+    private static void writePart(ByteArrayOutputStream out, byte[] contentType, String location,
+            byte[] data, int dataLength) {
+        ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        headers.write(contentType, 0, contentType.length);
+        headers.write(PduPart.P_CONTENT_LOCATION);
+        writeTextString(headers, location);
+        writeUintvar(out, headers.size());
+        writeUintvar(out, dataLength);
+        out.write(headers.toByteArray(), 0, headers.size());
+        out.write(data, 0, data.length);
+    }
+
+    private static byte[] textContentType(String contentType) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTextString(out, contentType);
+        return out.toByteArray();
+    }
+
+    /** Returns the headers of a send-req with a multipart/related body. */
+    private static ByteArrayOutputStream sendReqHeaders(int partCount) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(PduHeaders.MESSAGE_TYPE);
+        out.write(PduHeaders.MESSAGE_TYPE_SEND_REQ);
+        out.write(PduHeaders.TRANSACTION_ID);
+        writeTextString(out, "T1");
+        out.write(PduHeaders.MMS_VERSION);
+        out.write(0x80 | PduHeaders.MMS_VERSION_1_2);
+        out.write(PduHeaders.FROM);
+        out.write(1);
+        out.write(PduHeaders.FROM_INSERT_ADDRESS_TOKEN);
+        out.write(PduHeaders.CONTENT_TYPE);
+        out.write(0x80 | 0x33); // application/vnd.wap.multipart.related
+        writeUintvar(out, partCount);
+        return out;
+    }
+
+    private static byte[] createImage(int length) {
+        byte[] image = new byte[length];
+        new Random(length).nextBytes(image);
+        return image;
+    }
+
+    private static byte[] createSendReq(byte[] image) {
+        ByteArrayOutputStream out = sendReqHeaders(2);
+        writePart(out, textContentType("application/smil"), "smil.xml", SMIL, SMIL.length);
+        writePart(out, new byte[] {(byte) (0x80 | 0x1E)} /* image/jpeg */, "photo.jpg", image,
+                image.length);
+        return out.toByteArray();
+    }
+
+    private static PduBody parseBody(PduParser parser) {
+        GenericPdu pdu = parser.parse();
+        assertTrue(pdu instanceof SendReq);
+        return ((SendReq) pdu).getBody();
+    }
+
+    @Test
+    @SmallTest
+    public void testParseParts() {
+        byte[] image = createImage(300 * 1024);
+        byte[] data = createSendReq(image);
+        PduBody body = parseBody(new PduParser(data, true));
+
+        assertEquals(2, body.getPartsNum());
+        assertEquals("application/smil", new String(body.getPart(0).getContentType()));
+        assertArrayEquals(SMIL, body.getPart(0).getData());
+        PduPart imagePart = body.getPart(1);
+        assertEquals("image/jpeg", new String(imagePart.getContentType()));
+        assertEquals("photo.jpg", new String(imagePart.getContentLocation()));
+        assertEquals(image.length, imagePart.getDataLength());
+        assertArrayEquals(image, imagePart.getData());
+
+        ByteBuffer buffer = imagePart.getDataBuffer();
+        assertTrue(buffer.isReadOnly());
+        assertEquals(image.length, buffer.remaining());
+        // The part data is a slice of the pdu rather than a copy
+        data[data.length - 1]++;
+        assertEquals(image[image.length - 1] + 1, imagePart.getData()[image.length - 1]);
+    }
+
+    @Test
+    @SmallTest
+    public void testParseByteBuffer() {
+        byte[] image = createImage(1000);
+        byte[] data = createSendReq(image);
+        // A direct buffer holding the pdu after other data
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length + 10);
+        buffer.position(10);
+        buffer.put(data);
+        buffer.position(10);
+
+        PduBody body = parseBody(new PduParser(buffer, true));
+        assertEquals(10, buffer.position());
+        assertEquals(2, body.getPartsNum());
+        assertArrayEquals(SMIL, body.getPart(0).getData());
+        assertArrayEquals(image, body.getPart(1).getData());
+    }
+
+    @Test
+    @SmallTest
+    public void testMultipartAlternative() {
+        ByteArrayOutputStream alternatives = new ByteArrayOutputStream();
+        writeUintvar(alternatives, 2);
+        writePart(alternatives, textContentType("text/plain"), "first.txt", "first".getBytes(),
+                5);
+        writePart(alternatives, textContentType("text/html"), "second.html",
+                "<b>second</b>".getBytes(), 13);
+        byte[] alternativeData = alternatives.toByteArray();
+
+        ByteArrayOutputStream out = sendReqHeaders(1);
+        writePart(out, textContentType("application/vnd.wap.multipart.alternative"), "alt",
+                alternativeData, alternativeData.length);
+        PduBody body = parseBody(new PduParser(out.toByteArray(), true));
+
+        // Only the first alternative is kept
+        assertEquals(1, body.getPartsNum());
+        assertEquals("first.txt", new String(body.getPart(0).getContentLocation()));
+        assertArrayEquals("first".getBytes(), body.getPart(0).getData());
+    }
+
+    @Test
+    @SmallTest
+    public void testTruncatedPart() {
+        byte[] text = "truncated".getBytes();
+        ByteArrayOutputStream out = sendReqHeaders(1);
+        writePart(out, textContentType("text/plain"), "text.txt", text, 100);
+        PduBody body = parseBody(new PduParser(out.toByteArray(), true));
+
+        // The missing data reads as zeros, as before parsing from a buffer
+        byte[] partData = body.getPart(0).getData();
+        assertEquals(100, partData.length);
+        assertArrayEquals(text, Arrays.copyOf(partData, text.length));
+        assertEquals(0, partData[99]);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class AbstractCacheTest {
+    /** Weighs entries by the length of their value. */
+    private static class TestCache extends AbstractCache<String, String> {
+        final List<String> mRemoved = new ArrayList<>();
+
+        TestCache(long maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected int sizeOf(String key, String value) {
+            return value.length();
+        }
+
+        @Override
+        protected void entryRemoved(String key, String value) {
+            mRemoved.add(key + "=" + value);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testEvictsLeastRecentlyUsed() {
+        TestCache cache = new TestCache(10);
+        assertTrue(cache.put("a", "aaaa"));
+        assertTrue(cache.put("b", "bbbb"));
+        assertEquals("aaaa", cache.get("a"));
+        assertTrue(cache.put("c", "cccc"));
+
+        assertNull(cache.get("b"));
+        assertEquals("aaaa", cache.get("a"));
+        assertEquals("cccc", cache.get("c"));
+        assertEquals(2, cache.size());
+        assertEquals(8, cache.getSize());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals("[b=bbbb]", cache.mRemoved.toString());
+    }
+
+    @Test
+    @SmallTest
+    public void testLargeEntries() {
+        TestCache cache = new TestCache(10);
+        cache.put("a", "aa");
+        cache.put("b", "bb");
+        // Makes room for an entry as large as the cache
+        assertTrue(cache.put("c", "cccccccccc"));
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.getEvictionCount());
+        // But not for one larger than the cache
+        assertFalse(cache.put("d", "ddddddddddd"));
+        assertEquals("cccccccccc", cache.get("c"));
+    }
+
+    @Test
+    @SmallTest
+    public void testReplaceAndPurge() {
+        TestCache cache = new TestCache(10);
+        cache.put("a", "aaaa");
+        cache.put("a", "aa");
+        assertEquals(2, cache.getSize());
+        assertEquals("[a=aaaa]", cache.mRemoved.toString());
+
+        cache.put("b", "bbb");
+        assertEquals("aa", cache.purge("a"));
+        assertEquals(3, cache.getSize());
+        cache.purgeAll();
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.size());
+        // Purging doesn't count as an eviction
+        assertEquals(1, cache.mRemoved.size());
+        assertEquals(0, cache.getEvictionCount());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import android.content.ContentUris;
+import android.net.Uri;
+import android.provider.Telephony.Mms;
+import android.provider.Telephony.MmsSms;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.google.android.mms.pdu.PduBody;
+import com.google.android.mms.pdu.PduPart;
+import com.google.android.mms.pdu.SendReq;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PduCacheTest {
+    private PduCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = PduCache.getInstance();
+        mCache.purgeAll();
+    }
+
+    @After
+    public void tearDown() {
+        mCache.purgeAll();
+    }
+
+    private static PduCacheEntry createEntry(int dataLength, long threadId) {
+        PduPart part = new PduPart();
+        part.setContentType("image/jpeg".getBytes());
+        part.setData(new byte[dataLength]);
+        PduBody body = new PduBody();
+        body.addPart(part);
+        SendReq pdu = new SendReq();
+        pdu.setBody(body);
+        return new PduCacheEntry(pdu, Mms.MESSAGE_BOX_OUTBOX, threadId);
+    }
+
+    private static Uri message(long id) {
+        return ContentUris.withAppendedId(Mms.CONTENT_URI, id);
+    }
+
+    private static Uri conversation(long threadId) {
+        return ContentUris.withAppendedId(MmsSms.CONTENT_CONVERSATIONS_URI, threadId);
+    }
+
+    @Test
+    @SmallTest
+    public void testWeighsBySize() {
+        int dataLength = (int) (mCache.getMaxSize() / 3);
+        mCache.put(message(1), createEntry(dataLength, 1));
+        mCache.put(message(2), createEntry(dataLength, 1));
+        assertEquals(2, mCache.size());
+        mCache.put(message(3), createEntry(dataLength, 1));
+
+        assertNull(mCache.get(message(1)));
+        assertNotNull(mCache.get(message(2)));
+        assertNotNull(mCache.get(message(3)));
+        assertEquals(1, mCache.getEvictionCount());
+        assertEquals(2 * createEntry(dataLength, 1).getSize(), mCache.getSize());
+    }
+
+    @Test
+    @SmallTest
+    public void testEvictionUpdatesIndexes() {
+        int dataLength = (int) (mCache.getMaxSize() / 3);
+        mCache.put(message(1), createEntry(dataLength, 1));
+        mCache.put(message(2), createEntry(dataLength, 2));
+        mCache.put(message(3), createEntry(dataLength, 2));
+        // Evicted from thread 1, then cached again in thread 2
+        mCache.put(message(1), createEntry(0, 2));
+
+        mCache.purge(conversation(1));
+        assertNotNull(mCache.get(message(1)));
+        mCache.purge(Mms.Outbox.CONTENT_URI);
+        assertEquals(0, mCache.size());
+        assertEquals(0, mCache.getSize());
+    }
+}